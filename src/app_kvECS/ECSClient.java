@@ -1,5 +1,6 @@
 package app_kvECS;
 
+import app_kvServer.cache.KVCacheCapacity;
 import ecs.ECSHashRing;
 import ecs.IECSNode;
 import ecs.ZkECSNode;
@@ -245,9 +246,18 @@ public class ECSClient implements IECSClient {
      */
     @Override
     public synchronized IECSNode addNode(String cacheStrategy, int cacheSize) {
+        return addNode(cacheStrategy, String.valueOf(cacheSize));
+    }
+
+    /**
+     * See {@link #addNode(String, int)}
+     *
+     * @param cacheCapacity number of entries, or bytes with a unit (e.g. "64MB"), see {@link KVCacheCapacity#parse(String)}
+     */
+    public synchronized IECSNode addNode(String cacheStrategy, String cacheCapacity) {
         Collection<IECSNode> addedNodes = addNodes(1 /* Number of Nodes to Add */,
                 cacheStrategy,
-                cacheSize);
+                cacheCapacity);
         return addedNodes != null ? (IECSNode) addedNodes.toArray()[0] : null;
     }
 
@@ -261,17 +271,33 @@ public class ECSClient implements IECSClient {
      */
     @Override
     public synchronized Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize) {
+        return addNodes(count, cacheStrategy, String.valueOf(cacheSize));
+    }
+
+    /**
+     * See {@link #addNodes(int, String, int)}; a byte budget keeps each server's cache within a predictable amount of
+     * heap however large its values are
+     *
+     * @param cacheCapacity number of entries, or bytes with a unit (e.g. "64MB"), see {@link KVCacheCapacity#parse(String)}
+     */
+    public synchronized Collection<IECSNode> addNodes(int count, String cacheStrategy, String cacheCapacity) {
+        try {
+            cacheCapacity = KVCacheCapacity.parse(cacheCapacity).toString();
+        } catch (IllegalArgumentException e) {
+            logger.error("Unable to start server(s)", e);
+            return null;
+        }
 
         // Initialize new hash ring to hold the position of the new nodes
         newHashRing = hashRing.deepCopy(ZkECSNode::new);
 
         // Set up nodes
-        Collection<IECSNode> nodesToAdd = setupNodes(count, cacheStrategy, cacheSize);
+        Collection<IECSNode> nodesToAdd = setupNodes(count, cacheStrategy, cacheCapacity);
 
         try {
             for (IECSNode node : nodesToAdd) {
                 // Invoke SSH call to each new server
-                invokeKVServerProcess(node, cacheStrategy, cacheSize);
+                invokeKVServerProcess(node, cacheStrategy, cacheCapacity);
             }
 
             // wait for response on the newly added nodes
@@ -299,6 +325,15 @@ public class ECSClient implements IECSClient {
      */
     @Override
     public synchronized Collection<IECSNode> setupNodes(int count, String cacheStrategy, int cacheSize) {
+        return setupNodes(count, cacheStrategy, String.valueOf(cacheSize));
+    }
+
+    /**
+     * See {@link #setupNodes(int, String, int)}
+     *
+     * @param cacheCapacity number of entries, or bytes with a unit (e.g. "64MB"), see {@link KVCacheCapacity#parse(String)}
+     */
+    public synchronized Collection<IECSNode> setupNodes(int count, String cacheStrategy, String cacheCapacity) {
         Collection<IECSNode> nodesToAdd = new ArrayList<>();
 
         for (int numAdded = 0; numAdded < count && !ECSNodeRepo.isEmpty(); numAdded++) {
@@ -307,7 +342,7 @@ public class ECSClient implements IECSClient {
             // Mark the server in an inactive state
             newServer.setNodeStatus(ServerStatus.INACTIVE);
             // Set Cache Policies
-            newServer.setNodeCacheSize(cacheSize);
+            newServer.setNodeCacheCapacity(cacheCapacity);
             newServer.setNodeCacheStrategy(cacheStrategy);
             // Add the new server to the new hash ring
             newHashRing.addServer(newServer);
@@ -799,14 +834,14 @@ public class ECSClient implements IECSClient {
             node.setNodeStatus(ServerStatus.OFFLINE);
             // Get cache policy for new server, and remove previous policy before adding server back into queue
             String cachePolicy = serverFailed.getNodeCacheStrategy();
-            int cacheSize = serverFailed.getNodeCacheSize();
+            String cacheCapacity = serverFailed.getNodeCacheCapacity();
             serverFailed.clearNodeCachePolicy();
             // remove from the node pool
             hashRing.removeServer(node);
             // add to queue
             ECSNodeRepo.add(node);
             // Start up a new server
-            addNode(cachePolicy, cacheSize);
+            addNode(cachePolicy, cacheCapacity);
             try {
                 start();
             } catch (Exception e) {
@@ -840,14 +875,14 @@ public class ECSClient implements IECSClient {
     /**
      * Invokes a remote ssh process to start server at specified host & port
      */
-    private synchronized void invokeKVServerProcess(IECSNode nodeData, String cacheStrategy, int cacheSize) throws IOException {
+    private synchronized void invokeKVServerProcess(IECSNode nodeData, String cacheStrategy, String cacheCapacity) throws IOException {
         String script = String.join(" ",
                 "java -jar",
                 SERVER_JAR,
                 String.valueOf(nodeData.getNodePort()),
                 nodeData.getNodeName(),
                 PUBLIC_ZK_CONN,
-                String.valueOf(cacheSize),
+                cacheCapacity,
                 cacheStrategy);
         script = "ssh -n " + nodeData.getNodeHost() + " nohup " + script + " > server.log &";
         Runtime run = Runtime.getRuntime();
@@ -1,5 +1,6 @@
 package app_kvECS;
 
+import app_kvServer.cache.KVCacheCapacity;
 import ecs.IECSNode;
 import ecs.zk.ZooKeeperService;
 import logger.LogSetup;
@@ -108,11 +109,11 @@ public class ECSClientCli implements Runnable {
     }
 
     private void handleAddNode(List<String> args) {
-        int cacheSize;
+        String cacheSize;
         try {
-            cacheSize = Integer.parseInt(args.get(1));
-        } catch (NumberFormatException e) {
-            System.out.println("Please provide a valid number for the cacheSize");
+            cacheSize = KVCacheCapacity.parse(args.get(1)).toString();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please provide a valid number of entries or bytes (e.g. 64MB) for the cacheSize");
             return;
         }
         IECSNode node = ecs.addNode(args.get(0), cacheSize);
@@ -124,12 +125,13 @@ public class ECSClientCli implements Runnable {
     }
 
     private void handleAddNodes(List<String> args) {
-        int num, cacheSize;
+        int num;
+        String cacheSize;
         try {
             num = Integer.parseInt(args.get(0));
-            cacheSize = Integer.parseInt(args.get(2));
-        } catch (NumberFormatException e) {
-            System.out.println("Please provide a valid number of servers/cacheSize");
+            cacheSize = KVCacheCapacity.parse(args.get(2)).toString();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please provide a valid number of servers/cacheSize (entries, or bytes e.g. 64MB)");
             return;
         }
         Collection<IECSNode> nodesAdded = ecs.addNodes(num, args.get(1), cacheSize);
@@ -4,6 +4,7 @@ import app_kvHttp.model.Model;
 import app_kvHttp.model.response.KV;
 import app_kvHttp.model.response.Status;
 import app_kvServer.storage.IKVStorage;
+import app_kvServer.storage.KVUpdateSummary;
 import com.fasterxml.jackson.core.JacksonException;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -114,10 +115,8 @@ public abstract class Handler implements HttpHandler {
                             .map(kv -> new KV(kv.key, kv.value))
                             .collect(Collectors.toList()));
                 case COORDINATE_PUT_ALL_SUCCESS:
-                    // 201
-                    return ApiResponse.of(HttpURLConnection.HTTP_CREATED, kvMessage.getValue().lines()
-                            .map(IKVStorage.KVPair::deserialize)
-                            .filter(Objects::nonNull)
+                    // 201, with a sample of the updated pairs
+                    return ApiResponse.of(HttpURLConnection.HTTP_CREATED, KVUpdateSummary.deserialize(kvMessage.getValue()).getSample().stream()
                             .map(kv -> new KV(kv.key, kv.value))
                             .collect(Collectors.toList()));
                 case COORDINATE_DELETE_ALL_SUCCESS:
@@ -190,7 +190,7 @@ public class ClientConnection implements Runnable {
                     ? StatusType.PUT_UPDATE
                     : StatusType.PUT_SUCCESS;
 
-            server.putKV(req.getKey(), req.getValue());
+            server.putKV(req.getKey(), req.getValue(), req.getTtl());
             return new KVMessageProto(putStatus, req.getKey(), req.getValue(), req.getId());
         } catch (KVServerException e) {
             if (e.getErrorCode() != StatusType.PUT_ERROR) throw e;
@@ -1,6 +1,8 @@
 package app_kvServer;
 
+import app_kvServer.replication.DeadlineHandshake;
 import app_kvServer.storage.IKVStorage;
+import app_kvServer.storage.KVRingRange;
 import com.google.protobuf.InvalidProtocolBufferException;
 import ecs.ECSHashRing;
 import ecs.ECSNode;
@@ -13,7 +15,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
@@ -261,6 +262,7 @@ public class ECSServerConnection {
                 logger.info("HANDLE TRANSFER GOT TRANSFER BEGIN");
                 try {
                     Socket IOSocket = socket.accept();
+                    DeadlineHandshake.announce(IOSocket);
                     try (BufferedReader in = new BufferedReader(new InputStreamReader(IOSocket.getInputStream()))) {
                         logger.info("RECEIVED DATA");
                         server.putAllFromKvStream(in.lines());
@@ -268,6 +270,9 @@ public class ECSServerConnection {
                         zkService.setData(zNode, new KVAdminMessageProto(server.getServerName(), KVAdminMessage.AdminStatusType.TRANSFER_COMPLETE).getBytes());
                     } catch (IOException e) {
                         logger.error("Error occurred during data transfer", e);
+                    } catch (KVServerException e) {
+                        // Never report a transfer complete when some of it was dropped, or the sender may delete it
+                        logger.error("Unable to store transferred data", e);
                     }
                 } catch (IOException e) {
                     logger.error("Error occurred during data receive", e);
@@ -301,7 +306,8 @@ public class ECSServerConnection {
 
                 Predicate<IKVStorage.KVPair> filter = computeRangeFilter(req.getRange());
 
-                try (Stream<String> s = server.openKvStream(filter);
+                // Each transfer is to a fresh port, so the receiving server is only known by its host
+                try (Stream<String> s = server.openKvStream(filter, DeadlineHandshake.accepts(Objects.requireNonNull(socket), fullAddr[0]));
                      PrintWriter out = new PrintWriter(Objects.requireNonNull(socket).getOutputStream(), true)) {
                     logger.info("SENDING DATA");
                     s.forEach(out::println);
@@ -314,29 +320,12 @@ public class ECSServerConnection {
         });
     }
 
+    /**
+     * @param range [predecessor hash, node hash] in hex
+     * @return a filter for keys the node is responsible for, which storage can check against precomputed hashes
+     */
     private Predicate<IKVStorage.KVPair> computeRangeFilter(String[] range) {
-
-        BigInteger l = new BigInteger(range[0], 16);
-        BigInteger r = new BigInteger(range[1], 16);
-        Predicate<IKVStorage.KVPair> filter = null;
-        switch (r.compareTo(l)) {
-            case 0: // Single node hash ring: this node is responsible for everything
-                filter = kvPair -> true;
-                break;
-            case 1: // Regular hash ring check: (node >= hash > predecessor)
-                filter = kvPair -> {
-                    BigInteger hash = ECSHashRing.computeHash(kvPair.key);
-                    return (r.compareTo(hash) >= 0 && l.compareTo(hash) < 0);
-                };
-                break;
-            case -1: // Wraparound case: either (node >= hash) OR (hash > predecessor)
-                filter = kvPair -> {
-                    BigInteger hash = ECSHashRing.computeHash(kvPair.key);
-                    return (r.compareTo(hash) >= 0 || l.compareTo(hash) < 0);
-                };
-                break;
-        }
-        return filter;
+        return KVRingRange.fromHex(range[0], range[1]);
     }
 
     private void handleTransferBegin() {
@@ -5,7 +5,18 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        TINYLFU,
+        ARC
+    };
+
+    public enum StorageStrategy {
+        PARTITIONED,
+        RING_PARTITIONED,
+        LSM,
+        ARENA,
+        BTREE,
+        TIERED
     };
 
     /**
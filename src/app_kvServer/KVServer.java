@@ -4,11 +4,15 @@ import app_kvHttp.model.Model;
 import app_kvHttp.model.request.Query;
 import app_kvHttp.model.request.Remapping;
 import app_kvServer.cache.IKVCache;
+import app_kvServer.cache.KVCacheCapacity;
 import app_kvServer.replication.BackupServersConnectionManager;
 import app_kvServer.replication.PrimaryServerConnectionManager;
+import app_kvServer.storage.DurabilityPolicy;
 import app_kvServer.storage.IKVStorage;
 import app_kvServer.storage.IKVStorage.KVPair;
 import app_kvServer.storage.KVPartitionedStorage;
+import app_kvServer.storage.KVPatternFilter;
+import app_kvServer.storage.KVUpdateSummary;
 import ecs.ECSNode;
 import logger.LogSetup;
 import org.apache.log4j.Level;
@@ -59,9 +63,21 @@ public class KVServer extends Thread implements IKVServer {
      * @param strategy         specifies the cache replacement strategy in case the cache
      *                         is full and there is a GET- or PUT-request on a key that is
      *                         currently not contained in the cache. Options are "FIFO", "LRU",
-     *                         and "LFU".
+     *                         "LFU", "TINYLFU" (resists scans), and "ARC" (adapts between recency and frequency).
      */
     public KVServer(int port, String name, String connectionString, int cacheSize, String strategy) {
+        this(port, name, connectionString, new KVServerOptions().cacheCapacity(KVCacheCapacity.ofEntries(cacheSize)).cacheStrategy(strategy));
+    }
+
+    /**
+     * Start KV Server at given port
+     *
+     * @param port             given port for storage server to operate
+     * @param name             server name
+     * @param connectionString connection string used for ZooKeeper
+     * @param options          specifies how the server caches and stores key-value pairs, see {@link KVServerOptions}
+     */
+    public KVServer(int port, String name, String connectionString, KVServerOptions options) {
         this.name = name;
         this.port = port;
         this.state = ECSServerConnection.State.STOPPED;
@@ -75,14 +91,33 @@ public class KVServer extends Thread implements IKVServer {
         this.threadPool = Executors.newCachedThreadPool();
         this.activeConnections = new HashSet<>();
 
-        this.storage = new KVPartitionedStorage(IKVStorage.STORAGE_ROOT_DIRECTORY + "/" + port);
+        DurabilityPolicy durabilityPolicy = DurabilityPolicy.NONE;
+        try {
+            durabilityPolicy = DurabilityPolicy.parse(options.getDurability());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Defaulting to no forced syncs", e);
+        }
+
+        StorageStrategy storageEngine = StorageStrategy.PARTITIONED;
+        try {
+            storageEngine = StorageStrategy.valueOf(options.getStorageStrategy());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Defaulting to partitioned storage", e);
+        }
+        int partitions = options.getPartitions();
+        if (partitions < 1) {
+            logger.warn(String.format("Defaulting to %d partitions instead of %d", KVPartitionedStorage.DEFAULT_PARTITIONS, partitions));
+            partitions = KVPartitionedStorage.DEFAULT_PARTITIONS;
+        }
+        this.storage = IKVStorage.newInstance(storageEngine, IKVStorage.STORAGE_ROOT_DIRECTORY + "/" + port, durabilityPolicy, partitions, options.getTrigramIndex());
+
         CacheStrategy cacheStrategy = CacheStrategy.None;
         try {
-            cacheStrategy = CacheStrategy.valueOf(strategy);
+            cacheStrategy = CacheStrategy.valueOf(options.getCacheStrategy());
         } catch (IllegalArgumentException e) {
             logger.warn("Defaulting to no cache", e);
         } finally {
-            this.cache = IKVCache.newInstance(cacheStrategy, cacheSize);
+            this.cache = IKVCache.newInstance(cacheStrategy, options.getCacheCapacity());
         }
 
         this.start();
@@ -148,8 +183,9 @@ public class KVServer extends Thread implements IKVServer {
                 return value;
             }
 
-            if ((value = storage.getKV(key)) != null) {
-                cache.putKV(key, value);
+            final KVPair kv = storage.getKVPair(key);
+            if ((value = kv.value) != null) {
+                cache.putKV(key, value, kv.expiresAt);
                 logger.debug(String.format("Key '%s' found in storage", key));
                 return value;
             }
@@ -164,6 +200,17 @@ public class KVServer extends Thread implements IKVServer {
 
     @Override
     public void putKV(String key, String value) throws KVServerException {
+        putKV(key, value, 0);
+    }
+
+    /**
+     * Like {@link #putKV(String, String)}, but the key is treated as deleted once the given time has passed, both here
+     * and on replicas
+     *
+     * @param ttlMillis how long the key should live for, 0 for forever (as is anything too long to represent); ignored
+     *                  for deletes
+     */
+    public void putKV(String key, String value, long ttlMillis) throws KVServerException {
         if (state == ECSServerConnection.State.STOPPED) {
             throw new KVServerException("Server is in STOPPED state", KVMessage.StatusType.SERVER_STOPPED);
         }
@@ -190,11 +237,13 @@ public class KVServer extends Thread implements IKVServer {
             throw new KVServerException(String.format("Unknown error processing key '%s'", key), e, KVMessage.StatusType.FAILED);
         }
         else try {
+            final long expiresAt = KVPair.expiresAfter(ttlMillis, System.currentTimeMillis());
+
             // Store BEFORE caching in case of any failures
-            storage.putKV(key, value);
-            cache.putKV(key, value);
+            storage.putKV(key, value, expiresAt);
+            cache.putKV(key, value, expiresAt);
 
-            backupServersConnectionManager.replicate(new KVPair(KVPair.Tombstone.VALID, key, value));
+            backupServersConnectionManager.replicate(new KVPair(KVPair.Tombstone.VALID, key, value, expiresAt));
         } catch (KVServerException e) {
             throw e;
         } catch (Exception e) {
@@ -271,12 +320,11 @@ public class KVServer extends Thread implements IKVServer {
             throw new KVServerException("Server is in STOPPED state", KVMessage.StatusType.SERVER_STOPPED);
         }
 
-        final Predicate<String> keyPredicate = filter.getKeyFilter().asMatchPredicate()
-                .and(key -> ecsServerConnection.isResponsibleForKey(key, false));
-        final Predicate<String> valuePredicate = filter.getValueFilter().asMatchPredicate();
+        final KVPatternFilter matches = new KVPatternFilter(filter.getKeyFilter(), filter.getValueFilter(),
+                key -> ecsServerConnection.isResponsibleForKey(key, false));
 
         try {
-            List<KVPair> value = storage.getAllKV(kv -> keyPredicate.test(kv.key) && valuePredicate.test(kv.value));
+            List<KVPair> value = storage.getAllKV(matches);
 
             if (!value.isEmpty()) return value.stream().map(KVPair::serialize).collect(Collectors.joining("\n"));
 
@@ -289,6 +337,9 @@ public class KVServer extends Thread implements IKVServer {
         }
     }
 
+    /**
+     * @return serialized {@link KVUpdateSummary} of the keys updated across all servers
+     */
     public String coordinatePutAllKV(Query filter, Remapping mapping) throws KVServerException {
         if (state == ECSServerConnection.State.STOPPED) {
             throw new KVServerException("Server is in STOPPED state", KVMessage.StatusType.SERVER_STOPPED);
@@ -346,8 +397,11 @@ public class KVServer extends Thread implements IKVServer {
                     .filter(msg -> msg.getStatus() == KVMessage.StatusType.PUT_ALL_SUCCESS)
                     .collect(Collectors.toList());
 
-            if (allUpdatedVals.size() > 0)
-                return allUpdatedVals.stream().map(KVMessage::getValue).collect(Collectors.joining("\n"));
+            if (allUpdatedVals.size() > 0) {
+                final KVUpdateSummary updated = new KVUpdateSummary();
+                allUpdatedVals.forEach(msg -> updated.merge(KVUpdateSummary.deserialize(msg.getValue())));
+                return updated.serialize();
+            }
 
             throw new KVServerException("No keys matching filter", KVMessage.StatusType.COORDINATE_PUT_ALL_ERROR);
         } finally {
@@ -355,6 +409,9 @@ public class KVServer extends Thread implements IKVServer {
         }
     }
 
+    /**
+     * @return serialized {@link KVUpdateSummary} of the keys updated that this server is the primary for
+     */
     public String putAllKV(Query filter, Remapping mapping) throws KVServerException {
         if (state == ECSServerConnection.State.STOPPED) {
             throw new KVServerException("Server is in STOPPED state", KVMessage.StatusType.SERVER_STOPPED);
@@ -367,20 +424,15 @@ public class KVServer extends Thread implements IKVServer {
         // Clear cache to get rid of stale values
         cache.clearCache();
 
-        final Predicate<String> keyPredicate = filter.getKeyFilter().asMatchPredicate();
-        final Predicate<String> valuePredicate = filter.getValueFilter().asMatchPredicate();
+        final KVPatternFilter matches = new KVPatternFilter(filter.getKeyFilter(), filter.getValueFilter());
 
         try {
-            List<KVPair> value = storage.putAllKV(kv -> keyPredicate.test(kv.key) && valuePredicate.test(kv.value),
-                    mapping.getFind().pattern(), mapping.getReplace());
-
-            if (!value.isEmpty()) {
-                // Only send back keys where you are the primary
-                return value.stream()
-                        .filter(kv -> ecsServerConnection.isResponsibleForKey(kv.key, false))
-                        .map(IKVStorage.KVPair::serialize)
-                        .collect(Collectors.joining("\n"));
-            }
+            // Only report keys where you are the primary
+            final KVUpdateSummary updated = new KVUpdateSummary(KVUpdateSummary.DEFAULT_SAMPLE_SIZE,
+                    key -> ecsServerConnection.isResponsibleForKey(key, false));
+            storage.putAllKV(matches, mapping.getFind().pattern(), mapping.getReplace(), updated);
+
+            if (updated.getCount() > 0) return updated.serialize();
 
             logger.debug("Unable to find any keys with expression");
             throw new KVServerException("No keys matching filter", KVMessage.StatusType.PUT_ALL_ERROR);
@@ -468,11 +520,10 @@ public class KVServer extends Thread implements IKVServer {
 
         cache.clearCache(); // expensive af but much simpler than actually pruning cache
 
-        final Predicate<String> keyPredicate = filter.getKeyFilter().asMatchPredicate();
-        final Predicate<String> valuePredicate = filter.getValueFilter().asMatchPredicate();
+        final KVPatternFilter matches = new KVPatternFilter(filter.getKeyFilter(), filter.getValueFilter());
 
         try {
-            storage.deleteIf(kv -> keyPredicate.test(kv.key) && valuePredicate.test(kv.value));
+            storage.deleteIf(matches);
         } catch (KVServerException e) {
             throw e;
         } catch (Exception e) {
@@ -571,6 +622,12 @@ public class KVServer extends Thread implements IKVServer {
             } catch (Exception e) {
                 logger.error("Unable to cleanly terminate replica (send) connection", e);
             }
+
+            try {
+                storage.close();
+            } catch (Exception e) {
+                logger.error("Unable to cleanly close storage", e);
+            }
         } else {
             logger.info(String.format("Second call: %d", java.lang.Thread.activeCount()));
             logger.warn("Server already closed");
@@ -583,31 +640,30 @@ public class KVServer extends Thread implements IKVServer {
     }
 
     /**
-     * Stream all KVs from (a temp snapshot of) storage. Remember to call {@link Stream#close()} on the resulting
-     * stream after it's been processed (see {@link IKVStorage#openKvStream(Predicate)} for explanation)
+     * Stream all matching KVs straight out of storage, without copying it first: most engines read a consistent view
+     * of storage as of the call, see {@link IKVStorage#openKvStream(Predicate)}. Remember to call
+     * {@link Stream#close()} on the resulting stream after it's been processed, since it holds storage open
      *
+     * @param withDeadlines whether the reader understands deadlines, see {@link KVPair#serialize(boolean)}
      * @return a stream of serialized {@link KVPair}s
      */
-    public Stream<String> openKvStream(Predicate<KVPair> filter) {
-        return storage.openKvStream(filter).map(KVPair::serialize);
+    public Stream<String> openKvStream(Predicate<KVPair> filter, boolean withDeadlines) {
+        return storage.openKvStream(filter).map(kv -> kv.serialize(withDeadlines));
     }
 
     /**
      * Bulk PUT operation given a stream of serialized {@link KVPair}s
      *
-     * @param serializedKvStream like the results from {@link #openKvStream(Predicate)} but could be any serialized kv
+     * @param serializedKvStream like the results from {@link #openKvStream(Predicate, boolean)} but could be any serialized kv
      *                           string stream e.g. one coming out of a socket
+     * @throws KVServerException if any pair couldn't be stored, in which case the rest of the stream is left unread
      */
-    public void putAllFromKvStream(Stream<String> serializedKvStream) {
+    public void putAllFromKvStream(Stream<String> serializedKvStream) throws KVServerException {
         this.clearCache();
         try (serializedKvStream) {
-            serializedKvStream.map(KVPair::deserialize).filter(Objects::nonNull).forEach(kv -> {
-                try {
-                    storage.putKV(kv.key, kv.value);
-                } catch (KVServerException e) {
-                    logger.info(String.format("Error ingesting kv '%s'", kv.key));
-                }
-            });
+            for (KVPair kv : (Iterable<KVPair>) serializedKvStream.map(KVPair::deserialize).filter(Objects::nonNull)::iterator) {
+                storage.putKV(kv.key, kv.value, kv.expiresAt);
+            }
         }
     }
 
@@ -641,38 +697,59 @@ public class KVServer extends Thread implements IKVServer {
      * Perform a KV ingestion operation without checking for hash range, lock, etc.
      *
      * @param kv from a coordinator server that this is a replica of
+     * @throws KVServerException if a live pair couldn't be stored; deletes of keys this replica doesn't have are skipped
      */
-    public void forceIngestKV(KVPair kv) {
-        try {
-            switch (kv.tombstone) {
-                case VALID:
-                    storage.putKV(kv.key, kv.value);
-                    break;
-                case DEAD:
+    public void forceIngestKV(KVPair kv) throws KVServerException {
+        switch (kv.tombstone) {
+            case VALID:
+                storage.putKV(kv.key, kv.value, kv.expiresAt);
+                break;
+            case DEAD:
+                try {
                     storage.delete(kv.key);
-                    break;
-            }
-        } catch (KVServerException e) {
-            logger.info(String.format("Error ingesting kv '%s'", kv.key));
+                } catch (KVServerException e) {
+                    logger.info(String.format("Error ingesting kv '%s'", kv.key));
+                }
+                break;
         }
     }
 
     /**
      * Main entry point for the KVServer application.
      *
-     * @param args contains [portNumber, name, zkConn [, cacheSize, policy, logLevel]]
+     * @param args contains [portNumber, name, zkConn [, cacheSize, policy, logLevel, storageStrategy, durability, partitions, trigramIndex]]
+     *             where cacheSize is a number of entries or of bytes, see {@link KVCacheCapacity#parse(String)}
      */
     public static void main(String[] args) {
         // 0. Default args
-        int portNumber, cacheSize = 10;
+        int portNumber;
         String name;
         String connectionString;
-        String policy = "FIFO";
         Level logLevel = Level.ALL;
+        final KVServerOptions options = new KVServerOptions();
 
         // 1. Validate args
         try {
             switch (args.length) {
+                case 10:
+                    if (!args[9].equalsIgnoreCase("true") && !args[9].equalsIgnoreCase("false"))
+                        throw new IllegalArgumentException(String.format("Invalid trigram index flag '%s'", args[9]));
+                    options.trigramIndex(Boolean.parseBoolean(args[9]));
+                case 9:
+                    try {
+                        final int partitions = Integer.parseInt(args[8]);
+                        if (partitions < 1) throw new NumberFormatException();
+                        options.partitions(partitions);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(String.format("Invalid partition count '%s'", args[8]));
+                    }
+                case 8:
+                    options.durability(DurabilityPolicy.parse(args[7]).toString());
+                case 7:
+                    String candidateStorage = args[6].toUpperCase();
+                    if (Arrays.stream(StorageStrategy.values()).noneMatch(e -> e.name().equals(candidateStorage)))
+                        throw new IllegalArgumentException(String.format("Invalid storage strategy '%s'", candidateStorage));
+                    options.storageStrategy(candidateStorage);
                 case 6:
                     String candidateLevel = args[5].toUpperCase();
                     if (!LogSetup.isValidLevel(candidateLevel))
@@ -682,12 +759,12 @@ public class KVServer extends Thread implements IKVServer {
                     String candidatePolicy = args[4].toUpperCase();
                     if (Arrays.stream(CacheStrategy.values()).noneMatch(e -> e.name().equals(candidatePolicy)))
                         throw new IllegalArgumentException(String.format("Invalid cache policy '%s'", candidatePolicy));
-                    policy = candidatePolicy;
+                    options.cacheStrategy(candidatePolicy);
                 case 4:
                     try {
-                        cacheSize = Integer.parseInt(args[3]);
-                    } catch (NumberFormatException e) {
-                        throw new IllegalArgumentException(String.format("Invalid cache size '%s'", args[1]));
+                        options.cacheCapacity(KVCacheCapacity.parse(args[3]));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(String.format("Invalid cache size '%s'", args[3]));
                     }
                 case 3:
                     name = args[1];
@@ -703,7 +780,7 @@ public class KVServer extends Thread implements IKVServer {
             }
         } catch (IllegalArgumentException e) {
             System.err.println("Error: " + e);
-            System.err.println("Usage: Server <port> <name> <connectionString> [<cachesize> <cachepolicy> <loglevel>]");
+            System.err.println("Usage: Server <port> <name> <connectionString> [<cachesize> <cachepolicy> <loglevel> <storagestrategy> <durability> <partitions> <trigramindex>]");
             System.exit(1);
             return;
         }
@@ -718,7 +795,7 @@ public class KVServer extends Thread implements IKVServer {
         }
 
         // 3. Run server and respond to ctrl-c and kill
-        final KVServer kvServer = (KVServer) ObjectFactory.createKVServerObject(portNumber, name, connectionString, cacheSize, policy);
+        final KVServer kvServer = (KVServer) ObjectFactory.createKVServerObject(portNumber, name, connectionString, options);
         Runtime.getRuntime().addShutdownHook(new Thread(kvServer::close));
     }
 }
@@ -0,0 +1,100 @@
+package app_kvServer;
+
+import app_kvServer.cache.KVCacheCapacity;
+import app_kvServer.storage.DurabilityPolicy;
+import app_kvServer.storage.KVPartitionedStorage;
+
+/**
+ * How a {@link KVServer} caches and stores key-value pairs. Starts out with the defaults, which each setter overrides
+ * before returning the options for chaining e.g. {@code new KVServerOptions().storageStrategy("LSM").durability("BATCH")}.
+ * <p>
+ * Values are only checked once the server starts: anything it doesn't recognize is logged and replaced with the default.
+ */
+public class KVServerOptions {
+    private KVCacheCapacity cacheCapacity = KVCacheCapacity.ofEntries(10);
+    private String cacheStrategy = IKVServer.CacheStrategy.FIFO.name();
+    private String storageStrategy = IKVServer.StorageStrategy.PARTITIONED.name();
+    private String durability = DurabilityPolicy.NONE.toString();
+    private int partitions = KVPartitionedStorage.DEFAULT_PARTITIONS;
+    private boolean trigramIndex = false;
+
+    /**
+     * @param cacheCapacity how many key-value pairs, or bytes of keys and values, the server is allowed to keep
+     *                      in-memory e.g. "100" or "64MB"
+     */
+    public KVServerOptions cacheCapacity(KVCacheCapacity cacheCapacity) {
+        this.cacheCapacity = cacheCapacity;
+        return this;
+    }
+
+    /**
+     * @param cacheStrategy the cache replacement strategy in case the cache is full and there is a GET- or PUT-request
+     *                      on a key that is currently not contained in the cache. Options are "FIFO", "LRU", "LFU",
+     *                      "TINYLFU" (resists scans), and "ARC" (adapts between recency and frequency).
+     */
+    public KVServerOptions cacheStrategy(String cacheStrategy) {
+        this.cacheStrategy = cacheStrategy;
+        return this;
+    }
+
+    /**
+     * @param storageStrategy the storage engine used to persist key-value pairs. Options are "PARTITIONED",
+     *                        "RING_PARTITIONED", "LSM", "ARENA", "BTREE", and "TIERED" (partitioned, behind an
+     *                        in-memory tier that absorbs writes).
+     */
+    public KVServerOptions storageStrategy(String storageStrategy) {
+        this.storageStrategy = storageStrategy;
+        return this;
+    }
+
+    /**
+     * @param durability when writes are forced to disk. Options are "NONE", "BATCH", and "PERIODIC:&lt;millis&gt;"
+     *                   (see {@link DurabilityPolicy}).
+     */
+    public KVServerOptions durability(String durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * @param partitions how many files the "PARTITIONED" storage engine spreads keys over. Roughly one per core and
+     *                   disk works well.
+     */
+    public KVServerOptions partitions(int partitions) {
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * @param trigramIndex whether the "PARTITIONED" storage engine indexes the trigrams of keys so that selective
+     *                     Queries don't scan every key. Costs memory and some write throughput.
+     */
+    public KVServerOptions trigramIndex(boolean trigramIndex) {
+        this.trigramIndex = trigramIndex;
+        return this;
+    }
+
+    public KVCacheCapacity getCacheCapacity() {
+        return cacheCapacity;
+    }
+
+    public String getCacheStrategy() {
+        return cacheStrategy;
+    }
+
+    public String getStorageStrategy() {
+        return storageStrategy;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public boolean getTrigramIndex() {
+        return trigramIndex;
+    }
+}
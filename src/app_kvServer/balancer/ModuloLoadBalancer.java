@@ -11,7 +11,7 @@ public class ModuloLoadBalancer<T> implements ILoadBalancer<T> {
 
     @Override
     public T balanceRequest(String key, List<T> nodes) {
-        return nodes.get(Math.abs(key.hashCode()) % this.nodeCount);
+        return nodes.get(Math.floorMod(key.hashCode(), this.nodeCount));
     }
 
     /**
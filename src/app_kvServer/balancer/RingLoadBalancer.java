@@ -0,0 +1,54 @@
+package app_kvServer.balancer;
+
+import ecs.ECSHashRing;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Splits the hash ring into nodeCount equal, contiguous arcs by the top 32 bits of each key's ring hash, so a range
+ * of the ring (e.g. the keys a server hands over when a node joins) maps onto a run of whole nodes plus at most one
+ * partial node at either end.
+ */
+public class RingLoadBalancer<T> implements ILoadBalancer<T> {
+    private final int nodeCount;
+
+    public RingLoadBalancer(int nodeCount) {
+        if (nodeCount < 1) throw new IllegalArgumentException("Node count must be positive");
+        this.nodeCount = nodeCount;
+    }
+
+    @Override
+    public T balanceRequest(String key, List<T> nodes) {
+        return nodes.get(bucketOf(ByteBuffer.wrap(ECSHashRing.computeHashBytes(key)).getLong(0)));
+    }
+
+    /**
+     * @param hashHigh most significant 8 bytes of a ring hash
+     * @return index of the node whose arc contains the hash
+     */
+    public int bucketOf(long hashHigh) {
+        return (int) (((hashHigh >>> 32) * nodeCount) >>> 32);
+    }
+
+    /**
+     * @return most significant 8 bytes of the lowest ring hash in the node's arc; the low 8 bytes are all zero
+     */
+    public long firstHigh(int node) {
+        return arcStart(node) << 32;
+    }
+
+    /**
+     * @return most significant 8 bytes of the highest ring hash in the node's arc; the low 8 bytes are all ones
+     */
+    public long lastHigh(int node) {
+        return ((arcStart(node + 1) - 1) << 32) | 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return smallest top-32-bit prefix that {@link #bucketOf(long)} assigns to the node, i.e. ceil(node * 2^32 / n)
+     */
+    private long arcStart(int node) {
+        return (((long) node << 32) + nodeCount - 1) / nodeCount;
+    }
+}
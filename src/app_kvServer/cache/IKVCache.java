@@ -1,6 +1,7 @@
 package app_kvServer.cache;
 
 import app_kvServer.IKVServer;
+import app_kvServer.storage.IKVStorage.KVPair;
 
 public interface IKVCache {
     /**
@@ -37,6 +38,17 @@ public interface IKVCache {
      */
     public void putKV(String key, String value);
 
+    /**
+     * Put the key-value pair into storage until its deadline passes. Caches that can't track deadlines (see
+     * {@link KVExpiringCache}) drop the key instead, so a stale value is never served.
+     *
+     * @param expiresAt milliseconds since the epoch, or {@link KVPair#NO_EXPIRY}
+     */
+    public default void putKV(String key, String value, long expiresAt) {
+        if (expiresAt == KVPair.NO_EXPIRY) putKV(key, value);
+        else delete(key);
+    }
+
     /**
      * Delete key-value pair from cache
      */
@@ -48,13 +60,24 @@ public interface IKVCache {
     public void clearCache();
 
     static IKVCache newInstance(IKVServer.CacheStrategy strategy, int size) {
+        return newInstance(strategy, KVCacheCapacity.ofEntries(size));
+    }
+
+    /**
+     * @param capacity most entries, or bytes of keys and values, to hold
+     */
+    static IKVCache newInstance(IKVServer.CacheStrategy strategy, KVCacheCapacity capacity) {
         switch (strategy) {
             case LRU:
-                return new KVLruCache(size);
+                return new KVExpiringCache(new KVLruCache(capacity));
             case LFU:
-                return new KVLfuCache(size);
+                return new KVExpiringCache(new KVLfuCache(capacity));
             case FIFO:
-                return new KVFifoCache(size);
+                return new KVExpiringCache(new KVFifoCache(capacity));
+            case TINYLFU:
+                return new KVExpiringCache(new KVTinyLfuCache(capacity));
+            case ARC:
+                return new KVExpiringCache(new KVArcCache(capacity));
             default:
                 break;
         }
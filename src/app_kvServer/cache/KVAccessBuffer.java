@@ -0,0 +1,76 @@
+package app_kvServer.cache;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Lossy record of cache hits, so that reads can note what they touched without taking the lock that guards an eviction
+ * policy. The policy replays the hits in batches once it does hold its lock (see {@link #drainTo(Consumer)}).
+ * <p>
+ * Striped by thread so that readers of the same hot key don't contend on a single queue. Each stripe is bounded: hits
+ * recorded while it is full are dropped, which only costs the policy some accuracy under heavy contention.
+ */
+class KVAccessBuffer<E> {
+    /**
+     * Most hits a stripe holds before further ones are dropped
+     */
+    private static final int STRIPE_CAPACITY = 128;
+
+    /**
+     * Hits in a stripe at which the recording thread should try to drain, see {@link #record(Object)}
+     */
+    static final int DRAIN_THRESHOLD = 32;
+
+    private final ConcurrentLinkedQueue<E>[] stripes;
+    private final AtomicInteger[] sizes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    KVAccessBuffer() {
+        // Enough stripes that worker threads rarely share one
+        int count = 1;
+        while (count < 2 * Runtime.getRuntime().availableProcessors()) count <<= 1;
+
+        this.stripes = new ConcurrentLinkedQueue[count];
+        this.sizes = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ConcurrentLinkedQueue<>();
+            sizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param e what was hit
+     * @return true if the stripe has filled up enough that the caller should drain the buffer
+     */
+    boolean record(E e) {
+        final int stripe = (int) Thread.currentThread().getId() & (stripes.length - 1);
+        final int size = sizes[stripe].incrementAndGet();
+        if (size > STRIPE_CAPACITY) {
+            sizes[stripe].decrementAndGet();
+            return true;
+        }
+        stripes[stripe].add(e);
+        return size >= DRAIN_THRESHOLD;
+    }
+
+    /**
+     * Hand every recorded hit to the policy, oldest first within each stripe. Callers must serialize drains.
+     */
+    void drainTo(Consumer<E> policy) {
+        for (int i = 0; i < stripes.length; i++) {
+            for (E e; (e = stripes[i].poll()) != null; ) {
+                sizes[i].decrementAndGet();
+                policy.accept(e);
+            }
+        }
+    }
+
+    /**
+     * Forget every recorded hit
+     */
+    void clear() {
+        drainTo(e -> {
+        });
+    }
+}
@@ -0,0 +1,162 @@
+package app_kvServer.cache;
+
+import app_kvServer.IKVServer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Adaptive Replacement Cache: entries seen once are kept in a recency list (T1) and entries seen again in a frequency
+ * list (T2), each with a ghost list (B1, B2) remembering the keys it recently evicted. A miss on a key in B1 means T1
+ * was evicting too eagerly, so its target share {@link #p} of the capacity grows; a miss on a key in B2 shrinks it. The
+ * cache thus balances itself between recency and frequency as the workload changes: a sweep over every key only churns
+ * T1, while point lookups of a working set promote it into T2 where the sweep can't reach it.
+ * <p>
+ * Sizes are in the units of the {@link KVCacheCapacity}, so in bytes if it is. Hits don't take a lock, see
+ * {@link KVBufferedCache}.
+ * <p>
+ * Paper: https://www.usenix.org/legacy/events/fast03/tech/full_papers/megiddo/megiddo.pdf
+ */
+public class KVArcCache extends KVBufferedCache {
+    private static final int T1 = 0, T2 = 1;
+
+    private final NodeList t1, t2;
+
+    /**
+     * Ghosts: keys recently evicted from T1 and T2 respectively, eldest first, with the weight they had
+     */
+    private final LinkedHashMap<String, Long> b1, b2;
+    private long b1Weight, b2Weight;
+
+    /**
+     * Target weight of T1; T2 gets the rest of the capacity
+     */
+    private long p;
+
+    /**
+     * The entry inserted last, which is spared from eviction if there's anything else to evict. ARC makes room before
+     * admitting a key, whereas here it's already in T1 by the time we're asked for a victim.
+     */
+    private Node newest;
+
+    public KVArcCache(int cacheSize) {
+        this(KVCacheCapacity.ofEntries(cacheSize));
+    }
+
+    public KVArcCache(KVCacheCapacity capacity) {
+        super(capacity);
+        this.t1 = new NodeList();
+        this.t2 = new NodeList();
+        this.b1 = new LinkedHashMap<>();
+        this.b2 = new LinkedHashMap<>();
+    }
+
+    @Override
+    public IKVServer.CacheStrategy getCacheStrategy() {
+        return IKVServer.CacheStrategy.ARC;
+    }
+
+    @Override
+    protected void onAccess(Node node) {
+        if (node.prev == null) return;
+        // Seen again, so it's frequent now (also catches up with its weight if written over)
+        (node.queue == T1 ? t1 : t2).remove(node);
+        node.queue = T2;
+        t2.addLast(node);
+    }
+
+    @Override
+    protected void onInsert(Node node) {
+        // Could have been deleted before the insert was replayed
+        if (!isLive(node) || node.prev != null) return;
+
+        final long limit = capacity.getLimit();
+        Long ghost;
+        if ((ghost = b1.remove(node.key)) != null) {
+            // Evicted from T1 too soon: give recency more room
+            p = Math.min(limit, p + node.weight * Math.max(1, b2Weight / Math.max(1, b1Weight)));
+            b1Weight -= ghost;
+            node.queue = T2;
+            t2.addLast(node);
+        } else if ((ghost = b2.remove(node.key)) != null) {
+            // Evicted from T2 too soon: give frequency more room
+            p = Math.max(0, p - node.weight * Math.max(1, b1Weight / Math.max(1, b2Weight)));
+            b2Weight -= ghost;
+            node.queue = T2;
+            t2.addLast(node);
+        } else {
+            node.queue = T1;
+            t1.addLast(node);
+        }
+        newest = node;
+        trimGhosts();
+    }
+
+    @Override
+    protected void onRemove(Node node) {
+        if (node.prev == null) return;
+        (node.queue == T1 ? t1 : t2).remove(node);
+        if (newest == node) newest = null;
+    }
+
+    @Override
+    protected void onEvict(Node node) {
+        // Deleted keys don't haunt the cache
+        final boolean remember = isLive(node) && node.prev != null;
+        onRemove(node);
+        if (!remember) return;
+
+        if (node.queue == T1) {
+            b1.put(node.key, node.weight);
+            b1Weight += node.weight;
+        } else {
+            b2.put(node.key, node.weight);
+            b2Weight += node.weight;
+        }
+        trimGhosts();
+    }
+
+    @Override
+    protected Node victim() {
+        // Take from T1 while it's over its target share, otherwise from T2
+        final boolean fromT1 = t2.size() == 0 || (t1.size() > 0 && t1.weight() > p);
+        final NodeList primary = fromT1 ? t1 : t2, secondary = fromT1 ? t2 : t1;
+
+        Node victim = primary.peekFirst();
+        if (victim != null && victim == newest) {
+            // Spare the newest entry if possible
+            Node runnerUp = primary.after(victim);
+            if (runnerUp == null) runnerUp = secondary.peekFirst();
+            if (runnerUp != null) victim = runnerUp;
+        }
+        return victim != null ? victim : secondary.peekFirst();
+    }
+
+    @Override
+    protected void onClear() {
+        t1.clear();
+        t2.clear();
+        b1.clear();
+        b2.clear();
+        b1Weight = b2Weight = p = 0;
+        newest = null;
+    }
+
+    /**
+     * Keep T1 and B1 together within the capacity, and everything together within twice that
+     */
+    private void trimGhosts() {
+        final long limit = capacity.getLimit();
+        final Iterator<Map.Entry<String, Long>> eldestB1 = b1.entrySet().iterator();
+        while (t1.weight() + b1Weight > limit && eldestB1.hasNext()) {
+            b1Weight -= eldestB1.next().getValue();
+            eldestB1.remove();
+        }
+        final Iterator<Map.Entry<String, Long>> eldestB2 = b2.entrySet().iterator();
+        while (t1.weight() + t2.weight() + b1Weight + b2Weight > 2 * limit && eldestB2.hasNext()) {
+            b2Weight -= eldestB2.next().getValue();
+            eldestB2.remove();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package app_kvServer.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base for caches whose hits don't take a lock. Values live in a {@link ConcurrentHashMap}, so reads and writes only
+ * contend with others of the same key; the eviction policy's bookkeeping is kept separately under {@link #policyLock}
+ * and is brought up to date in batches:
+ * <ul>
+ *     <li>Hits (and, if the policy wants them, misses) are recorded in a striped {@link KVAccessBuffer} and replayed
+ *     once enough of them pile up</li>
+ *     <li>Inserts, updates and deletes are queued in {@link #writeBuffer}, which is never lossy</li>
+ * </ul>
+ * Whoever notices that a buffer needs draining does so if the lock is free, otherwise it leaves the work to the current
+ * holder. Only once the cache has grown past capacity (in entries, or bytes, see {@link KVCacheCapacity}) does a writer
+ * wait for the lock, to evict. As such the cache can briefly hold a little more than its capacity under concurrent
+ * writes, and the policy's view is approximate while hits are being dropped under heavy contention; single-threaded, it
+ * is exact.
+ * <p>
+ * Policies are told about entries through the hooks below, all of which run under {@link #policyLock}. Any of them may
+ * be handed a node that has since been removed from the cache (see {@link #isLive(Node)}).
+ */
+abstract class KVBufferedCache implements IKVCache {
+    protected final KVCacheCapacity capacity;
+
+    /**
+     * KV Cache
+     */
+    private final Map<String, Node> cache;
+
+    /**
+     * Total weight of the cached entries, see {@link KVCacheCapacity#weigh(String, String)}
+     */
+    private final AtomicLong weightedSize;
+
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final KVAccessBuffer<Node> readBuffer;
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer;
+
+    protected KVBufferedCache(KVCacheCapacity capacity) {
+        this.capacity = capacity;
+        this.cache = new ConcurrentHashMap<>(capacity.isBytes() ? 16 : (int) Math.max(16, capacity.getLimit()));
+        this.weightedSize = new AtomicLong();
+        this.readBuffer = new KVAccessBuffer<>();
+        this.writeBuffer = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * A key was read, or written over. Also called with a placeholder node, never live, for each miss if
+     * {@link #recordsMisses()}.
+     */
+    protected abstract void onAccess(Node node);
+
+    /**
+     * A key was inserted
+     */
+    protected abstract void onInsert(Node node);
+
+    /**
+     * A key was deleted or evicted, so the policy should forget about it
+     */
+    protected abstract void onRemove(Node node);
+
+    /**
+     * A key was evicted, by default handled as if it were deleted (see {@link #onRemove(Node)})
+     */
+    protected void onEvict(Node node) {
+        onRemove(node);
+    }
+
+    /**
+     * @return the entry to evict next, or null if the policy doesn't know of any
+     */
+    protected abstract Node victim();
+
+    /**
+     * Every entry was dropped
+     */
+    protected abstract void onClear();
+
+    /**
+     * @return a node for a newly cached entry, for policies that need to keep more per entry than {@link Node} does
+     */
+    protected Node newNode(String key, String value) {
+        return new Node(key, value);
+    }
+
+    /**
+     * @return true if the policy wants to hear about misses too, e.g. to learn how popular a key is before admitting it
+     */
+    protected boolean recordsMisses() {
+        return false;
+    }
+
+    /**
+     * @return true if the node is the one currently cached for its key
+     */
+    protected final boolean isLive(Node node) {
+        return this.cache.get(node.key) == node;
+    }
+
+    @Override
+    public int getCacheSize() {
+        return this.cache.size();
+    }
+
+    @Override
+    public boolean inCache(String key) {
+        return this.cache.containsKey(key);
+    }
+
+    @Override
+    public String getKV(String key) {
+        final Node node = this.cache.get(key);
+        if (node == null) {
+            if (recordsMisses() && readBuffer.record(new Node(key, null))) tryDrain();
+            return null;
+        }
+        if (readBuffer.record(node)) tryDrain();
+        return node.value;
+    }
+
+    @Override
+    public void putKV(String key, String value) {
+        final long weight = capacity.weigh(key, value);
+        if (weight > capacity.getLimit()) {
+            // Would evict everything else and then itself, so just make sure an older value isn't served
+            delete(key);
+            return;
+        }
+
+        final boolean[] inserted = {false};
+        final Node node = this.cache.compute(key, (k, existing) -> {
+            if (existing == null) {
+                inserted[0] = true;
+                existing = newNode(k, value);
+            } else {
+                existing.value = value;
+                weightedSize.addAndGet(-existing.weight);
+            }
+            existing.weight = weight;
+            weightedSize.addAndGet(weight);
+            return existing;
+        });
+        writeBuffer.add(inserted[0] ? () -> onInsert(node) : () -> onAccess(node));
+
+        if (weightedSize.get() > capacity.getLimit()) evict();
+        else tryDrain();
+    }
+
+    @Override
+    public void delete(String key) {
+        final Node node = this.cache.remove(key);
+        if (node == null) return;
+        weightedSize.addAndGet(-node.weight);
+        writeBuffer.add(() -> onRemove(node));
+        tryDrain();
+    }
+
+    /**
+     * @return total weight of the cached entries, i.e. how much of the {@link #capacity} is in use
+     */
+    public long getWeightedSize() {
+        return weightedSize.get();
+    }
+
+    @Override
+    public void clearCache() {
+        try {
+            policyLock.lock();
+            this.cache.clear();
+            weightedSize.set(0);
+            writeBuffer.clear();
+            readBuffer.clear();
+            onClear();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Bring the policy up to date if nobody else is already doing so
+     */
+    private void tryDrain() {
+        if (!policyLock.tryLock()) return;
+        try {
+            drainBuffers();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Drop the policy's victims until the cache is back within capacity
+     */
+    private void evict() {
+        try {
+            policyLock.lock();
+            drainBuffers();
+            while (weightedSize.get() > capacity.getLimit()) {
+                final Node victim = victim();
+                if (victim == null) break;
+                onEvict(victim);
+                if (this.cache.remove(victim.key, victim)) weightedSize.addAndGet(-victim.weight);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Hits first: they were mostly recorded before the writes still queued, which are never dropped and so pile up
+     */
+    private void drainBuffers() {
+        readBuffer.drainTo(this::onAccess);
+        for (Runnable task; (task = writeBuffer.poll()) != null; ) task.run();
+    }
+
+    /**
+     * A cached value, plus whatever its policy needs to keep track of it; the latter guarded by {@link #policyLock}
+     */
+    protected static class Node {
+        final String key;
+        volatile String value;
+
+        /**
+         * See {@link KVCacheCapacity#weigh(String, String)}; only changed while the node's key is locked in the map
+         */
+        volatile long weight;
+
+        /**
+         * Neighbours in the policy's list, or null while not in one
+         */
+        Node prev, next;
+
+        /**
+         * {@link #weight} as of when the node was added to its list
+         */
+        long listedWeight;
+
+        /**
+         * Which of the policy's lists the node is in, if it has several
+         */
+        int queue;
+
+        Node(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes, eldest first, for policies to order entries by
+     */
+    protected static class NodeList {
+        private final Node sentinel = new Node(null, null);
+        private int size;
+        private long weight;
+
+        NodeList() {
+            sentinel.prev = sentinel.next = sentinel;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return total weight of the nodes, as of when each was added, so that moving a node to the end of its list
+         * catches up with any change since
+         */
+        long weight() {
+            return weight;
+        }
+
+        /**
+         * @return the eldest node, or null if empty
+         */
+        Node peekFirst() {
+            return sentinel.next == sentinel ? null : sentinel.next;
+        }
+
+        /**
+         * @return the youngest node, or null if empty
+         */
+        Node peekLast() {
+            return sentinel.prev == sentinel ? null : sentinel.prev;
+        }
+
+        /**
+         * @param node in this list
+         * @return the next younger node, or null if it is the youngest
+         */
+        Node after(Node node) {
+            return node.next == sentinel ? null : node.next;
+        }
+
+        /**
+         * @param node not in any list
+         */
+        void addLast(Node node) {
+            node.prev = sentinel.prev;
+            node.next = sentinel;
+            sentinel.prev.next = node;
+            sentinel.prev = node;
+            node.listedWeight = node.weight;
+            size++;
+            weight += node.listedWeight;
+        }
+
+        /**
+         * @param node in this list
+         */
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+            size--;
+            weight -= node.listedWeight;
+        }
+
+        /**
+         * @param node in this list
+         */
+        void moveToLast(Node node) {
+            remove(node);
+            addLast(node);
+        }
+
+        void clear() {
+            for (Node node = sentinel.next; node != sentinel; ) {
+                final Node next = node.next;
+                node.prev = node.next = null;
+                node = next;
+            }
+            sentinel.prev = sentinel.next = sentinel;
+            size = 0;
+            weight = 0;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package app_kvServer.cache;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * How much a cache may hold: either a number of entries, or a number of bytes, in which case every entry is weighed by
+ * the size of its key and value (see {@link #weigh(String, String)}) so that heap use is predictable whatever the values
+ * look like.
+ * <p>
+ * Written as a plain number for entries (e.g. "100", as cache sizes always have been), or with a unit for bytes (e.g.
+ * "65536B", "512KB", "64MB", "1GB").
+ */
+public final class KVCacheCapacity {
+    /**
+     * Rough per-entry cost of a byte-weighted cache beyond its key and value: map entry, list links, string headers
+     */
+    public static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final String[] UNITS = {"GB", "MB", "KB", "B"};
+    private static final long[] UNIT_BYTES = {1L << 30, 1L << 20, 1L << 10, 1};
+
+    private final long limit;
+    private final boolean bytes;
+
+    private KVCacheCapacity(long limit, boolean bytes) {
+        this.limit = Math.max(0, limit);
+        this.bytes = bytes;
+    }
+
+    public static KVCacheCapacity ofEntries(int entries) {
+        return new KVCacheCapacity(entries, false);
+    }
+
+    public static KVCacheCapacity ofBytes(long bytes) {
+        return new KVCacheCapacity(bytes, true);
+    }
+
+    /**
+     * @param capacity e.g. "100" or "64MB"
+     * @return parsed capacity
+     * @throws IllegalArgumentException if unrecognized
+     */
+    public static KVCacheCapacity parse(String capacity) {
+        final String normalized = capacity.trim().toUpperCase(Locale.ROOT);
+        try {
+            for (int i = 0; i < UNITS.length; i++) {
+                if (normalized.endsWith(UNITS[i])) {
+                    final String amount = normalized.substring(0, normalized.length() - UNITS[i].length()).trim();
+                    return ofBytes(Math.multiplyExact(Long.parseLong(amount), UNIT_BYTES[i]));
+                }
+            }
+            return ofEntries(Integer.parseInt(normalized));
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException(String.format("Invalid cache capacity '%s'", capacity), e);
+        }
+    }
+
+    /**
+     * @return most entries, or bytes, the cache may hold
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return true if {@link #getLimit()} is in bytes rather than entries
+     */
+    public boolean isBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return how much of the capacity the entry takes up: 1 if counting entries, otherwise its approximate size in
+     * bytes, counting the characters of compact (Latin-1) strings as a byte each
+     */
+    public long weigh(String key, String value) {
+        return bytes ? ENTRY_OVERHEAD_BYTES + key.length() + (value == null ? 0 : value.length()) : 1;
+    }
+
+    @Override
+    public String toString() {
+        if (!bytes) return String.valueOf(limit);
+        for (int i = 0; i < UNITS.length; i++) {
+            if (limit % UNIT_BYTES[i] == 0 && limit >= UNIT_BYTES[i]) return (limit / UNIT_BYTES[i]) + UNITS[i];
+        }
+        return limit + "B";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof KVCacheCapacity)) return false;
+        final KVCacheCapacity that = (KVCacheCapacity) o;
+        return limit == that.limit && bytes == that.bytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(limit, bytes);
+    }
+}
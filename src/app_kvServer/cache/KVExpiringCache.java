@@ -0,0 +1,159 @@
+package app_kvServer.cache;
+
+import app_kvServer.IKVServer;
+import app_kvServer.storage.IKVStorage.KVPair;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gives any cache the same per-key deadlines as storage (see {@link KVPair#expiresAt}): entries written with one are
+ * treated as absent, and dropped, once it has passed.
+ * <p>
+ * Deadlines are kept alongside the wrapped cache rather than in it, so writes of a key are serialized on a striped
+ * lock and ordered such that a reader never pairs a value with a later deadline than it was written with: a deadline
+ * is published before its value, and only retracted after the value that replaced it. At worst a reader sees an older
+ * value's deadline and misses, which just means a trip to storage.
+ */
+public class KVExpiringCache implements IKVCache {
+    private static final int LOCK_STRIPES = 16;
+
+    /**
+     * Deadlines of keys evicted by the wrapped cache linger until pruned, every this many expiring writes
+     */
+    private static final int PRUNE_INTERVAL = 1024;
+
+    private final IKVCache cache;
+    private final Map<String, Long> deadlines;
+    private final ReentrantLock[] locks;
+    private final AtomicInteger writesSincePrune;
+
+    public KVExpiringCache(IKVCache cache) {
+        this.cache = cache;
+        this.deadlines = new ConcurrentHashMap<>();
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new ReentrantLock();
+        this.writesSincePrune = new AtomicInteger();
+    }
+
+    @Override
+    public IKVServer.CacheStrategy getCacheStrategy() {
+        return cache.getCacheStrategy();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cache.getCacheSize();
+    }
+
+    @Override
+    public boolean inCache(String key) {
+        return cache.inCache(key) && !expire(key);
+    }
+
+    @Override
+    public String getKV(String key) {
+        final String value = cache.getKV(key);
+        return value == null || expire(key) ? null : value;
+    }
+
+    @Override
+    public void putKV(String key, String value) {
+        final ReentrantLock lock = lockFor(key);
+        try {
+            lock.lock();
+            cache.putKV(key, value);
+            deadlines.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putKV(String key, String value, long expiresAt) {
+        if (expiresAt == KVPair.NO_EXPIRY) {
+            putKV(key, value);
+            return;
+        }
+
+        final ReentrantLock lock = lockFor(key);
+        try {
+            lock.lock();
+            deadlines.put(key, expiresAt);
+            cache.putKV(key, value);
+        } finally {
+            lock.unlock();
+        }
+        if (writesSincePrune.incrementAndGet() >= PRUNE_INTERVAL) prune();
+    }
+
+    @Override
+    public void delete(String key) {
+        final ReentrantLock lock = lockFor(key);
+        try {
+            lock.lock();
+            cache.delete(key);
+            deadlines.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clearCache() {
+        try {
+            for (ReentrantLock lock : locks) lock.lock();
+            cache.clearCache();
+            deadlines.clear();
+        } finally {
+            for (ReentrantLock lock : locks) if (lock.isHeldByCurrentThread()) lock.unlock();
+        }
+    }
+
+    /**
+     * Drop a key from the cache if its deadline has passed
+     *
+     * @return true if the key has expired
+     */
+    private boolean expire(String key) {
+        final Long expiresAt = deadlines.get(key);
+        if (expiresAt == null || !KVPair.isExpired(expiresAt, System.currentTimeMillis())) return false;
+
+        final ReentrantLock lock = lockFor(key);
+        try {
+            lock.lock();
+            // Only if it wasn't rewritten in the meantime
+            if (expiresAt.equals(deadlines.get(key))) {
+                cache.delete(key);
+                deadlines.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Forget the deadlines of keys that have expired or been evicted from the wrapped cache
+     */
+    private void prune() {
+        writesSincePrune.set(0);
+        for (String key : deadlines.keySet()) {
+            if (expire(key)) continue;
+
+            final ReentrantLock lock = lockFor(key);
+            try {
+                lock.lock();
+                if (!cache.inCache(key)) deadlines.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ReentrantLock lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+}
@@ -2,6 +2,7 @@ package app_kvServer.cache;
 
 import app_kvServer.IKVServer;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -10,14 +11,20 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class KVFifoCache implements IKVCache {
     private final Map<String, String> cache;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final KVCacheCapacity capacity;
+
+    /**
+     * Total weight of the cached entries, see {@link KVCacheCapacity#weigh(String, String)}
+     */
+    private long weightedSize;
 
     public KVFifoCache(int cacheSize) {
-        this.cache = new LinkedHashMap<>(cacheSize, 0.75f /* load factor */, false /* ordering mode (i.e. do GETs count?) */) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
-                return size() > cacheSize;
-            }
-        };
+        this(KVCacheCapacity.ofEntries(cacheSize));
+    }
+
+    public KVFifoCache(KVCacheCapacity capacity) {
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<>(capacity.isBytes() ? 16 : (int) capacity.getLimit(), 0.75f /* load factor */, false /* ordering mode (i.e. do GETs count?) */);
     }
 
     @Override
@@ -57,9 +64,25 @@ public class KVFifoCache implements IKVCache {
 
     @Override
     public void putKV(String key, String value) {
+        final long weight = capacity.weigh(key, value);
         try {
             lock.writeLock().lock();
-            this.cache.put(key, value);
+            if (weight > capacity.getLimit()) {
+                remove(key);
+                return;
+            }
+
+            final String previous = this.cache.put(key, value);
+            if (previous != null) weightedSize -= capacity.weigh(key, previous);
+            weightedSize += weight;
+
+            // Evict the eldest entries until back within capacity
+            final Iterator<Map.Entry<String, String>> eldest = this.cache.entrySet().iterator();
+            while (weightedSize > capacity.getLimit() && eldest.hasNext()) {
+                final Map.Entry<String, String> entry = eldest.next();
+                weightedSize -= capacity.weigh(entry.getKey(), entry.getValue());
+                eldest.remove();
+            }
         } finally {
             lock.writeLock().unlock();
         }
@@ -69,7 +92,7 @@ public class KVFifoCache implements IKVCache {
     public void delete(String key) {
         try {
             lock.writeLock().lock();
-            this.cache.remove(key);
+            remove(key);
         } finally {
             lock.writeLock().unlock();
         }
@@ -80,8 +103,17 @@ public class KVFifoCache implements IKVCache {
         try {
             lock.writeLock().lock();
             this.cache.clear();
+            weightedSize = 0;
         } finally {
             lock.writeLock().unlock();
         }
     }
+
+    /**
+     * Must hold the write lock
+     */
+    private void remove(String key) {
+        final String value = this.cache.remove(key);
+        if (value != null) weightedSize -= capacity.weigh(key, value);
+    }
 }
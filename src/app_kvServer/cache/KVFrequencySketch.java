@@ -0,0 +1,99 @@
+package app_kvServer.cache;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch of how often keys have been seen recently, in a fixed amount of memory however many distinct keys
+ * there are. Each key has a 4-bit counter in each of {@link #DEPTH} rows, and its estimate is the smallest of them, so
+ * collisions can only make a key look more popular than it is. Counters are packed sixteen to a long, so a sketch
+ * sized for n keys takes about {@code DEPTH * n / 2} bytes.
+ * <p>
+ * Ages itself: once {@link #SAMPLE_FACTOR} times as many increments as there are counters have been made, every counter
+ * is halved, so keys that were popular long ago fade away.
+ * <p>
+ * Not thread-safe.
+ * <p>
+ * Paper: https://arxiv.org/abs/1512.00727
+ */
+class KVFrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int COUNTERS_PER_WORD = Long.SIZE / 4;
+    private static final int SAMPLE_FACTOR = 10;
+    private static final int[] SEEDS = {0x97cb3127, 0xb4b82e39, 0x7c3d2a91, 0x6a09e667};
+
+    private final long[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys about how many keys need telling apart, e.g. the cache capacity
+     */
+    KVFrequencySketch(int expectedKeys) {
+        int width = COUNTERS_PER_WORD;
+        while (width < expectedKeys) width <<= 1;
+        this.counters = new long[DEPTH][width / COUNTERS_PER_WORD];
+        this.mask = width - 1;
+        this.sampleSize = SAMPLE_FACTOR * width;
+    }
+
+    /**
+     * @return estimate of how often the key was seen recently, up to 15
+     */
+    int frequency(String key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) frequency = Math.min(frequency, count(row, index(hash, row)));
+        return frequency;
+    }
+
+    /**
+     * Count another sighting of the key
+     */
+    void increment(String key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            final int i = index(hash, row);
+            if (count(row, i) < MAX_COUNT) {
+                counters[row][i / COUNTERS_PER_WORD] += 1L << shift(i);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) age();
+    }
+
+    void clear() {
+        for (long[] row : counters) Arrays.fill(row, 0);
+        additions = 0;
+    }
+
+    /**
+     * Halve every counter, a whole word at a time: shift, then drop the bit each counter took from its neighbour
+     */
+    private void age() {
+        for (long[] row : counters) for (int i = 0; i < row.length; i++) row[i] = (row[i] >>> 1) & 0x7777777777777777L;
+        additions /= 2;
+    }
+
+    private int count(int row, int i) {
+        return (int) (counters[row][i / COUNTERS_PER_WORD] >>> shift(i)) & MAX_COUNT;
+    }
+
+    private static int shift(int i) {
+        return (i % COUNTERS_PER_WORD) * 4;
+    }
+
+    private int index(int hash, int row) {
+        final int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+}
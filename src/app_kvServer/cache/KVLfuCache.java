@@ -2,57 +2,49 @@ package app_kvServer.cache;
 
 import app_kvServer.IKVServer;
 
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 /**
+ * LFU cache with O(1) bookkeeping: entries are grouped into buckets of equal frequency, kept in a doubly linked list in
+ * ascending order of frequency, so that a hit only ever moves an entry to the neighbouring bucket and the victim is
+ * always at the front of the first one. Among equally frequent entries, the least recently used goes first.
+ * <p>
+ * Frequencies decay: once there have been {@link #DECAY_FACTOR} times as many accesses as there are entries, every
+ * frequency is halved, so keys that were hot a while ago don't stay pinned once the workload moves on.
+ * <p>
+ * Hits don't take a lock, see {@link KVBufferedCache}; frequency updates are folded in as the buffered hits are
+ * replayed.
+ * <p>
  * Paper: http://dhruvbird.com/lfu.pdf
- * Simple implementation: https://medium.com/algorithm-and-datastructure/4bac0892bdb3
  */
-public class KVLfuCache implements IKVCache {
-    /**
-     * Thread-safety
-     */
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-
-    /**
-     * Threshold as to when to start evictions
-     */
-    private final int MAX_CAPACITY;
-
+public class KVLfuCache extends KVBufferedCache {
     /**
-     * KV Cache
+     * Accesses per entry between halvings of every frequency
      */
-    private final Map<String, String> cache;
+    private static final int DECAY_FACTOR = 10;
 
     /**
-     * Track the usage (GETs and PUTs) of items
+     * Frequency buckets in ascending order, none of them empty. The sentinel is both the head and the tail.
      */
-    private final Map<String, Integer> itemFrequencies;
+    private final Bucket sentinel;
 
     /**
-     * Collections of items by their frequency of use. We'll use this to implement the Least Frequently Used cache
-     * eviction procedure.
+     * Entries in buckets, and accesses since frequencies were last halved
      */
-    private final Map<Integer, Set<String>> frequencyBins;
+    private int entries, accessesSinceDecay;
 
     /**
-     * Keep track of the minimum key of {@link #frequencyBins} to avoid a linear scan of {@link #frequencyBins}'s key
-     * set at eviction time when determining the next key to evict
+     * The entry inserted last, which is spared from eviction if there's anything else to evict: it can't have been
+     * used yet, so it would otherwise always lose and nothing new would ever make it into a full cache
      */
-    private int minFrequency;
-
+    private Node newest;
 
     public KVLfuCache(int cacheSize) {
-        this.MAX_CAPACITY = cacheSize;
-        this.cache = new HashMap<>(MAX_CAPACITY);
-        this.itemFrequencies = new HashMap<>(MAX_CAPACITY);
-        this.frequencyBins = new HashMap<>();
-        this.clearCache();
+        this(KVCacheCapacity.ofEntries(cacheSize));
+    }
+
+    public KVLfuCache(KVCacheCapacity capacity) {
+        super(capacity);
+        this.sentinel = new Bucket(0);
+        sentinel.prev = sentinel.next = sentinel;
     }
 
     @Override
@@ -61,116 +53,145 @@ public class KVLfuCache implements IKVCache {
     }
 
     @Override
-    public int getCacheSize() {
-        try {
-            lock.readLock().lock();
-            return this.cache.size();
-        } finally {
-            lock.readLock().unlock();
-        }
+    protected Node newNode(String key, String value) {
+        return new LfuNode(key, value);
     }
 
     @Override
-    public boolean inCache(String key) {
-        try {
-            lock.readLock().lock();
-            return this.cache.containsKey(key);
-        } finally {
-            lock.readLock().unlock();
-        }
+    protected void onAccess(Node node) {
+        final LfuNode lfuNode = (LfuNode) node;
+        final Bucket current = lfuNode.bucket;
+        if (current == null) return;
+
+        // Move up to the neighbouring bucket, creating it if no other entry is that frequent yet
+        final Bucket target = current.next.frequency == current.frequency + 1
+                ? current.next
+                : insertAfter(current, current.frequency + 1);
+        current.nodes.remove(lfuNode);
+        target.nodes.addLast(lfuNode);
+        lfuNode.bucket = target;
+        if (current.nodes.size() == 0) unlink(current);
+
+        countAccess();
     }
 
     @Override
-    public String getKV(String key) {
-        try {
-            lock.writeLock().lock();
-            if (!this.cache.containsKey(key)) return null;
-
-            // Update item frequency
-            int previousFrequency = this.itemFrequencies.get(key), newFrequency = previousFrequency + 1;
-            this.itemFrequencies.put(key, newFrequency);
-            if (!this.frequencyBins.containsKey(newFrequency))
-                this.frequencyBins.put(newFrequency, new LinkedHashSet<>());
-            this.frequencyBins.get(newFrequency).add(key);
-
-            // Remove it from the old frequency pool; if this was the LFU item, update the minFrequency state
-            this.frequencyBins.get(previousFrequency).remove(key);
-            if (previousFrequency == this.minFrequency && this.frequencyBins.get(previousFrequency).isEmpty()) {
-                this.minFrequency += 1;
-            }
+    protected void onInsert(Node node) {
+        final LfuNode lfuNode = (LfuNode) node;
+        // Could have been deleted before the insert was replayed
+        if (!isLive(node) || lfuNode.bucket != null) return;
+
+        final Bucket target = sentinel.next.frequency == 1 ? sentinel.next : insertAfter(sentinel, 1);
+        target.nodes.addLast(lfuNode);
+        lfuNode.bucket = target;
+        entries++;
+        newest = lfuNode;
+
+        // Inserts count too: when nothing cached is hit anymore, a workload has moved on and we need to catch up
+        countAccess();
+    }
 
-            // Fulfill request
-            return this.cache.get(key);
-        } finally {
-            lock.writeLock().unlock();
-        }
+    @Override
+    protected void onRemove(Node node) {
+        final LfuNode lfuNode = (LfuNode) node;
+        if (lfuNode.bucket == null) return;
+
+        lfuNode.bucket.nodes.remove(lfuNode);
+        if (lfuNode.bucket.nodes.size() == 0) unlink(lfuNode.bucket);
+        lfuNode.bucket = null;
+        entries--;
+        if (newest == lfuNode) newest = null;
     }
 
     @Override
-    public void putKV(String key, String value) {
-        if (this.MAX_CAPACITY <= 0) return;
-        try {
-            lock.writeLock().lock();
-
-            // Case 1: Update; Case 2: Insert
-            if (this.cache.containsKey(key)) {
-                // Update
-                this.cache.put(key, value);
-
-                // Increment frequency
-                this.getKV(key);
-            } else {
-                // Run cache eviction if this will put us over the top
-                if (this.cache.size() >= this.MAX_CAPACITY) {
-                    final String keyToEvict = this.frequencyBins.get(this.minFrequency).iterator().next();
-                    this.frequencyBins.get(this.minFrequency).remove(keyToEvict);
-                    this.itemFrequencies.remove(keyToEvict);
-                    this.cache.remove(keyToEvict);
-                }
+    protected Node victim() {
+        final Bucket least = sentinel.next;
+        if (least == sentinel) return null;
+
+        final Node victim = least.nodes.peekFirst();
+        if (victim != newest) return victim;
+
+        // Spare the newest entry if possible
+        final Node runnerUp = least.nodes.after(victim);
+        if (runnerUp != null) return runnerUp;
+        return least.next != sentinel ? least.next.nodes.peekFirst() : victim;
+    }
 
-                // Insert
-                this.minFrequency = 1;
-                this.cache.put(key, value);
-                this.itemFrequencies.put(key, 1);
-                this.frequencyBins.get(1).add(key);
+    @Override
+    protected void onClear() {
+        for (Bucket bucket = sentinel.next; bucket != sentinel; bucket = bucket.next) {
+            for (Node node; (node = bucket.nodes.peekFirst()) != null; ) {
+                bucket.nodes.remove(node);
+                ((LfuNode) node).bucket = null;
             }
-        } finally {
-            lock.writeLock().unlock();
         }
+        sentinel.prev = sentinel.next = sentinel;
+        entries = accessesSinceDecay = 0;
+        newest = null;
     }
 
-    @Override
-    public void delete(String key) {
-        try {
-            lock.writeLock().lock();
-            if (!this.cache.containsKey(key)) return;
-
-            // Remove key
-            final int frequency = this.itemFrequencies.get(key);
-            this.itemFrequencies.remove(key);
-            this.frequencyBins.get(frequency).remove(key);
-            this.cache.remove(key);
-
-            // Remove it from the old frequency pool; if this was the LFU item, update the minFrequency state
-            if (frequency == this.minFrequency && this.frequencyBins.get(frequency).isEmpty()) {
-                this.minFrequency = this.frequencyBins.keySet().stream().min(Integer::compareTo).orElse(-1);
+    private void countAccess() {
+        if (++accessesSinceDecay >= DECAY_FACTOR * Math.max(entries, 16)) decay();
+    }
+
+    /**
+     * Halve every frequency (but to no less than 1), merging buckets that end up equally frequent. Walking up from the
+     * least frequent keeps each merged bucket ordered by former frequency, and so the formerly least frequent first.
+     */
+    private void decay() {
+        accessesSinceDecay = 0;
+        for (Bucket bucket = sentinel.next; bucket != sentinel; ) {
+            final Bucket next = bucket.next;
+            bucket.frequency = Math.max(1, bucket.frequency / 2);
+            if (bucket.prev != sentinel && bucket.prev.frequency == bucket.frequency) {
+                final Bucket merged = bucket.prev;
+                for (Node node; (node = bucket.nodes.peekFirst()) != null; ) {
+                    bucket.nodes.remove(node);
+                    merged.nodes.addLast(node);
+                    ((LfuNode) node).bucket = merged;
+                }
+                unlink(bucket);
             }
-        } finally {
-            lock.writeLock().unlock();
+            bucket = next;
         }
     }
 
-    @Override
-    public void clearCache() {
-        try {
-            lock.writeLock().lock();
-            this.minFrequency = -1;
-            this.cache.clear();
-            this.itemFrequencies.clear();
-            this.frequencyBins.clear();
-            this.frequencyBins.put(1, new LinkedHashSet<>());
-        } finally {
-            lock.writeLock().unlock();
+    private Bucket insertAfter(Bucket bucket, int frequency) {
+        final Bucket inserted = new Bucket(frequency);
+        inserted.prev = bucket;
+        inserted.next = bucket.next;
+        bucket.next.prev = inserted;
+        bucket.next = inserted;
+        return inserted;
+    }
+
+    private void unlink(Bucket bucket) {
+        bucket.prev.next = bucket.next;
+        bucket.next.prev = bucket.prev;
+        bucket.prev = bucket.next = null;
+    }
+
+    /**
+     * Entries used equally often, least recently used first
+     */
+    private static class Bucket {
+        int frequency;
+        final NodeList nodes = new NodeList();
+        Bucket prev, next;
+
+        Bucket(int frequency) {
+            this.frequency = frequency;
+        }
+    }
+
+    private static class LfuNode extends Node {
+        /**
+         * Bucket the entry is in, or null if it isn't (yet, or anymore)
+         */
+        Bucket bucket;
+
+        LfuNode(String key, String value) {
+            super(key, value);
         }
     }
 }
@@ -2,86 +2,53 @@ package app_kvServer.cache;
 
 import app_kvServer.IKVServer;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-public class KVLruCache implements IKVCache {
-    private final Map<String, String> cache;
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+/**
+ * LRU cache whose hits don't take a lock, see {@link KVBufferedCache}. Single-threaded, it evicts exactly the least
+ * recently used key; under heavy contention, recency is approximate.
+ */
+public class KVLruCache extends KVBufferedCache {
+    /**
+     * Recency order, least recent first
+     */
+    private final NodeList recency;
 
     public KVLruCache(int cacheSize) {
-        this.cache = new LinkedHashMap<>(cacheSize, 0.75f /* load factor */, true /* ordering mode (i.e. do GETs count?) */) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
-                return size() > cacheSize;
-            }
-        };
+        this(KVCacheCapacity.ofEntries(cacheSize));
     }
 
-    @Override
-    public IKVServer.CacheStrategy getCacheStrategy() {
-        return IKVServer.CacheStrategy.LRU;
+    public KVLruCache(KVCacheCapacity capacity) {
+        super(capacity);
+        this.recency = new NodeList();
     }
 
     @Override
-    public int getCacheSize() {
-        try {
-            lock.readLock().lock();
-            return this.cache.size();
-        } finally {
-            lock.readLock().unlock();
-        }
+    public IKVServer.CacheStrategy getCacheStrategy() {
+        return IKVServer.CacheStrategy.LRU;
     }
 
     @Override
-    public boolean inCache(String key) {
-        try {
-            lock.readLock().lock();
-            return this.cache.containsKey(key);
-        } finally {
-            lock.readLock().unlock();
-        }
+    protected void onAccess(Node node) {
+        if (node.prev != null) recency.moveToLast(node);
     }
 
     @Override
-    public String getKV(String key) {
-        try {
-            lock.readLock().lock();
-            return this.cache.get(key);
-        } finally {
-            lock.readLock().unlock();
-        }
+    protected void onInsert(Node node) {
+        // Could have been deleted before the insert was replayed
+        if (isLive(node) && node.prev == null) recency.addLast(node);
     }
 
     @Override
-    public void putKV(String key, String value) {
-        try {
-            lock.writeLock().lock();
-            this.cache.put(key, value);
-        } finally {
-            lock.writeLock().unlock();
-        }
+    protected void onRemove(Node node) {
+        if (node.prev != null) recency.remove(node);
     }
 
     @Override
-    public void delete(String key) {
-        try {
-            lock.writeLock().lock();
-            this.cache.remove(key);
-        } finally {
-            lock.writeLock().unlock();
-        }
+    protected Node victim() {
+        return recency.peekFirst();
     }
 
     @Override
-    public void clearCache() {
-        try {
-            lock.writeLock().lock();
-            this.cache.clear();
-        } finally {
-            lock.writeLock().unlock();
-        }
+    protected void onClear() {
+        recency.clear();
     }
 }
@@ -0,0 +1,140 @@
+package app_kvServer.cache;
+
+import app_kvServer.IKVServer;
+
+/**
+ * W-TinyLFU: new keys are admitted into a small LRU window, and only make it into the main region if the
+ * {@link KVFrequencySketch} says they're more popular than whatever they would push out. A burst of one-off keys (e.g.
+ * from a sweep over every key) therefore churns the window instead of evicting the working set, while keys that are
+ * hit repeatedly still get in. The main region is a segmented LRU: keys start out on probation and are promoted to the
+ * protected segment when hit again.
+ * <p>
+ * Hits don't take a lock, see {@link KVBufferedCache}.
+ * <p>
+ * Paper: https://arxiv.org/abs/1512.00727
+ */
+public class KVTinyLfuCache extends KVBufferedCache {
+    /**
+     * Shares of the capacity given to the window, and to the protected segment of what's left
+     */
+    private static final double WINDOW_SHARE = 0.01, PROTECTED_SHARE = 0.8;
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private final long maxWindow, maxProtected;
+    private final NodeList window, probation, protectedSegment;
+    private final KVFrequencySketch sketch;
+
+    public KVTinyLfuCache(int cacheSize) {
+        this(KVCacheCapacity.ofEntries(cacheSize));
+    }
+
+    /**
+     * @param capacity if in bytes, the segments are sized in bytes too, and the sketch for entries of about 1KB
+     */
+    public KVTinyLfuCache(KVCacheCapacity capacity) {
+        super(capacity);
+        this.maxWindow = Math.max(1, (long) (capacity.getLimit() * WINDOW_SHARE));
+        this.maxProtected = (long) ((capacity.getLimit() - maxWindow) * PROTECTED_SHARE);
+        this.window = new NodeList();
+        this.probation = new NodeList();
+        this.protectedSegment = new NodeList();
+        final long expectedKeys = capacity.isBytes() ? capacity.getLimit() / 1024 : capacity.getLimit();
+        this.sketch = new KVFrequencySketch((int) Math.min(expectedKeys, 1 << 24));
+    }
+
+    @Override
+    public IKVServer.CacheStrategy getCacheStrategy() {
+        return IKVServer.CacheStrategy.TINYLFU;
+    }
+
+    @Override
+    protected boolean recordsMisses() {
+        return true;
+    }
+
+    @Override
+    protected void onAccess(Node node) {
+        sketch.increment(node.key);
+        if (node.prev == null) return;
+
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                // Hit again while on probation: promote, making room by demoting the protected segment's eldest
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedSegment.addLast(node);
+                while (protectedSegment.weight() > maxProtected && protectedSegment.peekFirst() != node) {
+                    final Node demoted = protectedSegment.peekFirst();
+                    protectedSegment.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                // Also catches up with its weight if written over
+                protectedSegment.moveToLast(node);
+                break;
+        }
+    }
+
+    @Override
+    protected void onInsert(Node node) {
+        sketch.increment(node.key);
+        // Could have been deleted before the insert was replayed
+        if (!isLive(node) || node.prev != null) return;
+
+        node.queue = WINDOW;
+        window.addLast(node);
+
+        // Keys leaving the window become candidates for the main region, at the youngest end of probation
+        while (window.weight() > maxWindow) {
+            final Node candidate = window.peekFirst();
+            window.remove(candidate);
+            candidate.queue = PROBATION;
+            probation.addLast(candidate);
+        }
+    }
+
+    @Override
+    protected void onRemove(Node node) {
+        if (node.prev == null) return;
+        listOf(node).remove(node);
+    }
+
+    @Override
+    protected Node victim() {
+        // Pit the newest candidate against the eldest on probation, and evict whichever is less popular
+        final Node candidate = probation.peekLast(), eldest = probation.peekFirst();
+        if (candidate != null && candidate != eldest) {
+            return sketch.frequency(candidate.key) > sketch.frequency(eldest.key) ? eldest : candidate;
+        }
+        if (candidate != null) return candidate;
+
+        // Nothing on probation, e.g. while the cache is still mostly window
+        final Node victim = window.peekFirst();
+        return victim != null ? victim : protectedSegment.peekFirst();
+    }
+
+    @Override
+    protected void onClear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+    }
+
+    private NodeList listOf(Node node) {
+        switch (node.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedSegment;
+        }
+    }
+}
@@ -63,16 +63,23 @@ public class BackupServersConnectionManager {
         private final PrintWriter replicaWriter;
         private final Consumer<String> onDisconnect;
 
+        /**
+         * Whether the backup understands deadlines, see {@link DeadlineHandshake#accepts(Socket, String)}
+         */
+        private final boolean withDeadlines;
+
         public BackupServerConnection(String serverName, String hostname, int port, Consumer<String> onDisconnect) throws IOException {
             this.serverName = serverName;
-            this.replicaWriter = new PrintWriter(new OutputStreamWriter(new Socket(hostname, port).getOutputStream()), true);
+            final Socket socket = new Socket(hostname, port);
+            this.withDeadlines = DeadlineHandshake.accepts(socket, serverName);
+            this.replicaWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
             this.onDisconnect = onDisconnect;
         }
 
         public void replicate(KVPair kv) {
             try {
                 logger.info("Replicating " + kv.tombstone + " " + kv.key + " to " + serverName);
-                this.replicaWriter.println(kv.serialize());
+                this.replicaWriter.println(kv.serialize(withDeadlines));
             } catch (Exception e) {
                 logger.warn("Replication op " + kv.tombstone + " " + kv.key + " to " + serverName + " failed: " + e.getMessage());
                 close();
@@ -0,0 +1,88 @@
+package app_kvServer.replication;
+
+import app_kvServer.storage.IKVStorage.KVPair;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells a server about to stream {@link KVPair#serialize(boolean) serialized pairs} to another, for replication or a
+ * transfer, whether the receiver understands deadlines. The receiver sends {@link #ANNOUNCEMENT} as soon as it accepts
+ * the connection; servers from before deadlines never do, and read a pair carrying one as a delete.
+ */
+public final class DeadlineHandshake {
+    private static final String ANNOUNCEMENT = "KVPAIR DEADLINES";
+
+    /**
+     * How long a sender waits for {@link #ANNOUNCEMENT} before assuming the receiver predates deadlines
+     */
+    private static final int ANNOUNCEMENT_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * How long a peer found not to announce deadlines is assumed not to, before waiting on it again in case it has
+     * been upgraded since
+     */
+    private static final long SILENT_PEER_RECHECK_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * When each peer that last failed to {@link #announce(Socket)} did so
+     */
+    private static final Map<String, Long> SILENT_PEERS = new ConcurrentHashMap<>();
+
+    private DeadlineHandshake() {
+    }
+
+    /**
+     * Announce to a server about to stream serialized pairs over a socket that deadlines may be sent along with them,
+     * see {@link #accepts(Socket)}
+     */
+    public static void announce(Socket socket) throws IOException {
+        final OutputStream output = socket.getOutputStream();
+        output.write((ANNOUNCEMENT + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * Wait briefly for the server at the other end of a socket to {@link #announce(Socket)}, before streaming
+     * serialized pairs to it
+     *
+     * @return whether pairs sent over the socket may be {@link KVPair#serialize(boolean) serialized with their deadline}
+     */
+    public static boolean accepts(Socket socket) throws IOException {
+        final int timeout = socket.getSoTimeout();
+        final StringBuilder line = new StringBuilder();
+        try {
+            socket.setSoTimeout(ANNOUNCEMENT_TIMEOUT_MILLIS);
+            final InputStream input = socket.getInputStream();
+            for (int c = input.read(); c >= 0 && c != '\n'; c = input.read()) line.append((char) c);
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+        return ANNOUNCEMENT.contentEquals(line);
+    }
+
+    /**
+     * {@link #accepts(Socket)}, except that a peer which recently didn't announce deadlines is assumed not to without
+     * waiting on it again
+     *
+     * @param peer identifies the server at the other end, e.g. its name or host; sockets to the same one may be on
+     *             different ports
+     */
+    public static boolean accepts(Socket socket, String peer) throws IOException {
+        final Long silentSince = SILENT_PEERS.get(peer);
+        if (silentSince != null && System.currentTimeMillis() - silentSince < SILENT_PEER_RECHECK_MILLIS) return false;
+
+        final boolean accepts = accepts(socket);
+        if (accepts) SILENT_PEERS.remove(peer);
+        else SILENT_PEERS.put(peer, System.currentTimeMillis());
+        return accepts;
+    }
+}
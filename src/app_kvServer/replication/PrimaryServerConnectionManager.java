@@ -1,6 +1,7 @@
 package app_kvServer.replication;
 
 import app_kvServer.KVServer;
+import app_kvServer.KVServerException;
 import app_kvServer.storage.IKVStorage.KVPair;
 import org.apache.log4j.Logger;
 
@@ -53,6 +54,8 @@ public class PrimaryServerConnectionManager extends Thread {
             try {
                 Socket replica = p2pServerSocket.accept();
                 logger.debug("New primary:" + replica);
+                // Straight away rather than once a thread is free, so the primary isn't left waiting for it
+                DeadlineHandshake.announce(replica);
                 final PrimaryServerConnection connection = new PrimaryServerConnection(
                         replica,
                         replicaServer,
@@ -108,13 +111,17 @@ public class PrimaryServerConnectionManager extends Thread {
         public void run() {
             logger.info("PRIMARY LISTENER STARTED");
             try (Stream<String> s = new BufferedReader(new InputStreamReader(primarySocket.getInputStream())).lines()) {
-                s.forEach(message -> {
+                for (String message : (Iterable<String>) s::iterator) {
                     final KVPair kv = KVPair.deserialize(message);
                     logger.info("Received replication event: " + kv.tombstone + " " + kv.key);
                     replicaServer.forceIngestKV(kv);
-                });
+                }
             } catch (IOException | UncheckedIOException e) {
                 logger.info("Socket error: " + e.getMessage());
+            } catch (KVServerException e) {
+                // Carrying on would leave this replica silently missing the pair, so drop the primary instead
+                logger.error("Unable to ingest replicated pair, disconnecting from primary", e);
+                close();
             } catch (Exception e) {
                 logger.error("Error occurred on primary connection", e);
             }
@@ -0,0 +1,95 @@
+package app_kvServer.storage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When appended records are forced to disk (fsync) before or after a write is acknowledged:
+ * - NONE: never; the OS writes them back in its own time, so a machine crash can lose recent writes
+ * - PERIODIC: in the background every N ms, bounding what a crash can lose to roughly that window
+ * - BATCH: before acknowledging, once per group of concurrent writes
+ */
+public final class DurabilityPolicy {
+    public enum Mode {NONE, PERIODIC, BATCH}
+
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+
+    public static final DurabilityPolicy NONE = new DurabilityPolicy(Mode.NONE, 0);
+    public static final DurabilityPolicy BATCH = new DurabilityPolicy(Mode.BATCH, 0);
+
+    /**
+     * Shared by all stores; syncs are short so one thread goes a long way
+     */
+    private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "storage-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Mode mode;
+    private final long intervalMillis;
+
+    private DurabilityPolicy(Mode mode, long intervalMillis) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * @param intervalMillis time between background syncs
+     * @return a {@link Mode#PERIODIC} policy
+     */
+    public static DurabilityPolicy periodic(long intervalMillis) {
+        if (intervalMillis <= 0) throw new IllegalArgumentException("Sync interval must be positive");
+        return new DurabilityPolicy(Mode.PERIODIC, intervalMillis);
+    }
+
+    /**
+     * @param spec one of "NONE", "BATCH", "PERIODIC" or "PERIODIC:&lt;millis&gt;" (case insensitive)
+     * @return the corresponding policy
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    public static DurabilityPolicy parse(String spec) {
+        final String[] parts = spec.trim().toUpperCase().split(":", 2);
+        switch (Mode.valueOf(parts[0])) {
+            case PERIODIC:
+                try {
+                    return periodic(parts.length > 1 ? Long.parseLong(parts[1]) : DEFAULT_SYNC_INTERVAL_MILLIS);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(String.format("Invalid sync interval '%s'", parts[1]));
+                }
+            case BATCH:
+                if (parts.length == 1) return BATCH;
+                break;
+            case NONE:
+            default:
+                if (parts.length == 1) return NONE;
+                break;
+        }
+        throw new IllegalArgumentException(String.format("Invalid durability policy '%s'", spec));
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @param sync forces a store's outstanding writes to disk
+     * @return the background task running sync according to this policy (cancel it on close), or null if this
+     * policy has no background work
+     */
+    ScheduledFuture<?> schedule(Runnable sync) {
+        if (mode != Mode.PERIODIC) return null;
+        return SYNCER.scheduleWithFixedDelay(sync, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.PERIODIC ? String.format("%s:%d", mode, intervalMillis) : mode.name();
+    }
+}
@@ -1,8 +1,11 @@
 package app_kvServer.storage;
 
+import app_kvServer.IKVServer;
 import app_kvServer.KVServerException;
 import shared.messages.KVMessage.StatusType;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
@@ -33,6 +36,21 @@ public interface IKVStorage {
      */
     public void putKV(String key, String value) throws KVServerException;
 
+    /**
+     * Put a key-value pair into storage that is treated as deleted once its deadline passes
+     *
+     * @param expiresAt milliseconds since the epoch after which the pair is gone, or {@link KVPair#NO_EXPIRY}
+     * @throws KVServerException e.g. for {@link StatusType#PUT_ERROR}, {@link StatusType#FAILED}
+     */
+    public void putKV(String key, String value, long expiresAt) throws KVServerException;
+
+    /**
+     * Like {@link #getKV(String)}, but along with when the pair expires
+     *
+     * @throws KVServerException e.g. for {@link StatusType#GET_ERROR}, {@link StatusType#FAILED}
+     */
+    public KVPair getKVPair(String key) throws KVServerException;
+
     /**
      * Delete key-value pair from storage
      *
@@ -40,6 +58,21 @@ public interface IKVStorage {
      */
     public void delete(String key) throws KVServerException;
 
+    /**
+     * Apply a batch of writes in order, as if by {@link #putKV(String, String, long)} for live pairs and
+     * {@link #delete(String)} for tombstones, except that tombstones for keys already absent are skipped rather than
+     * failing the batch. Stores that can write the whole batch at once should.
+     *
+     * @throws KVServerException e.g. for {@link StatusType#PUT_ERROR}, {@link StatusType#FAILED}, in which case some
+     *                           of the batch may have been written
+     */
+    public default void putBatch(List<KVPair> batch) throws KVServerException {
+        for (KVPair kv : batch) {
+            if (kv.tombstone == KVPair.Tombstone.VALID) putKV(kv.key, kv.value, kv.expiresAt);
+            else if (inStorage(kv.key)) delete(kv.key);
+        }
+    }
+
     /**
      * Clear the storage of the server
      */
@@ -64,15 +97,111 @@ public interface IKVStorage {
     public List<KVPair> getAllKV(Predicate<KVPair> filter) throws KVServerException;
 
     /**
-     * Put all key-value pair(s) into storage
+     * Rewrite the value of every key-value pair matching the filter, replacing each match of a regular expression.
+     * Matches are read and rewritten a batch at a time rather than collected up front.
+     *
+     * @param valExpr regular expression to find in each value
+     * @param valRepl replacement, as for {@link String#replaceAll(String, String)}
+     * @param updated to tally the rewritten pairs in
+     * @throws KVServerException e.g. for {@link StatusType#PUT_ALL_ERROR} if unable to complete the update, in which
+     *                           case some of the pairs may have been rewritten already
      */
-    public List<KVPair> putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl);
+    public void putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws KVServerException;
 
     /**
      * Batch deletion of all {@link KVPair}s in storage which match a certain criteria.
      */
     public void deleteIf(Predicate<KVPair> filter) throws KVServerException;
 
+    /**
+     * Take a named snapshot of everything in storage right now. Snapshots share the store's files rather than copying
+     * them, survive restarts, and are unaffected by later writes.
+     * <p>
+     * Supported by the partitioned engines and {@link KVLsmStorage}, whose files are never modified in place and can be
+     * read without rebuilding an in-memory index. {@link KVArenaStorage} (whose only file is a log that would have to be
+     * replayed in full) and {@link KVBTreeStorage} (whose tree pages are updated in place) don't support snapshots.
+     *
+     * @param name of the snapshot; letters, digits, '_', '-' and (other than first) '.'
+     * @throws IOException                   e.g. if the name is already taken
+     * @throws IllegalArgumentException      if the name isn't allowed
+     * @throws UnsupportedOperationException if this storage engine doesn't support snapshots
+     */
+    public default void createSnapshot(String name) throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * @return names of the snapshots taken with {@link #createSnapshot(String)} and not yet deleted
+     */
+    public default List<String> listSnapshots() {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Like {@link #openKvStream(Predicate)}, but reading from a snapshot rather than the live store
+     *
+     * @throws IOException                   e.g. if there's no such snapshot
+     * @throws UnsupportedOperationException if this storage engine doesn't support snapshots
+     */
+    public default Stream<KVPair> openSnapshotStream(String name, Predicate<KVPair> filter) throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * @throws IOException                   e.g. if there's no such snapshot
+     * @throws UnsupportedOperationException if this storage engine doesn't support snapshots
+     */
+    public default void deleteSnapshot(String name) throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Release any file handles and background workers held by this storage
+     */
+    public void close();
+
+    static IKVStorage newInstance(IKVServer.StorageStrategy strategy, String directory) {
+        return newInstance(strategy, directory, DurabilityPolicy.NONE);
+    }
+
+    static IKVStorage newInstance(IKVServer.StorageStrategy strategy, String directory, DurabilityPolicy durability) {
+        return newInstance(strategy, directory, durability, KVPartitionedStorage.DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * @param partitions number of files to spread keys over; only used by {@link IKVServer.StorageStrategy#PARTITIONED},
+     *                   {@link IKVServer.StorageStrategy#RING_PARTITIONED} and {@link IKVServer.StorageStrategy#TIERED}
+     */
+    static IKVStorage newInstance(IKVServer.StorageStrategy strategy, String directory, DurabilityPolicy durability, int partitions) {
+        return newInstance(strategy, directory, durability, partitions, false);
+    }
+
+    /**
+     * @param partitions   number of files to spread keys over; only used by {@link IKVServer.StorageStrategy#PARTITIONED},
+     *                     {@link IKVServer.StorageStrategy#RING_PARTITIONED} and {@link IKVServer.StorageStrategy#TIERED}
+     * @param trigramIndex whether to keep a {@link KVTrigramIndex} of keys per partition; likewise only used by the
+     *                     partitioned strategies
+     */
+    static IKVStorage newInstance(IKVServer.StorageStrategy strategy, String directory, DurabilityPolicy durability, int partitions, boolean trigramIndex) {
+        switch (strategy) {
+            case LSM:
+                return new KVLsmStorage(directory, durability);
+            case ARENA:
+                return new KVArenaStorage(directory, durability);
+            case BTREE:
+                return new KVBTreeStorage(directory, durability);
+            case RING_PARTITIONED:
+                return new KVPartitionedStorage(directory, partitions, KVPartitionedStorage.Layout.RING_HASH, durability, trigramIndex);
+            case TIERED:
+                return new KVTieredStorage(new KVPartitionedStorage(directory, partitions, KVPartitionedStorage.Layout.KEY_HASH,
+                        durability, trigramIndex), KVTieredStorage.DEFAULT_HOT_BYTES);
+            case PARTITIONED:
+            default:
+                break;
+        }
+        return new KVPartitionedStorage(directory, partitions, KVPartitionedStorage.Layout.KEY_HASH, durability, trigramIndex);
+    }
+
     /**
      * Container class for a key-value pair
      */
@@ -82,38 +211,109 @@ public interface IKVStorage {
          */
         public static final String KV_DELIMITER = " ";
 
+        /**
+         * Deadline of pairs that live until deleted
+         */
+        public static final long NO_EXPIRY = 0;
+
+        /**
+         * Marks a serialized pair as live with a deadline, which follows its key. Servers from before deadlines read
+         * any marker other than {@link Tombstone#VALID}'s as a delete, so it's only ever sent to a server known to
+         * understand it.
+         */
+        private static final char EXPIRING_MARKER = 'E';
+
         public final Tombstone tombstone;
         public final String key, value;
 
+        /**
+         * Milliseconds since the epoch after which this pair is treated as deleted, or {@link #NO_EXPIRY}
+         */
+        public final long expiresAt;
+
         public KVPair(String key, String value) {
             this(Tombstone.VALID, key, value);
         }
 
         public KVPair(Tombstone tombstone, String key, String value) {
+            this(tombstone, key, value, NO_EXPIRY);
+        }
+
+        public KVPair(Tombstone tombstone, String key, String value, long expiresAt) {
             this.tombstone = tombstone;
             this.key = key;
             this.value = value;
+            this.expiresAt = expiresAt;
         }
 
         /**
-         * @return serialized string for KVPair
+         * @param now milliseconds since the epoch
+         * @return true if this pair has a deadline and it has passed
+         */
+        public boolean isExpired(long now) {
+            return isExpired(expiresAt, now);
+        }
+
+        /**
+         * @return true if the deadline is set and has passed
+         */
+        public static boolean isExpired(long expiresAt, long now) {
+            return expiresAt != NO_EXPIRY && expiresAt <= now;
+        }
+
+        /**
+         * @param ttlMillis how long a pair should live for, 0 (or less) for forever
+         * @param now       milliseconds since the epoch
+         * @return deadline for the pair, or {@link #NO_EXPIRY} if it has none or it is too far off to represent
+         */
+        public static long expiresAfter(long ttlMillis, long now) {
+            if (ttlMillis <= 0) return NO_EXPIRY;
+            try {
+                return Math.addExact(now, ttlMillis);
+            } catch (ArithmeticException e) {
+                return NO_EXPIRY;
+            }
+        }
+
+        /**
+         * @return serialized string for KVPair, without any deadline so that every reader understands it
          */
         public String serialize() {
+            return serialize(false);
+        }
+
+        /**
+         * @param withDeadline whether a pair with a deadline carries it after its key; only for readers known to
+         *                     understand it
+         * @return serialized string for KVPair
+         */
+        public String serialize(boolean withDeadline) {
+            if (withDeadline && this.tombstone == Tombstone.VALID && this.expiresAt != NO_EXPIRY) {
+                return EXPIRING_MARKER + this.key + KV_DELIMITER + this.expiresAt + KV_DELIMITER + this.value;
+            }
             return this.tombstone.marker + this.key + KV_DELIMITER + this.value;
         }
 
         /**
-         * @param serialized see {@link #serialize()}
+         * @param serialized see {@link #serialize(boolean)}
          * @return deserialized instance of {@link KVPair} or null on failure
          */
         public static KVPair deserialize(String serialized) {
             if (serialized == null) return null;
             final int split = serialized.indexOf(KV_DELIMITER);
-            return split < 0 ? null : new KVPair(
-                    Tombstone.fromChar(serialized.charAt(0)),
-                    serialized.substring(1, split),
-                    serialized.substring(split + 1)
-            );
+            if (split < 0) return null;
+            if (serialized.charAt(0) != EXPIRING_MARKER) {
+                return new KVPair(Tombstone.fromChar(serialized.charAt(0)), serialized.substring(1, split), serialized.substring(split + 1));
+            }
+
+            final int deadlineSplit = serialized.indexOf(KV_DELIMITER, split + 1);
+            if (deadlineSplit < 0) return null;
+            try {
+                return new KVPair(Tombstone.VALID, serialized.substring(1, split), serialized.substring(deadlineSplit + 1),
+                        Long.parseLong(serialized.substring(split + 1, deadlineSplit)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
         }
 
         public enum Tombstone {
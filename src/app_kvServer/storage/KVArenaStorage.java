@@ -0,0 +1,781 @@
+package app_kvServer.storage;
+
+import app_kvServer.KVServerException;
+import app_kvServer.storage.IKVStorage.KVPair.Tombstone;
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * A store for datasets that fit in memory. Keys and values live off the Java heap in large direct {@link ByteBuffer}
+ * arenas and are found through an open-addressing index made of primitive arrays, so the garbage collector sees a
+ * handful of big objects no matter how many keys are stored. A point read is a probe of the index and a copy out of an
+ * arena; the disk is never touched.
+ * <p>
+ * Every write is also appended to a log in {@link KVRecordFormat} (forced to disk per the {@link DurabilityPolicy},
+ * concurrent writers sharing one append and fsync), which is replayed into fresh arenas on startup. Arenas are append-only like the log, so overwrites and deletes leave
+ * garbage in both; once it outweighs the live data both are rewritten in the background with only the live entries,
+ * readers carrying on throughout.
+ * <p>
+ * Arena entry layout: key length (4) | value length (4) | deadline (8) | key bytes | value bytes, UTF-8 and
+ * uncompressed, the deadline being the pair's {@link KVPair#expiresAt}. Entries past their deadline are skipped by
+ * reads and dropped by compaction. Arenas count against the JVM's direct memory limit (-XX:MaxDirectMemorySize), which
+ * should be raised to fit the dataset.
+ */
+public class KVArenaStorage implements IKVStorage {
+    private static final Logger logger = Logger.getRootLogger();
+
+    private static final String LOG_FILENAME = "arena.log";
+
+    public static final int DEFAULT_ARENA_BYTES = 64 << 20;
+    private static final int ENTRY_HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+
+    private static final int INITIAL_SLOTS = 1 << 12;
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    /**
+     * Upper bound on how much a single group commit writes, so early arrivals aren't held up indefinitely
+     */
+    private static final int MAX_BATCH_BYTES = 1 << 20;
+
+    /**
+     * Compact once garbage reaches this multiple of live bytes...
+     */
+    private static final double GARBAGE_RATIO_THRESHOLD = 1.0;
+
+    /**
+     * ...but don't bother for small stores
+     */
+    private static final long MIN_GARBAGE_BYTES = 16L << 20;
+
+    private static final long COMPACTION_CHECK_INTERVAL_SECONDS = 30;
+
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "arena-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File logFile;
+    private final int arenaBytes;
+    private final DurabilityPolicy durability;
+    private final ScheduledFuture<?> syncTask, compactionCheck;
+
+    /**
+     * Guards {@link #table}. Readers hold it shared; writers only hold it exclusively while applying an update that is
+     * already in the log, so a slow fsync never holds up reads.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes writers and compaction so the log and the arenas always agree on the order of updates to a key.
+     * Anything holding it may read {@link #table} without {@link #lock}, since nobody else can change it.
+     */
+    private final Object writeMutex = new Object();
+
+    /**
+     * Writes waiting to be committed; the head of the queue is the leader and commits on behalf of the rest
+     */
+    private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition batchCommitted = queueLock.newCondition();
+
+    private Table table;
+    private volatile FileChannel log;
+    private volatile boolean unsyncedWrites;
+
+    /**
+     * Set by {@link #close()} under {@link #writeMutex}; compaction and writes check it under the same before touching
+     * the log
+     */
+    private volatile boolean closed;
+
+    public KVArenaStorage(String directory) {
+        this(directory, DurabilityPolicy.NONE);
+    }
+
+    public KVArenaStorage(String directory, DurabilityPolicy durability) {
+        this(directory, DEFAULT_ARENA_BYTES, durability);
+    }
+
+    /**
+     * @param directory  to keep the log in
+     * @param arenaBytes size of each off-heap arena; entries larger than this get an arena of their own
+     * @param durability when log appends are forced to disk
+     */
+    public KVArenaStorage(String directory, int arenaBytes, DurabilityPolicy durability) {
+        if (arenaBytes < ENTRY_HEADER_SIZE) throw new IllegalArgumentException("Arenas are too small to hold an entry");
+        this.arenaBytes = arenaBytes;
+        this.durability = durability;
+        final File dir = new File(directory);
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        this.logFile = new File(dir, LOG_FILENAME);
+
+        final long start = System.currentTimeMillis();
+        try {
+            this.table = replayLog();
+            this.log = openLog();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open arena storage", e);
+        }
+        logger.info(String.format("Arena store loaded %d keys (%d bytes) from %s in %d ms",
+                table.size, table.liveBytes, logFile.getPath(), System.currentTimeMillis() - start));
+
+        this.syncTask = durability.schedule(this::sync);
+        this.compactionCheck = COMPACTOR.scheduleWithFixedDelay(this::compactIfNeeded,
+                COMPACTION_CHECK_INTERVAL_SECONDS, COMPACTION_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean inStorage(String key) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        try {
+            lock.readLock().lock();
+            return findLive(keyBytes, hash(keyBytes)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getKV(String key) throws KVServerException {
+        return getKVPair(key).value;
+    }
+
+    @Override
+    public KVPair getKVPair(String key) throws KVServerException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        try {
+            lock.readLock().lock();
+            final int slot = findLive(keyBytes, hash(keyBytes));
+            if (slot >= 0) return table.pair(table.address(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+        throw new KVServerException("Key not found in storage", KVMessage.StatusType.GET_ERROR);
+    }
+
+    @Override
+    public void putKV(String key, String value) throws KVServerException {
+        putKV(key, value, KVPair.NO_EXPIRY);
+    }
+
+    @Override
+    public void putKV(String key, String value, long expiresAt) throws KVServerException {
+        try {
+            write(new KVPair(Tombstone.VALID, key, value, expiresAt), false);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to write to storage", e, KVMessage.StatusType.PUT_ERROR);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws KVServerException {
+        final boolean deleted;
+        try {
+            deleted = write(new KVPair(Tombstone.DEAD, key, ""), true);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to write to storage", e, KVMessage.StatusType.DELETE_ERROR);
+        }
+        if (!deleted) throw new KVServerException("Key not found in storage", KVMessage.StatusType.DELETE_ERROR);
+    }
+
+    @Override
+    public void clearStorage() {
+        synchronized (writeMutex) {
+            try {
+                lock.writeLock().lock();
+                table = new Table(arenaBytes);
+                log.truncate(KVRecordFormat.FILE_HEADER_SIZE);
+                if (durability.getMode() != DurabilityPolicy.Mode.NONE) log.force(false);
+            } catch (IOException e) {
+                logger.error("Could not clear storage", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Only the locations of matching entries are taken up front; each entry is decoded as the stream reaches it.
+     * Entries never move within an arena, so the stream reads a consistent snapshot without holding any lock.
+     */
+    @Override
+    public Stream<KVPair> openKvStream(Predicate<KVPair> filter) {
+        final Table snapshot;
+        final long[] addresses;
+        try {
+            lock.readLock().lock();
+            snapshot = table.view();
+            addresses = table.addresses();
+        } finally {
+            lock.readLock().unlock();
+        }
+        final long now = System.currentTimeMillis();
+        return LongStream.of(addresses)
+                .filter(address -> !KVPair.isExpired(snapshot.expiresAt(address), now))
+                .mapToObj(snapshot::pair)
+                .filter(filter);
+    }
+
+    @Override
+    public List<KVPair> getAllKV(Predicate<KVPair> filter) throws KVServerException {
+        final List<KVPair> allValues;
+        try (Stream<KVPair> kvs = openKvStream(filter)) {
+            allValues = kvs.collect(Collectors.toList());
+        }
+        if (allValues.size() > 0) return allValues;
+
+        throw new KVServerException("Key(s) not found in storage", KVMessage.StatusType.GET_ALL_ERROR);
+    }
+
+    @Override
+    public void putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws KVServerException {
+        final Pattern find = Pattern.compile(valExpr);
+        try (Stream<KVPair> kvs = openKvStream(filter)) {
+            for (KVPair kv : (Iterable<KVPair>) kvs::iterator) {
+                final KVPair replaced = new KVPair(Tombstone.VALID, kv.key, find.matcher(kv.value).replaceAll(valRepl), kv.expiresAt);
+                write(replaced, false);
+                updated.add(replaced);
+            }
+        } catch (IOException e) {
+            throw new KVServerException("Unable to update KV pairs", e, KVMessage.StatusType.PUT_ALL_ERROR);
+        }
+    }
+
+    @Override
+    public void deleteIf(Predicate<KVPair> filter) throws KVServerException {
+        try (Stream<KVPair> kvs = openKvStream(filter)) {
+            for (KVPair kv : (Iterable<KVPair>) kvs::iterator) write(new KVPair(Tombstone.DEAD, kv.key, ""), true);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to delete KV pairs", e, KVMessage.StatusType.DELETE_ALL_ERROR);
+        }
+    }
+
+    @Override
+    public void close() {
+        compactionCheck.cancel(false);
+        if (syncTask != null) syncTask.cancel(false);
+        synchronized (writeMutex) {
+            if (closed) return;
+            closed = true;
+            try {
+                if (durability.getMode() != DurabilityPolicy.Mode.NONE) log.force(false);
+                log.close();
+            } catch (IOException e) {
+                logger.error("Unable to close storage", e);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of arena space taken by live entries
+     */
+    public long getLiveBytes() {
+        try {
+            lock.readLock().lock();
+            return table.liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of direct memory held by arenas, including garbage and unused space at the end of each
+     */
+    public long getOffHeapBytes() {
+        try {
+            lock.readLock().lock();
+            return table.arenas.stream().mapToLong(ByteBuffer::capacity).sum();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the arenas and log with only the live entries. Runs in the background once there's enough garbage, but
+     * may be called directly; writers wait until it's done while readers carry on with the old arenas.
+     *
+     * @throws IOException if the new log couldn't be written or the store is closed, in which case the store is left
+     *                     as it was
+     */
+    public void compact() throws IOException {
+        synchronized (writeMutex) {
+            if (closed) throw new IOException(logFile.getPath() + " is closed");
+            final long start = System.currentTimeMillis();
+            final Table compacted = new Table(arenaBytes);
+            final File temp = new File(logFile.getPath() + ".tmp");
+            try {
+                try (FileOutputStream stream = new FileOutputStream(temp);
+                     OutputStream output = new BufferedOutputStream(stream, 64 * 1024)) {
+                    output.write(KVRecordFormat.fileHeader());
+                    final long now = System.currentTimeMillis();
+                    for (long address : table.addresses()) {
+                        final long expiresAt = table.expiresAt(address);
+                        if (KVPair.isExpired(expiresAt, now)) continue;
+                        final byte[] key = table.bytes(address, ENTRY_HEADER_SIZE, table.keyLength(address));
+                        final byte[] value = table.bytes(address, ENTRY_HEADER_SIZE + key.length, table.valueLength(address));
+                        compacted.put(key, hash(key), value, expiresAt);
+                        output.write(KVRecordFormat.encode(new KVPair(Tombstone.VALID,
+                                new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8), expiresAt)));
+                    }
+                    output.flush();
+                    stream.getFD().sync();
+                }
+
+                try {
+                    lock.writeLock().lock();
+                    log.close();
+                    try {
+                        Files.move(temp.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                        table = compacted;
+                    } finally {
+                        log = openLog();
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+            logger.info(String.format("Compacted %s to %d bytes in %d ms",
+                    logFile.getPath(), compacted.usedBytes, System.currentTimeMillis() - start));
+        }
+    }
+
+    private void compactIfNeeded() {
+        final long garbage, live;
+        try {
+            lock.readLock().lock();
+            garbage = table.usedBytes - table.liveBytes;
+            live = table.liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (garbage < MIN_GARBAGE_BYTES || garbage < live * GARBAGE_RATIO_THRESHOLD) return;
+        synchronized (writeMutex) {
+            if (closed) return;
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.error("Unable to compact " + logFile.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Join the group commit queue and wait for this write to be appended to the log and applied to the arenas, either
+     * by ourselves as the leader or by whoever was ahead of us
+     *
+     * @param requireExisting only write this (i.e. a delete) if the key is present at the time
+     * @return false if the write was skipped for want of an existing key
+     * @throws IOException if the batch containing this write could not be written
+     */
+    private boolean write(KVPair kv, boolean requireExisting) throws IOException {
+        final PendingWrite write = new PendingWrite(kv, requireExisting);
+        final List<PendingWrite> batch = new ArrayList<>();
+        try {
+            queueLock.lock();
+            pendingWrites.addLast(write);
+            while (!write.committed && pendingWrites.peekFirst() != write) batchCommitted.awaitUninterruptibly();
+            if (write.committed) {
+                if (write.failure != null) throw write.failure;
+                return !write.rejected;
+            }
+
+            // We're the leader: take everyone who has shown up so far, within reason
+            long batchBytes = 0;
+            for (PendingWrite pending : pendingWrites) {
+                if (!batch.isEmpty() && batchBytes + pending.record.length > MAX_BATCH_BYTES) break;
+                batch.add(pending);
+                batchBytes += pending.record.length;
+            }
+        } finally {
+            queueLock.unlock();
+        }
+
+        IOException failure = null;
+        try {
+            commitBatch(batch);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("Unable to commit batch", e);
+        } finally {
+            // Hand over to the next leader, if any
+            queueLock.lock();
+            for (PendingWrite pending : batch) {
+                pendingWrites.removeFirst();
+                pending.failure = failure;
+                pending.committed = true;
+            }
+            batchCommitted.signalAll();
+            queueLock.unlock();
+        }
+        if (write.failure != null) throw write.failure;
+        return !write.rejected;
+    }
+
+    /**
+     * Append a batch of records to the log with a single write (and at most one fsync), then apply them to the arenas
+     *
+     * @param batch to write, in order; deletes of keys which are (by then) absent are rejected rather than written
+     * @throws IOException on write failure or if the store is closed, in which case none of the batch is applied
+     */
+    private void commitBatch(List<PendingWrite> batch) throws IOException {
+        synchronized (writeMutex) {
+            if (closed) throw new IOException(logFile.getPath() + " is closed");
+
+            // 1. Decide what to write; only we can change the table, so what we see here holds until we're done
+            final Map<String, Boolean> batchExists = new HashMap<>();
+            final List<PendingWrite> accepted = new ArrayList<>(batch.size());
+            int batchBytes = 0;
+            for (PendingWrite write : batch) {
+                final boolean exists = batchExists.computeIfAbsent(write.kv.key, key -> findLive(write.key, write.hash) >= 0);
+                if (write.requireExisting && !exists) {
+                    write.rejected = true;
+                    continue;
+                }
+                batchExists.put(write.kv.key, write.kv.tombstone == Tombstone.VALID);
+                accepted.add(write);
+                batchBytes += write.record.length;
+            }
+            if (accepted.isEmpty()) return;
+
+            // 2. Write it all out in one go
+            final ByteBuffer buffer = ByteBuffer.allocate(batchBytes);
+            for (PendingWrite write : accepted) buffer.put(write.record);
+            buffer.flip();
+            while (buffer.hasRemaining()) log.write(buffer);
+            if (durability.getMode() == DurabilityPolicy.Mode.BATCH) log.force(false);
+            else unsyncedWrites = true;
+
+            // 3. Make it visible to readers
+            try {
+                lock.writeLock().lock();
+                for (PendingWrite write : accepted) {
+                    if (write.kv.tombstone == Tombstone.VALID) {
+                        table.put(write.key, write.hash, write.kv.value.getBytes(StandardCharsets.UTF_8), write.kv.expiresAt);
+                    } else {
+                        table.remove(write.key, write.hash);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Background sync for {@link DurabilityPolicy.Mode#PERIODIC}; doesn't block readers or writers
+     */
+    private void sync() {
+        if (!unsyncedWrites) return;
+        unsyncedWrites = false;
+        try {
+            log.force(false);
+        } catch (ClosedChannelException e) {
+            // Closed (and synced) by close or compaction
+        } catch (IOException e) {
+            logger.error("Unable to sync " + logFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Rebuild the arenas from the log, truncating any incomplete record left at its end by a crash
+     */
+    private Table replayLog() throws IOException {
+        final Table replayed = new Table(arenaBytes);
+        if (!logFile.exists() || !KVRecordFormat.hasFileHeader(logFile)) return replayed;
+
+        final long validEnd;
+        try (KVRecordFormat.Reader records = KVRecordFormat.Reader.open(logFile)) {
+            while (true) {
+                final long offset = records.position();
+                try {
+                    final KVRecordFormat.Record record = records.next();
+                    if (record == null) break;
+                    final byte[] key = record.kv.key.getBytes(StandardCharsets.UTF_8);
+                    if (record.kv.tombstone == Tombstone.VALID) {
+                        replayed.put(key, hash(key), record.kv.value.getBytes(StandardCharsets.UTF_8), record.kv.expiresAt);
+                    } else {
+                        replayed.remove(key, hash(key));
+                    }
+                } catch (KVRecordFormat.CorruptRecordException e) {
+                    logger.warn(String.format("Skipping corrupt record at %d in %s: %s", offset, logFile.getName(), e.getMessage()));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            validEnd = records.position();
+        }
+
+        if (validEnd < logFile.length()) {
+            logger.warn(String.format("Truncating %d bytes of incomplete record from %s", logFile.length() - validEnd, logFile.getName()));
+            try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @return a channel appending to the log, which is created (or replaced, if not in {@link KVRecordFormat}) empty
+     */
+    private FileChannel openLog() throws IOException {
+        if (!logFile.exists() || !KVRecordFormat.hasFileHeader(logFile)) {
+            Files.write(logFile.toPath(), KVRecordFormat.fileHeader());
+        }
+        return FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * NOT thread-safe -- hold {@link #lock} or {@link #writeMutex}
+     *
+     * @return slot holding the key, or a negative number if it's absent or past its deadline
+     */
+    private int findLive(byte[] key, int hash) {
+        final int slot = table.find(key, hash);
+        return slot >= 0 && KVPair.isExpired(table.expiresAt(table.address(slot)), System.currentTimeMillis()) ? -1 : slot;
+    }
+
+    /**
+     * Spread the key's bits so that similar keys land far apart in the index
+     */
+    private static int hash(byte[] key) {
+        final int h = Arrays.hashCode(key) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A write waiting in {@link #pendingWrites}; fields other than the encoding are guarded by {@link #queueLock}
+     */
+    private static class PendingWrite {
+        final KVPair kv;
+        final byte[] key, record;
+        final int hash;
+
+        /**
+         * Only write this (i.e. a delete) if the key is present at the time
+         */
+        final boolean requireExisting;
+
+        boolean committed, rejected;
+        IOException failure;
+
+        PendingWrite(KVPair kv, boolean requireExisting) {
+            this.kv = kv;
+            this.key = kv.key.getBytes(StandardCharsets.UTF_8);
+            this.hash = hash(key);
+            this.record = KVRecordFormat.encode(kv);
+            this.requireExisting = requireExisting;
+        }
+    }
+
+    /**
+     * Arenas plus an open-addressing (linear probing) index over them. Each slot holds an entry's address (arena
+     * number in the high 32 bits, offset in the low 32) plus one, so that 0 can mean empty, and the key's hash so
+     * probes and resizes rarely have to look at the arenas.
+     * <p>
+     * NOT thread-safe -- mutate while holding the write lock, read while holding the read lock
+     */
+    private static class Table {
+        final int arenaBytes;
+        final List<ByteBuffer> arenas;
+        long[] slots = new long[INITIAL_SLOTS];
+        int[] hashes = new int[INITIAL_SLOTS];
+        int size;
+
+        /**
+         * Bytes of arena space taken by live entries, and by every entry ever appended
+         */
+        long liveBytes, usedBytes;
+
+        Table(int arenaBytes) {
+            this.arenaBytes = arenaBytes;
+            this.arenas = new ArrayList<>();
+        }
+
+        private Table(Table source) {
+            this.arenaBytes = source.arenaBytes;
+            this.arenas = new ArrayList<>(source.arenas);
+        }
+
+        /**
+         * @return a read-only view of the entries written so far, valid for as long as it is kept: arenas are only
+         * ever appended to, and compaction builds new ones rather than reusing these
+         */
+        Table view() {
+            return new Table(this);
+        }
+
+        /**
+         * @return address of every live entry
+         */
+        long[] addresses() {
+            final long[] addresses = new long[size];
+            int count = 0;
+            for (long slot : slots) {
+                if (slot != 0) addresses[count++] = slot - 1;
+            }
+            return addresses;
+        }
+
+        /**
+         * @return slot holding the key, or the bitwise complement of the empty slot it would go in
+         */
+        int find(byte[] key, int hash) {
+            final int mask = slots.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                if (slots[slot] == 0) return ~slot;
+                if (hashes[slot] == hash && keyEquals(slots[slot] - 1, key)) return slot;
+            }
+        }
+
+        long address(int slot) {
+            return slots[slot] - 1;
+        }
+
+        void put(byte[] key, int hash, byte[] value, long expiresAt) {
+            final long address = append(key, value, expiresAt);
+            final int entrySize = ENTRY_HEADER_SIZE + key.length + value.length;
+            final int slot = find(key, hash);
+            if (slot >= 0) {
+                liveBytes -= entrySize(slots[slot] - 1);
+                slots[slot] = address + 1;
+            } else {
+                slots[~slot] = address + 1;
+                hashes[~slot] = hash;
+                if (++size * 100L > slots.length * (long) MAX_LOAD_PERCENT) resize();
+            }
+            liveBytes += entrySize;
+        }
+
+        void remove(byte[] key, int hash) {
+            int slot = find(key, hash);
+            if (slot < 0) return;
+            liveBytes -= entrySize(slots[slot] - 1);
+            size--;
+
+            // Backward shift deletion: pull later entries of the probe run into the gap so lookups never stop early
+            final int mask = slots.length - 1;
+            for (int next = (slot + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+                final int home = hashes[next] & mask;
+                final boolean stays = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+                if (stays) continue;
+                slots[slot] = slots[next];
+                hashes[slot] = hashes[next];
+                slot = next;
+            }
+            slots[slot] = 0;
+            hashes[slot] = 0;
+        }
+
+        private void resize() {
+            final long[] oldSlots = slots;
+            final int[] oldHashes = hashes;
+            slots = new long[oldSlots.length * 2];
+            hashes = new int[oldSlots.length * 2];
+            final int mask = slots.length - 1;
+            for (int i = 0; i < oldSlots.length; i++) {
+                if (oldSlots[i] == 0) continue;
+                int slot = oldHashes[i] & mask;
+                while (slots[slot] != 0) slot = (slot + 1) & mask;
+                slots[slot] = oldSlots[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+
+        /**
+         * @return address of the new entry
+         */
+        private long append(byte[] key, byte[] value, long expiresAt) {
+            final int entrySize = ENTRY_HEADER_SIZE + key.length + value.length;
+            ByteBuffer arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+            if (arena == null || arena.remaining() < entrySize) {
+                arena = ByteBuffer.allocateDirect(Math.max(arenaBytes, entrySize));
+                arenas.add(arena);
+            }
+            final long address = ((long) (arenas.size() - 1) << 32) | arena.position();
+            arena.putInt(key.length).putInt(value.length).putLong(expiresAt).put(key).put(value);
+            usedBytes += entrySize;
+            return address;
+        }
+
+        private ByteBuffer arena(long address) {
+            return arenas.get((int) (address >>> 32));
+        }
+
+        int keyLength(long address) {
+            return arena(address).getInt((int) address);
+        }
+
+        int valueLength(long address) {
+            return arena(address).getInt((int) address + Integer.BYTES);
+        }
+
+        long expiresAt(long address) {
+            return arena(address).getLong((int) address + 2 * Integer.BYTES);
+        }
+
+        private int entrySize(long address) {
+            return ENTRY_HEADER_SIZE + keyLength(address) + valueLength(address);
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            final ByteBuffer arena = arena(address);
+            final int start = (int) address + ENTRY_HEADER_SIZE;
+            if (arena.getInt((int) address) != key.length) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (arena.get(start + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return a copy of length bytes starting offset bytes into the entry
+         */
+        byte[] bytes(long address, int offset, int length) {
+            final byte[] bytes = new byte[length];
+            arena(address).duplicate().position((int) address + offset).get(bytes);
+            return bytes;
+        }
+
+        KVPair pair(long address) {
+            final int keyLength = keyLength(address);
+            return new KVPair(Tombstone.VALID,
+                    new String(bytes(address, ENTRY_HEADER_SIZE, keyLength), StandardCharsets.UTF_8),
+                    new String(bytes(address, ENTRY_HEADER_SIZE + keyLength, valueLength(address)), StandardCharsets.UTF_8),
+                    expiresAt(address));
+        }
+    }
+}
@@ -0,0 +1,1237 @@
+package app_kvServer.storage;
+
+import app_kvServer.KVServerException;
+import app_kvServer.storage.IKVStorage.KVPair.Tombstone;
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * An ordered store: a B+tree of keys, paged to disk and cached in memory, whose leaves point at records in an
+ * append-only value log in {@link KVRecordFormat}. Since keys are kept sorted, a {@link KVPatternFilter} whose key
+ * pattern begins with a literal (e.g. user_42_.*) is served by scanning just the leaves holding that prefix.
+ * <p>
+ * The value log doubles as the write-ahead log: every update is appended to it and then applied to the tree in memory,
+ * so pages only need writing at checkpoints. A checkpoint (once enough pages are dirty, and on close) writes the dirty
+ * pages and meta page to a journal and only then in place, so a crash at any point leaves the old tree or the new one.
+ * On startup the log past the last checkpoint is replayed on top. Up to a fixed number of clean pages are cached and
+ * the rest are read back from disk on demand; dirty pages stay in memory until they're checkpointed.
+ * <p>
+ * Deletes don't rebalance the tree, and overwritten records stay in the log. Once garbage outweighs live data, both
+ * are rebuilt from an in-order scan into a new generation of files, the new tree bulk-loaded bottom up. Leaves hold each
+ * key's deadline alongside its record's location, so keys past it are skipped without reading the log and left out of
+ * the next rebuild.
+ * <p>
+ * Files in the storage directory:
+ * - CURRENT: the generation in use
+ * - tree-N.db: pages of generation N's tree, page 0 being the meta page
+ * - values-N.log: generation N's value log
+ * - tree-N.db.journal: pages part way through being checkpointed
+ */
+public class KVBTreeStorage implements IKVStorage {
+    private static final Logger logger = Logger.getRootLogger();
+
+    private static final int MAGIC = 0x4B564254; // "KVBT"
+    private static final short VERSION = 2;
+
+    /**
+     * Trees from before deadlines, whose leaf entries lack one; they're rebuilt as the current version when opened
+     */
+    private static final short VERSION_NO_DEADLINES = 1;
+
+    private static final String CURRENT = "CURRENT";
+
+    static final int PAGE_SIZE = 8192;
+
+    /**
+     * Small enough that splitting an overfull node in half always yields two that fit in a page
+     */
+    static final int MAX_KEY_BYTES = 512;
+
+    public static final int DEFAULT_CACHED_PAGES = 4096;
+
+    /**
+     * Checkpoint once this many pages are waiting to be written
+     */
+    private static final int CHECKPOINT_DIRTY_PAGES = 1024;
+
+    /**
+     * How full bulk-loaded nodes are made, leaving room for inserts before they split
+     */
+    private static final int BULK_LOAD_FILL_BYTES = PAGE_SIZE * 7 / 8;
+
+    /**
+     * Bulk reads and updates fetch this many matches at a time, so they never have to hold every match in memory or
+     * keep writers waiting for the whole scan
+     */
+    private static final int SCAN_BATCH_SIZE = 1024;
+
+    /**
+     * Compact once dead bytes in the log reach this multiple of live bytes...
+     */
+    private static final double GARBAGE_RATIO_THRESHOLD = 1.0;
+
+    /**
+     * ...but don't bother for small logs
+     */
+    private static final long MIN_GARBAGE_BYTES = 4L << 20;
+
+    private static final long COMPACTION_CHECK_INTERVAL_SECONDS = 30;
+
+    private static final int NO_PAGE = -1;
+    private static final byte LEAF = 0, INTERNAL = 1;
+    private static final int NODE_HEADER_SIZE = Byte.BYTES + Short.BYTES + Integer.BYTES;
+    private static final int LEAF_ENTRY_OVERHEAD = Short.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int INTERNAL_ENTRY_OVERHEAD = Short.BYTES + Integer.BYTES;
+
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "btree-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File directory;
+    private final int cachedPages;
+    private final DurabilityPolicy durability;
+    private final ScheduledFuture<?> syncTask, compactionCheck;
+
+    /**
+     * Guards the shape of the tree. Readers hold it shared; writers hold it exclusively while applying an update that
+     * is already in the log, and to swap in a new generation.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes writers, checkpoints and compaction. Anything holding it may read the tree without {@link #lock},
+     * since nobody else can change it.
+     */
+    private final Object writeMutex = new Object();
+
+    /**
+     * Decoded pages in access order; guard with its own monitor. Dirty pages are never evicted.
+     */
+    private final LinkedHashMap<Integer, Node> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Pages changed since the last checkpoint; guarded by {@link #writeMutex}
+     */
+    private final Set<Node> dirtyNodes = new HashSet<>();
+
+    private long generation;
+    private File treeFile, logFile;
+    private FileChannel pages;
+    private volatile FileChannel log;
+    private volatile boolean unsyncedWrites;
+
+    /**
+     * Contents of the meta page, kept current in memory; guarded like the tree
+     */
+    private int root, pageCount;
+    private long keyCount, liveBytes, logEnd, checkpointedLength;
+    private short version;
+
+    public KVBTreeStorage(String directory) {
+        this(directory, DurabilityPolicy.NONE);
+    }
+
+    public KVBTreeStorage(String directory, DurabilityPolicy durability) {
+        this(directory, DEFAULT_CACHED_PAGES, durability);
+    }
+
+    /**
+     * @param directory   to keep the tree and value log in
+     * @param cachedPages number of clean pages to keep decoded in memory
+     * @param durability  when value log appends are forced to disk
+     */
+    public KVBTreeStorage(String directory, int cachedPages, DurabilityPolicy durability) {
+        this.directory = new File(directory);
+        this.cachedPages = cachedPages;
+        this.durability = durability;
+        //noinspection ResultOfMethodCallIgnored
+        this.directory.mkdirs();
+
+        final long start = System.currentTimeMillis();
+        try {
+            open(readCurrentGeneration());
+            if (version != VERSION) {
+                logger.info(String.format("Rebuilding version %d B+tree at %s as version %d", version, directory, VERSION));
+                synchronized (writeMutex) {
+                    rebuild(true);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open B+tree storage", e);
+        }
+        logger.info(String.format("B+tree store opened at %s with %d keys in %d ms",
+                directory, keyCount, System.currentTimeMillis() - start));
+
+        this.syncTask = durability.schedule(this::sync);
+        this.compactionCheck = COMPACTOR.scheduleWithFixedDelay(this::compactIfNeeded,
+                COMPACTION_CHECK_INTERVAL_SECONDS, COMPACTION_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean inStorage(String key) {
+        try {
+            lock.readLock().lock();
+            return find(key) != null;
+        } catch (IOException e) {
+            logger.error("An error occurred during read from store.", e);
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getKV(String key) throws KVServerException {
+        return getKVPair(key).value;
+    }
+
+    @Override
+    public KVPair getKVPair(String key) throws KVServerException {
+        try {
+            lock.readLock().lock();
+            final Location location = find(key);
+            if (location != null) return readRecord(location);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to read from storage", e, KVMessage.StatusType.GET_ERROR);
+        } finally {
+            lock.readLock().unlock();
+        }
+        throw new KVServerException("Key not found in storage", KVMessage.StatusType.GET_ERROR);
+    }
+
+    @Override
+    public void putKV(String key, String value) throws KVServerException {
+        putKV(key, value, KVPair.NO_EXPIRY);
+    }
+
+    @Override
+    public void putKV(String key, String value, long expiresAt) throws KVServerException {
+        if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_BYTES) {
+            throw new KVServerException("Key too long for storage", KVMessage.StatusType.PUT_ERROR);
+        }
+        try {
+            write(new KVPair(Tombstone.VALID, key, value, expiresAt), false);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to write to storage", e, KVMessage.StatusType.PUT_ERROR);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws KVServerException {
+        final boolean deleted;
+        try {
+            deleted = write(new KVPair(Tombstone.DEAD, key, ""), true);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to write to storage", e, KVMessage.StatusType.DELETE_ERROR);
+        }
+        if (!deleted) throw new KVServerException("Key not found in storage", KVMessage.StatusType.DELETE_ERROR);
+    }
+
+    @Override
+    public void clearStorage() {
+        synchronized (writeMutex) {
+            try {
+                rebuild(false);
+            } catch (IOException e) {
+                logger.error("Could not clear storage", e);
+            }
+        }
+    }
+
+    @Override
+    public Stream<KVPair> openKvStream(Predicate<KVPair> filter) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(scanInBatches(filter), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public List<KVPair> getAllKV(Predicate<KVPair> filter) throws KVServerException {
+        final List<KVPair> allValues;
+        try {
+            allValues = scan(filter);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to read from storage", e, KVMessage.StatusType.GET_ALL_ERROR);
+        }
+        if (allValues.size() > 0) return allValues;
+
+        throw new KVServerException("Key(s) not found in storage", KVMessage.StatusType.GET_ALL_ERROR);
+    }
+
+    @Override
+    public void putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws KVServerException {
+        final Pattern find = Pattern.compile(valExpr);
+        try {
+            // Rewriting a value leaves its key where it is, so each batch picks up right after the last
+            List<KVPair> batch;
+            String after = null;
+            do {
+                batch = scan(filter, after, SCAN_BATCH_SIZE);
+                for (KVPair kv : batch) {
+                    final KVPair replaced = new KVPair(Tombstone.VALID, kv.key, find.matcher(kv.value).replaceAll(valRepl), kv.expiresAt);
+                    write(replaced, false);
+                    updated.add(replaced);
+                }
+                if (!batch.isEmpty()) after = batch.get(batch.size() - 1).key;
+            } while (batch.size() == SCAN_BATCH_SIZE);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to update KV pairs", e, KVMessage.StatusType.PUT_ALL_ERROR);
+        }
+    }
+
+    @Override
+    public void deleteIf(Predicate<KVPair> filter) throws KVServerException {
+        try {
+            for (Iterator<KVPair> matches = scanInBatches(filter); matches.hasNext(); ) {
+                write(new KVPair(Tombstone.DEAD, matches.next().key, ""), true);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new KVServerException("Unable to delete KV pairs", e, KVMessage.StatusType.DELETE_ALL_ERROR);
+        }
+    }
+
+    @Override
+    public void close() {
+        compactionCheck.cancel(false);
+        if (syncTask != null) syncTask.cancel(false);
+        synchronized (writeMutex) {
+            try {
+                checkpoint();
+                log.close();
+                pages.close();
+            } catch (IOException e) {
+                logger.error("Unable to cleanly close B+tree storage", e);
+            }
+        }
+    }
+
+    /**
+     * @return number of pages in the tree file, including the meta page
+     */
+    public int getPageCount() {
+        try {
+            lock.readLock().lock();
+            return pageCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes in the value log belonging to the most recent record of a live key
+     */
+    public long getLiveBytes() {
+        try {
+            lock.readLock().lock();
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild the tree and value log with only the live records. Runs in the background once there's enough garbage,
+     * but may be called directly; writers wait until it's done while readers carry on with the old files.
+     */
+    public void compact() throws IOException {
+        synchronized (writeMutex) {
+            rebuild(true);
+        }
+    }
+
+    private void compactIfNeeded() {
+        synchronized (writeMutex) {
+            final long garbage = logEnd - KVRecordFormat.FILE_HEADER_SIZE - liveBytes;
+            if (garbage < MIN_GARBAGE_BYTES || garbage < liveBytes * GARBAGE_RATIO_THRESHOLD) return;
+            try {
+                rebuild(true);
+            } catch (IOException e) {
+                logger.error("Unable to compact " + logFile.getPath(), e);
+            }
+        }
+    }
+
+    /*
+     * ------------------------------------------------------------
+     * Reads
+     * ------------------------------------------------------------
+     */
+
+    /**
+     * NOT thread-safe -- hold {@link #lock} or {@link #writeMutex}
+     *
+     * @return where the key's latest record is, or null if it isn't present or is past its deadline
+     */
+    private Location find(String key) throws IOException {
+        final Node leaf = leafFor(key);
+        final int index = Collections.binarySearch(leaf.keys, key);
+        if (index < 0) return null;
+        final Location location = leaf.locations.get(index);
+        return location.isExpired(System.currentTimeMillis()) ? null : location;
+    }
+
+    private Node leafFor(String key) throws IOException {
+        Node node = node(root);
+        while (node.type == INTERNAL) node = node(node.children.get(node.childIndex(key)));
+        return node;
+    }
+
+    /**
+     * Walk the leaves from the first key that could match, stopping once past the keys the filter could accept
+     */
+    private List<KVPair> scan(Predicate<KVPair> filter) throws IOException {
+        return scan(filter, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@link #scan(Predicate)} a limited number of matches at a time
+     *
+     * @param after if non-null, only keys that come after this one e.g. the last match of the previous call
+     * @param limit most matches to return
+     */
+    private List<KVPair> scan(Predicate<KVPair> filter, String after, int limit) throws IOException {
+        final String prefix = filter instanceof KVPatternFilter ? ((KVPatternFilter) filter).getKeyPrefix() : "";
+        final String start = after != null && after.compareTo(prefix) > 0 ? after : prefix;
+        final List<KVPair> matches = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        try {
+            lock.readLock().lock();
+            Node leaf = leafFor(start);
+            int index = leaf.lowerBound(start);
+            while (true) {
+                for (; index < leaf.keys.size(); index++) {
+                    final String key = leaf.keys.get(index);
+                    if (!key.startsWith(prefix)) return matches;
+                    if (key.equals(after) || leaf.locations.get(index).isExpired(now)) continue;
+                    final KVPair kv = readRecord(leaf.locations.get(index));
+                    if (filter.test(kv)) matches.add(kv);
+                    if (matches.size() >= limit) return matches;
+                }
+                if (leaf.next == NO_PAGE) return matches;
+                leaf = node(leaf.next);
+                index = 0;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lazily {@link #scan(Predicate)}, {@link #SCAN_BATCH_SIZE} matches at a time. The lock is only held while each
+     * batch is read, so the tree may change in between; every key is still visited at most once since keys are visited
+     * in order, and each batch picks up after the last key of the one before.
+     *
+     * @return the matches, throwing {@link UncheckedIOException} if a batch can't be read
+     */
+    private Iterator<KVPair> scanInBatches(Predicate<KVPair> filter) {
+        return new Iterator<>() {
+            private List<KVPair> batch = Collections.emptyList();
+            private int index;
+            private String after;
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (index < batch.size()) return true;
+                if (exhausted) return false;
+                try {
+                    batch = scan(filter, after, SCAN_BATCH_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                index = 0;
+                exhausted = batch.size() < SCAN_BATCH_SIZE;
+                if (!batch.isEmpty()) after = batch.get(batch.size() - 1).key;
+                return !batch.isEmpty();
+            }
+
+            @Override
+            public KVPair next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return batch.get(index++);
+            }
+        };
+    }
+
+    private KVPair readRecord(Location location) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, location.offset + buffer.position()) < 0) throw new EOFException("Record past end of log");
+        }
+        return KVRecordFormat.decode(buffer.array(), 0, location.length).kv;
+    }
+
+    /**
+     * @return the page, from the cache if possible
+     */
+    private Node node(int id) throws IOException {
+        synchronized (cache) {
+            final Node cached = cache.get(id);
+            if (cached != null) return cached;
+        }
+
+        final ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        while (page.hasRemaining()) {
+            if (pages.read(page, (long) id * PAGE_SIZE + page.position()) < 0) throw new EOFException("Page " + id + " past end of tree");
+        }
+        final Node node = Node.decode(id, page.flip(), version);
+        synchronized (cache) {
+            final Node raced = cache.putIfAbsent(id, node);
+            evictClean();
+            return raced != null ? raced : node;
+        }
+    }
+
+    /**
+     * NOT thread-safe -- hold the monitor of {@link #cache}
+     */
+    private void evictClean() {
+        final Iterator<Node> eldest = cache.values().iterator();
+        while (cache.size() > cachedPages && eldest.hasNext()) {
+            if (!eldest.next().dirty) eldest.remove();
+        }
+    }
+
+    /*
+     * ------------------------------------------------------------
+     * Writes
+     * ------------------------------------------------------------
+     */
+
+    /**
+     * Append a record to the log and then apply it to the tree
+     *
+     * @param requireExisting only write this (i.e. a delete) if the key is present at the time
+     * @return false if the write was skipped for want of an existing key
+     */
+    private boolean write(KVPair kv, boolean requireExisting) throws IOException {
+        synchronized (writeMutex) {
+            if (requireExisting && find(kv.key) == null) return false;
+
+            final byte[] record = KVRecordFormat.encode(kv);
+            final ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) log.write(buffer, logEnd + buffer.position());
+            if (durability.getMode() == DurabilityPolicy.Mode.BATCH) log.force(false);
+            else unsyncedWrites = true;
+
+            try {
+                lock.writeLock().lock();
+                apply(kv, new Location(logEnd, record.length, kv.expiresAt));
+                logEnd += record.length;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            if (dirtyNodes.size() >= CHECKPOINT_DIRTY_PAGES) checkpoint();
+            return true;
+        }
+    }
+
+    /**
+     * NOT thread-safe -- hold {@link #writeMutex} and the write lock, or be the constructor
+     * <p>
+     * Point the key at a newly appended record, or remove it for a tombstone
+     */
+    private void apply(KVPair kv, Location location) throws IOException {
+        if (kv.tombstone == Tombstone.VALID) {
+            final Location previous = insert(kv.key, location);
+            if (previous == null) keyCount++;
+            else liveBytes -= previous.length;
+            liveBytes += location.length;
+        } else {
+            final Node leaf = leafFor(kv.key);
+            final int index = Collections.binarySearch(leaf.keys, kv.key);
+            if (index < 0) return;
+            liveBytes -= leaf.locations.get(index).length;
+            keyCount--;
+            leaf.remove(index);
+            markDirty(leaf);
+        }
+    }
+
+    /**
+     * @return the location the key previously pointed to, if any
+     */
+    private Location insert(String key, Location location) throws IOException {
+        final Location[] previous = new Location[1];
+        final Split split = insert(node(root), key, location, previous);
+        if (split != null) {
+            final Node newRoot = allocate(INTERNAL);
+            newRoot.children.add(root);
+            newRoot.insertChild(0, split.separator, split.right);
+            root = newRoot.id;
+        }
+        return previous[0];
+    }
+
+    /**
+     * @return the node split off to the right of this one if it overflowed, otherwise null
+     */
+    private Split insert(Node node, String key, Location location, Location[] previous) throws IOException {
+        if (node.type == LEAF) {
+            final int index = Collections.binarySearch(node.keys, key);
+            if (index >= 0) previous[0] = node.replace(index, location);
+            else node.insertEntry(~index, key, location);
+            markDirty(node);
+            if (node.size <= PAGE_SIZE) return null;
+
+            final Node right = allocate(LEAF);
+            node.moveUpperHalf(right);
+            right.next = node.next;
+            node.next = right.id;
+            return new Split(right.keys.get(0), right.id);
+        }
+
+        final int childIndex = node.childIndex(key);
+        final Split childSplit = insert(node(node.children.get(childIndex)), key, location, previous);
+        if (childSplit == null) return null;
+
+        node.insertChild(childIndex, childSplit.separator, childSplit.right);
+        markDirty(node);
+        if (node.size <= PAGE_SIZE) return null;
+
+        final Node right = allocate(INTERNAL);
+        final String separator = node.moveUpperHalf(right);
+        return new Split(separator, right.id);
+    }
+
+    private Node allocate(byte type) {
+        final Node node = new Node(pageCount++, type);
+        markDirty(node);
+        return node;
+    }
+
+    /**
+     * Pin the node in the cache until the next checkpoint. Puts it back if it was evicted while still clean, so the
+     * changed copy is the one everyone sees.
+     */
+    private void markDirty(Node node) {
+        synchronized (cache) {
+            node.dirty = true;
+            cache.put(node.id, node);
+        }
+        dirtyNodes.add(node);
+    }
+
+    /**
+     * Background sync for {@link DurabilityPolicy.Mode#PERIODIC}; doesn't block readers or writers
+     */
+    private void sync() {
+        if (!unsyncedWrites) return;
+        unsyncedWrites = false;
+        try {
+            log.force(false);
+        } catch (ClosedChannelException e) {
+            // Closed (and synced) by close or compaction
+        } catch (IOException e) {
+            logger.error("Unable to sync " + logFile.getPath(), e);
+        }
+    }
+
+    /*
+     * ------------------------------------------------------------
+     * Checkpoints and recovery
+     * ------------------------------------------------------------
+     */
+
+    /**
+     * NOT thread-safe -- use {@link #writeMutex}
+     * <p>
+     * Write every dirty page and the meta page out, via the journal. Readers carry on meanwhile since pages only
+     * change under the write lock.
+     */
+    private void checkpoint() throws IOException {
+        if (dirtyNodes.isEmpty() && checkpointedLength == logEnd) return;
+        log.force(false); // The tree is about to point at these records, so they must be on disk first
+
+        final Map<Integer, ByteBuffer> images = new TreeMap<>();
+        for (Node node : dirtyNodes) images.put(node.id, node.encode());
+        images.put(0, encodeMeta(logEnd));
+
+        final File journal = journalFile(treeFile);
+        writeJournal(journal, images);
+        writePages(pages, images);
+        pages.force(false);
+        Files.delete(journal.toPath());
+
+        synchronized (cache) {
+            for (Node node : dirtyNodes) node.dirty = false;
+            evictClean();
+        }
+        dirtyNodes.clear();
+        checkpointedLength = logEnd;
+    }
+
+    private static void writeJournal(File journal, Map<Integer, ByteBuffer> images) throws IOException {
+        final CRC32 crc = new CRC32();
+        try (FileOutputStream stream = new FileOutputStream(journal);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            output.writeInt(images.size());
+            crc.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, images.size()));
+            for (Map.Entry<Integer, ByteBuffer> image : images.entrySet()) {
+                output.writeInt(image.getKey());
+                output.write(image.getValue().array());
+                crc.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, image.getKey()));
+                crc.update(image.getValue().array());
+            }
+            output.writeInt((int) crc.getValue());
+            output.flush();
+            stream.getFD().sync();
+        }
+    }
+
+    private static void writePages(FileChannel channel, Map<Integer, ByteBuffer> images) throws IOException {
+        for (Map.Entry<Integer, ByteBuffer> image : images.entrySet()) {
+            final ByteBuffer page = image.getValue().duplicate();
+            while (page.hasRemaining()) channel.write(page, (long) image.getKey() * PAGE_SIZE + page.position());
+        }
+    }
+
+    /**
+     * Finish a checkpoint interrupted after its journal was complete; an incomplete journal means the tree was never
+     * touched, so it's discarded
+     */
+    private static void recoverJournal(File treeFile) throws IOException {
+        final File journal = journalFile(treeFile);
+        final byte[] contents;
+        try {
+            contents = Files.readAllBytes(journal.toPath());
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(contents);
+        final int count = contents.length >= Integer.BYTES ? buffer.getInt() : -1;
+        final long expectedLength = Integer.BYTES + (long) count * (Integer.BYTES + PAGE_SIZE) + Integer.BYTES;
+        final CRC32 crc = new CRC32();
+        crc.update(contents, 0, Math.max(0, contents.length - Integer.BYTES));
+        if (count < 0 || contents.length != expectedLength || buffer.getInt(contents.length - Integer.BYTES) != (int) crc.getValue()) {
+            logger.warn("Discarding incomplete checkpoint journal " + journal.getName());
+            Files.delete(journal.toPath());
+            return;
+        }
+
+        final Map<Integer, ByteBuffer> images = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final int id = buffer.getInt();
+            images.put(id, ByteBuffer.wrap(contents, buffer.position(), PAGE_SIZE).slice());
+            buffer.position(buffer.position() + PAGE_SIZE);
+        }
+        try (FileChannel channel = FileChannel.open(treeFile.toPath(), StandardOpenOption.WRITE)) {
+            writePages(channel, images);
+            channel.force(false);
+        }
+        Files.delete(journal.toPath());
+        logger.info(String.format("Replayed %d pages from checkpoint journal %s", count, journal.getName()));
+    }
+
+    /**
+     * @return page 0: magic, version, root, page count, key count, live bytes, checkpointed log length, CRC32
+     */
+    private ByteBuffer encodeMeta(long checkpointLength) {
+        final ByteBuffer meta = ByteBuffer.allocate(PAGE_SIZE)
+                .putInt(MAGIC).putShort(VERSION)
+                .putInt(root).putInt(pageCount)
+                .putLong(keyCount).putLong(liveBytes).putLong(checkpointLength);
+        final CRC32 crc = new CRC32();
+        crc.update(meta.array(), 0, meta.position());
+        meta.putInt((int) crc.getValue());
+        return meta.clear();
+    }
+
+    private void readMeta() throws IOException {
+        final ByteBuffer meta = ByteBuffer.allocate(PAGE_SIZE);
+        while (meta.hasRemaining()) {
+            if (pages.read(meta, meta.position()) < 0) throw new IOException("Truncated meta page in " + treeFile.getName());
+        }
+        meta.flip();
+        if (meta.getInt() != MAGIC) throw new IOException("Not a B+tree file: " + treeFile.getName());
+        version = meta.getShort();
+        if (version != VERSION && version != VERSION_NO_DEADLINES) {
+            throw new IOException(String.format("Unsupported version %d of %s", version, treeFile.getName()));
+        }
+        root = meta.getInt();
+        pageCount = meta.getInt();
+        keyCount = meta.getLong();
+        liveBytes = meta.getLong();
+        checkpointedLength = meta.getLong();
+        final CRC32 crc = new CRC32();
+        crc.update(meta.array(), 0, meta.position());
+        if (meta.getInt() != (int) crc.getValue()) throw new IOException("Corrupt meta page in " + treeFile.getName());
+    }
+
+    /**
+     * NOT thread-safe -- only for the constructor
+     * <p>
+     * Open a generation's files, creating them if this is a new store, and replay the log past the last checkpoint
+     */
+    private void open(long generation) throws IOException {
+        this.generation = generation;
+        this.treeFile = treeFile(generation);
+        this.logFile = logFile(generation);
+
+        if (!treeFile.exists()) {
+            if (logFile.exists()) throw new IOException("Value log without a tree: " + logFile.getName());
+            writeEmptyGeneration(generation);
+            writeCurrentGeneration(generation);
+        }
+        recoverJournal(treeFile);
+        pages = FileChannel.open(treeFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readMeta();
+
+        final long validEnd;
+        try (FileInputStream input = new FileInputStream(logFile)) {
+            input.getChannel().position(checkpointedLength);
+            final KVRecordFormat.Reader records = new KVRecordFormat.Reader(input, checkpointedLength);
+            while (true) {
+                final long offset = records.position();
+                try {
+                    final KVRecordFormat.Record record = records.next();
+                    if (record == null) break;
+                    apply(record.kv, new Location(offset, record.length, record.kv.expiresAt));
+                } catch (KVRecordFormat.CorruptRecordException e) {
+                    logger.warn(String.format("Skipping corrupt record at %d in %s: %s", offset, logFile.getName(), e.getMessage()));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            validEnd = records.position();
+        }
+        if (validEnd < logFile.length()) {
+            logger.warn(String.format("Truncating %d bytes of incomplete record from %s", logFile.length() - validEnd, logFile.getName()));
+            try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+        logEnd = validEnd;
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /*
+     * ------------------------------------------------------------
+     * Compaction
+     * ------------------------------------------------------------
+     */
+
+    /**
+     * NOT thread-safe -- use {@link #writeMutex}
+     * <p>
+     * Write the next generation's tree and log, bulk-loaded from the live records (or empty), then switch to it. Records
+     * past their deadline are left behind.
+     *
+     * @param keepContents false to start the next generation empty, i.e. to clear the store
+     */
+    private void rebuild(boolean keepContents) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long next = generation + 1;
+        final File nextTree = treeFile(next), nextLog = logFile(next);
+
+        final BulkLoader loader;
+        try {
+            if (keepContents) {
+                log.force(false); // Copying records by location, so make sure what's read is what was written
+                loader = new BulkLoader(nextTree, nextLog);
+                final long now = System.currentTimeMillis();
+                Node leaf = leafFor("");
+                while (true) {
+                    for (int i = 0; i < leaf.keys.size(); i++) {
+                        final Location location = leaf.locations.get(i);
+                        if (!location.isExpired(now)) loader.add(leaf.keys.get(i), copyRecord(location), location.expiresAt);
+                    }
+                    if (leaf.next == NO_PAGE) break;
+                    leaf = node(leaf.next);
+                }
+                loader.finish();
+            } else {
+                loader = null;
+                writeEmptyGeneration(next);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(nextTree.toPath());
+            Files.deleteIfExists(nextLog.toPath());
+            throw e;
+        }
+
+        final File previousTree = treeFile, previousLog = logFile;
+        try {
+            lock.writeLock().lock();
+            writeCurrentGeneration(next);
+            log.close();
+            pages.close();
+            synchronized (cache) {
+                cache.clear();
+            }
+            dirtyNodes.clear();
+            open(next);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Files.deleteIfExists(previousTree.toPath());
+        Files.deleteIfExists(previousLog.toPath());
+        Files.deleteIfExists(journalFile(previousTree).toPath());
+
+        if (loader != null) {
+            logger.info(String.format("Compacted %s into %d pages and %d log bytes in %d ms",
+                    directory, pageCount, logEnd, System.currentTimeMillis() - start));
+        }
+    }
+
+    private byte[] copyRecord(Location location) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, location.offset + buffer.position()) < 0) throw new EOFException("Record past end of log");
+        }
+        return buffer.array();
+    }
+
+    private void writeEmptyGeneration(long generation) throws IOException {
+        new BulkLoader(treeFile(generation), logFile(generation)).finish();
+    }
+
+    /**
+     * Builds a tree from keys in ascending order: leaves are filled left to right, then each level of internal nodes
+     * over the one below until a single root remains. Pages are numbered in the order they're written.
+     */
+    private static class BulkLoader {
+        private final FileChannel tree;
+        private final OutputStream log;
+        private final FileOutputStream logStream;
+        private final List<String> firstKeys = new ArrayList<>();
+        private final List<Integer> ids = new ArrayList<>();
+        private Node leaf;
+        private int nextPage = 1;
+        private long logEnd = KVRecordFormat.FILE_HEADER_SIZE, keyCount, liveBytes;
+
+        BulkLoader(File treeFile, File logFile) throws IOException {
+            this.tree = FileChannel.open(treeFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            this.logStream = new FileOutputStream(logFile);
+            this.log = new BufferedOutputStream(logStream, 64 * 1024);
+            this.log.write(KVRecordFormat.fileHeader());
+            this.leaf = new Node(nextPage++, LEAF);
+        }
+
+        /**
+         * @param record    the key's latest record, as it appears on disk
+         * @param expiresAt the record's deadline
+         */
+        void add(String key, byte[] record, long expiresAt) throws IOException {
+            if (leaf.size + LEAF_ENTRY_OVERHEAD + Node.utf8Length(key) > BULK_LOAD_FILL_BYTES && !leaf.keys.isEmpty()) {
+                final Node full = leaf;
+                leaf = new Node(nextPage++, LEAF);
+                full.next = leaf.id;
+                writeLevelNode(full, full.keys.get(0));
+            }
+            log.write(record);
+            leaf.insertEntry(leaf.keys.size(), key, new Location(logEnd, record.length, expiresAt));
+            logEnd += record.length;
+            keyCount++;
+            liveBytes += record.length;
+        }
+
+        void finish() throws IOException {
+            writeLevelNode(leaf, leaf.keys.isEmpty() ? "" : leaf.keys.get(0));
+
+            // Each pass builds the level above from the first key and id of each node in the level below
+            List<String> levelKeys = new ArrayList<>(firstKeys);
+            List<Integer> levelIds = new ArrayList<>(ids);
+            while (levelIds.size() > 1) {
+                firstKeys.clear();
+                ids.clear();
+                Node node = new Node(nextPage++, INTERNAL);
+                String nodeFirstKey = levelKeys.get(0);
+                node.children.add(levelIds.get(0));
+                for (int i = 1; i < levelIds.size(); i++) {
+                    final String separator = levelKeys.get(i);
+                    if (node.size + INTERNAL_ENTRY_OVERHEAD + Node.utf8Length(separator) > BULK_LOAD_FILL_BYTES && node.children.size() > 1) {
+                        writeLevelNode(node, nodeFirstKey);
+                        node = new Node(nextPage++, INTERNAL);
+                        nodeFirstKey = separator;
+                        node.children.add(levelIds.get(i));
+                    } else {
+                        node.insertChild(node.keys.size(), separator, levelIds.get(i));
+                    }
+                }
+                writeLevelNode(node, nodeFirstKey);
+                levelKeys = new ArrayList<>(firstKeys);
+                levelIds = new ArrayList<>(ids);
+            }
+
+            log.flush();
+            logStream.getFD().sync();
+            log.close();
+
+            writeMeta(levelIds.get(0));
+            tree.force(false);
+            tree.close();
+        }
+
+        /**
+         * Write a finished node and note it as the next child for the level above
+         *
+         * @param firstKey smallest key beneath the node, which is what the level above separates on
+         */
+        private void writeLevelNode(Node node, String firstKey) throws IOException {
+            writePages(tree, Map.of(node.id, node.encode()));
+            firstKeys.add(firstKey);
+            ids.add(node.id);
+        }
+
+        private void writeMeta(int root) throws IOException {
+            final ByteBuffer meta = ByteBuffer.allocate(PAGE_SIZE)
+                    .putInt(MAGIC).putShort(VERSION)
+                    .putInt(root).putInt(nextPage)
+                    .putLong(keyCount).putLong(liveBytes).putLong(logEnd);
+            final CRC32 crc = new CRC32();
+            crc.update(meta.array(), 0, meta.position());
+            meta.putInt((int) crc.getValue());
+            writePages(tree, Map.of(0, meta.clear()));
+        }
+    }
+
+    /*
+     * ------------------------------------------------------------
+     * Files
+     * ------------------------------------------------------------
+     */
+
+    private long readCurrentGeneration() throws IOException {
+        final File current = new File(directory, CURRENT);
+        if (!current.exists()) return 1;
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + current.getPath(), e);
+        }
+    }
+
+    private void writeCurrentGeneration(long generation) throws IOException {
+        final File temp = new File(directory, CURRENT + ".tmp");
+        Files.write(temp.toPath(), Long.toString(generation).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), new File(directory, CURRENT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File treeFile(long generation) {
+        return new File(directory, String.format("tree-%d.db", generation));
+    }
+
+    private File logFile(long generation) {
+        return new File(directory, String.format("values-%d.log", generation));
+    }
+
+    private static File journalFile(File treeFile) {
+        return new File(treeFile.getPath() + ".journal");
+    }
+
+    /*
+     * ------------------------------------------------------------
+     * Pages
+     * ------------------------------------------------------------
+     */
+
+    /**
+     * Where a record lives in the value log, and when the pair it holds expires
+     */
+    private static class Location {
+        final long offset;
+        final int length;
+        final long expiresAt;
+
+        Location(long offset, int length, long expiresAt) {
+            this.offset = offset;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return KVPair.isExpired(expiresAt, now);
+        }
+    }
+
+    private static class Split {
+        final String separator;
+        final int right;
+
+        Split(String separator, int right) {
+            this.separator = separator;
+            this.right = right;
+        }
+    }
+
+    /**
+     * A decoded page. Leaves hold sorted keys with the location of each one's record, plus the next leaf's id.
+     * Internal nodes hold n sorted separator keys and n + 1 children: keys below separator i are under child i, and
+     * keys at or above it under child i + 1.
+     * <p>
+     * Page layout: type (1) | count (2) | next leaf (4), then for a leaf each (key length (2) | key | offset (8) |
+     * length (4) | deadline (8)), or for an internal node the first child (4) followed by each (key length (2) | key |
+     * child (4)). Leaves from {@link #VERSION_NO_DEADLINES} trees have no deadlines.
+     */
+    private static class Node {
+        final int id;
+        final byte type;
+        final List<String> keys = new ArrayList<>();
+        final List<Location> locations = new ArrayList<>();
+        final List<Integer> children = new ArrayList<>();
+        int next = NO_PAGE;
+
+        /**
+         * Bytes this node takes up when encoded
+         */
+        int size;
+
+        /**
+         * Changed since the last checkpoint; guarded by the monitor of {@link #cache}
+         */
+        boolean dirty;
+
+        Node(int id, byte type) {
+            this.id = id;
+            this.type = type;
+            this.size = NODE_HEADER_SIZE + (type == INTERNAL ? Integer.BYTES : 0);
+        }
+
+        /**
+         * @return index of the child whose subtree would hold the key
+         */
+        int childIndex(String key) {
+            final int index = Collections.binarySearch(keys, key);
+            return index >= 0 ? index + 1 : ~index;
+        }
+
+        /**
+         * @return index of the first key at or above the given one
+         */
+        int lowerBound(String key) {
+            final int index = Collections.binarySearch(keys, key);
+            return index >= 0 ? index : ~index;
+        }
+
+        void insertEntry(int index, String key, Location location) {
+            keys.add(index, key);
+            locations.add(index, location);
+            size += LEAF_ENTRY_OVERHEAD + utf8Length(key);
+        }
+
+        Location replace(int index, Location location) {
+            return locations.set(index, location);
+        }
+
+        void remove(int index) {
+            size -= LEAF_ENTRY_OVERHEAD + utf8Length(keys.remove(index));
+            locations.remove(index);
+        }
+
+        /**
+         * Add a child split off from the one at childIndex, to its right
+         */
+        void insertChild(int childIndex, String separator, int child) {
+            keys.add(childIndex, separator);
+            children.add(childIndex + 1, child);
+            size += INTERNAL_ENTRY_OVERHEAD + utf8Length(separator);
+        }
+
+        /**
+         * Move the upper half of this node's entries into an empty sibling
+         *
+         * @return for internal nodes, the separator between the two (which moves up to the parent rather than to
+         * either half)
+         */
+        String moveUpperHalf(Node right) {
+            final int middle = splitIndex();
+            if (type == LEAF) {
+                for (int i = middle; i < keys.size(); i++) right.insertEntry(right.keys.size(), keys.get(i), locations.get(i));
+                while (keys.size() > middle) remove(keys.size() - 1);
+                return null;
+            }
+
+            final String separator = keys.get(middle);
+            right.children.add(children.get(middle + 1));
+            for (int i = middle + 1; i < keys.size(); i++) right.insertChild(right.keys.size(), keys.get(i), children.get(i + 1));
+            while (keys.size() > middle) {
+                size -= INTERNAL_ENTRY_OVERHEAD + utf8Length(keys.remove(keys.size() - 1));
+                children.remove(children.size() - 1);
+            }
+            return separator;
+        }
+
+        /**
+         * @return index of the first entry whose start lies past half of this node's bytes, so both halves fit in a
+         * page however unevenly key lengths are spread
+         */
+        private int splitIndex() {
+            final int overhead = type == LEAF ? LEAF_ENTRY_OVERHEAD : INTERNAL_ENTRY_OVERHEAD;
+            final int half = size / 2;
+            int bytes = NODE_HEADER_SIZE + (type == INTERNAL ? Integer.BYTES : 0);
+            for (int i = 0; i < keys.size(); i++) {
+                bytes += overhead + utf8Length(keys.get(i));
+                if (bytes > half) return Math.max(1, Math.min(i, keys.size() - 1));
+            }
+            return keys.size() - 1;
+        }
+
+        ByteBuffer encode() {
+            final ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE).put(type).putShort((short) keys.size()).putInt(next);
+            if (type == INTERNAL) page.putInt(children.get(0));
+            for (int i = 0; i < keys.size(); i++) {
+                final byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                page.putShort((short) key.length).put(key);
+                if (type == LEAF) page.putLong(locations.get(i).offset).putInt(locations.get(i).length).putLong(locations.get(i).expiresAt);
+                else page.putInt(children.get(i + 1));
+            }
+            return page.clear();
+        }
+
+        /**
+         * @param version of the tree the page belongs to
+         */
+        static Node decode(int id, ByteBuffer page, short version) throws IOException {
+            final byte type = page.get();
+            if (type != LEAF && type != INTERNAL) throw new IOException(String.format("Page %d has unknown type %d", id, type));
+            final Node node = new Node(id, type);
+            final int count = Short.toUnsignedInt(page.getShort());
+            node.next = page.getInt();
+            if (type == INTERNAL) node.children.add(page.getInt());
+            for (int i = 0; i < count; i++) {
+                final byte[] key = new byte[Short.toUnsignedInt(page.getShort())];
+                page.get(key);
+                final String decoded = new String(key, StandardCharsets.UTF_8);
+                if (type == LEAF) {
+                    final long offset = page.getLong();
+                    final int length = page.getInt();
+                    final long expiresAt = version == VERSION_NO_DEADLINES ? KVPair.NO_EXPIRY : page.getLong();
+                    node.insertEntry(i, decoded, new Location(offset, length, expiresAt));
+                } else {
+                    node.insertChild(i, decoded, page.getInt());
+                }
+            }
+            return node;
+        }
+
+        private static int utf8Length(String key) {
+            return key.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+}
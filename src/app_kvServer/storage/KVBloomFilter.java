@@ -0,0 +1,91 @@
+package app_kvServer.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size Bloom filter over keys: {@link #mightContain(String)} never returns false for a key that was added,
+ * and returns true for a key that wasn't with probability roughly 0.6185^{@link #BITS_PER_KEY} (about 1%).
+ * <p>
+ * Probe positions come from two halves of a single 64-bit key hash (Kirsch-Mitzenmacher double hashing), so each
+ * lookup hashes the key exactly once.
+ */
+class KVBloomFilter {
+    static final int BITS_PER_KEY = 10;
+
+    private final long[] bits;
+    private final int numHashes;
+
+    private KVBloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * @param keyHashes {@link #hash(String)} of every key to add
+     * @param count     number of hashes to read from keyHashes
+     * @return a filter sized for exactly these keys
+     */
+    static KVBloomFilter create(long[] keyHashes, int count) {
+        final long numBits = Math.max(64, (long) count * BITS_PER_KEY);
+        final int numHashes = Math.max(1, Math.min(30, (int) Math.round(BITS_PER_KEY * Math.log(2))));
+        final KVBloomFilter filter = new KVBloomFilter(new long[(int) ((numBits + 63) / 64)], numHashes);
+        for (int i = 0; i < count; i++) filter.add(keyHashes[i]);
+        return filter;
+    }
+
+    /**
+     * @return 64-bit hash of the key for use with {@link #create(long[], int)}
+     */
+    static long hash(String key) {
+        // FNV-1a over the UTF-16 code units, then a MurmurHash3 finalizer to spread the bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    boolean mightContain(String key) {
+        final long hash = hash(key), numBits = (long) bits.length * 64;
+        final int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        final long numBits = (long) bits.length * 64;
+        final int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            final long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return size of {@link #writeTo(ByteBuffer)}'s output
+     */
+    int serializedSize() {
+        return Integer.BYTES + Integer.BYTES + bits.length * Long.BYTES;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(numHashes).putInt(bits.length);
+        for (long word : bits) buffer.putLong(word);
+    }
+
+    static KVBloomFilter readFrom(ByteBuffer buffer) {
+        final int numHashes = buffer.getInt();
+        final long[] bits = new long[buffer.getInt()];
+        for (int i = 0; i < bits.length; i++) bits[i] = buffer.getLong();
+        return new KVBloomFilter(bits, numHashes);
+    }
+}
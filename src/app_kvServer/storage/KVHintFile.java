@@ -0,0 +1,124 @@
+package app_kvServer.storage;
+
+import app_kvServer.storage.KVSingleFileStorage.RecordPointer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of a {@link KVSingleFileStorage} index (in the spirit of Bitcask's hint files) so that a restart only
+ * has to read the hint plus whatever was appended to the store after it was taken, rather than every record.
+ * <p>
+ * Layout: magic, version, covered length (the store's size when the snapshot was taken), entry count, then each live
+ * key with the offset, length, ring hash and deadline of its latest record, and finally a CRC32 of everything before
+ * it. A hint from another version is ignored, which just costs a full scan. Tombstones need no entry since the
+ * snapshot is of the whole store rather than a single data file.
+ * <p>
+ * A hint is only valid for the exact file it was taken from, so it must be deleted before that file is replaced.
+ */
+final class KVHintFile {
+    private static final int MAGIC = 0x4B564854; // "KVHT"
+    private static final short VERSION = 3;
+
+    private KVHintFile() {
+    }
+
+    /**
+     * Atomically replace the hint file
+     *
+     * @param file          to write to
+     * @param coveredLength size of the store at the time of the snapshot
+     * @param entries       every live key and the location of its latest record, as of coveredLength
+     * @throws IOException on write failure, in which case any previous hint is left in place
+     */
+    static void write(File file, long coveredLength, Collection<Map.Entry<String, RecordPointer>> entries) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            final CRC32 crc = new CRC32();
+            try (FileOutputStream stream = new FileOutputStream(temp);
+                 DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc), 64 * 1024))) {
+                output.writeInt(MAGIC);
+                output.writeShort(VERSION);
+                output.writeLong(coveredLength);
+                output.writeInt(entries.size());
+                for (Map.Entry<String, RecordPointer> entry : entries) {
+                    final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(key.length);
+                    output.write(key);
+                    output.writeLong(entry.getValue().offset);
+                    output.writeInt(entry.getValue().length);
+                    output.writeLong(entry.getValue().ringHashHigh);
+                    output.writeLong(entry.getValue().ringHashLow);
+                    output.writeLong(entry.getValue().expiresAt);
+                }
+                output.flush();
+                output.writeInt((int) crc.getValue());
+                output.flush();
+                stream.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * @return the snapshot, or null if there is no usable hint file
+     * @throws IOException if the hint file exists but can't be read
+     */
+    static Hint read(File file) throws IOException {
+        final byte[] contents;
+        try {
+            contents = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        final int headerSize = Integer.BYTES + Short.BYTES + Long.BYTES + Integer.BYTES;
+        if (contents.length < headerSize + Integer.BYTES) return null;
+        final ByteBuffer buffer = ByteBuffer.wrap(contents);
+        final CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length - Integer.BYTES);
+        if (buffer.getInt(contents.length - Integer.BYTES) != (int) crc.getValue()) return null;
+        if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) return null;
+
+        try {
+            final long coveredLength = buffer.getLong();
+            final int count = buffer.getInt();
+            final Map<String, RecordPointer> index = new HashMap<>(Math.max(16, count * 4 / 3));
+            long liveBytes = 0;
+            for (int i = 0; i < count; i++) {
+                final int keyLength = buffer.getInt();
+                final String key = new String(contents, buffer.position(), keyLength, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + keyLength);
+                final RecordPointer pointer = new RecordPointer(buffer.getLong(), buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+                index.put(key, pointer);
+                liveBytes += pointer.length;
+            }
+            return new Hint(coveredLength, index, liveBytes);
+        } catch (RuntimeException e) {
+            return null; // Passed its checksum yet still malformed; not worth trusting
+        }
+    }
+
+    static class Hint {
+        final long coveredLength;
+        final Map<String, RecordPointer> index;
+        final long liveBytes;
+
+        private Hint(long coveredLength, Map<String, RecordPointer> index, long liveBytes) {
+            this.coveredLength = coveredLength;
+            this.index = index;
+            this.liveBytes = liveBytes;
+        }
+    }
+}
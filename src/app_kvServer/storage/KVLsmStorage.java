@@ -0,0 +1,949 @@
+package app_kvServer.storage;
+
+import app_kvServer.KVServerException;
+import app_kvServer.storage.IKVStorage.KVPair.Tombstone;
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A log-structured merge tree: writes go to a sorted in-memory memtable (backed by a write-ahead log), which is flushed
+ * to an immutable {@link KVSortedSegment} once it gets large enough. Segments are organized into levels and merged in
+ * the background so that reads only ever have to probe a handful of files.
+ * <p>
+ * Level 0 holds freshly flushed (possibly overlapping) segments. Every deeper level is a single sorted run of
+ * non-overlapping segments and is allowed to hold {@link #LEVEL_SIZE_MULTIPLIER} times as many bytes as the one above.
+ * <p>
+ * Pairs with a deadline are hidden from reads once it passes, but their records stay put, shadowing older versions of
+ * the key, until a merge into the bottom level drops them along with tombstones.
+ * <p>
+ * Files in the storage directory:
+ * - wal-N.log: write-ahead log of the memtable with sequence N, in {@link KVRecordFormat}
+ * - seg-N.sst: a {@link KVSortedSegment}
+ * - MANIFEST: the live segments and their levels; anything not listed is garbage from an interrupted merge
+ * - snapshots/: named snapshots (see {@link KVSnapshots}), hard links to the segments live when each was taken plus
+ * one more segment holding what was still in memtables
+ */
+public class KVLsmStorage implements IKVStorage {
+    private static final Logger logger = Logger.getRootLogger();
+
+    private static final long DEFAULT_MEMTABLE_BYTES = 4L << 20;
+    private static final int LEVEL_0_COMPACTION_TRIGGER = 4;
+    private static final int MAX_IMMUTABLE_MEMTABLES = 4;
+    private static final int MAX_LEVELS = 7;
+    private static final int LEVEL_SIZE_MULTIPLIER = 10;
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final Pattern WAL_FILE = Pattern.compile("wal-(\\d+)\\.log");
+    private static final Pattern SEGMENT_FILE = Pattern.compile("seg-(\\d+)\\.sst");
+
+    private final File directory;
+    private final long memtableBytes, levelBaseBytes, targetSegmentBytes;
+    private final DurabilityPolicy durability;
+    private final ScheduledFuture<?> syncTask;
+
+    /**
+     * Guards the structure of the tree (which memtables and segments are live). Point operations hold the read lock;
+     * only swapping memtables and installing the results of a flush or merge need the write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes appends so the write-ahead log and memtable always agree on the order of updates to a key
+     */
+    private final Object writeMutex = new Object();
+
+    /**
+     * Single background thread for flushes and merges so that at most one job mutates the levels at a time
+     */
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "lsm-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Stalls writers once too many memtables are waiting to be flushed, so memory use stays bounded when writes
+     * outpace the background thread
+     */
+    private final Semaphore pendingFlushes = new Semaphore(MAX_IMMUTABLE_MEMTABLES);
+
+    private final AtomicLong nextSequence = new AtomicLong(1);
+    private final LongAdder bloomNegatives = new LongAdder(), bloomFalsePositives = new LongAdder();
+    private final List<List<KVSortedSegment>> levels = new ArrayList<>();
+    private final Deque<Memtable> immutableMemtables = new ArrayDeque<>();
+    private volatile Memtable memtable;
+
+    public KVLsmStorage(String directory) {
+        this(directory, DurabilityPolicy.NONE);
+    }
+
+    public KVLsmStorage(String directory, DurabilityPolicy durability) {
+        this(directory, DEFAULT_MEMTABLE_BYTES, durability);
+    }
+
+    public KVLsmStorage(String directory, long memtableBytes) {
+        this(directory, memtableBytes, DurabilityPolicy.NONE);
+    }
+
+    /**
+     * @param directory     to keep all files for this store in
+     * @param memtableBytes approximate size at which the memtable is flushed to disk; the other level and segment
+     *                      sizes are derived from it
+     * @param durability    when write-ahead log appends are forced to disk
+     */
+    public KVLsmStorage(String directory, long memtableBytes, DurabilityPolicy durability) {
+        this.directory = new File(directory);
+        this.memtableBytes = memtableBytes;
+        this.durability = durability;
+        this.targetSegmentBytes = memtableBytes / 2;
+        this.levelBaseBytes = memtableBytes * LEVEL_SIZE_MULTIPLIER;
+        for (int i = 0; i < MAX_LEVELS; i++) levels.add(new ArrayList<>());
+
+        //noinspection ResultOfMethodCallIgnored
+        this.directory.mkdirs();
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open LSM storage", e);
+        }
+        this.syncTask = durability.schedule(this::sync);
+        logger.info(String.format("LSM store opened at %s with %d segments", directory, segmentCount()));
+    }
+
+    @Override
+    public boolean inStorage(String key) {
+        try {
+            return isLive(find(key));
+        } catch (IOException e) {
+            logger.error("An error occurred during read from store.", e);
+            return false;
+        }
+    }
+
+    @Override
+    public String getKV(String key) throws KVServerException {
+        return getKVPair(key).value;
+    }
+
+    @Override
+    public KVPair getKVPair(String key) throws KVServerException {
+        final KVPair kv;
+        try {
+            kv = find(key);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to read from storage", e, KVMessage.StatusType.GET_ERROR);
+        }
+        if (!isLive(kv)) throw new KVServerException("Key not found in storage", KVMessage.StatusType.GET_ERROR);
+        return kv;
+    }
+
+    @Override
+    public void putKV(String key, String value) throws KVServerException {
+        putKV(key, value, KVPair.NO_EXPIRY);
+    }
+
+    @Override
+    public void putKV(String key, String value, long expiresAt) throws KVServerException {
+        try {
+            write(new KVPair(Tombstone.VALID, key, value, expiresAt));
+        } catch (IOException e) {
+            throw new KVServerException("Unable to write to storage", e, KVMessage.StatusType.PUT_ERROR);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws KVServerException {
+        if (!inStorage(key)) throw new KVServerException("Key not found in storage", KVMessage.StatusType.DELETE_ERROR);
+        try {
+            write(new KVPair(Tombstone.DEAD, key, ""));
+        } catch (IOException e) {
+            throw new KVServerException("Unable to write to storage", e, KVMessage.StatusType.DELETE_ERROR);
+        }
+    }
+
+    @Override
+    public void clearStorage() {
+        try {
+            lock.writeLock().lock();
+            synchronized (writeMutex) {
+                for (List<KVSortedSegment> level : levels) {
+                    for (KVSortedSegment segment : level) segment.delete();
+                    level.clear();
+                }
+                for (Memtable frozen : immutableMemtables) frozen.discard();
+                immutableMemtables.clear();
+                memtable.discard();
+                memtable = new Memtable(nextSequence.getAndIncrement());
+                writeManifest();
+            }
+        } catch (IOException e) {
+            logger.error("Could not clear storage", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Stream<KVPair> openKvStream(Predicate<KVPair> filter) {
+        try {
+            return openMergedStream(true).filter(filter);
+        } catch (IOException e) {
+            logger.error("Could not retrieve KV pairs", e);
+            return Stream.empty();
+        }
+    }
+
+    @Override
+    public List<KVPair> getAllKV(Predicate<KVPair> filter) throws KVServerException {
+        final List<KVPair> allValues;
+        try (Stream<KVPair> kvs = openMergedStream(true)) {
+            allValues = kvs.filter(filter).collect(Collectors.toList());
+        } catch (IOException | UncheckedIOException e) {
+            throw new KVServerException("Unable to read from storage", e, KVMessage.StatusType.GET_ALL_ERROR);
+        }
+        if (allValues.size() > 0) return allValues;
+
+        throw new KVServerException("Key(s) not found in storage", KVMessage.StatusType.GET_ALL_ERROR);
+    }
+
+    @Override
+    public void putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws KVServerException {
+        final Pattern find = Pattern.compile(valExpr);
+        try (Stream<KVPair> kvs = openMergedStream(true)) {
+            for (KVPair kv : (Iterable<KVPair>) kvs.filter(filter)::iterator) {
+                final KVPair replaced = new KVPair(Tombstone.VALID, kv.key, find.matcher(kv.value).replaceAll(valRepl), kv.expiresAt);
+                write(replaced);
+                updated.add(replaced);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new KVServerException("Unable to update KV pairs", e, KVMessage.StatusType.PUT_ALL_ERROR);
+        }
+    }
+
+    @Override
+    public void deleteIf(Predicate<KVPair> filter) throws KVServerException {
+        try (Stream<KVPair> kvs = openMergedStream(true)) {
+            for (KVPair kv : (Iterable<KVPair>) kvs.filter(filter)::iterator) {
+                write(new KVPair(Tombstone.DEAD, kv.key, ""));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new KVServerException("Unable to delete KV pairs", e, KVMessage.StatusType.DELETE_ALL_ERROR);
+        }
+    }
+
+    @Override
+    public void createSnapshot(String name) throws IOException {
+        KVSnapshots.create(directory, name, this::snapshotTo);
+    }
+
+    @Override
+    public List<String> listSnapshots() {
+        return KVSnapshots.list(directory);
+    }
+
+    @Override
+    public Stream<KVPair> openSnapshotStream(String name, Predicate<KVPair> filter) throws IOException {
+        final File snapshot = KVSnapshots.directoryOf(directory, name);
+        final List<Iterator<KVPair>> sources = new ArrayList<>();
+        try {
+            for (String filename : KVSnapshots.segmentsOf(directory, name)) {
+                final Matcher segmentFile = SEGMENT_FILE.matcher(filename);
+                if (!segmentFile.matches()) throw new IOException(String.format("Unexpected file %s in snapshot %s", filename, name));
+                try (KVSortedSegment segment = KVSortedSegment.open(new File(snapshot, filename), Long.parseLong(segmentFile.group(1)))) {
+                    sources.add(segment.iterator());
+                }
+            }
+        } catch (IOException e) {
+            for (Iterator<KVPair> source : sources) ((Closeable) source).close();
+            throw e;
+        }
+        return mergedStream(sources, true).filter(filter);
+    }
+
+    @Override
+    public void deleteSnapshot(String name) throws IOException {
+        KVSnapshots.delete(directory, name);
+    }
+
+    @Override
+    public void close() {
+        if (syncTask != null) syncTask.cancel(false);
+        background.shutdown();
+        try {
+            if (!background.awaitTermination(1, TimeUnit.MINUTES)) logger.warn("Timed out waiting for LSM merges");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            lock.writeLock().lock();
+            memtable.closeLog();
+            for (Memtable frozen : immutableMemtables) frozen.closeLog();
+            for (List<KVSortedSegment> level : levels) {
+                for (KVSortedSegment segment : level) segment.close();
+            }
+        } catch (IOException e) {
+            logger.error("Unable to cleanly close LSM storage", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return fraction of segment lookups for absent keys that the Bloom filters failed to rule out
+     */
+    public double getBloomFilterFalsePositiveRate() {
+        final long falsePositives = bloomFalsePositives.sum(), lookups = falsePositives + bloomNegatives.sum();
+        return lookups == 0 ? 0 : (double) falsePositives / lookups;
+    }
+
+    /**
+     * @return number of live segments across all levels
+     */
+    public int segmentCount() {
+        try {
+            lock.readLock().lock();
+            return levels.stream().mapToInt(List::size).sum();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Most recent record for a key (possibly a tombstone), searching from newest to oldest data
+     */
+    private KVPair find(String key) throws IOException {
+        try {
+            lock.readLock().lock();
+            KVPair kv = memtable.records.get(key);
+            if (kv != null) return kv;
+
+            for (Memtable frozen : immutableMemtables) {
+                if ((kv = frozen.records.get(key)) != null) return kv;
+            }
+
+            // Level 0 segments may overlap so check all of them, newest first
+            for (KVSortedSegment segment : levels.get(0)) {
+                if (segment.inKeyRange(key) && (kv = probe(segment, key)) != null) return kv;
+            }
+
+            // Deeper levels are sorted runs: at most one candidate segment each
+            for (int i = 1; i < MAX_LEVELS; i++) {
+                final KVSortedSegment segment = findSegment(levels.get(i), key);
+                if (segment != null && (kv = probe(segment, key)) != null) return kv;
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param kv most recent record for a key, if any
+     * @return whether the key is present i.e. its record is neither a tombstone nor past its deadline
+     */
+    private static boolean isLive(KVPair kv) {
+        return kv != null && kv.tombstone == Tombstone.VALID && !kv.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Look up a key in a segment whose range covers it, consulting (and keeping score of) its Bloom filter first
+     */
+    private KVPair probe(KVSortedSegment segment, String key) throws IOException {
+        if (!segment.mightContain(key)) {
+            bloomNegatives.increment();
+            return null;
+        }
+        final KVPair kv = segment.get(key);
+        if (kv == null) bloomFalsePositives.increment();
+        return kv;
+    }
+
+    /**
+     * @param level a sorted run of non-overlapping segments
+     * @return the only segment in this level which could hold this key, if any
+     */
+    private static KVSortedSegment findSegment(List<KVSortedSegment> level, String key) {
+        int low = 0, high = level.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final KVSortedSegment segment = level.get(mid);
+            if (segment.getLastKey().compareTo(key) < 0) low = mid + 1;
+            else if (segment.getFirstKey().compareTo(key) > 0) high = mid - 1;
+            else return segment;
+        }
+        return null;
+    }
+
+    /**
+     * Append a record to the write-ahead log and memtable, handing the memtable off for flushing if it's full
+     */
+    private void write(KVPair kv) throws IOException {
+        try {
+            lock.readLock().lock();
+            synchronized (writeMutex) {
+                memtable.append(kv);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memtable.bytes.get() >= memtableBytes) freezeMemtable();
+    }
+
+    /**
+     * Background sync for {@link DurabilityPolicy.Mode#PERIODIC}; frozen memtables sync their own log on the way out
+     */
+    private void sync() {
+        try {
+            memtable.syncLog();
+        } catch (IOException e) {
+            logger.error("Unable to sync write-ahead log", e);
+        }
+    }
+
+    /**
+     * Swap in a fresh memtable and schedule the old one to be flushed to level 0
+     */
+    private void freezeMemtable() throws IOException {
+        pendingFlushes.acquireUninterruptibly();
+        final Memtable frozen;
+        try {
+            lock.writeLock().lock();
+            if (memtable.bytes.get() < memtableBytes) { // Someone beat us to it
+                pendingFlushes.release();
+                return;
+            }
+            final Memtable next = new Memtable(nextSequence.getAndIncrement());
+            frozen = memtable;
+            frozen.closeLog();
+            immutableMemtables.addFirst(frozen);
+            memtable = next;
+        } catch (IOException e) {
+            pendingFlushes.release();
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        background.execute(() -> {
+            try {
+                flush(frozen);
+            } catch (IOException e) {
+                logger.error("Unable to flush memtable", e);
+            } finally {
+                pendingFlushes.release();
+            }
+
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.error("Unable to merge segments", e);
+            }
+        });
+    }
+
+    /**
+     * Write a frozen memtable out as a level 0 segment
+     */
+    private void flush(Memtable frozen) throws IOException {
+        final KVSortedSegment.Writer writer = new KVSortedSegment.Writer(segmentFile(frozen.sequence), frozen.sequence);
+        final KVSortedSegment segment;
+        try {
+            for (KVPair kv : frozen.records.values()) writer.add(kv);
+            segment = writer.finish();
+        } catch (IOException e) {
+            writer.abandon();
+            throw e;
+        }
+
+        try {
+            lock.writeLock().lock();
+            if (!immutableMemtables.remove(frozen)) {
+                // Storage was cleared while we were flushing
+                segment.delete();
+                return;
+            }
+            levels.get(0).add(0, segment);
+            writeManifest();
+            frozen.discard();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merge levels until every level is within its size budget. Only ever called from the background thread.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            final List<KVSortedSegment> inputs = new ArrayList<>();
+            final int outputLevel;
+            try {
+                lock.readLock().lock();
+                if (levels.get(0).size() >= LEVEL_0_COMPACTION_TRIGGER) {
+                    // All of level 0 plus whatever it overlaps in level 1
+                    inputs.addAll(levels.get(0));
+                    outputLevel = 1;
+                } else {
+                    int source = -1;
+                    for (int i = 1; i < MAX_LEVELS - 1 && source < 0; i++) {
+                        if (levelBytes(i) > maxLevelBytes(i)) source = i;
+                    }
+                    if (source < 0) return;
+
+                    // The oldest segment in the level plus whatever it overlaps below
+                    inputs.add(levels.get(source).stream().min(Comparator.comparingLong(KVSortedSegment::getSequence)).orElseThrow());
+                    outputLevel = source + 1;
+                }
+
+                final String first = inputs.stream().map(KVSortedSegment::getFirstKey).filter(Objects::nonNull).min(String::compareTo).orElse(null);
+                final String last = inputs.stream().map(KVSortedSegment::getLastKey).filter(Objects::nonNull).max(String::compareTo).orElse(null);
+                if (first != null) {
+                    levels.get(outputLevel).stream().filter(segment -> segment.overlaps(first, last)).forEach(inputs::add);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            merge(inputs, outputLevel);
+        }
+    }
+
+    /**
+     * Merge the given segments into new segments at the output level and install the result
+     *
+     * @param inputs      ordered newest to oldest i.e. in order of precedence
+     * @param outputLevel level the merged result will live in
+     */
+    private void merge(List<KVSortedSegment> inputs, int outputLevel) throws IOException {
+        final long start = System.currentTimeMillis();
+
+        // Tombstones (and expired pairs) can be dropped once nothing older could be hiding beneath them
+        boolean isBottom = true;
+        try {
+            lock.readLock().lock();
+            for (int i = outputLevel + 1; i < MAX_LEVELS; i++) isBottom &= levels.get(i).isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        final List<KVSortedSegment> outputs = new ArrayList<>();
+        final List<Iterator<KVPair>> sources = new ArrayList<>();
+        KVSortedSegment.Writer writer = null;
+        try {
+            for (KVSortedSegment input : inputs) sources.add(input.iterator());
+            final Iterator<KVPair> merged = new MergingIterator(sources, !isBottom);
+            while (merged.hasNext()) {
+                if (writer == null) {
+                    final long sequence = nextSequence.getAndIncrement();
+                    writer = new KVSortedSegment.Writer(segmentFile(sequence), sequence);
+                }
+                writer.add(merged.next());
+                if (writer.length() >= targetSegmentBytes) {
+                    outputs.add(writer.finish());
+                    writer = null;
+                }
+            }
+            if (writer != null) outputs.add(writer.finish());
+        } catch (IOException | UncheckedIOException e) {
+            if (writer != null) writer.abandon();
+            for (KVSortedSegment output : outputs) output.delete();
+            throw e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+        } finally {
+            for (Iterator<KVPair> source : sources) ((Closeable) source).close();
+        }
+
+        try {
+            lock.writeLock().lock();
+            if (levels.stream().mapToLong(level -> level.stream().filter(inputs::contains).count()).sum() != inputs.size()) {
+                // Storage was cleared while we were merging
+                for (KVSortedSegment output : outputs) output.delete();
+                return;
+            }
+            for (List<KVSortedSegment> level : levels) level.removeAll(inputs);
+            final List<KVSortedSegment> level = levels.get(outputLevel);
+            level.addAll(outputs);
+            level.sort(Comparator.comparing(KVSortedSegment::getFirstKey));
+            writeManifest();
+            for (KVSortedSegment input : inputs) input.delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.debug(String.format("Merged %d segments into %d at level %d in %d ms",
+                inputs.size(), outputs.size(), outputLevel, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * NOT thread-safe -- use an external lock
+     */
+    private long levelBytes(int level) {
+        return levels.get(level).stream().mapToLong(KVSortedSegment::length).sum();
+    }
+
+    private long maxLevelBytes(int level) {
+        long max = levelBaseBytes;
+        for (int i = 1; i < level; i++) max *= LEVEL_SIZE_MULTIPLIER;
+        return max;
+    }
+
+    /**
+     * Hard link every live segment into a snapshot directory, and write what's in the memtables out alongside them as
+     * one more segment (tombstones included, since they hide older versions in the linked segments)
+     *
+     * @return names of the segments, newest to oldest i.e. in order of precedence
+     */
+    private List<String> snapshotTo(File target) throws IOException {
+        final List<Iterator<KVPair>> memtables = new ArrayList<>();
+        final List<String> segments = new ArrayList<>();
+        try {
+            // Merges only delete their inputs under the write lock, so every segment can still be linked
+            lock.readLock().lock();
+            synchronized (writeMutex) {
+                memtables.add(new ArrayList<>(memtable.records.values()).iterator());
+            }
+            for (Memtable frozen : immutableMemtables) memtables.add(frozen.records.values().iterator());
+            for (List<KVSortedSegment> level : levels) {
+                for (KVSortedSegment segment : level) {
+                    Files.createLink(new File(target, segment.getFile().getName()).toPath(), segment.getFile().toPath());
+                    segments.add(segment.getFile().getName());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        final MergingIterator buffered = new MergingIterator(memtables, true);
+        if (buffered.hasNext()) {
+            final long sequence = nextSequence.getAndIncrement();
+            final KVSortedSegment.Writer writer = new KVSortedSegment.Writer(new File(target, segmentFile(sequence).getName()), sequence);
+            try {
+                while (buffered.hasNext()) writer.add(buffered.next());
+                writer.finish().close();
+            } catch (IOException e) {
+                writer.abandon();
+                throw e;
+            }
+            segments.add(0, segmentFile(sequence).getName());
+        }
+
+        // Segments are only written through the page cache, so make sure the snapshot's are on disk
+        for (String segment : segments) {
+            try (FileChannel channel = FileChannel.open(new File(target, segment).toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * A lazily populated view of every live key in key order. Backing file handles are opened immediately so the
+     * stream reads a consistent set of segments even if merges complete in the meantime.
+     *
+     * @param dropTombstones whether or not to hide deleted and expired keys (i.e. whether this is for a client or for a
+     *                       merge)
+     */
+    private Stream<KVPair> openMergedStream(boolean dropTombstones) throws IOException {
+        final List<Iterator<KVPair>> sources = new ArrayList<>();
+        try {
+            lock.readLock().lock();
+            // Precedence: newest to oldest. Memtables are copied since they may still be changing.
+            sources.add(new ArrayList<>(memtable.records.values()).iterator());
+            for (Memtable frozen : immutableMemtables) sources.add(frozen.records.values().iterator());
+            for (List<KVSortedSegment> level : levels) {
+                for (KVSortedSegment segment : level) sources.add(segment.iterator());
+            }
+        } catch (IOException e) {
+            for (Iterator<KVPair> source : sources) if (source instanceof Closeable) ((Closeable) source).close();
+            throw e;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return mergedStream(sources, dropTombstones);
+    }
+
+    /**
+     * @param sources ordered newest to oldest i.e. in order of precedence; closed along with the stream
+     */
+    private static Stream<KVPair> mergedStream(List<Iterator<KVPair>> sources, boolean dropTombstones) {
+        final MergingIterator merged = new MergingIterator(sources, !dropTombstones);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED | Spliterator.SORTED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    for (Iterator<KVPair> source : sources) {
+                        try {
+                            if (source instanceof Closeable) ((Closeable) source).close();
+                        } catch (IOException e) {
+                            logger.warn("Unable to close segment", e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Open the files listed in the manifest, discard anything else, and replay any write-ahead logs
+     */
+    private void recover() throws IOException {
+        // 1. Segments listed in the manifest
+        final Set<String> live = new HashSet<>();
+        final File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                if (line.isBlank()) continue;
+                final String[] tokens = line.split(" ");
+                final int level = Integer.parseInt(tokens[0]);
+                final long sequence = Long.parseLong(tokens[1]);
+                levels.get(level).add(KVSortedSegment.open(segmentFile(sequence), sequence));
+                live.add(segmentFile(sequence).getName());
+                nextSequence.set(Math.max(nextSequence.get(), sequence + 1));
+            }
+        }
+        levels.get(0).sort(Comparator.comparingLong(KVSortedSegment::getSequence).reversed());
+        for (int i = 1; i < MAX_LEVELS; i++) levels.get(i).sort(Comparator.comparing(KVSortedSegment::getFirstKey));
+
+        // 2. Clean up orphans and find write-ahead logs
+        final TreeMap<Long, File> logs = new TreeMap<>();
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            final Matcher wal = WAL_FILE.matcher(file.getName());
+            if (wal.matches()) {
+                logs.put(Long.parseLong(wal.group(1)), file);
+            } else if (SEGMENT_FILE.matcher(file.getName()).matches() && !live.contains(file.getName())) {
+                logger.info(String.format("Removing orphaned segment %s", file.getName()));
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        if (!logs.isEmpty()) nextSequence.set(Math.max(nextSequence.get(), logs.lastKey() + 1));
+
+        // 3. Replay logs (oldest first) into a single memtable and flush it straight away
+        if (!logs.isEmpty()) {
+            final Memtable replayed = new Memtable(nextSequence.getAndIncrement());
+            for (File log : logs.values()) replayLog(log, replayed);
+            replayed.closeLog();
+            immutableMemtables.add(replayed);
+            if (!replayed.records.isEmpty()) flush(replayed);
+            else immutableMemtables.remove(replayed);
+            replayed.discard();
+            for (File log : logs.values()) Files.deleteIfExists(log.toPath());
+        }
+        memtable = new Memtable(nextSequence.getAndIncrement());
+        writeManifest();
+    }
+
+    /**
+     * Apply every intact record of a write-ahead log to the given memtable. A torn record at the end of the log means
+     * we crashed before that write was acknowledged, so it is ignored.
+     */
+    private void replayLog(File log, Memtable target) throws IOException {
+        if (!KVRecordFormat.hasFileHeader(log)) {
+            // Logs from before the binary record format, one KVPair#serialize() per line
+            try (Stream<String> lines = Files.lines(log.toPath(), StandardCharsets.UTF_8)) {
+                lines.map(KVPair::deserialize).filter(Objects::nonNull).forEach(target::replay);
+            }
+            return;
+        }
+
+        try (KVRecordFormat.Reader records = KVRecordFormat.Reader.open(log)) {
+            while (true) {
+                try {
+                    final KVRecordFormat.Record record = records.next();
+                    if (record == null) break;
+                    target.replay(record.kv);
+                } catch (KVRecordFormat.CorruptRecordException e) {
+                    logger.warn(String.format("Skipping corrupt record in %s: %s", log.getName(), e.getMessage()));
+                } catch (EOFException e) {
+                    logger.warn(String.format("Ignoring incomplete record at the end of %s", log.getName()));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * NOT thread-safe -- use an external WriteLock
+     */
+    private void writeManifest() throws IOException {
+        final StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            for (KVSortedSegment segment : levels.get(i)) {
+                contents.append(i).append(' ').append(segment.getSequence()).append('\n');
+            }
+        }
+
+        final File temp = new File(directory, MANIFEST + ".tmp");
+        Files.write(temp.toPath(), contents.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("seg-%d.sst", sequence));
+    }
+
+    private File logFile(long sequence) {
+        return new File(directory, String.format("wal-%d.log", sequence));
+    }
+
+    /**
+     * Sorted in-memory buffer of recent writes along with its write-ahead log
+     */
+    private class Memtable {
+        final long sequence;
+        final ConcurrentSkipListMap<String, KVPair> records = new ConcurrentSkipListMap<>();
+        final AtomicLong bytes = new AtomicLong();
+        private final FileChannel logChannel;
+        private OutputStream log;
+        private volatile boolean unsyncedWrites;
+
+        Memtable(long sequence) throws IOException {
+            this.sequence = sequence;
+            final FileOutputStream file = new FileOutputStream(logFile(sequence));
+            this.logChannel = file.getChannel();
+            this.log = new BufferedOutputStream(file);
+            this.log.write(KVRecordFormat.fileHeader());
+        }
+
+        /**
+         * NOT thread-safe -- use {@link #writeMutex}
+         */
+        void append(KVPair kv) throws IOException {
+            log.write(KVRecordFormat.encode(kv));
+            log.flush();
+            if (durability.getMode() == DurabilityPolicy.Mode.BATCH) logChannel.force(false);
+            else unsyncedWrites = true;
+            replay(kv);
+        }
+
+        /**
+         * Force appended records to disk; safe to call concurrently with appends
+         */
+        void syncLog() throws IOException {
+            if (!unsyncedWrites) return;
+            unsyncedWrites = false;
+            try {
+                logChannel.force(false);
+            } catch (ClosedChannelException e) {
+                // Already closed (and synced) by closeLog
+            }
+        }
+
+        /**
+         * Apply a record to the in-memory table only
+         */
+        void replay(KVPair kv) {
+            records.put(kv.key, kv);
+            bytes.addAndGet(kv.key.length() + kv.value.length() + 32 /* rough per-entry overhead */);
+        }
+
+        void closeLog() throws IOException {
+            if (log == null) return;
+            log.flush();
+            if (durability.getMode() != DurabilityPolicy.Mode.NONE) logChannel.force(false);
+            log.close();
+            log = null;
+        }
+
+        /**
+         * Close and delete the write-ahead log; should only be called once the contents are safely elsewhere
+         */
+        void discard() throws IOException {
+            if (log != null) log.close(); // No point syncing what we're about to delete
+            log = null;
+            Files.deleteIfExists(logFile(sequence).toPath());
+        }
+    }
+
+    /**
+     * K-way merge of key-sorted iterators. When several sources hold the same key, the one that appears earliest in
+     * the source list wins and the rest are skipped. Without tombstones, pairs past their deadline (as of when the
+     * merge began) are left out too.
+     */
+    private static class MergingIterator implements Iterator<KVPair> {
+        private final PriorityQueue<Head> heads;
+        private final boolean keepTombstones;
+        private final long now = System.currentTimeMillis();
+        private KVPair next;
+
+        MergingIterator(List<Iterator<KVPair>> sources, boolean keepTombstones) {
+            this.keepTombstones = keepTombstones;
+            this.heads = new PriorityQueue<>(Math.max(1, sources.size()), Comparator
+                    .comparing((Head head) -> head.current.key)
+                    .thenComparingInt(head -> head.precedence));
+            for (int i = 0; i < sources.size(); i++) {
+                final Iterator<KVPair> source = sources.get(i);
+                if (source.hasNext()) heads.add(new Head(i, source.next(), source));
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !heads.isEmpty()) {
+                final Head winner = heads.poll();
+                final KVPair candidate = winner.current;
+
+                // Skip over older versions of the same key
+                while (!heads.isEmpty() && heads.peek().current.key.equals(candidate.key)) {
+                    final Head stale = heads.poll();
+                    if (stale.source.hasNext()) heads.add(stale.advance());
+                }
+                if (winner.source.hasNext()) heads.add(winner.advance());
+
+                if (keepTombstones || (candidate.tombstone == Tombstone.VALID && !candidate.isExpired(now))) next = candidate;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public KVPair next() {
+            if (next == null) throw new NoSuchElementException();
+            final KVPair result = next;
+            advance();
+            return result;
+        }
+
+        private static class Head {
+            final int precedence;
+            final Iterator<KVPair> source;
+            KVPair current;
+
+            Head(int precedence, KVPair current, Iterator<KVPair> source) {
+                this.precedence = precedence;
+                this.current = current;
+                this.source = source;
+            }
+
+            Head advance() {
+                current = source.next();
+                return this;
+            }
+        }
+    }
+}
@@ -3,28 +3,332 @@ package app_kvServer.storage;
 import app_kvServer.KVServerException;
 import app_kvServer.balancer.ILoadBalancer;
 import app_kvServer.balancer.ModuloLoadBalancer;
+import app_kvServer.balancer.RingLoadBalancer;
+import org.apache.log4j.Logger;
 import shared.messages.KVMessage;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * An orchestrator for {@link KVSingleFileStorage} to increase concurrency
+ * <p>
+ * Keys are spread over a configurable number of partitions. Operations over every partition (e.g. getAllKV) run on
+ * all of them at once using a shared, bounded pool and merge the results. The partition count is recorded alongside
+ * the stores, and if a store is opened with a different count its records are redistributed before use.
+ * <p>
+ * With the {@link Layout#RING_HASH} layout each partition holds one contiguous arc of the hash ring, so streaming or
+ * deleting a {@link KVRingRange} (what a server hands over when a node joins or leaves) only touches the partitions
+ * overlapping it, and partitions lying entirely within it are cleared outright rather than scanned record by record.
  */
 public class KVPartitionedStorage implements IKVStorage {
-    private static final int NUM_PERSISTENT_STORES = 8;
-    private static final ILoadBalancer<KVSingleFileStorage> loadBalancer = ModuloLoadBalancer.create(NUM_PERSISTENT_STORES);
+    private static final Logger logger = Logger.getRootLogger();
 
+    public static final int DEFAULT_PARTITIONS = 8;
+    private static final String PARTITION_FILENAME = "store%d.db";
+    private static final String LEGACY_PARTITION_FILENAME = "store%d.txt";
+    private static final String RETIRED_SUFFIX = ".old";
+    private static final Pattern RETIRED_PARTITION = Pattern.compile("store\\d+\\.db\\.old(\\.hint)?");
+    private static final String LAYOUT_FILENAME = "partitions";
+
+    /**
+     * Records imported from a retired partition per {@link #putBatch(List)} during a resize
+     */
+    private static final int REDISTRIBUTE_BATCH_SIZE = 1024;
+
+    /**
+     * Present from when partitions are set aside for a resize until they've all been redistributed, holding the layout
+     * spec they were laid out with
+     */
+    private static final String RESIZE_FILENAME = "partitions.resizing";
+
+    /**
+     * Shared by all instances so that the number of threads scanning partitions is bounded by the number of cores
+     * rather than by partitions * concurrent requests
+     */
+    private static final ForkJoinPool FAN_OUT = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * How keys are assigned to partitions
+     */
+    public enum Layout {
+        /**
+         * By {@link String#hashCode()}: cheapest to compute, but any range of the ring is spread over every partition
+         */
+        KEY_HASH,
+        /**
+         * By the arc of the hash ring the key falls in, see {@link RingLoadBalancer}
+         */
+        RING_HASH
+    }
+
+    private final ILoadBalancer<KVSingleFileStorage> loadBalancer;
+    private final RingLoadBalancer<KVSingleFileStorage> ringBalancer;
     private final List<KVSingleFileStorage> stores;
+    private final File directory;
 
     public KVPartitionedStorage(String directory) {
-        stores = IntStream.rangeClosed(1, NUM_PERSISTENT_STORES)
-                .mapToObj(i -> new KVSingleFileStorage(directory, String.format("store%d.txt", i)))
+        this(directory, DurabilityPolicy.NONE);
+    }
+
+    public KVPartitionedStorage(String directory, DurabilityPolicy durability) {
+        this(directory, DEFAULT_PARTITIONS, durability);
+    }
+
+    /**
+     * @param directory  to keep all partitions in
+     * @param partitions number of files to spread keys over
+     * @param durability when appended records are forced to disk
+     */
+    public KVPartitionedStorage(String directory, int partitions, DurabilityPolicy durability) {
+        this(directory, partitions, Layout.KEY_HASH, durability);
+    }
+
+    /**
+     * @param directory  to keep all partitions in
+     * @param partitions number of files to spread keys over
+     * @param layout     how keys are assigned to partitions
+     * @param durability when appended records are forced to disk
+     */
+    public KVPartitionedStorage(String directory, int partitions, Layout layout, DurabilityPolicy durability) {
+        this(directory, partitions, layout, durability, false);
+    }
+
+    /**
+     * @param directory    to keep all partitions in
+     * @param partitions   number of files to spread keys over
+     * @param layout       how keys are assigned to partitions
+     * @param durability   when appended records are forced to disk
+     * @param trigramIndex whether each partition indexes the trigrams of its keys to speed up Queries
+     */
+    public KVPartitionedStorage(String directory, int partitions, Layout layout, DurabilityPolicy durability, boolean trigramIndex) {
+        if (partitions < 1) throw new IllegalArgumentException("Partition count must be positive");
+        this.directory = new File(directory);
+        this.ringBalancer = layout == Layout.RING_HASH ? new RingLoadBalancer<>(partitions) : null;
+        this.loadBalancer = ringBalancer != null ? ringBalancer : ModuloLoadBalancer.create(partitions);
+
+        final File layoutFile = new File(directory, LAYOUT_FILENAME);
+        final String spec = layoutSpec(partitions, layout);
+        final String previousSpec;
+        try {
+            previousSpec = readLayout(directory, layoutFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read partition layout", e);
+        }
+        final int previous = previousSpec == null ? 0 : partitionCountOf(previousSpec, layoutFile);
+
+        // Stores from before the binary record format used a .txt extension; they get converted on open
+        for (int i = 1; i <= previous; i++) {
+            final File legacy = new File(directory, String.format(LEGACY_PARTITION_FILENAME, i));
+            final File current = new File(directory, String.format(PARTITION_FILENAME, i));
+            if (legacy.exists() && !current.exists() && !legacy.renameTo(current)) {
+                throw new RuntimeException("Unable to migrate " + legacy.getName());
+            }
+        }
+
+        // Set aside partitions laid out differently. Until they've all been redistributed, they are the only complete
+        // copy of the data, so an interrupted resize starts over from them whatever layout we're opened with next.
+        final File resizeFile = new File(directory, RESIZE_FILENAME);
+        final int retiredCount;
+        try {
+            if (resizeFile.exists()) {
+                retiredCount = partitionCountOf(readLayout(directory, resizeFile), resizeFile);
+            } else if (previousSpec != null && !previousSpec.equals(spec)) {
+                writeLayout(resizeFile, previousSpec);
+                retiredCount = previous;
+            } else {
+                retiredCount = 0;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to record partition resize", e);
+        }
+        final boolean resizing = retiredCount > 0;
+        for (int i = 1; i <= retiredCount; i++) {
+            final File current = new File(directory, String.format(PARTITION_FILENAME, i));
+            final File retired = new File(current.getPath() + RETIRED_SUFFIX);
+            if (current.exists() && !retired.exists() && !current.renameTo(retired)) {
+                throw new RuntimeException("Unable to retire " + current.getName());
+            }
+        }
+
+        // Partitions are independent files, so index them all at once; the collected list keeps partition order
+        stores = IntStream.rangeClosed(1, partitions)
+                .parallel()
+                .mapToObj(i -> new KVSingleFileStorage(directory, String.format(PARTITION_FILENAME, i), durability, trigramIndex))
                 .collect(Collectors.toUnmodifiableList());
+
+        try {
+            if (resizing) {
+                clearStorage(); // Left over if a previous resize was interrupted; it's all about to be imported again
+                redistribute(directory, retiredCount);
+            }
+            writeLayout(layoutFile, spec);
+
+            // Only once the new layout is recorded are the retired partitions redundant. Any still around without a
+            // resize in progress were left behind by one that completed, after it recorded its layout.
+            Files.deleteIfExists(resizeFile.toPath());
+            deleteRetiredPartitions(directory);
+        } catch (IOException | RuntimeException e) {
+            // The retired partitions and the resize marker stay put, so the next open starts the resize over
+            close();
+            throw new RuntimeException("Unable to repartition storage", e);
+        }
+    }
+
+    /**
+     * @return the partition count, followed by the layout unless it's {@link Layout#KEY_HASH} so that layout files
+     * from before layouts were configurable still match
+     */
+    private static String layoutSpec(int partitions, Layout layout) {
+        return layout == Layout.KEY_HASH ? Integer.toString(partitions) : partitions + " " + layout.name();
+    }
+
+    /**
+     * @return layout spec the stores in the directory were laid out with, which is {@link #DEFAULT_PARTITIONS} keyed
+     * by hash for stores from before the count was configurable and null for a new directory
+     */
+    private static String readLayout(String directory, File layoutFile) throws IOException {
+        if (layoutFile.exists()) {
+            return new String(Files.readAllBytes(layoutFile.toPath()), StandardCharsets.UTF_8).trim();
+        }
+        return IntStream.rangeClosed(1, DEFAULT_PARTITIONS).anyMatch(i ->
+                new File(directory, String.format(PARTITION_FILENAME, i)).exists()
+                        || new File(directory, String.format(LEGACY_PARTITION_FILENAME, i)).exists()
+        ) ? layoutSpec(DEFAULT_PARTITIONS, Layout.KEY_HASH) : null;
+    }
+
+    private static int partitionCountOf(String spec, File layoutFile) {
+        try {
+            return Integer.parseInt(spec.split(" ")[0]);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Malformed partition layout " + layoutFile.getPath(), e);
+        }
+    }
+
+    private static void writeLayout(File layoutFile, String spec) throws IOException {
+        final File temp = new File(layoutFile.getPath() + ".tmp");
+        Files.write(temp.toPath(), spec.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), layoutFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Copy every record from the retired partitions into their new homes, a batch at a time
+     *
+     * @throws IOException if any record couldn't be read or written, in which case the retired partitions are still the
+     *                     only complete copy of the data
+     */
+    private void redistribute(String directory, int previous) throws IOException {
+        final long start = System.currentTimeMillis();
+        for (int i = 1; i <= previous; i++) {
+            final String filename = String.format(PARTITION_FILENAME, i) + RETIRED_SUFFIX;
+            if (!new File(directory, filename).exists()) continue;
+
+            final KVSingleFileStorage retired = new KVSingleFileStorage(directory, filename);
+            try (Stream<KVPair> records = retired.streamLiveRecords(kv -> true)) {
+                final List<KVPair> batch = new ArrayList<>(REDISTRIBUTE_BATCH_SIZE);
+                for (Iterator<KVPair> it = records.iterator(); it.hasNext(); ) {
+                    batch.add(it.next());
+                    if (batch.size() == REDISTRIBUTE_BATCH_SIZE || !it.hasNext()) {
+                        putBatch(batch);
+                        batch.clear();
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (KVServerException e) {
+                throw new IOException("Unable to import " + filename, e);
+            } finally {
+                retired.close();
+            }
+        }
+        logger.info(String.format("Repartitioned %s from %d to %d partitions (%s) in %d ms",
+                directory, previous, stores.size(), ringBalancer != null ? Layout.RING_HASH : Layout.KEY_HASH,
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Delete every retired partition in the directory, however many there were
+     */
+    private static void deleteRetiredPartitions(String directory) throws IOException {
+        final File[] retired = new File(directory).listFiles((dir, name) -> RETIRED_PARTITION.matcher(name).matches());
+        if (retired == null) return;
+        for (File file : retired) Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Run the task against every partition at once on {@link #FAN_OUT}, waiting for all of them to finish
+     *
+     * @param task   to run per partition
+     * @param status to report if the caller is interrupted while waiting
+     * @return the result from each partition, in partition order
+     * @throws KVServerException the first exception thrown by the task, if any
+     */
+    private <T> List<T> fanOut(PartitionTask<T> task, KVMessage.StatusType status) throws KVServerException {
+        return fanOut(stores, task, status);
+    }
+
+    /**
+     * {@link #fanOut(PartitionTask, KVMessage.StatusType)} over only some of the partitions
+     */
+    private static <T> List<T> fanOut(List<KVSingleFileStorage> targets, PartitionTask<T> task, KVMessage.StatusType status) throws KVServerException {
+        final List<Callable<T>> calls = targets.stream()
+                .map(store -> (Callable<T>) () -> task.apply(store))
+                .collect(Collectors.toList());
+        final List<T> results = new ArrayList<>(calls.size());
+        try {
+            for (Future<T> result : FAN_OUT.invokeAll(calls)) results.add(result.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVServerException("Interrupted while waiting on partitions", e, status);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // The pool wraps checked exceptions thrown by a Callable in a RuntimeException, and may wrap that again
+            // when rethrowing it on this thread
+            while (cause.getClass() == RuntimeException.class && cause.getCause() != null) cause = cause.getCause();
+            if (cause instanceof KVServerException) throw (KVServerException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new KVServerException("Partition operation failed", cause, status);
+        }
+        return results;
+    }
+
+    /**
+     * {@link #fanOut(PartitionTask, KVMessage.StatusType)} for operations with no way to report failure
+     */
+    private <T> List<T> fanOutUnchecked(PartitionTask<T> task) {
+        return fanOutUnchecked(stores, task);
+    }
+
+    private static <T> List<T> fanOutUnchecked(List<KVSingleFileStorage> targets, PartitionTask<T> task) {
+        try {
+            return fanOut(targets, task, KVMessage.StatusType.FAILED);
+        } catch (KVServerException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface PartitionTask<T> {
+        T apply(KVSingleFileStorage store) throws KVServerException;
     }
 
     @Override
@@ -37,26 +341,27 @@ public class KVPartitionedStorage implements IKVStorage {
         return loadBalancer.balanceRequest(key, stores).getKV(key);
     }
 
+    @Override
+    public KVPair getKVPair(String key) throws KVServerException {
+        return loadBalancer.balanceRequest(key, stores).getKVPair(key);
+    }
+
     @Override
     public List<KVPair> getAllKV(Predicate<KVPair> filter) throws KVServerException {
-        List<KVPair> allValues = new ArrayList<>();
-        for (KVSingleFileStorage fileStore : stores) {
-            List<KVPair> singeFileVals = fileStore.getAllKV(filter);
-            allValues.addAll(singeFileVals);
-        }
+        final List<KVPair> allValues = fanOut(store -> store.getAllKV(filter), KVMessage.StatusType.GET_ALL_ERROR).stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
         if (allValues.size() > 0) return allValues;
 
         throw new KVServerException("Key(s) not found in storage", KVMessage.StatusType.GET_ALL_ERROR);
     }
 
     @Override
-    public List<KVPair> putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl) {
-        List<KVPair> allValues = new ArrayList<>();
-        for (KVSingleFileStorage fileStore : stores) {
-            List<KVPair> singleFileVals = fileStore.putAllKV(filter, valExpr, valRepl);
-            allValues.addAll(singleFileVals);
-        }
-        return allValues;
+    public void putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws KVServerException {
+        fanOut(store -> {
+            store.putAllKV(filter, valExpr, valRepl, updated);
+            return null;
+        }, KVMessage.StatusType.PUT_ALL_ERROR);
     }
 
     @Override
@@ -64,29 +369,169 @@ public class KVPartitionedStorage implements IKVStorage {
         loadBalancer.balanceRequest(key, stores).putKV(key, value);
     }
 
+    @Override
+    public void putKV(String key, String value, long expiresAt) {
+        loadBalancer.balanceRequest(key, stores).putKV(key, value, expiresAt);
+    }
+
     @Override
     public void delete(String key) throws KVServerException {
         loadBalancer.balanceRequest(key, stores).delete(key);
     }
 
+    @Override
+    public void putBatch(List<KVPair> batch) throws KVServerException {
+        // Split by partition, keeping the order of writes within each, then write every partition's share at once
+        final Map<KVSingleFileStorage, List<KVPair>> shares = new IdentityHashMap<>();
+        for (KVPair kv : batch) {
+            shares.computeIfAbsent(loadBalancer.balanceRequest(kv.key, stores), store -> new ArrayList<>()).add(kv);
+        }
+        fanOut(new ArrayList<>(shares.keySet()), store -> {
+            store.putBatch(shares.get(store));
+            return null;
+        }, KVMessage.StatusType.PUT_ERROR);
+    }
+
     @Override
     public void clearStorage() {
-        stores.forEach(KVSingleFileStorage::clearStorage);
+        fanOutUnchecked(store -> {
+            store.clearStorage();
+            return null;
+        });
     }
 
     @Override
     public Stream<KVPair> openKvStream(Predicate<KVPair> filter) {
-        return stores.stream()
-                .map(store -> store.openKvStream(filter))
-                .reduce(Stream::concat)
-                .orElseGet(Stream::empty);
+        final List<KVSingleFileStorage> targets = filter instanceof KVRingRange && ringBalancer != null
+                ? partitionsOverlapping((KVRingRange) filter, false)
+                : stores;
+
+        // Each partition snapshots its index up front, so do that for all of them at once
+        final List<Stream<KVPair>> streams = fanOutUnchecked(targets, store -> store.openKvStream(filter));
+        return streams.stream()
+                .flatMap(Function.identity())
+                .onClose(() -> streams.forEach(Stream::close));
     }
 
     @Override
     public void deleteIf(Predicate<KVPair> filter) throws KVServerException {
-        for (KVSingleFileStorage store : stores) {
-            store.deleteIf(filter);
+        if (!(filter instanceof KVRingRange) || ringBalancer == null) {
+            fanOut(store -> {
+                store.deleteIf(filter);
+                return null;
+            }, KVMessage.StatusType.DELETE_ALL_ERROR);
+            return;
+        }
+
+        // Partitions wholly inside the range are dropped without reading them, ones straddling its ends are filtered
+        final List<KVSingleFileStorage> covered = partitionsOverlapping((KVRingRange) filter, true);
+        fanOut(partitionsOverlapping((KVRingRange) filter, false), store -> {
+            if (covered.contains(store)) store.clearStorage();
+            else store.deleteIf(filter);
+            return null;
+        }, KVMessage.StatusType.DELETE_ALL_ERROR);
+    }
+
+    /**
+     * Only meaningful with the {@link Layout#RING_HASH} layout
+     *
+     * @param range  of the hash ring
+     * @param wholly if true, only partitions whose entire arc lies in the range; otherwise any that share part of it
+     * @return the partitions in question, in partition order
+     */
+    private List<KVSingleFileStorage> partitionsOverlapping(KVRingRange range, boolean wholly) {
+        final List<KVSingleFileStorage> targets = new ArrayList<>();
+        for (int i = 0; i < stores.size(); i++) {
+            final long firstHigh = ringBalancer.firstHigh(i), lastHigh = ringBalancer.lastHigh(i);
+            if (wholly ? range.containsAll(firstHigh, 0, lastHigh, -1L) : range.containsAny(firstHigh, 0, lastHigh, -1L)) {
+                targets.add(stores.get(i));
+            }
         }
+        return targets;
+    }
+
+    /**
+     * Each partition is captured at a single point in time, one after the other; since a key only ever lives in one
+     * partition, every key in the snapshot has a value it actually held
+     */
+    @Override
+    public void createSnapshot(String name) throws IOException {
+        KVSnapshots.create(directory, name, snapshot -> {
+            try {
+                return fanOutUnchecked(store -> {
+                    try {
+                        return store.snapshotTo(snapshot);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    @Override
+    public List<String> listSnapshots() {
+        return KVSnapshots.list(directory);
+    }
+
+    @Override
+    public Stream<KVPair> openSnapshotStream(String name, Predicate<KVPair> filter) throws IOException {
+        final File snapshot = KVSnapshots.directoryOf(directory, name);
+
+        // Partitions are only opened as the stream reaches them, so only one partition's index is in memory at a time
+        return KVSnapshots.segmentsOf(directory, name).stream().flatMap(segment -> {
+            try {
+                return KVSingleFileStorage.openSnapshotStream(snapshot, segment, filter);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public void deleteSnapshot(String name) throws IOException {
+        KVSnapshots.delete(directory, name);
+    }
+
+    @Override
+    public void close() {
+        fanOutUnchecked(store -> {
+            store.close();
+            return null;
+        });
+    }
+
+    /**
+     * @return bytes on disk belonging to live keys, across all partitions
+     */
+    public long getLiveBytes() {
+        return stores.stream().mapToLong(KVSingleFileStorage::getLiveBytes).sum();
+    }
+
+    /**
+     * @return bytes on disk awaiting compaction, across all partitions
+     */
+    public long getDeadBytes() {
+        return stores.stream().mapToLong(KVSingleFileStorage::getDeadBytes).sum();
+    }
+
+    /**
+     * @return how many times larger the records appended since opening would have been without value compression,
+     * across all partitions
+     */
+    public double getCompressionRatio() {
+        final long appended = stores.stream().mapToLong(KVSingleFileStorage::getAppendedBytes).sum();
+        final long uncompressed = stores.stream().mapToLong(KVSingleFileStorage::getAppendedUncompressedBytes).sum();
+        return appended == 0 ? 1 : (double) uncompressed / appended;
+    }
+
+    /**
+     * @return longest of the most recent compaction in each partition
+     */
+    public long getLastCompactionMillis() {
+        return stores.stream().mapToLong(KVSingleFileStorage::getLastCompactionMillis).max().orElse(0);
     }
 }
 
@@ -0,0 +1,190 @@
+package app_kvServer.storage;
+
+import app_kvServer.storage.IKVStorage.KVPair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * The pairs whose key and value each fully match a regular expression, as given by a Query. Stores that keep keys in
+ * order (see {@link KVBTreeStorage}) recognize this filter and only scan the keys starting with
+ * {@link #getKeyPrefix()}, rather than the whole store; stores with a {@link KVTrigramIndex} only check the keys
+ * containing every one of {@link #getKeyLiterals()}.
+ */
+public final class KVPatternFilter implements Predicate<KVPair> {
+    private static final String METACHARACTERS = ".[](){}*+?^$|";
+    private static final String CLASS_ESCAPES = "dDsSwWhHvVRXbBAGzZ";
+    private static final String ESCAPED_CONTROLS = "tnrfae", CONTROLS = "\t\n\r\f\u0007\u001B";
+
+    private final Predicate<String> keyMatch, valueMatch, keyCondition;
+    private final String keyPrefix;
+    private final List<String> keyLiterals;
+
+    /**
+     * @param keyFilter   every key must match entirely
+     * @param valueFilter every value must match entirely
+     */
+    public KVPatternFilter(Pattern keyFilter, Pattern valueFilter) {
+        this(keyFilter, valueFilter, key -> true);
+    }
+
+    /**
+     * @param keyFilter    every key must match entirely
+     * @param valueFilter  every value must match entirely
+     * @param keyCondition further test of each key, e.g. that this server is responsible for it
+     */
+    public KVPatternFilter(Pattern keyFilter, Pattern valueFilter, Predicate<String> keyCondition) {
+        this.keyMatch = keyFilter.asMatchPredicate();
+        this.valueMatch = valueFilter.asMatchPredicate();
+        this.keyCondition = keyCondition;
+        final Literals literals = requiredLiterals(keyFilter);
+        this.keyPrefix = literals.prefix;
+        this.keyLiterals = Collections.unmodifiableList(literals.runs);
+    }
+
+    /**
+     * @return a string every matching key starts with, possibly empty
+     */
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    /**
+     * @return strings every matching key contains, possibly none
+     */
+    public List<String> getKeyLiterals() {
+        return keyLiterals;
+    }
+
+    @Override
+    public boolean test(KVPair kv) {
+        return keyMatch.test(kv.key) && keyCondition.test(kv.key) && valueMatch.test(kv.value);
+    }
+
+    /**
+     * Conservatively, the runs of plain (or escaped punctuation) characters that every match must contain, in order,
+     * along with whether the first run starts the pattern. A character followed by a quantifier that makes it optional
+     * ends the run before it; anything else that isn't a plain character (e.g. a class or group) ends the run and is
+     * skipped over. Patterns with flags or alternation anywhere get no literals at all, and scanning stops at the
+     * first construct that isn't recognized.
+     */
+    static Literals requiredLiterals(Pattern pattern) {
+        final String regex = pattern.pattern();
+        final Literals literals = new Literals();
+        if ((pattern.flags() & Pattern.LITERAL) != 0) {
+            literals.add(regex, true);
+            return literals;
+        }
+        if (pattern.flags() != 0 || regex.indexOf('|') >= 0) return literals;
+
+        final StringBuilder run = new StringBuilder();
+        boolean anchored = true; // Whether the current run would start every match
+        int i = regex.startsWith("^") ? 1 : 0; // Redundant given full matching
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            boolean literal = true;
+            if (c == '\\') {
+                if (next >= regex.length()) break;
+                final char escaped = regex.charAt(next++);
+                final int control = ESCAPED_CONTROLS.indexOf(escaped);
+                if (control >= 0) c = CONTROLS.charAt(control);
+                else if (CLASS_ESCAPES.indexOf(escaped) >= 0) literal = false;
+                else if (Character.isLetterOrDigit(escaped)) break; // e.g. \Q, \p{...}, back references
+                else c = escaped;
+            } else if (c == '.' || c == '^' || c == '$') {
+                literal = false;
+            } else if (c == '[' || c == '(') {
+                next = skipBracketed(regex, i);
+                if (next < 0) break;
+                literal = false;
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else if (Character.isSurrogate(c)) {
+                next = i + Character.charCount(regex.codePointAt(i)); // A quantifier would apply to the whole code point
+                literal = false;
+            }
+
+            final char quantifier = next < regex.length() ? regex.charAt(next) : 0;
+            final int afterQuantifier = skipQuantifier(regex, next);
+            if (afterQuantifier < 0) break;
+            if (literal && quantifier != '?' && quantifier != '*' && quantifier != '{') {
+                run.append(c);
+                if (quantifier == '+') { // Still required once, but what follows may not come right after it
+                    literals.add(run.toString(), anchored);
+                    run.setLength(0);
+                    anchored = false;
+                }
+            } else {
+                literals.add(run.toString(), anchored);
+                run.setLength(0);
+                anchored = false;
+            }
+            i = afterQuantifier;
+        }
+        literals.add(run.toString(), anchored);
+        return literals;
+    }
+
+    /**
+     * @param start of a character class or group
+     * @return index just past its closing bracket, or -1 if it can't be found
+     */
+    private static int skipBracketed(String regex, int start) {
+        int depth = 0, classStart = -1;
+        for (int i = start; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (classStart >= 0) {
+                if (c == '[') return -1; // Nested classes and intersections aren't worth the trouble
+                final boolean leading = i == classStart + 1 || (i == classStart + 2 && regex.charAt(i - 1) == '^');
+                if (c == ']' && !leading) { // A leading ] is part of the class
+                    classStart = -1;
+                    if (depth == 0) return i + 1;
+                }
+            } else if (c == '[') {
+                classStart = i;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param start where a quantifier may begin
+     * @return index just past the quantifier (and any lazy or possessive suffix), start if there is none, or -1 if
+     * it's malformed
+     */
+    private static int skipQuantifier(String regex, int start) {
+        if (start >= regex.length()) return start;
+        int i = start;
+        final char c = regex.charAt(i);
+        if (c == '?' || c == '*' || c == '+') i++;
+        else if (c == '{') i = regex.indexOf('}', i) + 1;
+        else return start;
+        if (i <= 0) return -1;
+        if (i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) i++;
+        return i;
+    }
+
+    /**
+     * What {@link #requiredLiterals(Pattern)} found
+     */
+    static final class Literals {
+        final List<String> runs = new ArrayList<>();
+        String prefix = "";
+
+        private void add(String run, boolean anchored) {
+            if (run.isEmpty()) return;
+            if (anchored) prefix = run;
+            runs.add(run);
+        }
+    }
+}
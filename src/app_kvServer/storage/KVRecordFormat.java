@@ -0,0 +1,463 @@
+package app_kvServer.storage;
+
+import app_kvServer.storage.IKVStorage.KVPair;
+import app_kvServer.storage.IKVStorage.KVPair.Tombstone;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary, length-prefixed encoding of {@link KVPair}s for append-only files, used by {@link KVSingleFileStorage} and
+ * the {@link KVLsmStorage} write-ahead log. Unlike {@link KVPair#serialize()} it is safe for values containing
+ * newlines, and decoding is a couple of array copies rather than a search for delimiters.
+ * <p>
+ * File layout: a {@link #FILE_HEADER_SIZE} byte header (magic, version) followed by records back to back, each:
+ * <pre>
+ * flags (1) | key length (4) | value length (4) | CRC32 (4) | [ring hash (16)] | [deadline (8)] | key bytes | value bytes
+ * </pre>
+ * The CRC covers every other byte of the record. The ring hash is the key's MD5 position on the hash ring (see
+ * {@link ecs.ECSHashRing#computeHashBytes(String)}), and is only present if {@link #FLAG_RING_HASH} is set. The
+ * deadline is the pair's {@link KVPair#expiresAt}, and is only present if {@link #FLAG_EXPIRES} is set.
+ * <p>
+ * Values of at least {@link #COMPRESSION_THRESHOLD} bytes are deflated if that makes them smaller, in which case
+ * {@link #FLAG_COMPRESSED} is set, the value length is that of the compressed form, and the value bytes are the
+ * original length (4) followed by the deflated data. The CRC is over what's on disk, so corruption is caught before
+ * inflating.
+ */
+final class KVRecordFormat {
+    private static final int MAGIC = 0x4B565246; // "KVRF"
+
+    /**
+     * Bumped with every change to the format, so that older readers refuse files they would misread. Every version can
+     * read the ones before it.
+     * <ol>
+     *     <li>Tombstone flag</li>
+     *     <li>16 byte ring hashes (the 8 byte ones of version 1 were never written)</li>
+     *     <li>Compressed values</li>
+     *     <li>Deadlines</li>
+     * </ol>
+     */
+    private static final short VERSION = 4;
+    static final int FILE_HEADER_SIZE = Integer.BYTES + Short.BYTES + Short.BYTES /* reserved */;
+
+    static final byte FLAG_TOMBSTONE = 1;
+    static final byte FLAG_RING_HASH = 1 << 1;
+    static final byte FLAG_COMPRESSED = 1 << 2;
+    static final byte FLAG_EXPIRES = 1 << 3;
+    private static final byte KNOWN_FLAGS = FLAG_TOMBSTONE | FLAG_RING_HASH | FLAG_COMPRESSED | FLAG_EXPIRES;
+
+    private static final int CRC_OFFSET = Byte.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = CRC_OFFSET + Integer.BYTES;
+    private static final int RING_HASH_SIZE = 2 * Long.BYTES;
+
+    /**
+     * Anything bigger than this is assumed to be a corrupt length rather than a real record
+     */
+    private static final int MAX_RECORD_SIZE = 64 << 20;
+
+    /**
+     * Values shorter than this are stored as is; deflate's overhead eats most of the savings on short strings
+     */
+    static final int COMPRESSION_THRESHOLD = 256;
+
+    /**
+     * Deflater and Inflater hold native buffers that are costly to set up, so each thread reuses its own
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private KVRecordFormat() {
+    }
+
+    /**
+     * @return the header to begin every file with
+     */
+    static byte[] fileHeader() {
+        return ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putShort(VERSION).array();
+    }
+
+    /**
+     * A file from an older version of this format is stamped with the current one, as it's about to be appended to with
+     * records that older readers can't make sense of
+     *
+     * @return true if the file begins with a {@link #fileHeader()}, false if it is empty or in some other format
+     * @throws IOException if the file is unreadable or from a newer version of this format
+     */
+    static boolean hasFileHeader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) return false;
+            }
+            if (header.flip().getInt() != MAGIC) return false;
+            final short version = checkVersion(header.getShort(), file);
+            if (version < VERSION) {
+                channel.write(ByteBuffer.allocate(Short.BYTES).putShort(0, VERSION), Integer.BYTES);
+                channel.force(false);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @throws IOException if the version is newer than this format
+     */
+    private static short checkVersion(short version, File file) throws IOException {
+        if (version > VERSION) throw new IOException(String.format("Unsupported version %d of %s", version, file.getName()));
+        return version;
+    }
+
+    /**
+     * @return the full on-disk record for this KVPair, without a ring hash
+     */
+    static byte[] encode(KVPair kv) {
+        return encode(kv, null);
+    }
+
+    /**
+     * @param ringHash 16 byte ring hash of the key to store with it, or null for none
+     * @return the full on-disk record for this KVPair
+     */
+    static byte[] encode(KVPair kv, byte[] ringHash) {
+        final byte[] key = kv.key.getBytes(StandardCharsets.UTF_8), raw = kv.value.getBytes(StandardCharsets.UTF_8);
+        final byte[] compressed = raw.length >= COMPRESSION_THRESHOLD ? compress(raw) : null;
+        final byte[] value = compressed != null ? compressed : raw;
+        final int hashLength = ringHash == null ? 0 : RING_HASH_SIZE;
+        final boolean expires = kv.expiresAt != KVPair.NO_EXPIRY;
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + hashLength + (expires ? Long.BYTES : 0) + key.length + value.length)
+                .put((byte) ((kv.tombstone == Tombstone.VALID ? 0 : FLAG_TOMBSTONE)
+                        | (ringHash == null ? 0 : FLAG_RING_HASH)
+                        | (compressed == null ? 0 : FLAG_COMPRESSED)
+                        | (expires ? FLAG_EXPIRES : 0)))
+                .putInt(key.length)
+                .putInt(value.length)
+                .putInt(0 /* CRC placeholder */);
+        if (ringHash != null) record.put(ringHash, 0, RING_HASH_SIZE);
+        if (expires) record.putLong(kv.expiresAt);
+        record.put(key).put(value);
+        return record.putInt(CRC_OFFSET, checksum(record.flip())).array();
+    }
+
+    /**
+     * @param record as returned by {@link #encode(KVPair, byte[])}
+     * @return how long the record would be with its value stored as is
+     */
+    static int uncompressedLength(byte[] record) {
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        if ((buffer.get(0) & FLAG_COMPRESSED) == 0) return record.length;
+        final int valueLength = buffer.getInt(Byte.BYTES + Integer.BYTES);
+        return record.length - valueLength + buffer.getInt(record.length - valueLength);
+    }
+
+    /**
+     * @return the original length followed by the deflated value, or null if that wouldn't be any smaller
+     */
+    private static byte[] compress(byte[] value) {
+        final Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        final byte[] output = new byte[value.length];
+        final int length = deflater.deflate(output, Integer.BYTES, output.length - Integer.BYTES);
+        if (!deflater.finished()) return null; // Didn't fit in less space than the original
+        ByteBuffer.wrap(output).putInt(value.length);
+        return Arrays.copyOf(output, Integer.BYTES + length);
+    }
+
+    /**
+     * @param buffer holding a value written by {@link #compress(byte[])} at [position, position + length)
+     * @return the original value
+     * @throws CorruptRecordException if it doesn't inflate to exactly its recorded length
+     */
+    private static String decompress(ByteBuffer buffer, int position, int length) throws CorruptRecordException {
+        if (length < Integer.BYTES) throw new CorruptRecordException("Compressed value too short");
+        final int originalLength = buffer.getInt(position);
+        if (originalLength < 0 || originalLength > MAX_RECORD_SIZE) throw new CorruptRecordException("Implausible value length");
+
+        final Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(buffer.duplicate().limit(position + length).position(position + Integer.BYTES));
+        final byte[] value = new byte[originalLength];
+        try {
+            if (inflater.inflate(value) != originalLength || !inflater.finished()) {
+                throw new CorruptRecordException("Compressed value does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new CorruptRecordException("Malformed compressed value: " + e.getMessage());
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param buffer holding a complete record at [offset, offset + length)
+     * @return the decoded record
+     * @throws CorruptRecordException if the record fails its integrity checks
+     */
+    static Record decode(byte[] buffer, int offset, int length) throws CorruptRecordException {
+        return decode(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * @param record exactly one complete record between its position and limit, e.g. a slice of a mapped file;
+     *               its position is left untouched
+     * @return the decoded record
+     * @throws CorruptRecordException if the record fails its integrity checks
+     */
+    static Record decode(ByteBuffer record) throws CorruptRecordException {
+        final int start = record.position(), length = record.remaining();
+        if (length < RECORD_HEADER_SIZE) throw new CorruptRecordException("Record too short");
+        final byte flags = record.get(start);
+        final int keyLength = record.getInt(start + Byte.BYTES), valueLength = record.getInt(start + Byte.BYTES + Integer.BYTES);
+        if ((flags & ~KNOWN_FLAGS) != 0) throw new CorruptRecordException("Unknown flags " + flags);
+        final boolean hasRingHash = (flags & FLAG_RING_HASH) != 0;
+        final long ringHashHigh = hasRingHash ? record.getLong(start + RECORD_HEADER_SIZE) : 0;
+        final long ringHashLow = hasRingHash ? record.getLong(start + RECORD_HEADER_SIZE + Long.BYTES) : 0;
+
+        final int deadlineOffset = RECORD_HEADER_SIZE + (hasRingHash ? RING_HASH_SIZE : 0);
+        final boolean expires = (flags & FLAG_EXPIRES) != 0;
+        final int keyOffset = deadlineOffset + (expires ? Long.BYTES : 0), valueOffset = keyOffset + keyLength;
+        if (keyLength < 0 || valueLength < 0 || valueOffset + valueLength != length) {
+            throw new CorruptRecordException("Record lengths do not match its size");
+        }
+        if (checksum(record) != record.getInt(start + CRC_OFFSET)) throw new CorruptRecordException("Checksum mismatch");
+
+        return new Record(
+                new KVPair(
+                        (flags & FLAG_TOMBSTONE) != 0 ? Tombstone.DEAD : Tombstone.VALID,
+                        readString(record, start + keyOffset, keyLength),
+                        (flags & FLAG_COMPRESSED) != 0
+                                ? decompress(record, start + valueOffset, valueLength)
+                                : readString(record, start + valueOffset, valueLength),
+                        expires ? record.getLong(start + deadlineOffset) : KVPair.NO_EXPIRY
+                ),
+                length, hasRingHash, ringHashHigh, ringHashLow
+        );
+    }
+
+    private static String readString(ByteBuffer buffer, int position, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.duplicate().position(position).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return length of a record with the given header fields, or -1 if they are unusable
+     */
+    private static long recordLength(int flags, int keyLength, int valueLength) {
+        final long length = RECORD_HEADER_SIZE + ((flags & FLAG_RING_HASH) != 0 ? RING_HASH_SIZE : 0)
+                + ((flags & FLAG_EXPIRES) != 0 ? Long.BYTES : 0) + (long) keyLength + (long) valueLength;
+        return keyLength < 0 || valueLength < 0 || length > MAX_RECORD_SIZE ? -1 : length;
+    }
+
+    /**
+     * Look for the first intact record at or after an offset, trying every byte in turn; only meant for recovering
+     * from corruption
+     *
+     * @return offset of the first record that decodes and passes its checksum, or -1 if there is none
+     */
+    static long findRecord(File file, long from) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long end = channel.size();
+            final ByteBuffer window = ByteBuffer.allocate(1 << 20);
+            for (long windowStart = from; windowStart + RECORD_HEADER_SIZE <= end; ) {
+                window.clear().limit((int) Math.min(window.capacity(), end - windowStart));
+                while (window.hasRemaining()) {
+                    if (channel.read(window, windowStart + window.position()) < 0) break;
+                }
+                window.flip();
+
+                for (int i = 0; i + RECORD_HEADER_SIZE <= window.limit(); i++) {
+                    final int flags = window.get(i);
+                    if ((flags & ~KNOWN_FLAGS) != 0) continue;
+                    final long length = recordLength(flags, window.getInt(i + Byte.BYTES), window.getInt(i + Byte.BYTES + Integer.BYTES));
+                    if (length < 0 || windowStart + i + length > end) continue;
+
+                    // Records running past the window are read on their own
+                    ByteBuffer candidate = window.duplicate().position(i);
+                    if (i + length <= window.limit()) {
+                        candidate.limit((int) (i + length));
+                    } else {
+                        candidate = ByteBuffer.allocate((int) length);
+                        while (candidate.hasRemaining()) {
+                            if (channel.read(candidate, windowStart + i + candidate.position()) < 0) break;
+                        }
+                        candidate.flip();
+                    }
+                    try {
+                        decode(candidate.slice());
+                        return windowStart + i;
+                    } catch (CorruptRecordException e) {
+                        // Not a record after all
+                    }
+                }
+                windowStart += window.limit() - RECORD_HEADER_SIZE + 1;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * CRC32 of the record between the buffer's position and limit, skipping over the CRC field itself
+     */
+    private static int checksum(ByteBuffer record) {
+        final int start = record.position();
+        final CRC32 crc = new CRC32();
+        crc.update(record.duplicate().limit(start + CRC_OFFSET));
+        crc.update(record.duplicate().position(start + RECORD_HEADER_SIZE));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A decoded record along with its size on disk
+     */
+    static class Record {
+        final KVPair kv;
+        final int length;
+        final boolean hasRingHash;
+        final long ringHashHigh, ringHashLow;
+
+        private Record(KVPair kv, int length, boolean hasRingHash, long ringHashHigh, long ringHashLow) {
+            this.kv = kv;
+            this.length = length;
+            this.hasRingHash = hasRingHash;
+            this.ringHashHigh = ringHashHigh;
+            this.ringHashLow = ringHashLow;
+        }
+    }
+
+    /**
+     * Sequentially decodes records from a stream
+     */
+    static class Reader implements Closeable {
+        /**
+         * File being read if known, so that reading can carry on past a record whose lengths are unusable
+         */
+        private final File file;
+        private DataInputStream input;
+        private long position;
+
+        /**
+         * @param input    positioned at the start of a record
+         * @param position of the input, used to report record locations
+         */
+        Reader(InputStream input, long position) {
+            this(null, input, position);
+        }
+
+        private Reader(File file, InputStream input, long position) {
+            this.file = file;
+            this.input = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+            this.position = position;
+        }
+
+        /**
+         * @param file     beginning with a {@link #fileHeader()}
+         * @param position of a record in the file
+         * @return a reader positioned at that record
+         */
+        static Reader open(File file, long position) throws IOException {
+            final FileInputStream input = new FileInputStream(file);
+            try {
+                input.getChannel().position(position);
+                return new Reader(file, input, position);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @param file beginning with a {@link #fileHeader()}
+         * @return a reader positioned at the first record
+         */
+        static Reader open(File file) throws IOException {
+            final InputStream input = new FileInputStream(file);
+            try {
+                final byte[] header = new byte[FILE_HEADER_SIZE];
+                new DataInputStream(input).readFully(header);
+                final ByteBuffer buffer = ByteBuffer.wrap(header);
+                if (buffer.getInt() != MAGIC) throw new IOException("Not a record file: " + file.getName());
+                checkVersion(buffer.getShort(), file);
+                return new Reader(file, input, FILE_HEADER_SIZE);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return location of the next record i.e. just past the last successfully read one
+         */
+        long position() {
+            return position;
+        }
+
+        /**
+         * @return the next record, or null at the end of the stream
+         * @throws EOFException           if the stream ends partway through a record, or the record's lengths are
+         *                                unusable and (if reading a file) no intact record follows; either way nothing
+         *                                past {@link #position()} can be trusted
+         * @throws CorruptRecordException if a complete record fails its checks, or if a file had unusable lengths in
+         *                                the middle of it and was skipped to the next intact record; reading may carry
+         *                                on after it
+         */
+        Record next() throws IOException {
+            final int flags = input.read();
+            if (flags < 0) return null;
+
+            final byte[] record;
+            try {
+                final byte[] header = new byte[RECORD_HEADER_SIZE];
+                header[0] = (byte) flags;
+                input.readFully(header, 1, header.length - 1);
+                final ByteBuffer lengths = ByteBuffer.wrap(header, 1, 2 * Integer.BYTES);
+                final long length = recordLength(flags, lengths.getInt(), lengths.getInt());
+                if (length < 0) throw new EOFException("Implausible record length");
+
+                record = new byte[(int) length];
+                System.arraycopy(header, 0, record, 0, header.length);
+                input.readFully(record, header.length, record.length - header.length);
+            } catch (EOFException e) {
+                // A torn write at the end of the file, or lengths corrupted somewhere in the middle of it
+                final long next = file == null ? -1 : findRecord(file, position + 1);
+                if (next < 0) throw e;
+                final long skipped = next - position;
+                input.close();
+                final FileInputStream resumed = new FileInputStream(file);
+                resumed.getChannel().position(next);
+                input = new DataInputStream(new BufferedInputStream(resumed, 64 * 1024));
+                position = next;
+                throw new CorruptRecordException(String.format("Skipped %d unreadable bytes (%s)", skipped, e.getMessage()));
+            }
+            position += record.length;
+            return decode(record, 0, record.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Thrown when a record's contents don't match its header or checksum
+     */
+    static class CorruptRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptRecordException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package app_kvServer.storage;
+
+import app_kvServer.storage.IKVStorage.KVPair;
+import ecs.ECSHashRing;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.function.Predicate;
+
+/**
+ * The keys whose ring hash falls within (lower, upper] on the hash ring, wrapping around if upper &lt; lower and
+ * covering everything if they're equal.
+ * <p>
+ * Hashes are held as two unsigned longs so that checking a key is a couple of primitive comparisons rather than
+ * {@link BigInteger} arithmetic. Stores that keep each record's ring hash (see {@link KVSingleFileStorage}) recognize
+ * this filter and apply it to their index, so records outside the range are never read or hashed at all.
+ */
+public final class KVRingRange implements Predicate<KVPair> {
+    private final long lowerHigh, lowerLow, upperHigh, upperLow;
+    private final int span;
+    private final boolean inverted;
+
+    private KVRingRange(long lowerHigh, long lowerLow, long upperHigh, long upperLow, boolean inverted) {
+        this.lowerHigh = lowerHigh;
+        this.lowerLow = lowerLow;
+        this.upperHigh = upperHigh;
+        this.upperLow = upperLow;
+        this.span = compare(upperHigh, upperLow, lowerHigh, lowerLow);
+        this.inverted = inverted;
+    }
+
+    /**
+     * @param lower exclusive start of the range, as a hex string e.g. a node's predecessor's hash
+     * @param upper inclusive end of the range, as a hex string e.g. the node's own hash
+     * @return a filter accepting keys in the range
+     * @throws NumberFormatException if either bound isn't hex
+     */
+    public static KVRingRange fromHex(String lower, String upper) {
+        final BigInteger l = new BigInteger(lower, 16), r = new BigInteger(upper, 16);
+        return new KVRingRange(l.shiftRight(Long.SIZE).longValue(), l.longValue(),
+                r.shiftRight(Long.SIZE).longValue(), r.longValue(), false);
+    }
+
+    /**
+     * @param high first 8 bytes of the ring hash (see {@link #high(byte[])})
+     * @param low  last 8 bytes of the ring hash (see {@link #low(byte[])})
+     * @return true if the hash lies within this range
+     */
+    public boolean contains(long high, long low) {
+        final boolean aboveLower = compare(high, low, lowerHigh, lowerLow) > 0;
+        final boolean atOrBelowUpper = compare(high, low, upperHigh, upperLow) <= 0;
+        final boolean contained;
+        if (span == 0) contained = true; // Single node hash ring: this node is responsible for everything
+        else if (span > 0) contained = aboveLower && atOrBelowUpper; // Regular hash ring check
+        else contained = aboveLower || atOrBelowUpper; // Wraparound case
+        return contained != inverted;
+    }
+
+    /**
+     * @return true if every hash in [start, end] lies within this range
+     */
+    boolean containsAll(long startHigh, long startLow, long endHigh, long endLow) {
+        return inverted
+                ? !overlaps(startHigh, startLow, endHigh, endLow)
+                : covers(startHigh, startLow, endHigh, endLow);
+    }
+
+    /**
+     * @return true if any hash in [start, end] lies within this range
+     */
+    boolean containsAny(long startHigh, long startLow, long endHigh, long endLow) {
+        return inverted
+                ? !covers(startHigh, startLow, endHigh, endLow)
+                : overlaps(startHigh, startLow, endHigh, endLow);
+    }
+
+    /**
+     * @return true if (lower, upper] includes all of [start, end], ignoring inversion
+     */
+    private boolean covers(long startHigh, long startLow, long endHigh, long endLow) {
+        final boolean startAboveLower = compare(startHigh, startLow, lowerHigh, lowerLow) > 0;
+        final boolean endAtOrBelowUpper = compare(endHigh, endLow, upperHigh, upperLow) <= 0;
+        if (span == 0) return true;
+        if (span > 0) return startAboveLower && endAtOrBelowUpper;
+        return startAboveLower || endAtOrBelowUpper; // [start, end] doesn't wrap, so it must sit on one side of zero
+    }
+
+    /**
+     * @return true if (lower, upper] includes any of [start, end], ignoring inversion
+     */
+    private boolean overlaps(long startHigh, long startLow, long endHigh, long endLow) {
+        final boolean endAboveLower = compare(endHigh, endLow, lowerHigh, lowerLow) > 0;
+        final boolean startAtOrBelowUpper = compare(startHigh, startLow, upperHigh, upperLow) <= 0;
+        if (span == 0) return true;
+        if (span > 0) return endAboveLower && startAtOrBelowUpper;
+        return endAboveLower || startAtOrBelowUpper;
+    }
+
+    @Override
+    public boolean test(KVPair kv) {
+        final byte[] hash = ECSHashRing.computeHashBytes(kv.key);
+        return contains(high(hash), low(hash));
+    }
+
+    /**
+     * @return the complement of this range, still recognizable as a range by stores
+     */
+    @Override
+    public KVRingRange negate() {
+        return new KVRingRange(lowerHigh, lowerLow, upperHigh, upperLow, !inverted);
+    }
+
+    /**
+     * @param hash from {@link ECSHashRing#computeHashBytes(String)}
+     * @return its most significant 8 bytes
+     */
+    static long high(byte[] hash) {
+        return ByteBuffer.wrap(hash).getLong(0);
+    }
+
+    /**
+     * @param hash from {@link ECSHashRing#computeHashBytes(String)}
+     * @return its least significant 8 bytes
+     */
+    static long low(byte[] hash) {
+        return ByteBuffer.wrap(hash).getLong(Long.BYTES);
+    }
+
+    private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+        final int high = Long.compareUnsigned(aHigh, bHigh);
+        return high != 0 ? high : Long.compareUnsigned(aLow, bLow);
+    }
+}
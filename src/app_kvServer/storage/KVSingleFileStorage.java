@@ -2,42 +2,207 @@ package app_kvServer.storage;
 
 import app_kvServer.KVServerException;
 import app_kvServer.storage.IKVStorage.KVPair.Tombstone;
+import ecs.ECSHashRing;
 import org.apache.log4j.Logger;
 import shared.messages.KVMessage;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * A tombstone-based key-value store that enables fast writes and concurrent reads.
- * TODO: performance improvements (https://github.com/ArjunM98/DistributedSystems/issues/18)
- * - Key index to improve {@link #inStorage(String)} performance
- * - Tombstone compaction and/or other file cleanup when it gets too large
+ * <p>
+ * Records are appended in the binary {@link KVRecordFormat}; stores in the old text format are converted on startup.
+ * An in-memory index maps each live key to the location of its most recent record so point reads are a single
+ * positional read instead of a scan of the whole file. Each record also carries its key's ring hash, which the index
+ * keeps too, so moving or deleting a range of the hash ring (see {@link KVRingRange}) only reads the records in it.
+ * <p>
+ * Writes are appended through a long-lived channel with group commit: concurrent writers queue up and the first in
+ * line writes everyone's records with a single call (and at most one fsync, see {@link DurabilityPolicy}) before
+ * publishing them to the index. Readers never take a lock: they look up the current {@link Generation} of the store
+ * and read from it with positional reads, so neither readers nor writers ever wait on each other.
+ * <p>
+ * Overwritten and deleted records are garbage collected in the background once they make up enough of the file (see
+ * {@link #compact(Predicate)}); writers are only blocked for the final swap of files.
+ * <p>
+ * Since records never move within a file, streams (see {@link #openKvStream(Predicate)}) and named snapshots (see
+ * {@link KVSnapshots}) just hold on to the file, or a hard link to it, along with a copy of the index.
+ * <p>
+ * Keys can be written with a deadline (see {@link KVPair#expiresAt}), which the index keeps too: reads hide them as
+ * soon as it passes, a background sweep then drops them from the index, and compaction drops their records.
+ * <p>
+ * Optionally, a {@link KVTrigramIndex} over the live keys narrows Queries (see {@link KVPatternFilter}) down to the
+ * keys that could possibly match before any records are read.
  */
 public class KVSingleFileStorage implements IKVStorage {
     private static final Logger logger = Logger.getRootLogger();
 
-    private final ReadWriteLock lock;
+    /**
+     * Compact once dead bytes reach this multiple of live bytes...
+     */
+    private static final double GARBAGE_RATIO_THRESHOLD = 1.0;
+
+    /**
+     * ...but don't bother for small files
+     */
+    private static final long MIN_GARBAGE_BYTES = 4L << 20;
+
+    private static final long COMPACTION_CHECK_INTERVAL_SECONDS = 30;
+
+    /**
+     * Expired keys are swept out of the index at most this many at a time, this often, so a burst of expiries never
+     * holds up writers for long; until then reads hide them anyway
+     */
+    private static final int MAX_SWEPT_KEYS = 1000;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Upper bound on how much a single group commit writes, so early arrivals aren't held up indefinitely
+     */
+    private static final int MAX_BATCH_BYTES = 1 << 20;
+    private static final int COMPACTION_CHUNK_BYTES = 1 << 20;
+
+    /**
+     * Granularity of memory mappings; a region is only mapped once the file has grown past its end
+     */
+    private static final int MAPPED_REGION_BYTES = 1 << 26;
+
+    /**
+     * Shared by all partitions so that at most one file is being rewritten at a time
+     */
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "storage-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final File storage;
 
+    /**
+     * Snapshot of the index taken at compaction and shutdown so startup can skip most of the store, see
+     * {@link KVHintFile}
+     */
+    private final File hint;
+
+    /**
+     * Held by anything that replaces {@link #storage} or otherwise needs record locations to stay put for longer than
+     * a single locked operation. Acquire before {@link #commitLock}, never after.
+     */
+    private final ReentrantLock compactionLock;
+
+    /**
+     * Held while appending to the store or replacing {@link #generation}, making the holder the only one that can
+     * change either. Hold it to take a snapshot of the index that lines up exactly with {@link Generation#end}.
+     */
+    private final ReentrantLock commitLock;
+
+    /**
+     * Writes waiting to be committed; the head of the queue is the leader and commits on behalf of the rest
+     */
+    private final Deque<PendingWrite> pendingWrites;
+    private final ReentrantLock queueLock;
+    private final Condition batchCommitted;
+
+    private final DurabilityPolicy durability;
+    private final ScheduledFuture<?> syncTask;
+    private volatile boolean unsyncedWrites;
+
+    /**
+     * The file readers should currently be using, see {@link Generation}
+     */
+    private volatile Generation generation;
+
+    /**
+     * Trigrams of every key in the index, or null if not enabled; updated under {@link #commitLock}
+     */
+    private volatile KVTrigramIndex trigrams;
+
+    /**
+     * How much of the store is taken up by the records in the index
+     */
+    private volatile long liveBytes;
+
+    /**
+     * Size of the records appended since opening, as written and as they would have been without compression;
+     * guarded by {@link #commitLock}
+     */
+    private volatile long appendedBytes, appendedUncompressedBytes;
+
+    private volatile long lastCompactionMillis;
+    private final AtomicBoolean compactionRequested;
+    private final ScheduledFuture<?> compactionCheck;
+
+    /**
+     * Deadlines of the keys written with one, soonest first; guarded by {@link #commitLock}. Entries outlive
+     * overwrites and deletes of their key, and are simply skipped when they come up.
+     */
+    private final PriorityQueue<Expiry> expiries;
+    private final ScheduledFuture<?> sweepTask;
+
+    /**
+     * Long-lived handle for positional writes; reopened whenever {@link #storage} is swapped out for a new file
+     */
+    private volatile FileChannel writer;
+    private final Object mappingMutex = new Object();
+
+    /**
+     * Set by {@link #close()} under both the {@link #compactionLock} and {@link #commitLock}; background work queued
+     * before then checks it under either before touching the files
+     */
+    private volatile boolean closed;
+
     public KVSingleFileStorage(String directory) {
-        this(directory, "naive.txt");
+        this(directory, "naive.db");
     }
 
     public KVSingleFileStorage(String directory, String filename) {
-        this.lock = new ReentrantReadWriteLock();
+        this(directory, filename, DurabilityPolicy.NONE);
+    }
+
+    public KVSingleFileStorage(String directory, String filename, DurabilityPolicy durability) {
+        this(directory, filename, durability, false);
+    }
+
+    /**
+     * @param directory    to keep the store in
+     * @param filename     of the store within the directory
+     * @param durability   when appended records are forced to disk
+     * @param trigramIndex whether to index the trigrams of every key to speed up Queries, at the cost of memory and
+     *                     some write throughput
+     */
+    public KVSingleFileStorage(String directory, String filename, DurabilityPolicy durability, boolean trigramIndex) {
+        this.compactionLock = new ReentrantLock();
+        this.commitLock = new ReentrantLock();
+        this.pendingWrites = new ArrayDeque<>();
+        this.queueLock = new ReentrantLock();
+        this.batchCommitted = queueLock.newCondition();
+        this.durability = durability;
         this.storage = new File(directory, filename);
+        this.hint = new File(directory, filename + ".hint");
+        this.compactionRequested = new AtomicBoolean(false);
+        this.expiries = new PriorityQueue<>(Comparator.comparingLong(expiry -> expiry.expiresAt));
 
         //noinspection ResultOfMethodCallIgnored
         this.storage.getParentFile().mkdirs();
@@ -47,154 +212,324 @@ public class KVSingleFileStorage implements IKVStorage {
         } catch (IOException e) {
             throw new RuntimeException("Unable to create storage file", e);
         }
+
+        try {
+            if (this.storage.length() == 0) resetFile();
+            else if (!KVRecordFormat.hasFileHeader(this.storage)) migrateFromText();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to prepare storage file", e);
+        }
+
+        try {
+            rebuildIndex();
+            logger.info(String.format("Indexed %d keys in %s", generation.index.size(), this.storage.getName()));
+            if (trigramIndex) this.trigrams = new KVTrigramIndex(generation.index.keySet());
+            generation.index.forEach((key, pointer) -> {
+                if (pointer.expiresAt != KVPair.NO_EXPIRY) expiries.add(new Expiry(key, pointer.expiresAt));
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to index storage file", e);
+        }
+
+        this.compactionCheck = COMPACTOR.scheduleWithFixedDelay(this::compactIfNeeded,
+                COMPACTION_CHECK_INTERVAL_SECONDS, COMPACTION_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        this.syncTask = durability.schedule(this::sync);
+        this.sweepTask = COMPACTOR.scheduleWithFixedDelay(this::sweepExpired,
+                SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public boolean inStorage(String key) {
-        try {
-            return getKV(key) != null;
-        } catch (KVServerException e) {
-            return false;
-        }
+        final RecordPointer pointer = generation.index.get(key);
+        return pointer != null && !pointer.isExpired(System.currentTimeMillis());
     }
 
     @Override
     public String getKV(String key) throws KVServerException {
+        return getKVPair(key).value;
+    }
+
+    @Override
+    public KVPair getKVPair(String key) throws KVServerException {
         try {
-            lock.readLock().lock();
             return requireNonNull(readFromStore(key));
         } catch (Exception e) {
             throw new KVServerException("Key not found in storage", KVMessage.StatusType.GET_ERROR);
-        } finally {
-            lock.readLock().unlock();
         }
     }
 
     @Override
     public List<KVPair> getAllKV(Predicate<KVPair> filter) {
         try {
-            lock.readLock().lock();
             return requireNonNull(readFromStoreMany(filter));
         } catch (Exception e) {
             return new ArrayList<>();
-        } finally {
-            lock.readLock().unlock();
         }
     }
 
     @Override
     public void putKV(String key, String value) {
+        putKV(key, value, KVPair.NO_EXPIRY);
+    }
+
+    @Override
+    public void putKV(String key, String value, long expiresAt) {
         try {
-            lock.writeLock().lock();
-            writeToStore(new KVPair(Tombstone.VALID, key, value));
-        } finally {
-            lock.writeLock().unlock();
+            writeToStore(new PendingWrite(new KVPair(Tombstone.VALID, key, value, expiresAt), false));
+        } catch (IOException e) {
+            logger.error("An error occurred during write to store.", e);
         }
     }
 
     @Override
-    public List<KVPair> putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl) {
+    public void putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws KVServerException {
         try {
-            lock.writeLock().lock();
-            return writeToStoreMany(filter, valExpr, valRepl);
+            commitLock.lock();
+            writeToStoreMany(filter, valExpr, valRepl, updated);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to update KV pairs", e, KVMessage.StatusType.PUT_ALL_ERROR);
         } finally {
-            lock.writeLock().unlock();
+            commitLock.unlock();
         }
+        requestCompactionIfNeeded();
     }
 
     @Override
     public void delete(String key) throws KVServerException {
-        if (!inStorage(key)) throw new KVServerException("Key not found in storage", KVMessage.StatusType.DELETE_ERROR);
+        final PendingWrite write = new PendingWrite(new KVPair(Tombstone.DEAD, key, ""), true);
+        try {
+            writeToStore(write);
+        } catch (IOException e) {
+            throw new KVServerException("Unable to delete from storage", e, KVMessage.StatusType.DELETE_ERROR);
+        }
+        if (write.rejected) throw new KVServerException("Key not found in storage", KVMessage.StatusType.DELETE_ERROR);
+    }
+
+    @Override
+    public void putBatch(List<KVPair> batch) throws KVServerException {
+        final List<PendingWrite> writes = new ArrayList<>(batch.size());
+        for (KVPair kv : batch) writes.add(new PendingWrite(kv, kv.tombstone != Tombstone.VALID));
         try {
-            lock.writeLock().lock();
-            writeToStore(new KVPair(Tombstone.DEAD, key, ""));
+            commitLock.lock();
+            // Rejected tombstones are exactly the ones for keys that are already absent
+            int from = 0;
+            long batchBytes = 0;
+            for (int i = 0; i < writes.size(); i++) {
+                batchBytes += writes.get(i).record.length;
+                if (batchBytes >= MAX_BATCH_BYTES || i == writes.size() - 1) {
+                    commitBatch(writes.subList(from, i + 1));
+                    from = i + 1;
+                    batchBytes = 0;
+                }
+            }
+        } catch (IOException e) {
+            throw new KVServerException("Unable to write batch to storage", e, KVMessage.StatusType.PUT_ERROR);
         } finally {
-            lock.writeLock().unlock();
+            commitLock.unlock();
         }
+        requestCompactionIfNeeded();
     }
 
     @Override
     public void clearStorage() {
         try {
-            lock.writeLock().lock();
-            new FileWriter(storage).close();
+            compactionLock.lock();
+            commitLock.lock();
+            resetFile();
+            liveBytes = 0;
+            expiries.clear();
+            openChannels(new ConcurrentHashMap<>(), KVRecordFormat.FILE_HEADER_SIZE);
+            if (trigrams != null) trigrams = new KVTrigramIndex();
         } catch (IOException e) {
             logger.error("Could not clear storage", e);
         } finally {
-            lock.writeLock().unlock();
+            commitLock.unlock();
+            compactionLock.unlock();
         }
     }
 
     @Override
     public Stream<KVPair> openKvStream(Predicate<KVPair> filter) {
         try {
-            lock.writeLock().lock();
-            // 1. Remove dead entries; this will simplify the next steps since we can assume all keys are now unique
-            compactTombstones();
-
-            // 2. Copy over the desired keys into a new file
-            final File tempStorage = new File(storage.getAbsolutePath() + ".tmp." + System.currentTimeMillis());
-            try (Stream<String> inputLines = Files.lines(storage.toPath()); PrintWriter output = new PrintWriter(new FileWriter(tempStorage))) {
-                inputLines.map(KVPair::deserialize)
-                        .filter(Objects::nonNull)
-                        .filter(filter)
-                        .map(KVPair::serialize)
-                        .forEach(output::println);
-            }
-
-            // 3. Stream the results from this new file
-            return Files.lines(tempStorage.toPath())
-                    .onClose(() -> logger.info(tempStorage.delete()
-                            ? "KV stream successfully closed"
-                            : "Unable to delete temp file at " + tempStorage.getAbsolutePath()))
-                    .map(KVPair::deserialize)
-                    .filter(Objects::nonNull)
-                    .filter(filter);
+            return streamLiveRecords(filter);
         } catch (IOException e) {
             logger.error("Could not retrieve KV pairs", e);
             return Stream.empty();
+        }
+    }
+
+    /**
+     * {@link #openKvStream(Predicate)} for callers that must tell an empty store apart from an unreadable one
+     *
+     * @throws IOException if unable to open the store; failures while reading surface as {@link UncheckedIOException}
+     */
+    Stream<KVPair> streamLiveRecords(Predicate<KVPair> filter) throws IOException {
+        final List<Map.Entry<String, RecordPointer>> live;
+        final Predicate<KVPair> residual;
+        final FileChannel channel;
+        try {
+            compactionLock.lock();
+
+            // Records are never moved or overwritten within a file, so holding the file open is enough to read what
+            // is live right now for as long as we like, even if compaction replaces it afterwards
+            final Generation current = generation;
+            live = snapshotLiveRecords(current.index, filter);
+            residual = applyIndexFilter(live, filter);
+            channel = FileChannel.open(storage.toPath(), StandardOpenOption.READ);
         } finally {
-            lock.writeLock().unlock();
+            compactionLock.unlock();
         }
+        return streamRecords(channel, live, residual);
     }
 
     @Override
     public void deleteIf(Predicate<KVPair> filter) throws KVServerException {
         try {
-            lock.writeLock().lock();
-            // 1. Remove dead entries; this may speed things up
-            compactTombstones();
-
-            // 2. Copy over non-filtered keys into a new file
-            final File tempStorage = new File(storage.getAbsolutePath() + ".tmp." + System.currentTimeMillis());
-            try (Stream<String> inputLines = Files.lines(storage.toPath()); PrintWriter output = new PrintWriter(new FileWriter(tempStorage))) {
-                inputLines.map(KVPair::deserialize)
-                        .filter(Objects::nonNull)
-                        .filter(filter.negate())
-                        .map(KVPair::serialize)
-                        .forEach(output::println);
-            }
+            // Rewriting the file without the filtered keys is exactly a compaction that keeps fewer records
+            compact(filter.negate());
+        } catch (IOException e) {
+            throw new KVServerException("Unable to delete KV pairs", e, KVMessage.StatusType.DELETE_ALL_ERROR);
+        }
+    }
+
+    @Override
+    public void createSnapshot(String name) throws IOException {
+        KVSnapshots.create(storage.getParentFile(), name, directory -> List.of(snapshotTo(directory)));
+    }
+
+    @Override
+    public List<String> listSnapshots() {
+        return KVSnapshots.list(storage.getParentFile());
+    }
+
+    @Override
+    public Stream<KVPair> openSnapshotStream(String name, Predicate<KVPair> filter) throws IOException {
+        final File directory = KVSnapshots.directoryOf(storage.getParentFile(), name);
+        return openSnapshotStream(directory, KVSnapshots.segmentsOf(storage.getParentFile(), name).get(0), filter);
+    }
+
+    @Override
+    public void deleteSnapshot(String name) throws IOException {
+        KVSnapshots.delete(storage.getParentFile(), name);
+    }
 
-            // 3. Overwrite original file
-            if (!storage.delete() || !tempStorage.renameTo(storage)) {
-                throw new KVServerException("Unable to clear original file", KVMessage.StatusType.DELETE_ALL_ERROR);
+    /**
+     * Hard link the store into a snapshot directory, alongside a hint (see {@link KVHintFile}) listing exactly the
+     * records that are live right now. Writers are only held up while the index is copied.
+     *
+     * @param directory to put the snapshot in
+     * @return name of the store within the directory
+     * @throws IOException if unable to link the store or write the hint
+     */
+    String snapshotTo(File directory) throws IOException {
+        try {
+            compactionLock.lock();
+            final List<Map.Entry<String, RecordPointer>> live;
+            final long end;
+            try {
+                commitLock.lock();
+                live = snapshotLiveRecords(generation.index);
+                end = generation.end;
+            } finally {
+                commitLock.unlock();
             }
+
+            // The snapshot must never describe records that aren't durable yet
+            writer.force(false);
+            Files.createLink(new File(directory, storage.getName()).toPath(), storage.toPath());
+            KVHintFile.write(new File(directory, storage.getName() + ".hint"), end, live);
+            return storage.getName();
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Read back a store linked into a snapshot by {@link #snapshotTo(File)}
+     *
+     * @param directory of the snapshot
+     * @param filename  of the store within it
+     * @param filter    to apply to the snapshotted records
+     * @return the matching records, read lazily
+     * @throws IOException if the store or its hint is missing or unreadable
+     */
+    static Stream<KVPair> openSnapshotStream(File directory, String filename, Predicate<KVPair> filter) throws IOException {
+        final KVHintFile.Hint hint = KVHintFile.read(new File(directory, filename + ".hint"));
+        if (hint == null) throw new IOException(String.format("Missing or corrupt index for %s in %s", filename, directory));
+
+        final List<Map.Entry<String, RecordPointer>> live = snapshotLiveRecords(hint.index);
+        final Predicate<KVPair> residual = applyIndexFilter(live, filter);
+        return streamRecords(FileChannel.open(new File(directory, filename).toPath(), StandardOpenOption.READ), live, residual);
+    }
+
+    @Override
+    public void close() {
+        compactionCheck.cancel(false);
+        sweepTask.cancel(false);
+        if (syncTask != null) syncTask.cancel(false);
+        try {
+            compactionLock.lock();
+            commitLock.lock();
+            if (closed) return;
+            closed = true;
+            writeHint();
+            if (durability.getMode() != DurabilityPolicy.Mode.NONE) writer.force(false);
+            writer.close();
+            generation.reader.close();
         } catch (IOException e) {
-            logger.error("Could not delete KV pairs", e);
+            logger.error("Unable to close storage", e);
         } finally {
-            lock.writeLock().unlock();
+            commitLock.unlock();
+            compactionLock.unlock();
         }
     }
 
     /**
-     * NOT thread-safe -- use an external ReadLock
+     * @return bytes on disk belonging to the most recent record of a live key
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return bytes on disk belonging to overwritten records and tombstones, i.e. what compaction would reclaim
      */
-    private String readFromStore(String key) {
-        try (Stream<String> lines = Files.lines(storage.toPath())) {
-            final String latestEntry = lines.filter(line -> key.equals(line.substring(1, line.indexOf(KVPair.KV_DELIMITER))))
-                    .reduce((a, b) -> b).orElse(null);
-            return (latestEntry == null || latestEntry.charAt(0) != Tombstone.VALID.marker) ? null
-                    : latestEntry.substring(latestEntry.indexOf(KVPair.KV_DELIMITER) + 1);
+    public long getDeadBytes() {
+        return generation.end - KVRecordFormat.FILE_HEADER_SIZE - liveBytes;
+    }
+
+    /**
+     * @return how many times larger the records appended since opening would have been without value compression,
+     * 1 if nothing has been appended yet
+     */
+    public double getCompressionRatio() {
+        return appendedBytes == 0 ? 1 : (double) appendedUncompressedBytes / appendedBytes;
+    }
+
+    long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    long getAppendedUncompressedBytes() {
+        return appendedUncompressedBytes;
+    }
+
+    /**
+     * @return duration of the most recent compaction
+     */
+    public long getLastCompactionMillis() {
+        return lastCompactionMillis;
+    }
+
+    private KVPair readFromStore(String key) {
+        try {
+            return read(current -> {
+                final RecordPointer pointer = current.index.get(key);
+                if (pointer == null || pointer.isExpired(System.currentTimeMillis())) return null;
+
+                final KVPair kv = KVRecordFormat.decode(readRange(current, pointer.offset, pointer.length)).kv;
+                return kv.tombstone != Tombstone.VALID ? null : kv;
+            });
         } catch (IOException e) {
             logger.error("An error occurred during read from store.", e);
             return null;
@@ -202,25 +537,12 @@ public class KVSingleFileStorage implements IKVStorage {
     }
 
     /**
-     * NOT thread-safe -- use an external ReadLock
-     *
      * @param filter - isolate relevant details
      * @return all KVPairs that match the filter
      */
     private List<KVPair> readFromStoreMany(Predicate<KVPair> filter) {
-        final Map<String, KVPair> keyKVPair = new HashMap<>();
-        try (Stream<String> lines = Files.lines(storage.toPath())) {
-            lines.sequential()
-                    .map(KVPair::deserialize)
-                    .filter(filter)
-                    .forEachOrdered(kv -> {
-                        if (kv.tombstone == Tombstone.VALID) {
-                            keyKVPair.put(kv.key, kv);
-                        } else {
-                            keyKVPair.remove(kv.key);
-                        }
-                    });
-            List<KVPair> vals = new ArrayList<>(keyKVPair.values());
+        try {
+            final List<KVPair> vals = readLiveRecords(filter);
             return vals.size() > 0 ? vals : null;
         } catch (IOException e) {
             logger.error("An error occurred during read from store.", e);
@@ -229,98 +551,902 @@ public class KVSingleFileStorage implements IKVStorage {
     }
 
     /**
-     * NOT thread-safe -- use an external WriteLock
+     * Join the group commit queue and wait for this write to be committed, either by ourselves as the leader or by
+     * whoever was ahead of us
+     *
+     * @throws IOException if the batch containing this write could not be written
      */
-    private void writeToStore(KVPair kv) {
+    private void writeToStore(PendingWrite write) throws IOException {
+        final List<PendingWrite> batch = new ArrayList<>();
         try {
-            if (!storage.canWrite() && !storage.createNewFile()) logger.warn("Could not access store");
-            try (PrintWriter writer = new PrintWriter(new FileWriter(storage, true))) {
-                writer.println(kv.serialize());
+            queueLock.lock();
+            pendingWrites.addLast(write);
+            while (!write.committed && pendingWrites.peekFirst() != write) batchCommitted.awaitUninterruptibly();
+            if (write.committed) {
+                if (write.failure != null) throw write.failure;
+                return;
+            }
+
+            // We're the leader: take everyone who has shown up so far, within reason
+            long batchBytes = 0;
+            for (PendingWrite pending : pendingWrites) {
+                if (!batch.isEmpty() && batchBytes + pending.record.length > MAX_BATCH_BYTES) break;
+                batch.add(pending);
+                batchBytes += pending.record.length;
             }
+        } finally {
+            queueLock.unlock();
+        }
+
+        IOException failure = null;
+        try {
+            commitLock.lock();
+            commitBatch(batch);
         } catch (IOException e) {
-            logger.error("An error occurred during write to store.", e);
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("Unable to commit batch", e);
+        } finally {
+            commitLock.unlock();
+
+            // Hand over to the next leader, if any
+            queueLock.lock();
+            for (PendingWrite pending : batch) {
+                pendingWrites.removeFirst();
+                pending.failure = failure;
+                pending.committed = true;
+            }
+            batchCommitted.signalAll();
+            queueLock.unlock();
         }
+        requestCompactionIfNeeded();
+        if (write.failure != null) throw write.failure;
     }
 
     /**
-     * NOT thread-safe -- use an external WriteLock
+     * Write a batch of records to the end of the store with a single call, then publish them to the index.
+     * The caller must hold {@link #commitLock}.
+     *
+     * @param batch to write, in order; deletes of keys which are (by then) absent are rejected rather than written
+     * @throws IOException on write failure, in which case none of the batch is published
      */
-    private List<KVPair> writeToStoreMany(Predicate<KVPair> filter, String valExpr, String valRepl) {
+    private void commitBatch(List<PendingWrite> batch) throws IOException {
+        // 1. Decide what to write; only we can change the index, so what we see here holds until we're done
+        final Generation current = generation;
+        final Map<String, Boolean> batchExists = new HashMap<>();
+        final List<PendingWrite> accepted = new ArrayList<>(batch.size());
+        int batchBytes = 0;
+        final long now = System.currentTimeMillis();
+        for (PendingWrite write : batch) {
+            final boolean exists = batchExists.computeIfAbsent(write.kv.key, key -> {
+                final RecordPointer pointer = current.index.get(key);
+                return pointer != null && !pointer.isExpired(now);
+            });
+            if (write.requireExisting && !exists) {
+                write.rejected = true;
+                continue;
+            }
+            batchExists.put(write.kv.key, write.kv.tombstone == Tombstone.VALID && !write.kv.isExpired(now));
+            accepted.add(write);
+            batchBytes += write.record.length;
+        }
+        if (accepted.isEmpty()) return;
+
+        // 2. Write it all out in one go
+        final ByteBuffer buffer = ByteBuffer.allocate(batchBytes);
+        for (PendingWrite write : accepted) buffer.put(write.record);
+        buffer.flip();
+        final long start = current.end;
+        while (buffer.hasRemaining()) writer.write(buffer, start + buffer.position());
+        if (durability.getMode() == DurabilityPolicy.Mode.BATCH) writer.force(false);
+        else unsyncedWrites = true;
+
+        // 3. Make it visible to readers: move the end of the log first so anything indexed always lies before it, and
+        // keep the trigram index a superset of the index by adding keys before they appear and removing them after
+        current.end = start + batchBytes;
+        long offset = start;
+        final KVTrigramIndex trigrams = this.trigrams;
+        for (PendingWrite write : accepted) {
+            final boolean valid = write.kv.tombstone == Tombstone.VALID && !write.kv.isExpired(now);
+            if (trigrams != null && valid) trigrams.add(write.kv.key);
+            liveBytes += indexRecord(current.index, write.kv, new RecordPointer(offset, write.record.length, write.ringHash, write.kv.expiresAt));
+            if (trigrams != null && !valid) trigrams.remove(write.kv.key);
+            if (valid && write.kv.expiresAt != KVPair.NO_EXPIRY) expiries.add(new Expiry(write.kv.key, write.kv.expiresAt));
+            appendedUncompressedBytes += write.uncompressedLength;
+            offset += write.record.length;
+        }
+        appendedBytes += batchBytes;
+    }
+
+    /**
+     * Background sync for {@link DurabilityPolicy.Mode#PERIODIC}; doesn't block readers or writers
+     */
+    private void sync() {
+        if (!unsyncedWrites) return;
+        unsyncedWrites = false;
         try {
-            if (!storage.canWrite() && !storage.createNewFile()) logger.warn("Could not access store");
-
-            final Map<String, KVPair> keyKVPair = new HashMap<>();
-
-            // 1. Identify valid entries first
-            try (Stream<String> lines = Files.lines(storage.toPath())) {
-                lines.sequential()
-                        .map(KVPair::deserialize)
-                        .filter(filter)
-                        .forEachOrdered(kv -> {
-                            if (kv.tombstone == Tombstone.VALID) {
-                                keyKVPair.put(kv.key, kv);
-                            } else {
-                                keyKVPair.remove(kv.key);
+            writer.force(false);
+        } catch (ClosedChannelException e) {
+            // Swapped out by compaction, which syncs the new file itself, or closed
+        } catch (IOException e) {
+            unsyncedWrites = true;
+            logger.error(String.format("Unable to sync %s", storage.getName()), e);
+        }
+    }
+
+    /**
+     * Background expiry: drop keys whose deadline has passed from the index, up to {@link #MAX_SWEPT_KEYS} at a time.
+     * No tombstone is needed since replaying an expired record (see {@link #indexRecord}) already treats it as dead.
+     */
+    private void sweepExpired() {
+        final long now = System.currentTimeMillis();
+        int swept = 0;
+        try {
+            commitLock.lock();
+            if (closed) return;
+            final Map<String, RecordPointer> index = generation.index;
+            final KVTrigramIndex trigrams = this.trigrams;
+            while (swept < MAX_SWEPT_KEYS && !expiries.isEmpty() && expiries.peek().expiresAt <= now) {
+                final Expiry expiry = expiries.poll();
+                final RecordPointer pointer = index.get(expiry.key);
+                if (pointer == null || pointer.expiresAt != expiry.expiresAt) continue; // Overwritten or deleted since
+                index.remove(expiry.key);
+                liveBytes -= pointer.length;
+                if (trigrams != null) trigrams.remove(expiry.key);
+                swept++;
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        if (swept > 0) requestCompactionIfNeeded();
+    }
+
+    /**
+     * NOT thread-safe -- use {@link #commitLock}
+     * <p>
+     * Stream through the live records a chunk at a time, committing replacements whenever they fill a batch, so only
+     * the index entries and a batch of records are ever held in memory. Holding the lock keeps the generation current
+     * throughout, and records committed along the way land after the snapshot so they're never visited twice.
+     *
+     * @throws IOException on read or write failure, in which case batches committed so far stay committed
+     */
+    private void writeToStoreMany(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws IOException {
+        final Generation current = generation;
+        final List<Map.Entry<String, RecordPointer>> live = snapshotLiveRecords(current.index, filter);
+        final Predicate<KVPair> residual = applyIndexFilter(live, filter);
+        final Pattern find = Pattern.compile(valExpr);
+
+        final List<PendingWrite> batch = new ArrayList<>();
+        final long[] batchBytes = {0};
+        readRecordChunks(current, live, (key, pointer, record) -> {
+            final KVPair original = KVRecordFormat.decode(record).kv;
+            if (residual != null && !residual.test(original)) return;
+            final KVPair kv = new KVPair(Tombstone.VALID, original.key, find.matcher(original.value).replaceAll(valRepl), original.expiresAt);
+            final PendingWrite write = new PendingWrite(kv, false);
+            batch.add(write);
+            batchBytes[0] += write.record.length;
+            updated.add(kv);
+        }, () -> {
+            if (batchBytes[0] < MAX_BATCH_BYTES) return;
+            commitBatch(batch);
+            batch.clear();
+            batchBytes[0] = 0;
+        });
+        commitBatch(batch);
+    }
+
+    /**
+     * Queue up a background compaction if garbage has piled up; cheap enough to call after every write
+     */
+    private void requestCompactionIfNeeded() {
+        if (isCompactionNeeded() && compactionRequested.compareAndSet(false, true)) {
+            COMPACTOR.execute(this::compactIfNeeded);
+        }
+    }
+
+    private boolean isCompactionNeeded() {
+        final long deadBytes = getDeadBytes();
+        return deadBytes >= MIN_GARBAGE_BYTES && deadBytes >= liveBytes * GARBAGE_RATIO_THRESHOLD;
+    }
+
+    /**
+     * Background compaction entry point; a no-op if someone else is already rewriting the file
+     */
+    private void compactIfNeeded() {
+        compactionRequested.set(false);
+        if (!isCompactionNeeded() || !compactionLock.tryLock()) return;
+        try {
+            if (!closed) compact(null);
+        } catch (IOException e) {
+            logger.error(String.format("Unable to compact %s", storage.getName()), e);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrite the store with only its live records, optionally dropping some of those too. Runs incrementally:
+     * 1. Snapshot the index (briefly holds the {@link #commitLock})
+     * 2. Copy live records into a new file in chunks (holds no lock: the file is append-only so snapshotted
+     * records never move, and readers and writers carry on as normal)
+     * 3. Copy over anything appended since the snapshot, then atomically swap files and publish a new
+     * {@link Generation} (briefly holds the {@link #commitLock}; readers are never blocked)
+     *
+     * @param keep if non-null, only live records satisfying this are carried over; records appended while compaction
+     *             was running are always carried over. Records that have expired are never carried over.
+     * @throws IOException if unable to complete compaction or the store is closed, in which case the store is left
+     *                     untouched
+     */
+    private void compact(Predicate<KVPair> keep) throws IOException {
+        final long start = System.currentTimeMillis();
+        final File tempStorage = new File(storage.getAbsolutePath() + ".tmp." + start);
+        try {
+            compactionLock.lock();
+            if (closed) throw new IOException(String.format("%s is closed", storage.getName()));
+
+            // 1. Snapshot
+            final Generation current;
+            final List<Map.Entry<String, RecordPointer>> live;
+            final long snapshotEnd;
+            try {
+                commitLock.lock();
+                current = generation;
+                live = snapshotLiveRecords(current.index);
+                snapshotEnd = current.end;
+            } finally {
+                commitLock.unlock();
+            }
+
+            try (FileChannel output = FileChannel.open(tempStorage.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                // 2. Bulk copy
+                final Map<String, RecordPointer> newIndex = new ConcurrentHashMap<>(Math.max(16, live.size() * 4 / 3));
+                output.write(ByteBuffer.wrap(KVRecordFormat.fileHeader()));
+                final int snapshotSize = live.size();
+                final Predicate<KVPair> residual = applyIndexFilter(live, keep);
+                final boolean dropping = keep != null || live.size() < snapshotSize;
+                final long copiedLength = copyRecords(current, live, output, KVRecordFormat.FILE_HEADER_SIZE, residual, newIndex);
+
+                try {
+                    commitLock.lock();
+
+                    // 3a. Catch up on the tail, shifting record locations to where they'll be in the new file
+                    final long tailLength = current.end - snapshotEnd, shift = copiedLength - snapshotEnd;
+                    long tailLiveBytes = 0;
+                    if (tailLength > 0) {
+                        // transferTo may copy less than asked, so keep at it; nothing at all means the tail went missing
+                        for (long copied = 0; copied < tailLength; ) {
+                            final long transferred = current.reader.transferTo(snapshotEnd + copied, tailLength - copied, output);
+                            if (transferred <= 0) {
+                                throw new IOException(String.format("Copied only %d of %d tail bytes of %s", copied, tailLength, storage.getName()));
                             }
-                        });
+                            copied += transferred;
+                        }
+                        try (FileInputStream input = new FileInputStream(storage)) {
+                            input.getChannel().position(snapshotEnd);
+                            final KVRecordFormat.Reader tail = new KVRecordFormat.Reader(input, snapshotEnd);
+                            for (long offset = tail.position(); ; offset = tail.position()) {
+                                final KVRecordFormat.Record record = tail.next();
+                                if (record == null) break;
+                                tailLiveBytes += indexRecord(newIndex, record.kv, RecordPointer.of(offset + shift, record));
+                            }
+                        }
+                    }
+                    output.force(false);
+
+                    // 3b. Swap, invalidating the old file's hint first in case we crash in between
+                    Files.deleteIfExists(hint.toPath());
+                    Files.move(tempStorage.toPath(), storage.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    liveBytes = copiedLength - KVRecordFormat.FILE_HEADER_SIZE + tailLiveBytes;
+                    openChannels(newIndex, copiedLength + tailLength);
+
+                    // 3c. Forget the keys that were filtered out or expired
+                    if (trigrams != null && dropping) {
+                        for (String key : current.index.keySet()) {
+                            if (!newIndex.containsKey(key)) trigrams.remove(key);
+                        }
+                    }
+                } finally {
+                    commitLock.unlock();
+                }
             }
+            writeHint();
 
-            List<KVPair> newVals = new ArrayList<>();
-            // 2. Write the updated values to the file
-            try (PrintWriter writer = new PrintWriter(new FileWriter(storage, true))) {
-                keyKVPair.values().stream()
-                        .map(kv -> new KVPair(kv.key, kv.value.replaceAll(valExpr, valRepl)))
-                        .forEach(kv -> {
-                            newVals.add(kv);
-                            writer.println(kv.serialize());
-                        });
+            lastCompactionMillis = System.currentTimeMillis() - start;
+            logger.info(String.format("Compacted %s from %d to %d bytes in %d ms",
+                    storage.getName(), snapshotEnd, generation.end, lastCompactionMillis));
+        } finally {
+            compactionLock.unlock();
+            if (tempStorage.exists() && !tempStorage.delete()) {
+                logger.warn("Unable to delete temp file at " + tempStorage.getAbsolutePath());
             }
+        }
+    }
 
-            return newVals;
+    /**
+     * NOT thread-safe -- use an external {@link #compactionLock}
+     * <p>
+     * Snapshot the index into {@link #hint}. Failure only costs a slower startup so it's logged rather than thrown.
+     */
+    private void writeHint() {
+        final List<Map.Entry<String, RecordPointer>> live;
+        final long coveredLength;
+        try {
+            commitLock.lock();
+            live = snapshotLiveRecords(generation.index);
+            coveredLength = generation.end;
+        } finally {
+            commitLock.unlock();
+        }
 
+        try {
+            // The hint must never describe records that aren't durable yet
+            writer.force(false);
+            KVHintFile.write(hint, coveredLength, live);
         } catch (IOException e) {
-            logger.error("An error occurred during write to store.", e);
-            return new ArrayList<>();
+            logger.warn("Unable to write hint file for " + storage.getName(), e);
         }
     }
 
     /**
-     * NOT thread-safe -- use an external WriteLock
+     * Safe to call at any time, though only consistent with {@link Generation#end} under {@link #commitLock}
      *
-     * @throws IOException if unable to complete compaction
-     */
-    private void compactTombstones() throws IOException {
-        // 1. Build index of keys mapping to the row number of their most recent entry
-        final Map<String, Integer> keyRowMap = new HashMap<>();
-
-        try (Stream<String> lines = Files.lines(storage.toPath())) {
-            final AtomicInteger index = new AtomicInteger(0);
-            lines.sequential().forEachOrdered(line -> {
-                final String key = line.substring(1, line.indexOf(KVPair.KV_DELIMITER));
-                if (line.charAt(0) != Tombstone.VALID.marker) {
-                    keyRowMap.remove(key);
-                } else {
-                    keyRowMap.put(key, index.get());
-                }
-                index.incrementAndGet();
+     * @return a copy of the index entries, in the order the records appear in the file
+     */
+    private static List<Map.Entry<String, RecordPointer>> snapshotLiveRecords(Map<String, RecordPointer> index) {
+        final List<Map.Entry<String, RecordPointer>> live = new ArrayList<>(index.size());
+        for (Map.Entry<String, RecordPointer> entry : index.entrySet()) {
+            live.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+        live.sort(Comparator.comparingLong(entry -> entry.getValue().offset));
+        return live;
+    }
+
+    /**
+     * Safe to call at any time, though only consistent with {@link Generation#end} under {@link #commitLock}
+     *
+     * @param filter the records will be put through; if the {@link #trigrams} can rule out most keys, only the rest
+     *               are included
+     * @return a copy of the index entries that may pass the filter, in the order the records appear in the file
+     */
+    private List<Map.Entry<String, RecordPointer>> snapshotLiveRecords(Map<String, RecordPointer> index, Predicate<KVPair> filter) {
+        final KVTrigramIndex trigrams = this.trigrams;
+        final Set<String> candidates = trigrams != null && filter instanceof KVPatternFilter
+                ? trigrams.candidates(((KVPatternFilter) filter).getKeyLiterals())
+                : null;
+        if (candidates == null) return snapshotLiveRecords(index);
+
+        final List<Map.Entry<String, RecordPointer>> live = new ArrayList<>(candidates.size());
+        for (String key : candidates) {
+            final RecordPointer pointer = index.get(key);
+            if (pointer != null) live.add(new AbstractMap.SimpleImmutableEntry<>(key, pointer));
+        }
+        live.sort(Comparator.comparingLong(entry -> entry.getValue().offset));
+        return live;
+    }
+
+    /**
+     * Drop records from a snapshot that have expired, and those the filter rejects if that can be decided from the
+     * index alone
+     *
+     * @param live   snapshot to narrow down in place
+     * @param filter to apply, or null for none
+     * @return what's left of the filter to check against record contents, or null if nothing
+     */
+    private static Predicate<KVPair> applyIndexFilter(List<Map.Entry<String, RecordPointer>> live, Predicate<KVPair> filter) {
+        final long now = System.currentTimeMillis();
+        live.removeIf(entry -> entry.getValue().isExpired(now));
+        if (!(filter instanceof KVRingRange)) return filter;
+        final KVRingRange range = (KVRingRange) filter;
+        live.removeIf(entry -> !range.contains(entry.getValue().ringHashHigh, entry.getValue().ringHashLow));
+        return null;
+    }
+
+    /**
+     * Copy the given records to another file, reading neighbouring records in chunks of up to
+     * {@link #COMPACTION_CHUNK_BYTES}. The caller must hold {@link #compactionLock} so the generation stays current.
+     *
+     * @param current  generation the records belong to
+     * @param records  to copy, in file order (see {@link #snapshotLiveRecords()})
+     * @param output   to append the records to
+     * @param position of the output i.e. where the first copied record will begin
+     * @param keep     if non-null, only records satisfying this are copied
+     * @param newIndex if non-null, populated with the locations of copied records within the output
+     * @return position of the output after copying
+     * @throws IOException on read or write failure
+     */
+    private long copyRecords(Generation current, List<Map.Entry<String, RecordPointer>> records, FileChannel output,
+                             long position, Predicate<KVPair> keep, Map<String, RecordPointer> newIndex) throws IOException {
+        final List<ByteBuffer> kept = new ArrayList<>();
+        final long[] written = {position};
+        readRecordChunks(current, records, (key, pointer, record) -> {
+            if (keep != null && !keep.test(KVRecordFormat.decode(record).kv)) return;
+            if (newIndex != null) newIndex.put(key, pointer.movedTo(written[0]));
+            kept.add(record);
+            written[0] += pointer.length;
+        }, () -> {
+            // Gathering write straight out of the chunk (or mapping) it was read into
+            final ByteBuffer[] out = kept.toArray(new ByteBuffer[0]);
+            while (kept.size() > 0 && out[out.length - 1].hasRemaining()) output.write(out);
+            kept.clear();
+        });
+        return written[0];
+    }
+
+    /**
+     * @param filter - isolate relevant details
+     * @return the latest value of every live key matching the filter
+     * @throws IOException on read failure
+     */
+    private List<KVPair> readLiveRecords(Predicate<KVPair> filter) throws IOException {
+        return read(current -> {
+            final List<KVPair> matches = new ArrayList<>();
+            final List<Map.Entry<String, RecordPointer>> live = snapshotLiveRecords(current.index, filter);
+            final Predicate<KVPair> residual = applyIndexFilter(live, filter);
+            readRecordChunks(current, live, (key, pointer, record) -> {
+                final KVPair kv = KVRecordFormat.decode(record).kv;
+                if (residual == null || residual.test(kv)) matches.add(kv);
+            }, () -> {
             });
+            return matches;
+        });
+    }
+
+    /**
+     * Run a read against the current generation, starting over on its replacement if compaction or
+     * {@link #clearStorage()} swaps it out (closing its channel) part way through
+     *
+     * @throws IOException on read failure
+     */
+    private <T> T read(GenerationReader<T> read) throws IOException {
+        while (true) {
+            final Generation current = generation;
+            try {
+                return read.apply(current);
+            } catch (ClosedByInterruptException e) {
+                // Our interrupt closed the channel on everyone else too, so put it back before giving up
+                reopenReader(current);
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (current == generation && !reopenReader(current)) throw e;
+            }
         }
-        final Set<Integer> validRows = new HashSet<>(keyRowMap.values());
+    }
 
-        // 2. Write valid keys over to a new file
-        final File tempStorage = new File(storage.getAbsolutePath() + ".tmp." + System.currentTimeMillis());
-        try (Stream<String> inputLines = Files.lines(storage.toPath()); PrintWriter output = new PrintWriter(new FileWriter(tempStorage))) {
-            final AtomicInteger index = new AtomicInteger(0);
-            inputLines.sequential().forEachOrdered(line -> {
-                if (validRows.contains(index.getAndIncrement())) {
-                    output.println(line);
+    /**
+     * Reopen the channel of the current generation if an interrupted reader closed it. Superseded generations are left
+     * closed, their readers start over on the current one anyway, as is everything once the store itself is closed.
+     *
+     * @return true if the generation is current and its channel open again
+     * @throws IOException if unable to reopen the file
+     */
+    private boolean reopenReader(Generation current) throws IOException {
+        try {
+            commitLock.lock();
+            if (current != generation || !writer.isOpen()) return false;
+            if (!current.reader.isOpen()) current.reader = FileChannel.open(storage.toPath(), StandardOpenOption.READ);
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    private interface GenerationReader<T> {
+        T apply(Generation generation) throws IOException;
+    }
+
+    /**
+     * Lazily read the given records from a file, a chunk of neighbouring records at a time
+     *
+     * @param channel  to read from; closed along with the stream
+     * @param records  to read, in file order (see {@link #snapshotLiveRecords()})
+     * @param residual if non-null, only records satisfying this are included
+     * @return the records' contents
+     */
+    private static Stream<KVPair> streamRecords(FileChannel channel, List<Map.Entry<String, RecordPointer>> records, Predicate<KVPair> residual) {
+        final List<int[]> chunks = new ArrayList<>();
+        for (int i = 0, end; i < records.size(); i = end) {
+            end = chunkEnd(records, i);
+            chunks.add(new int[]{i, end});
+        }
+        return chunks.stream()
+                .flatMap(chunk -> {
+                    final long chunkStart = records.get(chunk[0]).getValue().offset;
+                    final ByteBuffer buffer = ByteBuffer.allocate((int) (records.get(chunk[1] - 1).getValue().end() - chunkStart));
+                    final List<KVPair> kvs = new ArrayList<>(chunk[1] - chunk[0]);
+                    try {
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, chunkStart + buffer.position()) < 0) throw new EOFException("Truncated record");
+                        }
+                        for (int j = chunk[0]; j < chunk[1]; j++) {
+                            final RecordPointer pointer = records.get(j).getValue();
+                            final int from = (int) (pointer.offset - chunkStart);
+                            final KVPair kv = KVRecordFormat.decode(buffer.duplicate().position(from).limit(from + pointer.length).slice()).kv;
+                            if (residual == null || residual.test(kv)) kvs.add(kv);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return kvs.stream();
+                })
+                .onClose(() -> {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        logger.warn("Unable to close KV stream", e);
+                    }
+                });
+    }
+
+    /**
+     * @param records in file order
+     * @param start   index of the first record in a chunk
+     * @return index just past the last record that fits in the same chunk of up to {@link #COMPACTION_CHUNK_BYTES},
+     * which always includes at least the first
+     */
+    private static int chunkEnd(List<Map.Entry<String, RecordPointer>> records, int start) {
+        final long chunkStart = records.get(start).getValue().offset;
+        int end = start + 1;
+        while (end < records.size() && records.get(end).getValue().end() - chunkStart <= COMPACTION_CHUNK_BYTES) end++;
+        return end;
+    }
+
+    /**
+     * Read the given records, neighbouring records at a time in chunks of up to {@link #COMPACTION_CHUNK_BYTES}.
+     *
+     * @param current    generation the records belong to
+     * @param records    to read, in file order (see {@link #snapshotLiveRecords()})
+     * @param visitor    called for each record with a buffer holding exactly that record; the buffer is only valid
+     *                   until afterChunk returns
+     * @param afterChunk called once all records in a chunk have been visited
+     * @throws IOException on read failure, or if thrown by a callback
+     */
+    private void readRecordChunks(Generation current, List<Map.Entry<String, RecordPointer>> records,
+                                  ChunkVisitor visitor, IORunnable afterChunk) throws IOException {
+        for (int i = 0; i < records.size(); ) {
+            // 1. Find the run of records that fit in one chunk (always at least one record)
+            final long chunkStart = records.get(i).getValue().offset;
+            final int end = chunkEnd(records, i);
+            final ByteBuffer chunk = readRange(current, chunkStart, (int) (records.get(end - 1).getValue().end() - chunkStart));
+
+            // 2. Process it
+            for (int j = i; j < end; j++) {
+                final RecordPointer pointer = records.get(j).getValue();
+                final int from = chunk.position() + (int) (pointer.offset - chunkStart);
+                visitor.visit(records.get(j).getKey(), pointer, chunk.duplicate().position(from).limit(from + pointer.length).slice());
+            }
+            afterChunk.run();
+            i = end;
+        }
+    }
+
+    private interface ChunkVisitor {
+        void visit(String key, RecordPointer pointer, ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * Read part of a generation of the store. Ranges that lie within a single sealed region (see
+     * {@link Generation#mappedRegions}) come straight out of its mapping without a copy or system call; anything else
+     * is a positional read.
+     *
+     * @return buffer holding exactly the requested range between its position and limit
+     * @throws IOException on read failure
+     */
+    private ByteBuffer readRange(Generation current, long position, int length) throws IOException {
+        final long region = position / MAPPED_REGION_BYTES, regionStart = region * MAPPED_REGION_BYTES;
+        final long regionEnd = regionStart + MAPPED_REGION_BYTES;
+        if (position + length <= regionEnd && regionEnd <= current.end) {
+            final int from = (int) (position - regionStart);
+            return mappedRegion(current, (int) region).duplicate().position(from).limit(from + length);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (current.reader.read(buffer, position + buffer.position()) < 0) throw new EOFException("Truncated record");
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * @param region index of a sealed region i.e. one lying entirely before {@link Generation#end}
+     * @return read-only mapping of the region, created on first use
+     * @throws IOException if unable to map the file
+     */
+    private MappedByteBuffer mappedRegion(Generation current, int region) throws IOException {
+        final MappedByteBuffer[] regions = current.mappedRegions;
+        if (region < regions.length && regions[region] != null) return regions[region];
+
+        synchronized (mappingMutex) {
+            // Copy-on-write so lookups above never need the mutex
+            final MappedByteBuffer[] mapped = current.mappedRegions;
+            if (region < mapped.length && mapped[region] != null) return mapped[region];
+            final MappedByteBuffer[] updated = Arrays.copyOf(mapped, Math.max(mapped.length, region + 1));
+            updated[region] = current.reader.map(FileChannel.MapMode.READ_ONLY, (long) region * MAPPED_REGION_BYTES, MAPPED_REGION_BYTES);
+            current.mappedRegions = updated;
+            return updated[region];
+        }
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+
+    /**
+     * Point the given index at a record, or remove its key for a tombstone or a record that has already expired
+     *
+     * @return change in the number of live bytes referenced by the index
+     */
+    private static long indexRecord(Map<String, RecordPointer> index, KVPair kv, RecordPointer pointer) {
+        final boolean live = kv.tombstone == Tombstone.VALID && !pointer.isExpired(System.currentTimeMillis());
+        final RecordPointer previous = live
+                ? index.put(kv.key, pointer)
+                : index.remove(kv.key);
+        return (live ? pointer.length : 0) - (previous == null ? 0 : previous.length);
+    }
+
+    /**
+     * NOT thread-safe -- only for use while opening the store
+     * <p>
+     * Replay every record in the store to index the most recent record of each live key, then publish the result as
+     * the first {@link #generation}.
+     * <p>
+     * Records that fail their checksum are skipped. A partially written record at the end of the file (e.g. from a
+     * crash mid-append) is truncated away so that subsequent appends start on a record boundary.
+     *
+     * @throws IOException if unable to read the store
+     */
+    private void rebuildIndex() throws IOException {
+        final long start = System.currentTimeMillis();
+        KVHintFile.Hint snapshot = null;
+        try {
+            snapshot = KVHintFile.read(hint);
+        } catch (IOException e) {
+            logger.warn("Unable to read hint file for " + storage.getName(), e);
+        }
+        if (snapshot != null && snapshot.coveredLength > storage.length()) {
+            logger.warn(String.format("Ignoring hint for %s: covers %d bytes but only %d exist",
+                    storage.getName(), snapshot.coveredLength, storage.length()));
+            snapshot = null;
+        }
+
+        // Start from the hint if there is one and only replay what was appended after it
+        final Map<String, RecordPointer> index = new ConcurrentHashMap<>();
+        long live = 0, validEnd;
+        final KVRecordFormat.Reader records;
+        if (snapshot == null) {
+            records = KVRecordFormat.Reader.open(storage);
+        } else {
+            index.putAll(snapshot.index);
+            live = snapshot.liveBytes;
+            records = KVRecordFormat.Reader.open(storage, snapshot.coveredLength);
+        }
+        try (records) {
+            while (true) {
+                final long offset = records.position();
+                try {
+                    final KVRecordFormat.Record record = records.next();
+                    if (record == null) break;
+                    live += indexRecord(index, record.kv, RecordPointer.of(offset, record));
+                } catch (KVRecordFormat.CorruptRecordException e) {
+                    logger.warn(String.format("Skipping corrupt record at %d in %s: %s", offset, storage.getName(), e.getMessage()));
+                } catch (EOFException e) {
+                    break;
                 }
+            }
+            validEnd = records.position();
+        }
+        if (snapshot != null) {
+            logger.info(String.format("Loaded %s from hint, replaying %d bytes after it in %d ms",
+                    storage.getName(), validEnd - snapshot.coveredLength, System.currentTimeMillis() - start));
+        }
+
+        if (validEnd < storage.length()) {
+            logger.warn(String.format("Truncating %d bytes of incomplete record from %s", storage.length() - validEnd, storage.getName()));
+            try (FileChannel channel = FileChannel.open(storage.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+        liveBytes = live;
+        openChannels(index, validEnd);
+    }
+
+    /**
+     * NOT thread-safe -- use {@link #commitLock}
+     * <p>
+     * (Re)open {@link #writer} on the current {@link #storage} file and publish it to readers as a new generation.
+     * Readers still on the previous generation lose its channel and retry on this one (see {@link #read}).
+     *
+     * @param index of the records in the file
+     * @param end   of the last record in the file
+     */
+    private void openChannels(Map<String, RecordPointer> index, long end) throws IOException {
+        final Generation previous = generation;
+        if (writer != null) writer.close();
+        writer = FileChannel.open(storage.toPath(), StandardOpenOption.WRITE);
+        generation = new Generation(FileChannel.open(storage.toPath(), StandardOpenOption.READ), index, end);
+        if (previous != null) previous.reader.close();
+    }
+
+    /**
+     * NOT thread-safe -- use {@link #commitLock}
+     * <p>
+     * Empty the store, leaving only the file header. The file is replaced rather than truncated so that readers still
+     * on the previous generation (and its mappings) never see it shrink underneath them.
+     */
+    private void resetFile() throws IOException {
+        Files.deleteIfExists(hint.toPath());
+        final File tempStorage = new File(storage.getAbsolutePath() + ".tmp." + System.currentTimeMillis());
+        try {
+            Files.write(tempStorage.toPath(), KVRecordFormat.fileHeader());
+            Files.move(tempStorage.toPath(), storage.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempStorage.toPath());
+        }
+    }
+
+    /**
+     * NOT thread-safe -- only for use while opening the store
+     * <p>
+     * Convert a store written in the old {@link KVPair#serialize()} text format, one record per line, to the binary
+     * {@link KVRecordFormat}. Dead records are dropped along the way.
+     *
+     * @throws IOException if unable to complete the conversion, in which case the old store is left untouched
+     */
+    private void migrateFromText() throws IOException {
+        final Map<String, KVPair> live = new LinkedHashMap<>();
+        try (Stream<String> lines = Files.lines(storage.toPath(), StandardCharsets.UTF_8)) {
+            lines.map(KVPair::deserialize).filter(Objects::nonNull).forEachOrdered(kv -> {
+                if (kv.tombstone == Tombstone.VALID) live.put(kv.key, kv);
+                else live.remove(kv.key);
             });
         }
 
-        // 3. Overwrite original file
-        if (!storage.delete() || !tempStorage.renameTo(storage)) {
-            throw new IOException("Unable to clear original file");
+        final File tempStorage = new File(storage.getAbsolutePath() + ".tmp." + System.currentTimeMillis());
+        try {
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(tempStorage))) {
+                output.write(KVRecordFormat.fileHeader());
+                for (KVPair kv : live.values()) output.write(KVRecordFormat.encode(kv, ECSHashRing.computeHashBytes(kv.key)));
+            }
+            Files.deleteIfExists(hint.toPath());
+            Files.move(tempStorage.toPath(), storage.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            logger.info(String.format("Migrated %d keys in %s to binary format", live.size(), storage.getName()));
+        } finally {
+            Files.deleteIfExists(tempStorage.toPath());
+        }
+    }
+
+    /**
+     * A write waiting in {@link #pendingWrites}; fields other than the record are guarded by {@link #queueLock}
+     */
+    private static class PendingWrite {
+        final KVPair kv;
+        final byte[] ringHash, record;
+        final int uncompressedLength;
+
+        /**
+         * Only write this (i.e. a delete) if the key is present at the time
+         */
+        final boolean requireExisting;
+
+        boolean committed, rejected;
+        IOException failure;
+
+        PendingWrite(KVPair kv, boolean requireExisting) {
+            this.kv = kv;
+            this.ringHash = ECSHashRing.computeHashBytes(kv.key);
+            this.record = KVRecordFormat.encode(kv, ringHash);
+            this.uncompressedLength = KVRecordFormat.uncompressedLength(record);
+            this.requireExisting = requireExisting;
+        }
+    }
+
+    /**
+     * When a key written with a deadline (see {@link #expiries}) is due to be swept
+     */
+    private static class Expiry {
+        final String key;
+        final long expiresAt;
+
+        Expiry(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * One version of the store file as readers see it. Appends add to the index and move {@link #end} forward, but
+     * compaction and {@link #clearStorage()} publish a whole new generation rather than touching the current one, so a
+     * reader holding a generation always has a matching file, index and mappings without taking a lock.
+     */
+    private static class Generation {
+        /**
+         * Long-lived handle for positional reads; closed once the generation is replaced. Also closed, for every reader
+         * sharing it, if one of them is interrupted mid-read, in which case it's reopened (see {@link #reopenReader}).
+         */
+        volatile FileChannel reader;
+
+        /**
+         * Location of the latest record for every live key; dead keys are simply absent
+         */
+        final Map<String, RecordPointer> index;
+
+        /**
+         * End of the last committed record; moved before records are indexed, so indexed records always lie before it
+         */
+        volatile long end;
+
+        /**
+         * Read-only mappings of the sealed regions of the file: region i covers [i, i + 1) *
+         * {@link #MAPPED_REGION_BYTES} and is sealed once entirely written, after which its bytes never change (the
+         * file is append-only). Null entries haven't been mapped yet.
+         */
+        volatile MappedByteBuffer[] mappedRegions = new MappedByteBuffer[0];
+
+        Generation(FileChannel reader, Map<String, RecordPointer> index, long end) {
+            this.reader = reader;
+            this.index = index;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Location of a single encoded record within the store, the ring hash of its key and when it expires
+     */
+    static class RecordPointer {
+        final long offset;
+        final int length;
+        final long ringHashHigh, ringHashLow;
+
+        /**
+         * The record's {@link KVPair#expiresAt}, so expiry can be checked without reading it
+         */
+        final long expiresAt;
+
+        RecordPointer(long offset, int length, long ringHashHigh, long ringHashLow) {
+            this(offset, length, ringHashHigh, ringHashLow, KVPair.NO_EXPIRY);
+        }
+
+        RecordPointer(long offset, int length, long ringHashHigh, long ringHashLow, long expiresAt) {
+            this.offset = offset;
+            this.length = length;
+            this.ringHashHigh = ringHashHigh;
+            this.ringHashLow = ringHashLow;
+            this.expiresAt = expiresAt;
+        }
+
+        RecordPointer(long offset, int length, byte[] ringHash, long expiresAt) {
+            this(offset, length, KVRingRange.high(ringHash), KVRingRange.low(ringHash), expiresAt);
+        }
+
+        /**
+         * @return pointer to a record just read from the given offset; records from before ring hashes were stored
+         * get theirs computed now
+         */
+        static RecordPointer of(long offset, KVRecordFormat.Record record) {
+            return record.hasRingHash
+                    ? new RecordPointer(offset, record.length, record.ringHashHigh, record.ringHashLow, record.kv.expiresAt)
+                    : new RecordPointer(offset, record.length, ECSHashRing.computeHashBytes(record.kv.key), record.kv.expiresAt);
+        }
+
+        /**
+         * @return pointer to this same record once copied to another offset
+         */
+        RecordPointer movedTo(long offset) {
+            return new RecordPointer(offset, length, ringHashHigh, ringHashLow, expiresAt);
+        }
+
+        /**
+         * @param now milliseconds since the epoch
+         * @return true if the record has a deadline and it has passed
+         */
+        boolean isExpired(long now) {
+            return KVPair.isExpired(expiresAt, now);
+        }
+
+        /**
+         * @return location just past this record
+         */
+        long end() {
+            return offset + length;
         }
     }
 }
@@ -0,0 +1,161 @@
+package app_kvServer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Named, point-in-time snapshots kept in a "snapshots" directory alongside a store. Each snapshot is a directory of
+ * segments (hard links to the store's append-only files, so nothing is copied) described by a manifest.
+ * <p>
+ * A snapshot is assembled under a hidden temporary name and only renamed into place once its segments and manifest
+ * are on disk, so after a crash a snapshot either exists in full or not at all; leftovers are cleaned up on the next
+ * snapshot. Segments are only ever read up to the length recorded when the snapshot was taken, so the store carrying
+ * on appending to the same file (or replacing it at compaction) never changes what the snapshot holds.
+ */
+final class KVSnapshots {
+    static final String DIRECTORY = "snapshots";
+    private static final String MANIFEST = "MANIFEST";
+    private static final String MANIFEST_HEADER = "KVSNAPSHOT 1";
+    private static final String TEMP_PREFIX = ".";
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]*");
+
+    private KVSnapshots() {
+    }
+
+    /**
+     * Writes the segments of a snapshot into a directory
+     */
+    @FunctionalInterface
+    interface SegmentWriter {
+        /**
+         * @param directory to link (or write) segments into
+         * @return names of the segments written, in the order they should be read back; each must already be
+         * durable, including everything it refers to
+         */
+        List<String> writeTo(File directory) throws IOException;
+    }
+
+    /**
+     * @param root     directory of the store
+     * @param name     of the new snapshot
+     * @param segments to fill the snapshot with
+     * @throws IllegalArgumentException    if the name isn't a plain file name
+     * @throws FileAlreadyExistsException if there's already a snapshot by that name
+     * @throws IOException                 if unable to take the snapshot, in which case none is left behind
+     */
+    static synchronized void create(File root, String name, SegmentWriter segments) throws IOException {
+        final File snapshots = new File(root, DIRECTORY), target = new File(snapshots, validate(name));
+        deleteLeftovers(snapshots);
+        if (target.exists()) throw new FileAlreadyExistsException(target.getPath());
+
+        final File temp = new File(snapshots, TEMP_PREFIX + name + ".tmp");
+        Files.createDirectories(temp.toPath());
+        try {
+            final List<String> written = segments.writeTo(temp);
+            final List<String> lines = new ArrayList<>();
+            lines.add(MANIFEST_HEADER + " " + System.currentTimeMillis());
+            lines.addAll(written);
+            final File manifest = new File(temp, MANIFEST);
+            Files.write(manifest.toPath(), lines, StandardCharsets.UTF_8);
+            sync(manifest.toPath());
+            sync(temp.toPath());
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            sync(snapshots.toPath());
+        } finally {
+            if (temp.exists()) deleteRecursively(temp);
+        }
+    }
+
+    /**
+     * @return names of every complete snapshot of the store, in alphabetical order
+     */
+    static List<String> list(File root) {
+        final File[] entries = new File(root, DIRECTORY).listFiles();
+        if (entries == null) return new ArrayList<>();
+        return Arrays.stream(entries)
+                .filter(entry -> !entry.getName().startsWith(TEMP_PREFIX) && new File(entry, MANIFEST).isFile())
+                .map(File::getName)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return directory holding the segments of a snapshot
+     * @throws NoSuchFileException if there's no such snapshot
+     */
+    static File directoryOf(File root, String name) throws IOException {
+        final File directory = new File(new File(root, DIRECTORY), validate(name));
+        if (!new File(directory, MANIFEST).isFile()) throw new NoSuchFileException(directory.getPath());
+        return directory;
+    }
+
+    /**
+     * @return names of the segments in a snapshot, in the order they were written
+     * @throws NoSuchFileException if there's no such snapshot
+     * @throws IOException         if its manifest can't be read
+     */
+    static List<String> segmentsOf(File root, String name) throws IOException {
+        final List<String> lines = Files.readAllLines(new File(directoryOf(root, name), MANIFEST).toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).startsWith(MANIFEST_HEADER + " ")) {
+            throw new IOException("Malformed manifest for snapshot " + name);
+        }
+        return lines.subList(1, lines.size()).stream().filter(line -> !line.isEmpty()).collect(Collectors.toList());
+    }
+
+    /**
+     * Remove a snapshot; the manifest goes first so a partially deleted snapshot is never mistaken for a complete one
+     *
+     * @throws NoSuchFileException if there's no such snapshot
+     */
+    static synchronized void delete(File root, String name) throws IOException {
+        final File directory = directoryOf(root, name);
+        Files.delete(new File(directory, MANIFEST).toPath());
+        deleteRecursively(directory);
+    }
+
+    private static String validate(String name) {
+        if (name == null || !VALID_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException(String.format("Invalid snapshot name '%s'", name));
+        }
+        return name;
+    }
+
+    /**
+     * Remove what's left of snapshots that were being taken or deleted when the process died
+     */
+    private static void deleteLeftovers(File snapshots) throws IOException {
+        final File[] entries = snapshots.listFiles();
+        if (entries == null) return;
+        for (File entry : entries) {
+            if (entry.getName().startsWith(TEMP_PREFIX) || !new File(entry, MANIFEST).isFile()) deleteRecursively(entry);
+        }
+    }
+
+    private static void deleteRecursively(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Force a file or directory entry to disk; directories can't be opened for syncing on every platform, in which
+     * case that's left to the OS
+     */
+    private static void sync(Path path) throws IOException {
+        final boolean directory = Files.isDirectory(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!directory) throw e;
+        }
+    }
+}
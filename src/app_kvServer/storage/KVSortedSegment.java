@@ -0,0 +1,365 @@
+package app_kvServer.storage;
+
+import app_kvServer.storage.IKVStorage.KVPair;
+import app_kvServer.storage.IKVStorage.KVPair.Tombstone;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, key-sorted run of {@link KVPair}s (tombstones included) on disk, as used by {@link KVLsmStorage}.
+ * <p>
+ * File layout: a data section of length-prefixed records in key order, followed by a sparse index holding the first
+ * key and offset of every block of {@link #BLOCK_SIZE} records, then a {@link KVBloomFilter} of every key, then a
+ * fixed-size footer. Point lookups binary search the sparse index (kept in memory) and then read a single block;
+ * lookups for keys the Bloom filter rules out don't touch the file at all.
+ * <p>
+ * Each record starts with its type: live, tombstone, or live with a deadline (its {@link KVPair#expiresAt}), which
+ * follows the type. Expired records are kept like any other, since they still hide older versions of the key.
+ * <p>
+ * Segments written before Bloom filters were added have a shorter footer with its own magic number; they are still
+ * readable, but every lookup within their key range has to read a block. Segments written before deadlines were
+ * added have yet another magic number, but only ever hold the first two record types so read the same way.
+ */
+class KVSortedSegment implements Closeable {
+    /**
+     * Records per block i.e. the most records a point lookup has to decode
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    private static final int MAGIC_V1 = 0x4B56534C; // "KVSL"
+    private static final int FOOTER_SIZE_V1 = Long.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int MAGIC_V2 = 0x4B565332; // "KVS2"
+    private static final int MAGIC = 0x4B565333; // "KVS3"
+    private static final int FOOTER_SIZE = Long.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final byte RECORD_LIVE = 0, RECORD_TOMBSTONE = 1, RECORD_EXPIRING = 2;
+
+    private final File file;
+    private final long sequence;
+    private final FileChannel channel;
+    private final long dataLength, recordCount;
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final String lastKey;
+
+    /**
+     * Null for segments written before Bloom filters were added
+     */
+    private final KVBloomFilter bloomFilter;
+
+    private KVSortedSegment(File file, long sequence) throws IOException {
+        this.file = file;
+        this.sequence = sequence;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            // 1. Footer
+            final long fileLength = channel.size();
+            if (fileLength < FOOTER_SIZE_V1) throw new IOException("Segment too short: " + file.getName());
+            final long indexEnd;
+            final int magic = readFully(fileLength - Integer.BYTES, Integer.BYTES).getInt();
+            if ((magic == MAGIC || magic == MAGIC_V2) && fileLength >= FOOTER_SIZE) {
+                final ByteBuffer footer = readFully(fileLength - FOOTER_SIZE, FOOTER_SIZE);
+                this.dataLength = footer.getLong();
+                indexEnd = footer.getLong();
+                this.recordCount = footer.getLong();
+                this.bloomFilter = KVBloomFilter.readFrom(readFully(indexEnd, (int) (fileLength - FOOTER_SIZE - indexEnd)));
+            } else if (magic == MAGIC_V1) {
+                final ByteBuffer footer = readFully(fileLength - FOOTER_SIZE_V1, FOOTER_SIZE_V1);
+                this.dataLength = footer.getLong();
+                this.recordCount = footer.getLong();
+                indexEnd = fileLength - FOOTER_SIZE_V1;
+                this.bloomFilter = null;
+            } else {
+                throw new IOException("Not a segment: " + file.getName());
+            }
+
+            // 2. Sparse index
+            final ByteBuffer index = readFully(dataLength, (int) (indexEnd - dataLength));
+            final int blocks = index.getInt();
+            this.blockKeys = new String[blocks];
+            this.blockOffsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = readString(index);
+                blockOffsets[i] = index.getLong();
+            }
+            this.lastKey = blocks > 0 ? readString(index) : null;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param file     previously written by a {@link Writer}
+     * @param sequence ordering of this segment relative to others (higher is newer)
+     * @return the opened segment
+     * @throws IOException if the file is unreadable or malformed
+     */
+    static KVSortedSegment open(File file, long sequence) throws IOException {
+        return new KVSortedSegment(file, sequence);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return size of the segment on disk
+     */
+    long length() {
+        return file.length();
+    }
+
+    String getFirstKey() {
+        return blockKeys.length > 0 ? blockKeys[0] : null;
+    }
+
+    String getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return true if this segment may hold keys in [first, last]
+     */
+    boolean overlaps(String first, String last) {
+        return blockKeys.length > 0 && blockKeys[0].compareTo(last) <= 0 && lastKey.compareTo(first) >= 0;
+    }
+
+    /**
+     * @return false if this segment definitely holds no record of the key, going by its key range alone
+     */
+    boolean inKeyRange(String key) {
+        return blockKeys.length > 0 && key.compareTo(blockKeys[0]) >= 0 && key.compareTo(lastKey) <= 0;
+    }
+
+    /**
+     * @return false if this segment definitely holds no record of the key, going by its Bloom filter alone
+     */
+    boolean mightContain(String key) {
+        return bloomFilter == null || bloomFilter.mightContain(key);
+    }
+
+    /**
+     * Point lookup; thread-safe
+     *
+     * @return the record for this key (possibly a tombstone) or null if this segment has no record of it
+     * @throws IOException on read failure
+     */
+    KVPair get(String key) throws IOException {
+        if (!inKeyRange(key) || !mightContain(key)) return null;
+
+        // Greatest block start <= key
+        int block = Arrays.binarySearch(blockKeys, key);
+        if (block < 0) block = -block - 2;
+
+        final long start = blockOffsets[block], end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : dataLength;
+        final ByteBuffer buffer = readFully(start, (int) (end - start));
+        while (buffer.hasRemaining()) {
+            final KVPair kv = readRecord(buffer);
+            final int comparison = kv.key.compareTo(key);
+            if (comparison == 0) return kv;
+            if (comparison > 0) break;
+        }
+        return null;
+    }
+
+    /**
+     * Sequentially read the whole segment in key order. The returned iterator holds its own file handle, so it
+     * remains valid even if this segment is closed or deleted in the meantime; callers must close it.
+     *
+     * @throws IOException if unable to open the file
+     */
+    RecordIterator iterator() throws IOException {
+        return new RecordIterator(new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024)), recordCount);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Close and remove this segment from disk
+     */
+    void delete() throws IOException {
+        close();
+        if (!file.delete() && file.exists()) throw new IOException("Unable to delete " + file.getName());
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Truncated segment");
+        }
+        return buffer.flip();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static KVPair readRecord(ByteBuffer buffer) {
+        final byte type = buffer.get();
+        final long expiresAt = type == RECORD_EXPIRING ? buffer.getLong() : KVPair.NO_EXPIRY;
+        final String key = readString(buffer);
+        return new KVPair(type == RECORD_TOMBSTONE ? Tombstone.DEAD : Tombstone.VALID, key, readString(buffer), expiresAt);
+    }
+
+    private static KVPair readRecord(DataInputStream input) throws IOException {
+        final byte type = input.readByte();
+        final long expiresAt = type == RECORD_EXPIRING ? input.readLong() : KVPair.NO_EXPIRY;
+        final byte[] key = new byte[input.readInt()];
+        input.readFully(key);
+        final byte[] value = new byte[input.readInt()];
+        input.readFully(value);
+        return new KVPair(type == RECORD_TOMBSTONE ? Tombstone.DEAD : Tombstone.VALID,
+                new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8), expiresAt);
+    }
+
+    private static void writeString(DataOutputStream output, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Streams a segment's records in key order
+     */
+    static class RecordIterator implements Iterator<KVPair>, Closeable {
+        private final DataInputStream input;
+        private long remaining;
+
+        private RecordIterator(DataInputStream input, long recordCount) {
+            this.input = input;
+            this.remaining = recordCount;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public KVPair next() {
+            if (remaining <= 0) throw new NoSuchElementException();
+            try {
+                remaining--;
+                return readRecord(input);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read segment", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Builds a new segment file; records must be added in strictly increasing key order
+     */
+    static class Writer {
+        private final File file;
+        private final long sequence;
+        private final DataOutputStream output;
+        private final List<String> blockKeys = new ArrayList<>();
+        private final List<Long> blockOffsets = new ArrayList<>();
+        private String lastKey;
+        private long recordCount;
+        private long[] keyHashes = new long[1024];
+
+        Writer(File file, long sequence) throws IOException {
+            this.file = file;
+            this.sequence = sequence;
+            this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        }
+
+        void add(KVPair kv) throws IOException {
+            if (recordCount % BLOCK_SIZE == 0) {
+                blockKeys.add(kv.key);
+                blockOffsets.add((long) output.size());
+            }
+            if (recordCount == keyHashes.length) keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+            keyHashes[(int) recordCount] = KVBloomFilter.hash(kv.key);
+            if (kv.tombstone != Tombstone.VALID) {
+                output.writeByte(RECORD_TOMBSTONE);
+            } else if (kv.expiresAt != KVPair.NO_EXPIRY) {
+                output.writeByte(RECORD_EXPIRING);
+                output.writeLong(kv.expiresAt);
+            } else {
+                output.writeByte(RECORD_LIVE);
+            }
+            writeString(output, kv.key);
+            writeString(output, kv.value);
+            lastKey = kv.key;
+            recordCount++;
+        }
+
+        long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * @return bytes written so far
+         */
+        long length() {
+            return output.size();
+        }
+
+        /**
+         * Write the index and footer, then open the segment for reading
+         */
+        KVSortedSegment finish() throws IOException {
+            final long dataLength = output.size();
+            output.writeInt(blockKeys.size());
+            for (int i = 0; i < blockKeys.size(); i++) {
+                writeString(output, blockKeys.get(i));
+                output.writeLong(blockOffsets.get(i));
+            }
+            if (lastKey != null) writeString(output, lastKey);
+
+            final long indexEnd = output.size();
+            final KVBloomFilter bloomFilter = KVBloomFilter.create(keyHashes, (int) recordCount);
+            final ByteBuffer bloom = ByteBuffer.allocate(bloomFilter.serializedSize());
+            bloomFilter.writeTo(bloom);
+            output.write(bloom.array());
+
+            output.writeLong(dataLength);
+            output.writeLong(indexEnd);
+            output.writeLong(recordCount);
+            output.writeInt(MAGIC);
+            output.close();
+            return KVSortedSegment.open(file, sequence);
+        }
+
+        /**
+         * Abandon this writer, removing any partial output
+         */
+        void abandon() throws IOException {
+            output.close();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package app_kvServer.storage;
+
+import app_kvServer.KVServerException;
+import app_kvServer.cache.KVCacheCapacity;
+import app_kvServer.storage.IKVStorage.KVPair.Tombstone;
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the hottest keys in memory in front of a {@link KVPartitionedStorage}: keys written or read recently are
+ * served from an in-memory tier of bounded size, and the least recently used are demoted back to the partitions on
+ * disk as it fills up.
+ * <p>
+ * Unlike an {@link app_kvServer.cache.IKVCache}, the tier also absorbs writes. A write (or delete) only updates the
+ * tier and is flushed to disk in the background, so a burst of writes is acknowledged at memory speed, a key written
+ * several times between flushes costs a single disk write, and each flush reaches the partitions as one batch (see
+ * {@link #putBatch(List)}) to be group committed. Writers are only held up once unflushed writes reach half the tier,
+ * until the flusher catches up; if it can't catch up in time (e.g. the disk keeps failing), the write fails.
+ * <p>
+ * The price is durability: writes still in the tier are lost if the process dies before they're flushed, which in the
+ * steady state is at most {@link #FLUSH_INTERVAL_MILLIS} worth. Operations over many keys at once (Queries, bulk
+ * updates and deletes, streams and snapshots) flush first and then go straight to disk.
+ */
+public class KVTieredStorage implements IKVStorage {
+    private static final Logger logger = Logger.getRootLogger();
+
+    public static final long DEFAULT_HOT_BYTES = 64L << 20;
+    public static final long DEFAULT_MAX_WRITE_WAIT_MILLIS = 10_000;
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+
+    /**
+     * Shared by all instances, like {@link KVSingleFileStorage}'s compactor
+     */
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "storage-tier-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final KVPartitionedStorage cold;
+    /**
+     * Size of the tier in bytes, entries weighed just like in a byte-sized cache (see {@link KVCacheCapacity#weigh})
+     */
+    private final KVCacheCapacity hotCapacity;
+    private final long maxDirtyBytes;
+    private final long maxWriteWaitNanos;
+
+    /**
+     * The tier, least recently used first; guarded by {@link #lock} along with everything below
+     */
+    private final LinkedHashMap<String, Entry> hot;
+
+    /**
+     * Entries of {@link #hot} not yet handed to a flush, in the order they were written
+     */
+    private final Map<String, Entry> dirty;
+    private long hotBytes, dirtyBytes;
+
+    /**
+     * Bumped whenever an entry leaves the tier, so a read that missed can tell whether its key came and went while it
+     * was reading from disk
+     */
+    private long removals;
+
+    private final ReentrantLock lock;
+    private final Condition flushed;
+
+    /**
+     * Held for the whole of a flush so that two flushes never race each other to disk with writes of the same key
+     */
+    private final ReentrantLock flushLock;
+    private final AtomicBoolean flushRequested;
+    private final ScheduledFuture<?> flushTask;
+
+    /**
+     * Set by {@link #close()}, after which writes are refused and only close itself flushes
+     */
+    private volatile boolean closed;
+
+    public KVTieredStorage(String directory) {
+        this(directory, DurabilityPolicy.NONE);
+    }
+
+    public KVTieredStorage(String directory, DurabilityPolicy durability) {
+        this(new KVPartitionedStorage(directory, durability), DEFAULT_HOT_BYTES);
+    }
+
+    /**
+     * @param cold        partitions to keep everything in, and to demote keys to
+     * @param maxHotBytes rough upper bound on the memory used by the in-memory tier
+     */
+    public KVTieredStorage(KVPartitionedStorage cold, long maxHotBytes) {
+        this(cold, maxHotBytes, DEFAULT_MAX_WRITE_WAIT_MILLIS);
+    }
+
+    /**
+     * @param cold               partitions to keep everything in, and to demote keys to
+     * @param maxHotBytes        rough upper bound on the memory used by the in-memory tier
+     * @param maxWriteWaitMillis how long a write waits for the flusher to make room before failing
+     */
+    public KVTieredStorage(KVPartitionedStorage cold, long maxHotBytes, long maxWriteWaitMillis) {
+        this.cold = cold;
+        this.hotCapacity = KVCacheCapacity.ofBytes(maxHotBytes);
+        this.maxDirtyBytes = maxHotBytes / 2;
+        this.maxWriteWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWriteWaitMillis);
+        this.hot = new LinkedHashMap<>(16, 0.75f, true /* access order */);
+        this.dirty = new LinkedHashMap<>();
+        this.lock = new ReentrantLock();
+        this.flushed = lock.newCondition();
+        this.flushLock = new ReentrantLock();
+        this.flushRequested = new AtomicBoolean(false);
+        this.flushTask = FLUSHER.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean inStorage(String key) {
+        final Entry entry;
+        try {
+            lock.lock();
+            entry = hot.get(key);
+        } finally {
+            lock.unlock();
+        }
+        return entry != null ? entry.isLive() : cold.inStorage(key);
+    }
+
+    @Override
+    public String getKV(String key) throws KVServerException {
+        return getKVPair(key).value;
+    }
+
+    @Override
+    public KVPair getKVPair(String key) throws KVServerException {
+        final long removalsBeforeRead;
+        try {
+            lock.lock();
+            final Entry entry = hot.get(key);
+            if (entry != null) {
+                if (!entry.isLive()) throw new KVServerException("Key not found in storage", KVMessage.StatusType.GET_ERROR);
+                return entry.kv;
+            }
+            removalsBeforeRead = removals;
+        } finally {
+            lock.unlock();
+        }
+
+        final KVPair kv = cold.getKVPair(key);
+        try {
+            lock.lock();
+            // Promote, unless the key was written in the meantime (in which case what we read may be stale)
+            if (!hot.containsKey(key) && removals == removalsBeforeRead) {
+                add(new Entry(kv, hotCapacity, false));
+                demote();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return kv;
+    }
+
+    @Override
+    public void putKV(String key, String value) throws KVServerException {
+        putKV(key, value, KVPair.NO_EXPIRY);
+    }
+
+    @Override
+    public void putKV(String key, String value, long expiresAt) throws KVServerException {
+        write(new KVPair(Tombstone.VALID, key, value, expiresAt));
+    }
+
+    @Override
+    public void delete(String key) throws KVServerException {
+        if (!inStorage(key)) throw new KVServerException("Key not found in storage", KVMessage.StatusType.DELETE_ERROR);
+        write(new KVPair(Tombstone.DEAD, key, ""));
+    }
+
+    @Override
+    public void putBatch(List<KVPair> batch) throws KVServerException {
+        for (KVPair kv : batch) write(kv);
+    }
+
+    @Override
+    public void clearStorage() {
+        try {
+            flushLock.lock();
+            lock.lock();
+            hot.clear();
+            dirty.clear();
+            hotBytes = dirtyBytes = 0;
+            removals++;
+            cold.clearStorage();
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    public Stream<KVPair> openKvStream(Predicate<KVPair> filter) {
+        flush();
+        return cold.openKvStream(filter);
+    }
+
+    @Override
+    public List<KVPair> getAllKV(Predicate<KVPair> filter) throws KVServerException {
+        flush();
+        return cold.getAllKV(filter);
+    }
+
+    @Override
+    public void putAllKV(Predicate<KVPair> filter, String valExpr, String valRepl, KVUpdateSummary updated) throws KVServerException {
+        flush();
+        try {
+            cold.putAllKV(filter, valExpr, valRepl, updated);
+        } finally {
+            invalidate(filter);
+        }
+    }
+
+    @Override
+    public void deleteIf(Predicate<KVPair> filter) throws KVServerException {
+        flush();
+        try {
+            cold.deleteIf(filter);
+        } finally {
+            invalidate(filter);
+        }
+    }
+
+    @Override
+    public void createSnapshot(String name) throws IOException {
+        flush();
+        cold.createSnapshot(name);
+    }
+
+    @Override
+    public List<String> listSnapshots() {
+        return cold.listSnapshots();
+    }
+
+    @Override
+    public Stream<KVPair> openSnapshotStream(String name, Predicate<KVPair> filter) throws IOException {
+        return cold.openSnapshotStream(name, filter);
+    }
+
+    @Override
+    public void deleteSnapshot(String name) throws IOException {
+        cold.deleteSnapshot(name);
+    }
+
+    /**
+     * @throws RuntimeException if the last writes couldn't be flushed, in which case they stay in the tier and the
+     *                          partitions are left open, so closing again retries the flush
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flushTask.cancel(false);
+        try {
+            flushDirty();
+        } catch (KVServerException e) {
+            throw new RuntimeException("Unable to close storage", e);
+        }
+        cold.close();
+    }
+
+    /**
+     * Write everything written to the tier so far through to disk. Writes that fail stay in the tier to be retried by
+     * the next flush.
+     */
+    public void flush() {
+        try {
+            flushDirty();
+        } catch (KVServerException e) {
+            logger.error("Unable to flush writes to disk", e);
+        }
+    }
+
+    /**
+     * {@link #flush()}, but reporting failure
+     *
+     * @throws KVServerException if the writes couldn't be written to disk, in which case they stay in the tier
+     */
+    private void flushDirty() throws KVServerException {
+        try {
+            flushLock.lock();
+
+            // 1. Take everything waiting
+            final List<Entry> pending;
+            try {
+                lock.lock();
+                if (dirty.isEmpty()) return;
+                pending = new ArrayList<>(dirty.values());
+                dirty.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            // 2. Write it out in one batch
+            final List<KVPair> batch = new ArrayList<>(pending.size());
+            for (Entry entry : pending) batch.add(entry.kv);
+            KVServerException failure = null;
+            try {
+                cold.putBatch(batch);
+            } catch (KVServerException | RuntimeException e) {
+                failure = new KVServerException(String.format("Unable to flush %d writes to disk", batch.size()), e, KVMessage.StatusType.FAILED);
+            }
+            final boolean written = failure == null;
+
+            // 3. Mark what was written clean, unless it's been overwritten since; tombstones have done their job
+            try {
+                lock.lock();
+                for (Entry entry : pending) {
+                    if (entry.replaced) continue;
+                    if (!written) {
+                        dirty.putIfAbsent(entry.kv.key, entry);
+                        continue;
+                    }
+                    entry.dirty = false;
+                    dirtyBytes -= entry.bytes;
+                    if (entry.kv.tombstone != Tombstone.VALID) remove(entry);
+                }
+                demote();
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (failure != null) throw failure;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * @return rough memory used by the in-memory tier
+     */
+    public long getHotBytes() {
+        try {
+            lock.lock();
+            return hotBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return rough memory used by writes not yet flushed to disk
+     */
+    public long getDirtyBytes() {
+        try {
+            lock.lock();
+            return dirtyBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put a write in the tier, first waiting for the flusher if too much is already waiting for it
+     *
+     * @throws KVServerException if the flusher doesn't make room in time, or the wait is interrupted
+     */
+    private void write(KVPair kv) throws KVServerException {
+        final KVMessage.StatusType error = kv.tombstone == Tombstone.VALID
+                ? KVMessage.StatusType.PUT_ERROR : KVMessage.StatusType.DELETE_ERROR;
+        if (closed) throw new KVServerException("Storage is closed", error);
+        final boolean flushNeeded;
+        try {
+            lock.lock();
+            long remainingNanos = maxWriteWaitNanos;
+            while (dirtyBytes >= maxDirtyBytes) {
+                if (remainingNanos <= 0) {
+                    throw new KVServerException(String.format("Gave up waiting for %d bytes of writes to be flushed to disk", dirtyBytes), error);
+                }
+                requestFlush();
+                remainingNanos = flushed.awaitNanos(remainingNanos);
+            }
+            final Entry entry = new Entry(kv, hotCapacity, true);
+            add(entry);
+            dirty.put(kv.key, entry);
+            demote();
+            flushNeeded = dirtyBytes >= maxDirtyBytes / 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVServerException("Interrupted waiting for writes to be flushed to disk", e, error);
+        } finally {
+            lock.unlock();
+        }
+        if (flushNeeded) requestFlush();
+    }
+
+    /**
+     * Queue up a background flush; a no-op once closed, since {@link #close()} flushes what's left itself
+     */
+    private void requestFlush() {
+        if (closed) return;
+        if (flushRequested.compareAndSet(false, true)) {
+            FLUSHER.execute(() -> {
+                flushRequested.set(false);
+                if (!closed) flush();
+            });
+        }
+    }
+
+    /**
+     * NOT thread-safe -- use {@link #lock}
+     * <p>
+     * Make an entry the most recently used version of its key
+     */
+    private void add(Entry entry) {
+        final Entry previous = hot.put(entry.kv.key, entry);
+        if (previous != null) {
+            previous.replaced = true;
+            hotBytes -= previous.bytes;
+            if (previous.dirty) dirtyBytes -= previous.bytes;
+        }
+        hotBytes += entry.bytes;
+        if (entry.dirty) dirtyBytes += entry.bytes;
+    }
+
+    /**
+     * NOT thread-safe -- use {@link #lock}
+     */
+    private void remove(Entry entry) {
+        hot.remove(entry.kv.key);
+        entry.replaced = true;
+        hotBytes -= entry.bytes;
+        removals++;
+    }
+
+    /**
+     * NOT thread-safe -- use {@link #lock}
+     * <p>
+     * Drop the least recently used entries until the tier fits again; dirty entries have to reach disk first
+     */
+    private void demote() {
+        final Iterator<Entry> entries = hot.values().iterator();
+        while (hotBytes > hotCapacity.getLimit() && entries.hasNext()) {
+            final Entry entry = entries.next();
+            if (entry.dirty) continue;
+            entries.remove();
+            entry.replaced = true;
+            hotBytes -= entry.bytes;
+            removals++;
+        }
+    }
+
+    /**
+     * Drop the clean entries a bulk operation on disk may have changed; dirty entries were written since and win
+     */
+    private void invalidate(Predicate<KVPair> filter) {
+        try {
+            lock.lock();
+            final Iterator<Entry> entries = hot.values().iterator();
+            while (entries.hasNext()) {
+                final Entry entry = entries.next();
+                if (entry.dirty || !filter.test(entry.kv)) continue;
+                entries.remove();
+                entry.replaced = true;
+                hotBytes -= entry.bytes;
+                removals++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The latest version of a key as far as the tier knows; fields other than the pair are guarded by {@link #lock}
+     */
+    private static class Entry {
+        final KVPair kv;
+        final long bytes;
+
+        /**
+         * Not yet (known to be) on disk
+         */
+        boolean dirty;
+
+        /**
+         * No longer in the tier, having been overwritten or removed
+         */
+        boolean replaced;
+
+        Entry(KVPair kv, KVCacheCapacity capacity, boolean dirty) {
+            this.kv = kv;
+            this.bytes = capacity.weigh(kv.key, kv.value);
+            this.dirty = dirty;
+        }
+
+        /**
+         * @return true if this is a write of the key (rather than a delete) and hasn't expired
+         */
+        boolean isLive() {
+            return kv.tombstone == Tombstone.VALID && !kv.isExpired(System.currentTimeMillis());
+        }
+    }
+}
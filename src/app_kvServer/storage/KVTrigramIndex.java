@@ -0,0 +1,100 @@
+package app_kvServer.storage;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from each three-character substring of a key to the keys containing it, so that a Query whose key
+ * pattern requires some literal (see {@link KVPatternFilter#getKeyLiterals()}) only has to check the keys containing
+ * all of that literal's trigrams rather than every key in the store.
+ * <p>
+ * Lookups never take a lock and may run alongside updates. Updates must be made by one thread at a time, and in
+ * the right order relative to the store's own index so that a lookup never misses a live key: {@link #add(String)}
+ * before publishing a key, {@link #remove(String)} after retracting it. Postings can therefore briefly (or, for
+ * {@link #remove(String)} calls that were skipped, indefinitely) name keys that are gone; callers check candidates
+ * against their own index anyway.
+ */
+final class KVTrigramIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    private final Map<Long, Set<String>> postings;
+
+    KVTrigramIndex() {
+        this.postings = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param keys to index, e.g. everything in the store when opening it
+     */
+    KVTrigramIndex(Collection<String> keys) {
+        this();
+        for (String key : keys) add(key);
+    }
+
+    /**
+     * Make a key findable; a no-op for keys already present
+     */
+    void add(String key) {
+        for (long gram : grams(key)) {
+            postings.compute(gram, (k, keys) -> {
+                if (keys == null) keys = ConcurrentHashMap.newKeySet();
+                keys.add(key);
+                return keys;
+            });
+        }
+    }
+
+    /**
+     * Make a key no longer findable, dropping postings that become empty
+     */
+    void remove(String key) {
+        for (long gram : grams(key)) {
+            postings.computeIfPresent(gram, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    /**
+     * @param literals strings every wanted key contains
+     * @return a superset of the indexed keys containing every literal, or null if the literals are all too short to
+     * narrow anything down
+     */
+    Set<String> candidates(List<String> literals) {
+        final Set<Long> grams = new HashSet<>();
+        for (String literal : literals) grams.addAll(grams(literal));
+        if (grams.isEmpty()) return null;
+
+        // Intersect starting from the rarest trigram so the working set is small from the outset
+        final List<Set<String>> lists = new ArrayList<>(grams.size());
+        for (long gram : grams) {
+            final Set<String> keys = postings.get(gram);
+            if (keys == null) return Collections.emptySet();
+            lists.add(keys);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        final Set<String> result = new HashSet<>(lists.get(0));
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) result.retainAll(lists.get(i));
+        return result;
+    }
+
+    /**
+     * @return number of distinct trigrams indexed
+     */
+    int size() {
+        return postings.size();
+    }
+
+    /**
+     * @return the distinct trigrams of a string, each packed into a long as three UTF-16 code units
+     */
+    private static Set<Long> grams(String s) {
+        if (s.length() < GRAM_LENGTH) return Collections.emptySet();
+        final Set<Long> grams = new HashSet<>(s.length() * 2);
+        for (int i = 0; i + GRAM_LENGTH <= s.length(); i++) {
+            grams.add(((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2));
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,121 @@
+package app_kvServer.storage;
+
+import app_kvServer.storage.IKVStorage.KVPair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Tally of the pairs rewritten by {@link IKVStorage#putAllKV}: how many there were, plus the first few of them, so
+ * that however many keys an update touches its result stays small enough to hold in memory and send back in a single
+ * message. Safe to share between the threads updating different partitions.
+ * <p>
+ * Serialized as the count on the first line followed by one {@link KVPair#serialize()} per sampled pair.
+ */
+public final class KVUpdateSummary {
+    /**
+     * Sample size used unless told otherwise
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 100;
+
+    private final int sampleSize;
+    private final Predicate<String> keyCondition;
+    private final List<KVPair> sample;
+    private long count;
+
+    public KVUpdateSummary() {
+        this(DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * @param sampleSize most updated pairs to keep, possibly 0
+     */
+    public KVUpdateSummary(int sampleSize) {
+        this(sampleSize, key -> true);
+    }
+
+    /**
+     * @param sampleSize   most updated pairs to keep, possibly 0
+     * @param keyCondition which of the updated keys to tally, e.g. only those this server is the primary for
+     */
+    public KVUpdateSummary(int sampleSize, Predicate<String> keyCondition) {
+        this.sampleSize = sampleSize;
+        this.keyCondition = keyCondition;
+        this.sample = new ArrayList<>(Math.min(sampleSize, DEFAULT_SAMPLE_SIZE));
+    }
+
+    /**
+     * @param kv as it is after the update
+     */
+    public synchronized void add(KVPair kv) {
+        if (!keyCondition.test(kv.key)) return;
+        count++;
+        if (sample.size() < sampleSize) sample.add(kv);
+    }
+
+    /**
+     * Fold in the summary of another part of the same update, e.g. from another server
+     */
+    public void merge(KVUpdateSummary other) {
+        // Copy out first so that we never hold both locks
+        final long otherCount = other.getCount();
+        final List<KVPair> otherSample = other.getSample();
+        synchronized (this) {
+            count += otherCount;
+            for (KVPair kv : otherSample) {
+                if (sample.size() >= sampleSize) break;
+                sample.add(kv);
+            }
+        }
+    }
+
+    /**
+     * @return number of pairs updated
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return some of the pairs updated, as they are after the update
+     */
+    public synchronized List<KVPair> getSample() {
+        return new ArrayList<>(sample);
+    }
+
+    /**
+     * @return serialized string for the summary
+     */
+    public synchronized String serialize() {
+        final StringBuilder serialized = new StringBuilder().append(count);
+        for (KVPair kv : sample) serialized.append('\n').append(kv.serialize());
+        return serialized.toString();
+    }
+
+    /**
+     * @param serialized string from {@link #serialize()}; a bare list of serialized pairs (as sent before summaries)
+     *                   is read as a summary of exactly those pairs
+     * @return summary with a sample as large as the one serialized
+     */
+    public static KVUpdateSummary deserialize(String serialized) {
+        final List<String> lines = serialized.lines().collect(Collectors.toList());
+        long count = -1;
+        if (!lines.isEmpty()) {
+            try {
+                count = Long.parseLong(lines.get(0));
+                lines.remove(0);
+            } catch (NumberFormatException e) {
+                // No count, so every line is a pair
+            }
+        }
+
+        final List<KVPair> pairs = lines.stream().map(KVPair::deserialize).filter(Objects::nonNull).collect(Collectors.toList());
+        final KVUpdateSummary summary = new KVUpdateSummary(pairs.size());
+        summary.sample.addAll(pairs);
+        summary.count = count < 0 ? pairs.size() : count;
+        return summary;
+    }
+}
@@ -126,6 +126,15 @@ public class KVStore implements KVCommInterface {
 
     @Override
     public KVMessage put(String key, String value) throws IOException {
+        return put(key, value, 0);
+    }
+
+    /**
+     * Like {@link #put(String, String)}, but the key is deleted once the given time has passed
+     *
+     * @param ttlMillis how long the key should live for, 0 for forever
+     */
+    public KVMessage put(String key, String value, long ttlMillis) throws IOException {
         long messageId = msgID.get();
         for (int iTry = 0; iTry < MAX_RETRIES; iTry++) {
             // 1. Get a server from our pool to contact
@@ -136,7 +145,7 @@ public class KVStore implements KVCommInterface {
             // 2. Make the request
             messageId = msgID.incrementAndGet();
             try {
-                new KVMessageProto(KVMessage.StatusType.PUT, validatedKey(key), validatedValue(value), messageId).writeMessageTo(clientSocket.getOutputStream());
+                new KVMessageProto(KVMessage.StatusType.PUT, validatedKey(key), validatedValue(value), validatedTtl(ttlMillis), messageId).writeMessageTo(clientSocket.getOutputStream());
                 final KVMessageProto response = new KVMessageProto(clientSocket.getInputStream());
                 if (response.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
                     updateMetadata(response.getValue());
@@ -315,6 +324,12 @@ public class KVStore implements KVCommInterface {
         return key;
     }
 
+    private long validatedTtl(long ttlMillis) {
+        if (ttlMillis < 0)
+            throw new IllegalArgumentException("TTL must not be negative");
+        return ttlMillis;
+    }
+
     private String validatedValue(String value) {
         value = value == null ? "null" : value.replaceAll("\n", "");
         if (value.length() > KVMessageProto.MAX_VALUE_SIZE)
@@ -11,6 +11,17 @@ import java.util.stream.Collectors;
  * TODO: consider rewriting as a proper {@link Collection}
  */
 public class ECSHashRing<T extends ECSNode> {
+    /**
+     * Digests are cheap to reuse but expensive to look up, and hashing is on the path of every request
+     */
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("System does not support MD5 hashing");
+        }
+    });
+
     /**
      * A {@link java.util.NavigableMap} representing the hash ring of servers
      */
@@ -71,13 +82,15 @@ public class ECSHashRing<T extends ECSNode> {
      * @return MD5 Hash of String in {@link BigInteger} format
      */
     public static BigInteger computeHash(String payload) {
-        try {
-            final MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update(payload.getBytes());
-            return new BigInteger(1, md5.digest());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("System does not support MD5 hashing");
-        }
+        return new BigInteger(1, computeHashBytes(payload));
+    }
+
+    /**
+     * @param payload is the string to hash
+     * @return MD5 Hash of String as 16 big-endian bytes, i.e. the magnitude of {@link #computeHash(String)}
+     */
+    public static byte[] computeHashBytes(String payload) {
+        return MD5.get().digest(payload.getBytes());
     }
 
     /**
@@ -15,7 +15,11 @@ public class ZkECSNode extends ECSNode {
     private static final Logger logger = Logger.getRootLogger();
     private ServerStatus serverStatus;
     private String cacheStrategy;
-    private int cacheSize;
+
+    /**
+     * Number of entries, or bytes with a unit, see {@link app_kvServer.cache.KVCacheCapacity#parse(String)}
+     */
+    private String cacheCapacity;
 
     /**
      * See {@link ECSNode#fromConfig(String)}
@@ -46,7 +50,7 @@ public class ZkECSNode extends ECSNode {
         super(original);
         this.serverStatus = original.serverStatus;
         this.cacheStrategy = original.cacheStrategy;
-        this.cacheSize = original.cacheSize;
+        this.cacheCapacity = original.cacheCapacity;
     }
 
     /**
@@ -67,12 +71,12 @@ public class ZkECSNode extends ECSNode {
 
     public String getNodeCacheStrategy() { return cacheStrategy; }
 
-    public void setNodeCacheSize(int cacheSize) { this.cacheSize = cacheSize; }
+    public void setNodeCacheCapacity(String cacheCapacity) { this.cacheCapacity = cacheCapacity; }
 
-    public int getNodeCacheSize() { return this.cacheSize; }
+    public String getNodeCacheCapacity() { return this.cacheCapacity; }
 
     public void clearNodeCachePolicy() {
-        this.cacheSize = 0;
+        this.cacheCapacity = null;
         this.cacheStrategy = null;
     }
 
@@ -7,6 +7,7 @@ import app_kvECS.IECSClient;
 import app_kvServer.ECSServerConnection;
 import app_kvServer.IKVServer;
 import app_kvServer.KVServer;
+import app_kvServer.KVServerOptions;
 import ecs.ECSHashRing;
 import ecs.ECSNode;
 import ecs.zk.ZooKeeperService;
@@ -52,6 +53,14 @@ public final class ObjectFactory {
         return new KVServer(port, name, connectionString, cacheSize, strategy);
     }
 
+    /*
+     * Creates a KVServer object with a specific cache and storage setup
+     */
+    public static IKVServer createKVServerObject(int port, String name, String connectionString, KVServerOptions options) {
+        logger.info("Note: the created server will be in STOPPED state");
+        return new KVServer(port, name, connectionString, options);
+    }
+
     /*
      * Creates an ECSClient object for auto-testing purposes
      */
@@ -29,10 +29,23 @@ public class KVMessageProto implements KVMessage {
      * @param value  - value associated with this message.
      */
     public KVMessageProto(StatusType status, String key, String value, long id) {
+        this(status, key, value, 0, id);
+    }
+
+    /**
+     * Constructs a KV message format using protobuf builder.
+     *
+     * @param status - status type of message associated with message types and for identifying errors.
+     * @param key    - key associated with this message.
+     * @param value  - value associated with this message.
+     * @param ttl    - milliseconds a PUT should live for, 0 for forever.
+     */
+    public KVMessageProto(StatusType status, String key, String value, long ttl, long id) {
         msg = KVProto.newBuilder()
                 .setStatusMsg(status.ordinal())
                 .setKeyMsg(key)
                 .setValueMsg(value)
+                .setTtlMsg(ttl)
                 .setIdMsg(id)
                 .build();
     }
@@ -62,6 +75,13 @@ public class KVMessageProto implements KVMessage {
         return msg.getIdMsg();
     }
 
+    /**
+     * @return milliseconds a PUT should live for, 0 for forever
+     */
+    public long getTtl() {
+        return msg.getTtlMsg();
+    }
+
     /**
      * Serializes message and writes it to output stream.
      *
@@ -76,7 +96,8 @@ public class KVMessageProto implements KVMessage {
      */
     @Override
     public String toString() {
-        return String.format("%d: %s<%s,%s>", this.getId(), this.getStatus(), this.getKey(), this.getValue());
+        final String message = String.format("%d: %s<%s,%s>", this.getId(), this.getStatus(), this.getKey(), this.getValue());
+        return this.getTtl() == 0 ? message : String.format("%s ttl=%dms", message, this.getTtl());
     }
 
 
@@ -53,6 +53,12 @@ public final class ProtoKVMessage {
      * @return The idMsg.
      */
     long getIdMsg();
+
+    /**
+     * <code>uint64 ttlMsg = 5;</code>
+     * @return The ttlMsg.
+     */
+    long getTtlMsg();
   }
   /**
    * <pre>
@@ -127,6 +133,11 @@ public final class ProtoKVMessage {
               idMsg_ = input.readUInt64();
               break;
             }
+            case 40: {
+
+              ttlMsg_ = input.readUInt64();
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -257,6 +268,17 @@ public final class ProtoKVMessage {
       return idMsg_;
     }
 
+    public static final int TTLMSG_FIELD_NUMBER = 5;
+    private long ttlMsg_;
+    /**
+     * <code>uint64 ttlMsg = 5;</code>
+     * @return The ttlMsg.
+     */
+    @java.lang.Override
+    public long getTtlMsg() {
+      return ttlMsg_;
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -283,6 +305,9 @@ public final class ProtoKVMessage {
       if (idMsg_ != 0L) {
         output.writeUInt64(4, idMsg_);
       }
+      if (ttlMsg_ != 0L) {
+        output.writeUInt64(5, ttlMsg_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -306,6 +331,10 @@ public final class ProtoKVMessage {
         size += com.google.protobuf.CodedOutputStream
           .computeUInt64Size(4, idMsg_);
       }
+      if (ttlMsg_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt64Size(5, ttlMsg_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -329,6 +358,8 @@ public final class ProtoKVMessage {
           .equals(other.getValueMsg())) return false;
       if (getIdMsg()
           != other.getIdMsg()) return false;
+      if (getTtlMsg()
+          != other.getTtlMsg()) return false;
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -349,6 +380,9 @@ public final class ProtoKVMessage {
       hash = (37 * hash) + IDMSG_FIELD_NUMBER;
       hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
           getIdMsg());
+      hash = (37 * hash) + TTLMSG_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getTtlMsg());
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -494,6 +528,8 @@ public final class ProtoKVMessage {
 
         idMsg_ = 0L;
 
+        ttlMsg_ = 0L;
+
         return this;
       }
 
@@ -524,6 +560,7 @@ public final class ProtoKVMessage {
         result.keyMsg_ = keyMsg_;
         result.valueMsg_ = valueMsg_;
         result.idMsg_ = idMsg_;
+        result.ttlMsg_ = ttlMsg_;
         onBuilt();
         return result;
       }
@@ -586,6 +623,9 @@ public final class ProtoKVMessage {
         if (other.getIdMsg() != 0L) {
           setIdMsg(other.getIdMsg());
         }
+        if (other.getTtlMsg() != 0L) {
+          setTtlMsg(other.getTtlMsg());
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -828,6 +868,37 @@ public final class ProtoKVMessage {
         onChanged();
         return this;
       }
+
+      private long ttlMsg_ ;
+      /**
+       * <code>uint64 ttlMsg = 5;</code>
+       * @return The ttlMsg.
+       */
+      @java.lang.Override
+      public long getTtlMsg() {
+        return ttlMsg_;
+      }
+      /**
+       * <code>uint64 ttlMsg = 5;</code>
+       * @param value The ttlMsg to set.
+       * @return This builder for chaining.
+       */
+      public Builder setTtlMsg(long value) {
+        
+        ttlMsg_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>uint64 ttlMsg = 5;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearTtlMsg() {
+        
+        ttlMsg_ = 0L;
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -896,10 +967,11 @@ public final class ProtoKVMessage {
   static {
     java.lang.String[] descriptorData = {
       "\n%shared/messages/proto/KVMessage.proto\022" +
-      "\025shared.messages.proto\"M\n\007KVProto\022\021\n\tsta" +
+      "\025shared.messages.proto\"]\n\007KVProto\022\021\n\tsta" +
       "tusMsg\030\001 \001(\r\022\016\n\006keyMsg\030\002 \001(\t\022\020\n\010valueMsg" +
-      "\030\003 \001(\t\022\r\n\005idMsg\030\004 \001(\004B\'\n\025shared.messages" +
-      ".protoB\016ProtoKVMessageb\006proto3"
+      "\030\003 \001(\t\022\r\n\005idMsg\030\004 \001(\004\022\016\n\006ttlMsg\030\005 " +
+      "\001(\004B\'\n\025shared.messages.protoB\016ProtoKVMessag" +
+      "eb\006proto3"
     };
     descriptor = com.google.protobuf.Descriptors.FileDescriptor
       .internalBuildGeneratedFileFrom(descriptorData,
@@ -910,7 +982,7 @@ public final class ProtoKVMessage {
     internal_static_shared_messages_proto_KVProto_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_shared_messages_proto_KVProto_descriptor,
-        new java.lang.String[] { "StatusMsg", "KeyMsg", "ValueMsg", "IdMsg", });
+        new java.lang.String[] { "StatusMsg", "KeyMsg", "ValueMsg", "IdMsg", "TtlMsg", });
   }
 
   // @@protoc_insertion_point(outer_class_scope)
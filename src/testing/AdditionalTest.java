@@ -3,8 +3,19 @@ package testing;
 import app_kvServer.IKVServer.CacheStrategy;
 import app_kvServer.KVServerException;
 import app_kvServer.cache.IKVCache;
+import app_kvServer.cache.KVCacheCapacity;
+import app_kvServer.replication.DeadlineHandshake;
+import app_kvServer.storage.DurabilityPolicy;
 import app_kvServer.storage.IKVStorage;
+import app_kvServer.storage.KVArenaStorage;
+import app_kvServer.storage.KVBTreeStorage;
+import app_kvServer.storage.KVLsmStorage;
 import app_kvServer.storage.KVPartitionedStorage;
+import app_kvServer.storage.KVPatternFilter;
+import app_kvServer.storage.KVRingRange;
+import app_kvServer.storage.KVSingleFileStorage;
+import app_kvServer.storage.KVTieredStorage;
+import app_kvServer.storage.KVUpdateSummary;
 import client.KVStore;
 import ecs.ECSHashRing;
 import ecs.ECSNode;
@@ -15,7 +26,31 @@ import shared.messages.KVMessageProto;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.math.BigInteger;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertArrayEquals;
@@ -198,6 +233,1034 @@ public class AdditionalTest extends TestCase {
         storage.clearStorage();
     }
 
+    /**
+     * Populate storage with some overwritten and some deleted keys: every 2nd key is overwritten, then every 3rd
+     * deleted, leaving count - (count + 2) / 3 live
+     *
+     * @param keyFormat e.g. "key_%d"
+     */
+    private static void populate(IKVStorage storage, String keyFormat, int count) throws KVServerException {
+        for (int i = 0; i < count; i++) storage.putKV(String.format(keyFormat, i), "value_" + i);
+        for (int i = 0; i < count; i += 2) storage.putKV(String.format(keyFormat, i), "new_value_" + i);
+        for (int i = 0; i < count; i += 3) storage.delete(String.format(keyFormat, i));
+    }
+
+    /**
+     * Check that storage holds exactly what {@link #populate} left in it
+     */
+    private static void assertPopulated(IKVStorage storage, String keyFormat, int count) throws KVServerException {
+        for (int i = 0; i < count; i++) {
+            final String key = String.format(keyFormat, i);
+            assertEquals(i % 3 != 0, storage.inStorage(key));
+            if (i % 3 != 0) assertEquals((i % 2 == 0 ? "new_value_" : "value_") + i, storage.getKV(key));
+        }
+    }
+
+    /**
+     * Tests that KVPartitionedStorage's key index survives a restart i.e. is rebuilt from what's on disk
+     */
+    @Test
+    public void testStorageIndexRebuild() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test";
+        final KVPartitionedStorage storage = new KVPartitionedStorage(directory);
+        storage.clearStorage();
+        populate(storage, "key_%d", 100);
+
+        // Simulate a restart by reading from the same directory
+        final KVPartitionedStorage restarted = new KVPartitionedStorage(directory);
+        assertPopulated(restarted, "key_%d", 100);
+
+        restarted.clearStorage();
+        restarted.close();
+        storage.close();
+    }
+
+    /**
+     * Tests conversion of a text-format store and that binary records survive awkward values
+     */
+    @Test
+    public void testStorageBinaryFormat() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_binary";
+        final File legacy = new File(directory, "legacy.db");
+        legacy.getParentFile().mkdirs();
+        Files.write(legacy.toPath(), String.join("\n", "Vkey_1 value 1", "Vkey_2 value_2", "Dkey_2 ", "Vkey_3 value_3", "").getBytes());
+
+        // Old records are carried over
+        KVSingleFileStorage storage = new KVSingleFileStorage(directory, legacy.getName());
+        assertEquals("value 1", storage.getKV("key_1"));
+        assertFalse(storage.inStorage("key_2"));
+        assertEquals("value_3", storage.getKV("key_3"));
+
+        // Newlines would have split a text record in two
+        storage.putKV("key_4", "multi\nline\r\nvalue");
+        storage.putKV("key_5", "");
+        storage.close();
+
+        storage = new KVSingleFileStorage(directory, legacy.getName());
+        assertEquals("multi\nline\r\nvalue", storage.getKV("key_4"));
+        assertEquals("", storage.getKV("key_5"));
+        assertEquals(4, storage.getAllKV(kv -> true).size());
+        storage.close();
+
+        // A file from an older version is stamped with the current one before it's appended to, and one from a newer
+        // version is refused rather than misread
+        try (RandomAccessFile file = new RandomAccessFile(legacy, "rw")) {
+            file.seek(Integer.BYTES);
+            file.writeShort(1);
+        }
+        storage = new KVSingleFileStorage(directory, legacy.getName());
+        assertEquals("multi\nline\r\nvalue", storage.getKV("key_4"));
+        storage.close();
+        try (RandomAccessFile file = new RandomAccessFile(legacy, "rw")) {
+            file.seek(Integer.BYTES);
+            assertTrue(file.readShort() > 1);
+            file.seek(Integer.BYTES);
+            file.writeShort(Short.MAX_VALUE);
+        }
+        try {
+            new KVSingleFileStorage(directory, legacy.getName());
+            fail("Opened a file from a newer version of the format");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().startsWith("Unsupported version"));
+        }
+        Files.delete(legacy.toPath());
+        Files.deleteIfExists(new File(directory, legacy.getName() + ".hint").toPath());
+
+        // An implausible length partway through the file only costs that record, not everything written after it
+        final File corrupt = new File(directory, "corrupt.db");
+        storage = new KVSingleFileStorage(directory, corrupt.getName());
+        storage.clearStorage();
+        for (int i = 0; i < 10; i++) storage.putKV("key_" + i, "value_" + i);
+        storage.close();
+        Files.deleteIfExists(new File(directory, corrupt.getName() + ".hint").toPath());
+        final long length = corrupt.length();
+        try (RandomAccessFile file = new RandomAccessFile(corrupt, "rw")) {
+            file.seek(9); // Key length of the first record, past the file header and its flags
+            file.writeInt(Integer.MAX_VALUE);
+        }
+        storage = new KVSingleFileStorage(directory, corrupt.getName());
+        assertFalse(storage.inStorage("key_0"));
+        for (int i = 1; i < 10; i++) assertEquals("value_" + i, storage.getKV("key_" + i));
+        assertEquals(length, corrupt.length());
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests group commit with many concurrent writers and fsync per batch
+     */
+    @Test
+    public void testStorageGroupCommit() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_group_commit";
+        assertGroupCommitHolds(() -> new KVSingleFileStorage(directory, "store.db", DurabilityPolicy.BATCH));
+        assertGroupCommitHolds(() -> new KVArenaStorage(directory + "_arena", DurabilityPolicy.BATCH));
+    }
+
+    private static void assertGroupCommitHolds(Supplier<IKVStorage> opener) throws Exception {
+        final IKVStorage storage = opener.get();
+        storage.clearStorage();
+
+        // Each thread writes its own keys, then deletes every other one twice (the second delete must fail)
+        final List<Thread> writers = new ArrayList<>();
+        final AtomicInteger failedDeletes = new AtomicInteger();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    try {
+                        storage.putKV("key_" + thread + "_" + i, "value_" + i);
+                    } catch (KVServerException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                for (int i = 0; i < 100; i += 2) {
+                    for (int attempt = 0; attempt < 2; attempt++) {
+                        try {
+                            storage.delete("key_" + thread + "_" + i);
+                        } catch (KVServerException e) {
+                            failedDeletes.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) writer.start();
+        for (Thread writer : writers) writer.join();
+        assertEquals(8 * 50, failedDeletes.get());
+        storage.close();
+
+        final IKVStorage restarted = opener.get();
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i % 2 != 0, restarted.inStorage("key_" + t + "_" + i));
+                if (i % 2 != 0) assertEquals("value_" + i, restarted.getKV("key_" + t + "_" + i));
+            }
+        }
+
+        restarted.clearStorage();
+        restarted.close();
+    }
+
+    /**
+     * Tests that compaction reclaims overwritten and deleted records without losing live ones
+     */
+    @Test
+    public void testStorageCompaction() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_compaction";
+        final KVPartitionedStorage storage = new KVPartitionedStorage(directory);
+        storage.clearStorage();
+        populate(storage, "key_%d", 100);
+        final long liveBytes = storage.getLiveBytes();
+        assertTrue(storage.getDeadBytes() > 0);
+
+        // Deleting nothing still rewrites every partition with only its live records
+        storage.deleteIf(kv -> false);
+        assertEquals(0, storage.getDeadBytes());
+        assertEquals(liveBytes, storage.getLiveBytes());
+
+        // Writes after compaction land at the right place, and survive a restart
+        storage.putKV("after_compaction", "value");
+        final KVPartitionedStorage restarted = new KVPartitionedStorage(directory);
+        assertPopulated(restarted, "key_%d", 100);
+        assertEquals("value", restarted.getKV("after_compaction"));
+        assertEquals(storage.getLiveBytes(), restarted.getLiveBytes());
+        restarted.close();
+        storage.close();
+
+        // Once closed, compaction leaves the files alone rather than rewriting them out from under the next opener
+        try {
+            storage.deleteIf(kv -> true);
+            fail("Closed storage shouldn't compact");
+        } catch (KVServerException e) {
+            assertEquals(KVMessage.StatusType.DELETE_ALL_ERROR, e.getErrorCode());
+        }
+        final KVPartitionedStorage reopened = new KVPartitionedStorage(directory);
+        assertPopulated(reopened, "key_%d", 100);
+        assertEquals("value", reopened.getKV("after_compaction"));
+        reopened.clearStorage();
+        reopened.close();
+    }
+
+    /**
+     * Tests that records are redistributed when a store is reopened with a different partition count
+     */
+    @Test
+    public void testStorageRepartition() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_repartition";
+        KVPartitionedStorage storage = new KVPartitionedStorage(directory);
+        storage.clearStorage();
+        for (int i = 0; i < 200; i++) storage.putKV("key_" + i, "value_" + i);
+        storage.delete("key_0");
+        storage.close();
+
+        for (int partitions : new int[]{3, 16}) {
+            storage = new KVPartitionedStorage(directory, partitions, DurabilityPolicy.NONE);
+            assertEquals(199, storage.getAllKV(kv -> true).size());
+            for (int i = 1; i < 200; i++) assertEquals("value_" + i, storage.getKV("key_" + i));
+            assertFalse(storage.inStorage("key_0"));
+            storage.close();
+        }
+        assertFalse(new File(directory, "store1.db.old").exists());
+        assertTrue(new File(directory, "store16.db").exists());
+
+        // A resize to 32 partitions interrupted part way through redistributing, then reopened with the old count
+        for (int i = 1; i <= 16; i++) {
+            final File partition = new File(directory, "store" + i + ".db");
+            assertTrue(partition.renameTo(new File(directory, "store" + i + ".db.old")));
+        }
+        Files.copy(new File(directory, "store1.db.old").toPath(), new File(directory, "store1.db").toPath());
+        Files.write(new File(directory, "partitions.resizing").toPath(), "16".getBytes());
+        storage = new KVPartitionedStorage(directory, 16, DurabilityPolicy.NONE);
+        assertEquals(199, storage.getAllKV(kv -> true).size());
+        for (int i = 1; i < 200; i++) assertEquals("value_" + i, storage.getKV("key_" + i));
+        assertFalse(new File(directory, "store1.db.old").exists());
+        assertFalse(new File(directory, "partitions.resizing").exists());
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that restarts pick up from hint files and still see writes made after the hint was taken
+     */
+    @Test
+    public void testStorageHintFiles() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_hint";
+        final File hint = new File(directory, "store.db.hint");
+        KVSingleFileStorage storage = new KVSingleFileStorage(directory, "store.db");
+        storage.clearStorage();
+        assertFalse(hint.exists());
+
+        // A clean shutdown leaves a hint behind
+        for (int i = 0; i < 100; i++) storage.putKV("key_" + i, "value_" + i);
+        storage.close();
+        assertTrue(hint.exists());
+
+        // Writes after the hint was taken are replayed from the store itself
+        storage = new KVSingleFileStorage(directory, "store.db");
+        final long liveBytes = storage.getLiveBytes();
+        for (int i = 0; i < 100; i += 2) storage.putKV("key_" + i, "new_value_" + i);
+        for (int i = 0; i < 100; i += 3) storage.delete("key_" + i);
+        final KVSingleFileStorage crashed = new KVSingleFileStorage(directory, "store.db");
+        assertPopulated(crashed, "key_%d", 100);
+        assertEquals(storage.getLiveBytes(), crashed.getLiveBytes());
+        assertTrue(liveBytes != crashed.getLiveBytes());
+
+        // A corrupt hint is ignored in favour of a full scan
+        Files.write(hint.toPath(), new byte[]{1, 2, 3});
+        final KVSingleFileStorage rescanned = new KVSingleFileStorage(directory, "store.db");
+        assertEquals(storage.getLiveBytes(), rescanned.getLiveBytes());
+        assertEquals("value_1", rescanned.getKV("key_1"));
+
+        storage.clearStorage();
+        assertFalse(hint.exists());
+        rescanned.close();
+        crashed.close();
+        storage.close();
+    }
+
+    /**
+     * Tests that a reader being interrupted, which closes the channel it shares with every other reader, doesn't break
+     * later reads
+     */
+    @Test
+    public void testStorageReaderInterrupted() throws Exception {
+        final KVSingleFileStorage storage = new KVSingleFileStorage(IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_interrupt", "store.db");
+        storage.clearStorage();
+        storage.putKV("key", "value");
+
+        final AtomicBoolean interruptedGetFailed = new AtomicBoolean();
+        final Thread reader = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                storage.getKV("key");
+            } catch (KVServerException e) {
+                interruptedGetFailed.set(true);
+            }
+        });
+        reader.start();
+        reader.join();
+        assertTrue(interruptedGetFailed.get());
+
+        assertEquals("value", storage.getKV("key"));
+        storage.putKV("key", "new_value");
+        assertEquals("new_value", storage.getKV("key"));
+
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that ring range filters agree with the hash ring, including when applied by storage to stored hashes
+     */
+    @Test
+    public void testStorageRingRange() throws Exception {
+        final String lower = ECSHashRing.computeHash("key_10").toString(16), upper = ECSHashRing.computeHash("key_20").toString(16);
+        final BigInteger l = new BigInteger(lower, 16), r = new BigInteger(upper, 16);
+        final KVRingRange range = KVRingRange.fromHex(lower, upper), wrapped = KVRingRange.fromHex(upper, lower);
+        for (int i = 0; i < 1000; i++) {
+            final IKVStorage.KVPair kv = new IKVStorage.KVPair("key_" + i, "value");
+            final BigInteger hash = ECSHashRing.computeHash(kv.key);
+            final boolean inRange = r.compareTo(l) > 0
+                    ? r.compareTo(hash) >= 0 && l.compareTo(hash) < 0
+                    : r.compareTo(hash) >= 0 || l.compareTo(hash) < 0;
+            assertEquals(inRange, range.test(kv));
+            assertEquals(!inRange, range.negate().test(kv));
+            assertEquals(!inRange, wrapped.test(kv));
+        }
+        assertTrue(KVRingRange.fromHex(lower, lower).test(new IKVStorage.KVPair("anything", "value")));
+
+        // Storage filters on the hashes it keeps, which must survive a restart
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_ring_range";
+        final KVPartitionedStorage storage = new KVPartitionedStorage(directory);
+        storage.clearStorage();
+        for (int i = 0; i < 1000; i++) storage.putKV("key_" + i, "value_" + i);
+        final long expected = Stream.iterate(0, i -> i + 1).limit(1000)
+                .filter(i -> range.test(new IKVStorage.KVPair("key_" + i, ""))).count();
+        try (Stream<IKVStorage.KVPair> moved = storage.openKvStream(range)) {
+            assertEquals(expected, moved.peek(kv -> assertTrue(range.test(kv))).count());
+        }
+        storage.close();
+
+        final KVPartitionedStorage restarted = new KVPartitionedStorage(directory);
+        restarted.deleteIf(range);
+        assertEquals(1000 - expected, restarted.getAllKV(kv -> true).size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(!range.test(new IKVStorage.KVPair("key_" + i, "")), restarted.inStorage("key_" + i));
+        }
+
+        restarted.clearStorage();
+        restarted.close();
+    }
+
+    /**
+     * Tests range streams and deletes over partitions laid out by ring arc, and switching an existing store to it
+     */
+    @Test
+    public void testStorageRingLayout() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_ring_layout";
+        final KVPartitionedStorage keyHashed = new KVPartitionedStorage(directory, 5, DurabilityPolicy.NONE);
+        keyHashed.clearStorage();
+        for (int i = 0; i < 2000; i++) keyHashed.putKV("key_" + i, "value_" + i);
+        keyHashed.close();
+
+        // Switching layout redistributes records, same as changing the partition count
+        final KVPartitionedStorage storage = new KVPartitionedStorage(directory, 5, KVPartitionedStorage.Layout.RING_HASH, DurabilityPolicy.NONE);
+        assertEquals(2000, storage.getAllKV(kv -> true).size());
+        assertEquals("value_1234", storage.getKV("key_1234"));
+
+        // Ranges covering whole partitions, parts of one, and wrapping past zero, along with their complements
+        final String quarter = BigInteger.ONE.shiftLeft(126).toString(16);
+        final List<KVRingRange> ranges = Arrays.asList(
+                KVRingRange.fromHex("0", BigInteger.ONE.shiftLeft(127).toString(16)),
+                KVRingRange.fromHex(ECSHashRing.computeHash("key_10").toString(16), ECSHashRing.computeHash("key_20").toString(16)),
+                KVRingRange.fromHex(BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE.shiftLeft(124)).toString(16), quarter),
+                KVRingRange.fromHex(quarter, quarter)
+        );
+        for (KVRingRange range : ranges) {
+            for (KVRingRange filter : Arrays.asList(range, range.negate())) {
+                final long expected;
+                try (Stream<IKVStorage.KVPair> scanned = storage.openKvStream(filter::test)) {
+                    expected = scanned.count();
+                }
+                try (Stream<IKVStorage.KVPair> moved = storage.openKvStream(filter)) {
+                    assertEquals(expected, moved.peek(kv -> assertTrue(filter.test(kv))).count());
+                }
+            }
+        }
+
+        final KVRingRange removed = ranges.get(2);
+        storage.deleteIf(removed);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(!removed.test(new IKVStorage.KVPair("key_" + i, "")), storage.inStorage("key_" + i));
+        }
+        storage.deleteIf(removed.negate());
+        try (Stream<IKVStorage.KVPair> remaining = storage.openKvStream(kv -> true)) {
+            assertEquals(0, remaining.count());
+        }
+
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that large values are compressed on disk yet read back unchanged, including after compaction and a restart
+     */
+    @Test
+    public void testStorageCompression() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_compression";
+        final KVSingleFileStorage storage = new KVSingleFileStorage(directory, "store.db");
+        storage.clearStorage();
+
+        // Repetitive text like an email body, a value too short to bother with, and one that doesn't compress
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) body.append("Please forward the attached schedule to desk ").append(i % 7).append(".\n");
+        final StringBuilder noise = new StringBuilder();
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) noise.append((char) (0x21 + random.nextInt(90)));
+        for (int i = 0; i < 100; i++) storage.putKV("email_" + i, body + "Thanks, " + i);
+        storage.putKV("short", "too short to compress");
+        storage.putKV("noise", noise.toString());
+
+        final long rawBytes = 100L * (body.length() + "Thanks, 00".length());
+        assertTrue(storage.getLiveBytes() * 5 < rawBytes);
+        assertTrue(storage.getCompressionRatio() > 5);
+
+        storage.deleteIf(kv -> kv.key.startsWith("email_") && Integer.parseInt(kv.key.substring("email_".length())) % 2 == 0);
+        storage.close();
+        final KVSingleFileStorage restarted = new KVSingleFileStorage(directory, "store.db");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 != 0, restarted.inStorage("email_" + i));
+            if (i % 2 != 0) assertEquals(body + "Thanks, " + i, restarted.getKV("email_" + i));
+        }
+        assertEquals("too short to compress", restarted.getKV("short"));
+        assertEquals(noise.toString(), restarted.getKV("noise"));
+        assertEquals(52, restarted.getAllKV(kv -> true).size());
+
+        restarted.clearStorage();
+        restarted.close();
+    }
+
+    /**
+     * Tests reads of records before, straddling and after the end of the store's first memory-mapped region (64MB),
+     * before and after an append and a compaction
+     */
+    @Test
+    public void testStorageMappedRegions() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_mapped";
+        final KVSingleFileStorage storage = new KVSingleFileStorage(directory, "store.db");
+        storage.clearStorage();
+
+        // Distinct slices of random noise barely compress, so these take up well over a region on disk
+        final long regionBytes = 64L << 20;
+        final int count = 400, length = 256 * 1024;
+        final StringBuilder noise = new StringBuilder();
+        final Random random = new Random(42);
+        for (int i = 0; i < 2 * length; i++) noise.append((char) (0x21 + random.nextInt(94)));
+        final IntFunction<String> value = seed -> noise.substring(seed * 997 % length, seed * 997 % length + length);
+        for (int i = 0; i < count; i++) storage.putKV("key_" + i, value.apply(i));
+        assertTrue(storage.getLiveBytes() > regionBytes);
+
+        // Check before appending, after it, and after compaction
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < count; i++) {
+                assertEquals(value.apply(pass > 0 && i % 2 == 0 ? count + i : i), storage.getKV("key_" + i));
+            }
+
+            if (pass == 0) {
+                for (int i = 0; i < count; i += 2) storage.putKV("key_" + i, value.apply(count + i));
+            } else if (pass == 1) {
+                storage.deleteIf(kv -> false);
+                assertEquals(0, storage.getDeadBytes());
+                assertTrue(storage.getLiveBytes() > regionBytes);
+            }
+        }
+        // Scans read in chunks, which span the boundary too
+        assertEquals(count, storage.getAllKV(kv -> true).size());
+
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests KVArenaStorage across several arenas, index growth, compaction and a restart
+     */
+    @Test
+    public void testArenaStorage() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_arena";
+        KVArenaStorage storage = new KVArenaStorage(directory, 64 * 1024 /* tiny arenas to force many */, DurabilityPolicy.NONE);
+        storage.clearStorage();
+
+        populate(storage, "key_%d", 20000);
+
+        // Plus a value bigger than an arena
+        final String large = "x".repeat(100 * 1024);
+        storage.putKV("large", large);
+        assertTrue(storage.getOffHeapBytes() > 64 * 1024);
+
+        // Check before compaction, after it, and after a restart
+        for (int pass = 0; pass < 3; pass++) {
+            assertPopulated(storage, "key_%d", 20000);
+            assertEquals(large, storage.getKV("large"));
+            assertEquals(20000 - 6667 + 1, storage.getAllKV(kv -> true).size());
+
+            if (pass == 0) {
+                final long offHeap = storage.getOffHeapBytes();
+                storage.compact();
+                assertTrue(storage.getOffHeapBytes() < offHeap);
+            } else if (pass == 1) {
+                storage.close();
+                storage = new KVArenaStorage(directory, 64 * 1024, DurabilityPolicy.NONE);
+            }
+        }
+
+        try {
+            storage.delete("key_0");
+            fail("Deleted a key that was already gone");
+        } catch (KVServerException e) {
+            assertEquals(KVMessage.StatusType.DELETE_ERROR, e.getErrorCode());
+        }
+        storage.deleteIf(kv -> kv.key.startsWith("key_"));
+        assertEquals(1, storage.getAllKV(kv -> true).size());
+        storage.close();
+
+        // Once closed, compaction leaves the log alone rather than swapping it out from under the next opener
+        try {
+            storage.compact();
+            fail("Closed storage shouldn't compact");
+        } catch (IOException e) {
+            // Expected
+        }
+        storage = new KVArenaStorage(directory, 64 * 1024, DurabilityPolicy.NONE);
+        assertEquals(large, storage.getKV("large"));
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests KVBTreeStorage with a page cache too small to hold the tree, ordered prefix scans, compaction and restarts
+     */
+    @Test
+    public void testBTreeStorage() throws Exception {
+        assertEquals("user_42_", new KVPatternFilter(Pattern.compile("user_42_.*"), Pattern.compile(".*")).getKeyPrefix());
+        assertEquals("user_4", new KVPatternFilter(Pattern.compile("user_42?_.*"), Pattern.compile(".*")).getKeyPrefix());
+        assertEquals("a.b", new KVPatternFilter(Pattern.compile("a\\.b[0-9]+"), Pattern.compile(".*")).getKeyPrefix());
+        assertEquals("", new KVPatternFilter(Pattern.compile("user_1|user_2"), Pattern.compile(".*")).getKeyPrefix());
+
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_btree";
+        KVBTreeStorage storage = new KVBTreeStorage(directory, 16 /* tiny cache to force evictions */, DurabilityPolicy.NONE);
+        storage.clearStorage();
+
+        populate(storage, "user_%d_name", 20000);
+        assertTrue(storage.getPageCount() > 16);
+
+        // Check before compaction, after it, and after a restart
+        for (int pass = 0; pass < 3; pass++) {
+            assertPopulated(storage, "user_%d_name", 20000);
+
+            // Streams come back in key order, and prefixed ones only hold keys with that prefix
+            final List<String> keys = new ArrayList<>();
+            try (Stream<IKVStorage.KVPair> kvs = storage.openKvStream(kv -> true)) {
+                kvs.forEach(kv -> keys.add(kv.key));
+            }
+            assertEquals(20000 - 6667, keys.size());
+            for (int i = 1; i < keys.size(); i++) assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+            final List<IKVStorage.KVPair> prefixed = storage.getAllKV(new KVPatternFilter(Pattern.compile("user_42.*"), Pattern.compile(".*")));
+            assertEquals(IntStream.range(0, 20000).filter(i -> i % 3 != 0 && Integer.toString(i).startsWith("42")).count(), prefixed.size());
+
+            if (pass == 0) {
+                final int pages = storage.getPageCount();
+                storage.compact();
+                assertTrue(storage.getPageCount() < pages);
+            } else if (pass == 1) {
+                storage.close();
+                storage = new KVBTreeStorage(directory, 16, DurabilityPolicy.NONE);
+            }
+        }
+
+        storage.deleteIf(new KVPatternFilter(Pattern.compile("user_1.*"), Pattern.compile(".*")));
+        assertFalse(storage.inStorage("user_1_name"));
+        assertTrue(storage.inStorage("user_2_name"));
+
+        // Streams only lock the tree while reading each batch, so writers aren't held up part way through one
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (Stream<IKVStorage.KVPair> kvs = storage.openKvStream(kv -> true)) {
+            final Iterator<IKVStorage.KVPair> it = kvs.iterator();
+            assertTrue(it.hasNext());
+            final KVBTreeStorage open = storage;
+            writer.submit(() -> {
+                open.putKV("user_2_name", "updated");
+                return null;
+            }).get(5, TimeUnit.SECONDS);
+            int count = 1;
+            for (it.next(); it.hasNext(); it.next()) count++;
+            assertTrue(count > 1024);
+        } finally {
+            writer.shutdown();
+        }
+        assertEquals("updated", storage.getKV("user_2_name"));
+
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that Queries narrowed down by the trigram index find exactly what a full scan would
+     */
+    @Test
+    public void testStorageTrigramIndex() throws Exception {
+        assertEquals(List.of("user_", "_name"), new KVPatternFilter(Pattern.compile("user_\\d+_name"), Pattern.compile(".*")).getKeyLiterals());
+        assertEquals(List.of("abc", "def"), new KVPatternFilter(Pattern.compile("[0-9]+abc(xy)?def.*"), Pattern.compile(".*")).getKeyLiterals());
+        assertEquals(List.of("ab", "c"), new KVPatternFilter(Pattern.compile("ab+c"), Pattern.compile(".*")).getKeyLiterals());
+        assertEquals(List.of(), new KVPatternFilter(Pattern.compile("abc|def"), Pattern.compile(".*")).getKeyLiterals());
+
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_trigram";
+        KVPartitionedStorage storage = new KVPartitionedStorage(directory, 4, KVPartitionedStorage.Layout.KEY_HASH, DurabilityPolicy.NONE, true);
+        storage.clearStorage();
+        populate(storage, "user_%d_name", 20000);
+
+        // Check before and after dropping some keys in bulk, and after a restart
+        for (int pass = 0; pass < 3; pass++) {
+            final int dropped = pass == 0 ? 0 : 10;
+            final KVPatternFilter selective = new KVPatternFilter(Pattern.compile("user_\\d*77_name"), Pattern.compile(".*"));
+            assertEquals(IntStream.range(0, 20000).filter(i -> i % 3 != 0 && i % 100 == 77 && (dropped == 0 || i / 1000 != dropped)).count(),
+                    storage.getAllKV(selective).size());
+            try (Stream<IKVStorage.KVPair> kvs = storage.openKvStream(selective)) {
+                assertTrue(kvs.allMatch(selective));
+            }
+
+            // Nothing to narrow it down with, so every key gets checked
+            final KVPatternFilter unselective = new KVPatternFilter(Pattern.compile("u.*"), Pattern.compile("new_.*"));
+            assertEquals(IntStream.range(0, 20000).filter(i -> i % 3 != 0 && i % 2 == 0 && (dropped == 0 || i / 1000 != dropped)).count(),
+                    storage.getAllKV(unselective).size());
+
+            if (pass == 0) {
+                storage.deleteIf(new KVPatternFilter(Pattern.compile("user_10\\d\\d\\d_name"), Pattern.compile(".*")));
+            } else if (pass == 1) {
+                storage.close();
+                storage = new KVPartitionedStorage(directory, 4, KVPartitionedStorage.Layout.KEY_HASH, DurabilityPolicy.NONE, true);
+            }
+        }
+
+        // Keys that come back after being dropped are found again
+        storage.putKV("user_10077_name", "value");
+        assertEquals(1, storage.getAllKV(new KVPatternFilter(Pattern.compile("user_10077_name"), Pattern.compile(".*"))).size());
+
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that snapshots keep what was in storage when they were taken, through later writes, compaction and restarts
+     */
+    @Test
+    public void testStorageSnapshots() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_snapshots";
+        assertSnapshotsHold(() -> new KVPartitionedStorage(directory, 4, DurabilityPolicy.NONE));
+        assertSnapshotsHold(() -> new KVLsmStorage(directory + "_lsm", 16 * 1024 /* tiny memtable so merges run */));
+
+        // Engines without snapshots say so rather than failing some other way
+        final IKVStorage arena = new KVArenaStorage(directory + "_arena");
+        try {
+            arena.createSnapshot("before");
+            fail("Arena storage doesn't support snapshots");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(arena.listSnapshots().isEmpty());
+        } finally {
+            arena.clearStorage();
+            arena.close();
+        }
+    }
+
+    private static void assertSnapshotsHold(Supplier<IKVStorage> opener) throws Exception {
+        IKVStorage storage = opener.get();
+        storage.clearStorage();
+        for (String name : storage.listSnapshots()) storage.deleteSnapshot(name);
+
+        for (int i = 0; i < 5000; i++) storage.putKV("key_" + i, "value_" + i);
+        storage.createSnapshot("before");
+        try {
+            storage.createSnapshot("before");
+            fail("Snapshot names must be unique");
+        } catch (FileAlreadyExistsException e) {
+            // Expected
+        }
+
+        // Overwrite, delete and compact the live store out from under the snapshot
+        for (int i = 0; i < 5000; i += 2) storage.putKV("key_" + i, "new_value_" + i);
+        for (int i = 0; i < 5000; i += 3) storage.delete("key_" + i);
+        storage.deleteIf(kv -> kv.key.endsWith("7"));
+        storage.putKV("key_new", "value");
+
+        for (int pass = 0; pass < 2; pass++) {
+            assertEquals(List.of("before"), storage.listSnapshots());
+            final Map<String, String> snapshotted = new HashMap<>();
+            try (Stream<IKVStorage.KVPair> kvs = storage.openSnapshotStream("before", kv -> true)) {
+                kvs.forEach(kv -> assertNull(snapshotted.put(kv.key, kv.value)));
+            }
+            assertEquals(5000, snapshotted.size());
+            for (int i = 0; i < 5000; i++) assertEquals("value_" + i, snapshotted.get("key_" + i));
+            try (Stream<IKVStorage.KVPair> kvs = storage.openSnapshotStream("before", kv -> kv.key.endsWith("7"))) {
+                assertEquals(500, kvs.count());
+            }
+
+            // Meanwhile the live store has moved on
+            assertFalse(storage.inStorage("key_0"));
+            assertFalse(storage.inStorage("key_7"));
+            assertEquals("new_value_2", storage.getKV("key_2"));
+
+            storage.close();
+            storage = opener.get();
+        }
+
+        storage.deleteSnapshot("before");
+        assertTrue(storage.listSnapshots().isEmpty());
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that keys written with a deadline disappear once it passes: from reads, across restarts, from the index via
+     * the background sweep, and from the cache
+     */
+    @Test
+    public void testStorageExpiry() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_expiry";
+        KVSingleFileStorage storage = new KVSingleFileStorage(directory, "expiry.db");
+        storage.clearStorage();
+
+        final long deadline = System.currentTimeMillis() + 1000;
+        for (int i = 0; i < 100; i++) storage.putKV("key_" + i, "value_" + i, i % 2 == 0 ? deadline : IKVStorage.KVPair.NO_EXPIRY);
+        storage.putKV("key_expired", "value", System.currentTimeMillis() - 1);
+        assertFalse(storage.inStorage("key_expired"));
+        assertEquals(deadline, storage.getKVPair("key_0").expiresAt);
+        try {
+            storage.delete("key_expired");
+            fail("Expired keys should be gone");
+        } catch (KVServerException e) {
+            assertEquals(KVMessage.StatusType.DELETE_ERROR, e.getErrorCode());
+        }
+
+        // Deadlines survive a restart
+        storage.close();
+        storage = new KVSingleFileStorage(directory, "expiry.db");
+        assertEquals(100, storage.getAllKV(kv -> true).size());
+        assertEquals("value_0", storage.getKV("key_0"));
+
+        // Expired keys are hidden straight away and swept out of the index soon after
+        final long liveBytes = storage.getLiveBytes();
+        Thread.sleep(deadline - System.currentTimeMillis() + 10);
+        assertFalse(storage.inStorage("key_0"));
+        assertEquals("value_1", storage.getKV("key_1"));
+        assertEquals(50, storage.getAllKV(kv -> true).size());
+        Thread.sleep(2000);
+        assertTrue(storage.getLiveBytes() < liveBytes);
+
+        // ...and stay gone after a restart
+        storage.close();
+        storage = new KVSingleFileStorage(directory, "expiry.db");
+        assertEquals(50, storage.getAllKV(kv -> true).size());
+
+        // A TTL too long to represent means no deadline, rather than one that has already passed
+        final long farOff = IKVStorage.KVPair.expiresAfter(Long.MAX_VALUE, System.currentTimeMillis());
+        assertEquals(IKVStorage.KVPair.NO_EXPIRY, farOff);
+        storage.putKV("key_forever", "value", farOff);
+        assertEquals("value", storage.getKV("key_forever"));
+        storage.clearStorage();
+        storage.close();
+
+        // TTLs make it over the wire
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new KVMessageProto(KVMessage.StatusType.PUT, "key", "value", 5000, 1).writeMessageTo(out);
+        assertEquals(5000, new KVMessageProto(new ByteArrayInputStream(out.toByteArray())).getTtl());
+
+        // Caches respect deadlines too
+        final IKVCache cache = IKVCache.newInstance(CacheStrategy.LRU, 10);
+        cache.putKV("cached", "value", System.currentTimeMillis() + 100);
+        assertEquals("value", cache.getKV("cached"));
+        Thread.sleep(150);
+        assertNull(cache.getKV("cached"));
+        assertFalse(cache.inCache("cached"));
+
+        // So do the other engines, through flushes, merges, compaction and restarts
+        final String root = IKVStorage.STORAGE_ROOT_DIRECTORY;
+        assertDeadlinesHold(() -> new KVLsmStorage(root + "/test_expiry_lsm", 4 * 1024 /* tiny memtable so merges run */));
+        assertDeadlinesHold(() -> new KVArenaStorage(root + "/test_expiry_arena", 64 * 1024, DurabilityPolicy.NONE));
+        assertDeadlinesHold(() -> new KVBTreeStorage(root + "/test_expiry_btree", 16, DurabilityPolicy.NONE));
+    }
+
+    private static void assertDeadlinesHold(Supplier<IKVStorage> opener) throws Exception {
+        IKVStorage storage = opener.get();
+        storage.clearStorage();
+
+        final long deadline = System.currentTimeMillis() + 1000;
+        for (int i = 0; i < 1000; i++) storage.putKV("key_" + i, "value_" + i, i % 2 == 0 ? deadline : IKVStorage.KVPair.NO_EXPIRY);
+        storage.putBatch(List.of(new IKVStorage.KVPair(IKVStorage.KVPair.Tombstone.VALID, "key_batched", "value", deadline)));
+        storage.putAllKV(kv -> kv.key.equals("key_2"), "value", "updated", new KVUpdateSummary(0));
+        storage.putKV("key_expired", "value", System.currentTimeMillis() - 1);
+        assertFalse(storage.inStorage("key_expired"));
+        assertEquals(deadline, storage.getKVPair("key_0").expiresAt);
+        assertEquals(deadline, storage.getKVPair("key_batched").expiresAt);
+        assertEquals(deadline, storage.getKVPair("key_2").expiresAt);
+        assertEquals(IKVStorage.KVPair.NO_EXPIRY, storage.getKVPair("key_1").expiresAt);
+
+        // Deadlines survive a restart
+        storage.close();
+        storage = opener.get();
+        assertEquals(deadline, storage.getKVPair("key_0").expiresAt);
+        assertEquals(1001, storage.getAllKV(kv -> true).size());
+
+        Thread.sleep(deadline - System.currentTimeMillis() + 10);
+        for (int pass = 0; pass < 2; pass++) {
+            assertFalse(storage.inStorage("key_0"));
+            assertFalse(storage.inStorage("key_batched"));
+            assertEquals("value_1", storage.getKV("key_1"));
+            assertEquals(500, storage.getAllKV(kv -> true).size());
+
+            // Rewriting everything, e.g. by compaction, mustn't bring expired keys back
+            if (storage instanceof KVArenaStorage) ((KVArenaStorage) storage).compact();
+            if (storage instanceof KVBTreeStorage) ((KVBTreeStorage) storage).compact();
+            for (int i = 1; i < 1000; i += 2) storage.putKV("key_" + i, "value_" + i);
+            storage.close();
+            storage = opener.get();
+        }
+
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that deadlines only go over the wire to servers that announce they understand them
+     */
+    @Test
+    public void testExpiringPairSerialization() throws Exception {
+        final IKVStorage.KVPair expiring = new IKVStorage.KVPair(IKVStorage.KVPair.Tombstone.VALID, "key", "a value", 1234);
+
+        // Without the deadline, a pair reads back as live no matter who reads it
+        IKVStorage.KVPair read = IKVStorage.KVPair.deserialize(expiring.serialize());
+        assertEquals(IKVStorage.KVPair.Tombstone.VALID, read.tombstone);
+        assertEquals("a value", read.value);
+        assertEquals(IKVStorage.KVPair.NO_EXPIRY, read.expiresAt);
+
+        read = IKVStorage.KVPair.deserialize(expiring.serialize(true));
+        assertEquals(IKVStorage.KVPair.Tombstone.VALID, read.tombstone);
+        assertEquals("a value", read.value);
+        assertEquals(1234, read.expiresAt);
+
+        // A receiver that announces deadlines gets them; one that says nothing (like an older server) doesn't
+        try (ServerSocket server = new ServerSocket(0)) {
+            for (boolean announce : new boolean[]{true, false}) {
+                try (Socket sender = new Socket("localhost", server.getLocalPort()); Socket receiver = server.accept()) {
+                    if (announce) DeadlineHandshake.announce(receiver);
+                    assertEquals(announce, DeadlineHandshake.accepts(sender));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that bulk updates spanning many batches rewrite every match, keep deadlines, and only report a summary
+     */
+    @Test
+    public void testStoragePutAllSummary() throws Exception {
+        final Random random = new Random(42);
+        final StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 400; i++) noise.append((char) ('a' + random.nextInt(26)));
+
+        final KVSingleFileStorage single = new KVSingleFileStorage(IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_put_all", "put_all.db");
+        final KVBTreeStorage btree = new KVBTreeStorage(IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_put_all_btree");
+        for (IKVStorage storage : List.of(single, btree)) {
+            storage.clearStorage();
+            // Enough matches for several write batches of both engines
+            for (int i = 0; i < 5000; i++) storage.putKV("key_" + i, i + "_" + noise.substring(i % 100));
+            storage.putKV("other", "value");
+
+            final KVUpdateSummary updated = new KVUpdateSummary(10);
+            storage.putAllKV(new KVPatternFilter(Pattern.compile("key_.*"), Pattern.compile(".*")), "_", "-", updated);
+            assertEquals(5000, updated.getCount());
+            assertEquals(10, updated.getSample().size());
+            for (IKVStorage.KVPair kv : updated.getSample()) assertEquals(storage.getKV(kv.key), kv.value);
+            for (int i = 0; i < 5000; i++) assertEquals(i + "-" + noise.substring(i % 100), storage.getKV("key_" + i));
+            assertEquals("value", storage.getKV("other"));
+
+            // Summaries survive the trip between servers
+            final KVUpdateSummary merged = new KVUpdateSummary(15);
+            merged.merge(KVUpdateSummary.deserialize(updated.serialize()));
+            merged.merge(KVUpdateSummary.deserialize(updated.serialize()));
+            assertEquals(10000, merged.getCount());
+            assertEquals(15, merged.getSample().size());
+
+            storage.clearStorage();
+            storage.close();
+        }
+
+        // Deadlines are kept through an update
+        final KVSingleFileStorage storage = new KVSingleFileStorage(IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_put_all", "put_all.db");
+        final long deadline = System.currentTimeMillis() + 60_000;
+        storage.putKV("key", "value", deadline);
+        storage.putAllKV(kv -> true, "v", "V", new KVUpdateSummary(0));
+        assertEquals("Value", storage.getKV("key"));
+        assertEquals(deadline, storage.getKVPair("key").expiresAt);
+        storage.clearStorage();
+        storage.close();
+    }
+
+    /**
+     * Tests that the tiered store serves writes from memory, flushes them to its partitions, and stays within bounds
+     */
+    @Test
+    public void testTieredStorage() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_tiered";
+        final long maxHotBytes = 64 * 1024;
+        KVTieredStorage storage = new KVTieredStorage(new KVPartitionedStorage(directory, 2, DurabilityPolicy.NONE), maxHotBytes);
+        storage.clearStorage();
+
+        // Many more writes than fit in the tier, some overwritten and deleted before they ever reach disk
+        populate(storage, "key_%d", 5000);
+        assertTrue(storage.getDirtyBytes() <= maxHotBytes / 2);
+        assertPopulated(storage, "key_%d", 5000);
+        assertTrue(storage.getHotBytes() <= maxHotBytes);
+        try {
+            storage.delete("key_0");
+            fail("Deleted keys should be gone");
+        } catch (KVServerException e) {
+            assertEquals(KVMessage.StatusType.DELETE_ERROR, e.getErrorCode());
+        }
+
+        // Bulk operations see writes that haven't been flushed yet
+        storage.putKV("unflushed", "value");
+        assertEquals(5000 - 1667 + 1, storage.getAllKV(kv -> true).size());
+        storage.deleteIf(kv -> kv.key.equals("key_1"));
+        assertFalse(storage.inStorage("key_1"));
+
+        // Everything reaches the partitions by the time the store is closed
+        storage.close();
+        final KVPartitionedStorage partitions = new KVPartitionedStorage(directory, 2, DurabilityPolicy.NONE);
+        assertEquals("value", partitions.getKV("unflushed"));
+        assertEquals("new_value_2", partitions.getKV("key_2"));
+        assertFalse(partitions.inStorage("key_3"));
+        assertEquals(5000 - 1667, partitions.getAllKV(kv -> true).size());
+        partitions.clearStorage();
+        partitions.close();
+
+        // Writers give up rather than wait forever on a disk that keeps failing
+        final AtomicBoolean coldClosed = new AtomicBoolean();
+        storage = new KVTieredStorage(new KVPartitionedStorage(directory, 2, DurabilityPolicy.NONE) {
+            @Override
+            public void putBatch(List<IKVStorage.KVPair> batch) throws KVServerException {
+                throw new KVServerException("Disk full", KVMessage.StatusType.PUT_ERROR);
+            }
+
+            @Override
+            public void close() {
+                coldClosed.set(true);
+                super.close();
+            }
+        }, maxHotBytes, 200);
+        try {
+            for (int i = 0; i < 5000; i++) storage.putKV("key_" + i, "value_" + i);
+            fail("Writes should fail once the tier can't be flushed");
+        } catch (KVServerException e) {
+            assertEquals(KVMessage.StatusType.PUT_ERROR, e.getErrorCode());
+            assertTrue(storage.getDirtyBytes() >= maxHotBytes / 2);
+        }
+
+        // ...and closing says so, keeping the writes and leaving the partitions open so it can be retried
+        final long dirtyBytes = storage.getDirtyBytes();
+        try {
+            storage.close();
+            fail("Closing should fail while the tier can't be flushed");
+        } catch (RuntimeException e) {
+            assertFalse(coldClosed.get());
+            assertEquals(dirtyBytes, storage.getDirtyBytes());
+        }
+        try {
+            storage.putKV("after_close", "value");
+            fail("Closed storage shouldn't take writes");
+        } catch (KVServerException e) {
+            assertEquals(KVMessage.StatusType.PUT_ERROR, e.getErrorCode());
+        }
+        storage.clearStorage();
+        storage.close();
+        assertTrue(coldClosed.get());
+    }
+
+    /**
+     * Tests KVLsmStorage across memtable flushes, background merges and a restart
+     */
+    @Test
+    public void testLsmStorage() throws Exception {
+        final String directory = IKVStorage.STORAGE_ROOT_DIRECTORY + "/test_lsm";
+        KVLsmStorage storage = new KVLsmStorage(directory, 4 * 1024 /* tiny memtable to force many flushes */);
+        storage.clearStorage();
+
+        populate(storage, "key_%d", 2000);
+        assertTrue(storage.segmentCount() > 0);
+
+        // Check both before and after a restart (which waits for pending merges)
+        for (int restart = 0; restart < 2; restart++) {
+            assertPopulated(storage, "key_%d", 2000);
+            assertEquals(2000 - 667, storage.getAllKV(kv -> true).size());
+
+            storage.close();
+            storage = new KVLsmStorage(directory, 4 * 1024);
+        }
+
+        // Absent keys within the segments' key ranges are mostly ruled out by Bloom filters
+        for (int i = 0; i < 2000; i++) assertFalse(storage.inStorage("key_" + i + "_absent"));
+        assertTrue(storage.getBloomFilterFalsePositiveRate() < 0.05);
+
+        // Batch operations
+        storage.deleteIf(kv -> kv.key.endsWith("1"));
+        assertFalse(storage.inStorage("key_1"));
+        try (Stream<IKVStorage.KVPair> kvs = storage.openKvStream(kv -> true)) {
+            assertTrue(kvs.noneMatch(kv -> kv.key.endsWith("1") || kv.tombstone != IKVStorage.KVPair.Tombstone.VALID));
+        }
+
+        storage.clearStorage();
+        assertFalse(storage.inStorage("key_2"));
+        storage.close();
+    }
+
     /**
      * Ensure that we only respond to requests of keys in the appropriate size range
      */
@@ -319,6 +1382,55 @@ public class AdditionalTest extends TestCase {
         for (int i = 0; i < TEST_CACHE_SIZE; i++) assertEquals(NEW_VALUE_PREFIX + i, cache.getKV(NEW_KEY_PREFIX + i));
     }
 
+    /**
+     * Tests that the LRU cache stays consistent and bounded under concurrent hits, writes and deletes
+     */
+    @Test
+    public void testConcurrentLruCache() throws Exception {
+        final int TEST_CACHE_SIZE = 1000, THREADS = 8, OPERATIONS = 50000;
+        final IKVCache cache = IKVCache.newInstance(CacheStrategy.LRU, TEST_CACHE_SIZE);
+
+        final ExecutorService threadPool = Executors.newFixedThreadPool(THREADS);
+        final List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            workers.add(threadPool.submit(() -> {
+                final Random random = new Random(seed);
+                for (int i = 0; i < OPERATIONS; i++) {
+                    final String key = "key_" + random.nextInt(4 * TEST_CACHE_SIZE);
+                    final int op = random.nextInt(10);
+                    if (op < 6) {
+                        final String value = cache.getKV(key);
+                        if (value != null) assertEquals("value_" + key, value);
+                    } else if (op < 9) cache.putKV(key, "value_" + key);
+                    else cache.delete(key);
+                }
+            }));
+        }
+        for (Future<?> worker : workers) worker.get();
+        threadPool.shutdown();
+
+        // Once quiet, the next write brings it back within capacity
+        cache.putKV("last", "value");
+        assertTrue(cache.getCacheSize() <= TEST_CACHE_SIZE);
+        assertEquals("value", cache.getKV("last"));
+
+        // Recency still decides what goes: keep a hot set warm while streaming cold keys through
+        cache.clearCache();
+        for (int i = 0; i < 100; i++) cache.putKV("hot_" + i, "value");
+        for (int i = 0; i < 10 * TEST_CACHE_SIZE; i++) {
+            if (i % 10 == 0) for (int j = 0; j < 100; j++) cache.getKV("hot_" + j);
+            cache.putKV("cold_" + i, "value");
+        }
+        for (int i = 0; i < 100; i++) assertTrue(cache.inCache("hot_" + i));
+        assertEquals(TEST_CACHE_SIZE, cache.getCacheSize());
+
+        cache.delete("hot_0");
+        assertFalse(cache.inCache("hot_0"));
+        cache.clearCache();
+        assertEquals(0, cache.getCacheSize());
+    }
+
     /**
      * Tests LFU Cache functionality -- no server
      */
@@ -370,6 +1482,174 @@ public class AdditionalTest extends TestCase {
         for (int i = 0; i < TEST_CACHE_SIZE; i++) assertEquals(NEW_VALUE_PREFIX + i, cache.getKV(NEW_KEY_PREFIX + i));
     }
 
+    /**
+     * Tests that LFU Cache frequencies decay, so that it follows the workload when the popular keys change -- no server
+     */
+    @Test
+    public void testLfuCacheDecay() {
+        final int TEST_CACHE_SIZE = 100;
+        final IKVCache cache = IKVCache.newInstance(CacheStrategy.LFU, TEST_CACHE_SIZE);
+
+        // Yesterday's keys get very hot
+        for (int i = 0; i < TEST_CACHE_SIZE; i++) cache.putKV("old_" + i, "value");
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < TEST_CACHE_SIZE; i++) assertNotNull(cache.getKV("old_" + i));
+        }
+
+        // Then the workload moves on to other keys, read (and filled on a miss) as a server would
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < TEST_CACHE_SIZE; i++) {
+                if (cache.getKV("new_" + i) == null) cache.putKV("new_" + i, "value");
+            }
+        }
+        int cached = 0;
+        for (int i = 0; i < TEST_CACHE_SIZE; i++) if (cache.inCache("new_" + i)) cached++;
+        assertTrue("Only " + cached + " of today's keys are cached", cached >= 0.9 * TEST_CACHE_SIZE);
+        assertEquals(TEST_CACHE_SIZE, cache.getCacheSize());
+    }
+
+    /**
+     * Tests that TinyLFU Cache keeps its working set through a scan, and beats LRU on skewed traffic -- no server
+     */
+    @Test
+    public void testTinyLfuCache() {
+        final int TEST_CACHE_SIZE = 100;
+        final IKVCache cache = IKVCache.newInstance(CacheStrategy.TINYLFU, TEST_CACHE_SIZE);
+        assertEquals(CacheStrategy.TINYLFU, cache.getCacheStrategy());
+
+        // Sweep lots of one-off keys through as a server would (read, miss, fill) while a working set is still in use
+        for (int i = 0; i < 100 * TEST_CACHE_SIZE; i++) {
+            if (i % 1000 < 5) {
+                for (int j = 0; j < TEST_CACHE_SIZE / 2; j++) {
+                    if (cache.getKV("hot_" + j) == null) cache.putKV("hot_" + j, "value_" + j);
+                }
+            }
+            if (cache.getKV("scan_" + i) == null) cache.putKV("scan_" + i, "value_" + i);
+        }
+        assertEquals(TEST_CACHE_SIZE, cache.getCacheSize());
+        for (int i = 0; i < TEST_CACHE_SIZE / 2; i++) assertEquals("value_" + i, cache.getKV("hot_" + i));
+
+        // On skewed (Zipfian) traffic over many more keys than fit, it should hit more often than LRU
+        final int KEYS = 100 * TEST_CACHE_SIZE, REQUESTS = 200000;
+        final double[] cumulative = new double[KEYS];
+        for (int i = 0; i < KEYS; i++) cumulative[i] = (i == 0 ? 0 : cumulative[i - 1]) + 1 / Math.pow(i + 1, 0.9);
+        final Map<CacheStrategy, Integer> hits = new HashMap<>();
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.LRU, CacheStrategy.TINYLFU}) {
+            final IKVCache candidate = IKVCache.newInstance(strategy, TEST_CACHE_SIZE);
+            final Random random = new Random(42);
+            int hitCount = 0;
+            for (int i = 0; i < REQUESTS; i++) {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[KEYS - 1]);
+                final String key = "key_" + (rank < 0 ? -rank - 1 : rank);
+                if (candidate.getKV(key) != null) hitCount++;
+                else candidate.putKV(key, "value");
+            }
+            hits.put(strategy, hitCount);
+        }
+        assertTrue(hits.toString(), hits.get(CacheStrategy.TINYLFU) > hits.get(CacheStrategy.LRU) * 1.1);
+
+        cache.delete("hot_0");
+        assertNull(cache.getKV("hot_0"));
+        cache.clearCache();
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    /**
+     * Tests that ARC Cache keeps keys that were hit again through a sweep, and adapts to point lookups -- no server
+     */
+    @Test
+    public void testArcCache() {
+        final int TEST_CACHE_SIZE = 100;
+        final IKVCache cache = IKVCache.newInstance(CacheStrategy.ARC, TEST_CACHE_SIZE);
+        assertEquals(CacheStrategy.ARC, cache.getCacheStrategy());
+
+        // A working set that has been hit more than once, then a sweep of one-off keys as a server would see it
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < TEST_CACHE_SIZE / 2; i++) {
+                if (cache.getKV("hot_" + i) == null) cache.putKV("hot_" + i, "value_" + i);
+            }
+        }
+        for (int i = 0; i < 10 * TEST_CACHE_SIZE; i++) {
+            if (cache.getKV("scan_" + i) == null) cache.putKV("scan_" + i, "value_" + i);
+        }
+        assertEquals(TEST_CACHE_SIZE, cache.getCacheSize());
+        for (int i = 0; i < TEST_CACHE_SIZE / 2; i++) assertEquals("value_" + i, cache.getKV("hot_" + i));
+
+        // Lookups alternating with sweeps: better than LRU, which the sweeps flush
+        final int KEYS = 20 * TEST_CACHE_SIZE;
+        final double[] cumulative = new double[KEYS];
+        for (int i = 0; i < KEYS; i++) cumulative[i] = (i == 0 ? 0 : cumulative[i - 1]) + 1 / Math.pow(i + 1, 0.9);
+        final Map<CacheStrategy, Integer> hits = new HashMap<>();
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.LRU, CacheStrategy.ARC}) {
+            final IKVCache candidate = IKVCache.newInstance(strategy, TEST_CACHE_SIZE);
+            final Random random = new Random(42);
+            int hitCount = 0;
+            for (int sweep = 0; sweep < 20; sweep++) {
+                for (int i = 0; i < 2000; i++) {
+                    int rank = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[KEYS - 1]);
+                    final String key = "key_" + (rank < 0 ? -rank - 1 : rank);
+                    if (candidate.getKV(key) != null) hitCount++;
+                    else candidate.putKV(key, "value");
+                }
+                for (int i = 0; i < 2 * TEST_CACHE_SIZE; i++) {
+                    final String key = "key_" + (sweep * 2 * TEST_CACHE_SIZE + i) % KEYS;
+                    if (candidate.getKV(key) != null) hitCount++;
+                    else candidate.putKV(key, "value");
+                }
+            }
+            hits.put(strategy, hitCount);
+        }
+        assertTrue(hits.toString(), hits.get(CacheStrategy.ARC) > hits.get(CacheStrategy.LRU) * 1.1);
+
+        cache.delete("hot_0");
+        assertNull(cache.getKV("hot_0"));
+        cache.clearCache();
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    /**
+     * Tests that every cache strategy can be bounded by the bytes of its keys and values instead of entries -- no server
+     */
+    @Test
+    public void testByteWeightedCache() {
+        assertEquals(KVCacheCapacity.ofEntries(100), KVCacheCapacity.parse("100"));
+        assertEquals(KVCacheCapacity.ofBytes(64L << 20), KVCacheCapacity.parse("64mb"));
+        assertEquals("512KB", KVCacheCapacity.parse("524288B").toString());
+        try {
+            KVCacheCapacity.parse("lots");
+            fail("Capacity should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        final KVCacheCapacity capacity = KVCacheCapacity.parse("64KB");
+        final Random random = new Random(42);
+        final String[] values = new String[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "v".repeat(10 + random.nextInt(random.nextBoolean() ? 100 : 4000));
+        }
+
+        for (CacheStrategy strategy : new CacheStrategy[]{CacheStrategy.FIFO, CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.TINYLFU, CacheStrategy.ARC}) {
+            final IKVCache cache = IKVCache.newInstance(strategy, capacity);
+            for (int i = 0; i < values.length; i++) {
+                cache.putKV("key_" + i, values[i]);
+                if (i % 3 == 0) cache.getKV("key_" + (i / 2));
+
+                long weightedSize = 0;
+                for (int j = 0; j <= i; j++) {
+                    if (cache.inCache("key_" + j)) weightedSize += capacity.weigh("key_" + j, values[j]);
+                }
+                assertTrue(strategy + " holds " + weightedSize, weightedSize <= capacity.getLimit());
+            }
+            // Small values mean more entries than a few large ones would
+            assertTrue(strategy.toString(), cache.getCacheSize() > 64 * 1024 / (KVCacheCapacity.ENTRY_OVERHEAD_BYTES + 4100));
+
+            // Values that could never fit aren't cached, nor is what they replaced left behind
+            cache.putKV("key_999", "v".repeat(128 * 1024));
+            assertFalse(strategy.toString(), cache.inCache("key_999"));
+        }
+    }
+
     /**
      * See {@link #testOneNodeHashRing()}
      */
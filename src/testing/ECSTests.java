@@ -4,6 +4,7 @@ import app_kvECS.ECSClient;
 import app_kvHttp.model.request.Query;
 import app_kvHttp.model.request.Remapping;
 import app_kvServer.storage.IKVStorage;
+import app_kvServer.storage.KVUpdateSummary;
 import client.KVStore;
 import ecs.IECSNode;
 import ecs.ZkECSNode;
@@ -20,7 +21,6 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -136,12 +136,11 @@ public class ECSTests extends TestCase {
 
         KVMessage res = kvClient.putAll(new Query(".*", ".*"), new Remapping("t", "T"));
 
-        assertEquals(3, res.getValue().split("\n").length);
+        final KVUpdateSummary updated = KVUpdateSummary.deserialize(res.getValue());
+        assertEquals(3, updated.getCount());
 
-        List<IKVStorage.KVPair> updatedVals = res.getValue().lines()
-                .map(IKVStorage.KVPair::deserialize)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+        List<IKVStorage.KVPair> updatedVals = updated.getSample();
+        assertEquals(3, updatedVals.size());
 
         updatedVals.forEach(kv -> assertEquals("TesT", kv.value));
         kvClient.disconnect();
@@ -132,7 +132,7 @@ public class HttpTests extends TestCase {
 
         // 3. Restore ECS service
         final ZkECSNode node = ((ZkECSNode) originalServers.values().iterator().next());
-        ECS.addNodes(originalServers.size(), node.getNodeCacheStrategy(), node.getNodeCacheSize());
+        ECS.addNodes(originalServers.size(), node.getNodeCacheStrategy(), node.getNodeCacheCapacity());
     }
 
     @Test
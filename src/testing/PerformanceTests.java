@@ -30,6 +30,8 @@ public class PerformanceTests extends TestCase {
         clientSuite.addTestSuite(Server10Client05PerformanceTest.class);
         clientSuite.addTestSuite(Server10Client20PerformanceTest.class);
         clientSuite.addTestSuite(QueryScalePerformanceTest.class);
+        clientSuite.addTestSuite(StorageConcurrencyPerformanceTest.class);
+        clientSuite.addTestSuite(CacheTracePerformanceTest.class);
         return clientSuite;
     }
 }
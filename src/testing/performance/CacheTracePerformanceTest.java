@@ -0,0 +1,160 @@
+package testing.performance;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.cache.IKVCache;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Hit ratio of every cache strategy on the same request traces, replayed the way a server uses its cache: a GET that
+ * misses is filled from storage, a PUT writes through, and a DELETE invalidates. Runs against the caches directly, no
+ * servers or ZooKeeper involved.
+ * <p>
+ * Recorded traces are read from {@link #TRACE_DIR}: one request per line, either a bare key (a GET) or an operation and
+ * a key e.g. "PUT some_key". Without any, synthetic traces standing in for our traffic are replayed instead.
+ */
+public class CacheTracePerformanceTest extends TestCase {
+    /**
+     * TRACE_DIR: directory of recorded *.trace files
+     * CACHE_FRACTIONS: cache sizes to try, as fractions of the distinct keys in a trace
+     */
+    private static final String TRACE_DIR = "traces";
+    private static final double[] CACHE_FRACTIONS = {0.01, 0.05, 0.2};
+
+    /**
+     * Synthetic traces: NUM_KEYS distinct keys, NUM_REQUESTS requests each
+     */
+    private static final int NUM_KEYS = 20000, NUM_REQUESTS = 500000;
+
+    @Test
+    public void testHitRatios() throws Exception {
+        final Map<String, List<String[]>> traces = loadTraces();
+        final List<CacheStrategy> strategies = Arrays.stream(CacheStrategy.values())
+                .filter(strategy -> strategy != CacheStrategy.None)
+                .collect(Collectors.toList());
+
+        System.out.println(String.join(" | ", "Trace", "Cache size",
+                strategies.stream().map(CacheStrategy::name).collect(Collectors.joining(" | "))));
+        for (Map.Entry<String, List<String[]>> trace : traces.entrySet()) {
+            final long distinctKeys = trace.getValue().stream().map(request -> request[1]).distinct().count();
+            for (double fraction : CACHE_FRACTIONS) {
+                final int cacheSize = (int) Math.max(1, distinctKeys * fraction);
+                final StringBuilder row = new StringBuilder(String.format("%s | %d", trace.getKey(), cacheSize));
+                for (CacheStrategy strategy : strategies) {
+                    row.append(String.format(" | %.1f%%", 100 * replay(IKVCache.newInstance(strategy, cacheSize), trace.getValue())));
+                }
+                System.out.println(row);
+            }
+        }
+    }
+
+    /**
+     * @return fraction of GETs that hit
+     */
+    private static double replay(IKVCache cache, List<String[]> trace) {
+        long gets = 0, hits = 0;
+        for (String[] request : trace) {
+            final String key = request[1];
+            switch (request[0]) {
+                case "PUT":
+                    cache.putKV(key, key);
+                    break;
+                case "DELETE":
+                    cache.delete(key);
+                    break;
+                default:
+                    gets++;
+                    if (cache.getKV(key) != null) hits++;
+                    else cache.putKV(key, key);
+                    break;
+            }
+        }
+        return gets == 0 ? 0 : (double) hits / gets;
+    }
+
+    /**
+     * @return requests as [operation, key], by trace name
+     */
+    private static Map<String, List<String[]>> loadTraces() throws IOException {
+        final Map<String, List<String[]>> traces = new LinkedHashMap<>();
+        final Path directory = Paths.get(TRACE_DIR);
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.filter(f -> f.toString().endsWith(".trace")).sorted().collect(Collectors.toList())) {
+                    try (Stream<String> lines = Files.lines(file)) {
+                        traces.put(file.getFileName().toString(), lines
+                                .map(String::trim)
+                                .filter(line -> !line.isEmpty())
+                                .map(line -> line.split("\\s+", 2))
+                                .map(parts -> parts.length == 1 ? new String[]{"GET", parts[0]} : new String[]{parts[0].toUpperCase(), parts[1]})
+                                .collect(Collectors.toList()));
+                    }
+                }
+            }
+        }
+        if (traces.isEmpty()) {
+            System.out.printf("No traces in '%s', replaying synthetic ones%n", directory.toAbsolutePath());
+            traces.putAll(syntheticTraces());
+        }
+        return traces;
+    }
+
+    /**
+     * <ul>
+     *     <li>zipf: point lookups of keys with Zipfian popularity, as in steady state</li>
+     *     <li>sweeps: the same lookups, interrupted every so often by a Query reading a long run of keys once each</li>
+     *     <li>shift: lookups whose popular keys change halfway through</li>
+     * </ul>
+     */
+    private static Map<String, List<String[]>> syntheticTraces() {
+        final double[] cumulative = new double[NUM_KEYS];
+        for (int i = 0; i < NUM_KEYS; i++) cumulative[i] = (i == 0 ? 0 : cumulative[i - 1]) + 1 / Math.pow(i + 1, 0.9);
+
+        final Map<String, List<String[]>> traces = new LinkedHashMap<>();
+        final Random random = new Random(42);
+
+        final List<String[]> zipf = new ArrayList<>(NUM_REQUESTS);
+        for (int i = 0; i < NUM_REQUESTS; i++) zipf.add(get("key_" + zipfRank(cumulative, random)));
+        traces.put("zipf", zipf);
+
+        final List<String[]> sweeps = new ArrayList<>(NUM_REQUESTS);
+        int sweepStart = 0;
+        while (sweeps.size() < NUM_REQUESTS) {
+            for (int i = 0; i < 20000; i++) sweeps.add(get("key_" + zipfRank(cumulative, random)));
+            for (int i = 0; i < NUM_KEYS / 4; i++) sweeps.add(get("key_" + (sweepStart + i) % NUM_KEYS));
+            sweepStart += NUM_KEYS / 4;
+        }
+        traces.put("sweeps", sweeps);
+
+        final List<String[]> shift = new ArrayList<>(NUM_REQUESTS);
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            final int rank = zipfRank(cumulative, random);
+            shift.add(get("key_" + (i < NUM_REQUESTS / 2 ? rank : NUM_KEYS - 1 - rank)));
+        }
+        traces.put("shift", shift);
+
+        return traces;
+    }
+
+    private static int zipfRank(double[] cumulative, Random random) {
+        final int rank = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[cumulative.length - 1]);
+        return rank < 0 ? -rank - 1 : rank;
+    }
+
+    private static String[] get(String key) {
+        return new String[]{"GET", key};
+    }
+}
@@ -0,0 +1,133 @@
+package testing.performance;
+
+import app_kvServer.storage.IKVStorage;
+import app_kvServer.storage.KVSingleFileStorage;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Mixed read/write throughput of a single {@link KVSingleFileStorage} partition while a full scan is running, with
+ * lock-free readers (as implemented) versus every read sharing a lock that writes take exclusively (as storage used to
+ * work). Runs against the storage directly, no servers or ZooKeeper involved.
+ */
+public class StorageConcurrencyPerformanceTest extends TestCase {
+    /**
+     * NUM_KEYS: keys written up front, all of which readers then look up at random
+     * NUM_READERS/NUM_WRITERS/NUM_SCANNERS: threads issuing getKV, putKV and getAllKV respectively
+     * DURATION_MILLIS: how long to run each configuration for
+     */
+    private static final int NUM_KEYS = 20000, NUM_READERS = 8, NUM_WRITERS = 2, NUM_SCANNERS = 1;
+    private static final long DURATION_MILLIS = 5000;
+    private static final String VALUE = "x".repeat(100);
+
+    private KVSingleFileStorage storage;
+
+    @Before
+    public void setUp() {
+        storage = new KVSingleFileStorage(IKVStorage.STORAGE_ROOT_DIRECTORY + "/perf_concurrency", "store.db");
+        storage.clearStorage();
+        for (int i = 0; i < NUM_KEYS; i++) storage.putKV("key_" + i, VALUE);
+    }
+
+    @After
+    public void tearDown() {
+        storage.clearStorage();
+        storage.close();
+    }
+
+    @Test
+    public void testMixedReadWriteThroughput() throws Exception {
+        System.out.println(String.join(" | ", "Mode", "GET/s", "PUT/s", "Scans/s"));
+
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final double[] locked = measureThroughput(lock);
+        System.out.printf("Locked | %.0f | %.0f | %.1f%n", locked[0], locked[1], locked[2]);
+
+        final double[] lockFree = measureThroughput(null);
+        System.out.printf("Lock-free | %.0f | %.0f | %.1f%n", lockFree[0], lockFree[1], lockFree[2]);
+        System.out.printf("Speedup: GET %.2fx, PUT %.2fx%n", lockFree[0] / locked[0], lockFree[1] / locked[1]);
+    }
+
+    /**
+     * @param lock if non-null, held shared by readers and scanners and exclusively by writers around each operation
+     * @return operations per second: GET, PUT and scan
+     */
+    private double[] measureThroughput(ReadWriteLock lock) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final LongAdder gets = new LongAdder(), puts = new LongAdder(), scans = new LongAdder();
+        final List<Runnable> workers = new ArrayList<>();
+
+        for (int i = 0; i < NUM_READERS; i++) {
+            workers.add(() -> {
+                while (!stop.get()) {
+                    final String key = "key_" + ThreadLocalRandom.current().nextInt(NUM_KEYS);
+                    withLock(lock == null ? null : lock.readLock(), () -> {
+                        try {
+                            assertEquals(VALUE, storage.getKV(key));
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                    gets.increment();
+                }
+            });
+        }
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            workers.add(() -> {
+                while (!stop.get()) {
+                    final String key = "key_" + ThreadLocalRandom.current().nextInt(NUM_KEYS);
+                    withLock(lock == null ? null : lock.writeLock(), () -> storage.putKV(key, VALUE));
+                    puts.increment();
+                }
+            });
+        }
+        for (int i = 0; i < NUM_SCANNERS; i++) {
+            workers.add(() -> {
+                while (!stop.get()) {
+                    withLock(lock == null ? null : lock.readLock(), () -> assertEquals(NUM_KEYS, storage.getAllKV(kv -> true).size()));
+                    scans.increment();
+                }
+            });
+        }
+
+        final ExecutorService threadPool = Executors.newFixedThreadPool(workers.size());
+        final List<Future<?>> futures = new ArrayList<>();
+        for (Runnable worker : workers) futures.add(threadPool.submit(worker));
+        Thread.sleep(DURATION_MILLIS);
+        stop.set(true);
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(60, TimeUnit.SECONDS));
+        for (Future<?> future : futures) future.get();
+
+        final double seconds = DURATION_MILLIS / 1e3;
+        return new double[]{gets.sum() / seconds, puts.sum() / seconds, scans.sum() / seconds};
+    }
+
+    private static void withLock(Lock lock, Runnable action) {
+        if (lock == null) {
+            action.run();
+            return;
+        }
+        try {
+            lock.lock();
+            action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+}